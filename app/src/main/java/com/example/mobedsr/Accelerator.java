@@ -0,0 +1,21 @@
+package com.example.mobedsr;
+
+
+/** @brief  Where an SRModel interpreter runs its kernels
+ *  @date   26/10/17
+ *  CPU is the TF Lite builtin kernels, XNNPACK the optimized CPU kernels,
+ *  NNAPI and GPU the corresponding delegates. Only the CPU ones use the
+ *  interpreter's thread count.
+ */
+public enum Accelerator {
+    CPU, XNNPACK, NNAPI, GPU;
+
+    public boolean usesThreads() {
+        return this == CPU || this == XNNPACK;
+    }
+
+    /** @return whether the interpreter must be built, run and closed on one thread, as the GPU delegate's */
+    public boolean isThreadBound() {
+        return this == GPU;
+    }
+}
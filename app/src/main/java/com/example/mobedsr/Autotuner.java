@@ -0,0 +1,186 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+
+/** @brief  Benchmark interpreter configurations and pick the fastest
+ *  @date   26/10/17
+ *  A candidate is a model variant (precision) on an accelerator with a
+ *  thread count. Each one is opened, run WARMUP_RUNS times unmeasured, then
+ *  RUNS times; the median run is its latency. A candidate whose warmup is
+ *  already PRUNE_FACTOR times slower than the best median so far is not
+ *  measured further, which keeps the search short on first launch.
+ */
+public class Autotuner {
+    static final int WARMUP_RUNS = 2;
+    static final int RUNS = 5;
+    static final double PRUNE_FACTOR = 3.0;
+
+
+    /** @brief  One configuration to benchmark
+     *  @date   26/10/17
+     */
+    public static final class Candidate {
+        public final ModelVariant variant;
+        public final Accelerator accelerator;
+        // -1 for the TF Lite default, always -1 for delegates
+        public final int numThreads;
+
+        public Candidate(ModelVariant variant, Accelerator accelerator, int numThreads) {
+            this.variant = variant;
+            this.accelerator = accelerator;
+            this.numThreads = numThreads;
+        }
+
+        @Override
+        public String toString() {
+            return variant.name + "/" + accelerator.name().toLowerCase(Locale.US)
+                    + (numThreads > 0 ? "/" + numThreads + "t" : "");
+        }
+    }
+
+
+    /** @brief  Opens candidates for benchmarking
+     *  @date   26/10/17
+     */
+    public interface Runner {
+        /** @throws IOException if the candidate cannot run on this device */
+        Trial open(Candidate candidate) throws IOException;
+    }
+
+    /** @brief  An opened candidate, e.g. an interpreter with its input ready
+     *  @date   26/10/17
+     */
+    public interface Trial extends Closeable {
+        void run() throws IOException;
+    }
+
+
+    /** @brief  Measurement of one candidate
+     *  @date   26/10/17
+     */
+    public static final class Result {
+        public final Candidate candidate;
+        public final double latencyMs;
+        public final boolean pruned;
+        public final String error;
+
+        Result(Candidate candidate, double latencyMs, boolean pruned, String error) {
+            this.candidate = candidate;
+            this.latencyMs = latencyMs;
+            this.pruned = pruned;
+            this.error = error;
+        }
+
+        boolean isMeasured() {
+            return error == null && !pruned;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null)
+                return candidate + ": skipped, " + error;
+            return String.format(Locale.US, "%s: %.1fms%s", candidate, latencyMs, pruned ? " (pruned)" : "");
+        }
+    }
+
+
+    /** @brief  Fastest candidate and the results of all of them
+     *  @date   26/10/17
+     */
+    public static final class Outcome {
+        public final Result best;
+        public final List<Result> results;
+
+        Outcome(Result best, List<Result> results) {
+            this.best = best;
+            this.results = results;
+        }
+    }
+
+
+    /** @brief  Cross product of variants, accelerators and thread counts
+     *  @date   26/10/17
+     *  Delegates get a single candidate per variant, without thread count.
+     */
+    public static List<Candidate> candidates(List<ModelVariant> variants, List<Accelerator> accelerators,
+                                             int[] threadCounts) {
+        List<Candidate> candidates = new ArrayList<>();
+        for (ModelVariant variant : variants) {
+            for (Accelerator accelerator : accelerators) {
+                if (!accelerator.usesThreads()) {
+                    candidates.add(new Candidate(variant, accelerator, -1));
+                    continue;
+                }
+                for (int numThreads : threadCounts)
+                    candidates.add(new Candidate(variant, accelerator, numThreads));
+            }
+        }
+        return candidates;
+    }
+
+    /** @return 1, 2, 4, ... up to the number of cores, and the number of cores itself */
+    public static int[] threadCounts(int cores) {
+        List<Integer> counts = new ArrayList<>();
+        for (int n = 1; n < cores; n *= 2)
+            counts.add(n);
+        counts.add(Math.max(cores, 1));
+
+        int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = counts.get(i);
+        return result;
+    }
+
+
+    /** @brief  Benchmark every candidate
+     *  @date   26/10/17
+     *  @throws IOException if no candidate could be measured
+     */
+    public Outcome tune(List<Candidate> candidates, Runner runner) throws IOException {
+        List<Result> results = new ArrayList<>();
+        Result best = null;
+
+        for (Candidate candidate : candidates) {
+            Result result;
+            try (Trial trial = runner.open(candidate)) {
+                result = measure(candidate, trial, best == null ? Double.MAX_VALUE : best.latencyMs);
+            } catch (IOException | RuntimeException e) {
+                result = new Result(candidate, 0, false, String.valueOf(e.getMessage()));
+            }
+            results.add(result);
+            if (result.isMeasured() && (best == null || result.latencyMs < best.latencyMs))
+                best = result;
+        }
+
+        if (best == null)
+            throw new IOException("No configuration could run the model");
+        return new Outcome(best, results);
+    }
+
+    private static Result measure(Candidate candidate, Trial trial, double bestMs) throws IOException {
+        double warmupMs = 0;
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            warmupMs = time(trial);
+        // The last warmup run is already warm; far slower than the best means a slower configuration
+        if (warmupMs > bestMs * PRUNE_FACTOR)
+            return new Result(candidate, warmupMs, true, null);
+
+        double[] runs = new double[RUNS];
+        for (int i = 0; i < RUNS; i++)
+            runs[i] = time(trial);
+        Arrays.sort(runs);
+        return new Result(candidate, runs[RUNS / 2], false, null);
+    }
+
+    private static double time(Trial trial) throws IOException {
+        long startTime = System.nanoTime();
+        trial.run();
+        return (System.nanoTime() - startTime) / 1e6;
+    }
+}
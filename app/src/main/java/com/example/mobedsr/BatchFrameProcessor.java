@@ -0,0 +1,13 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/** @brief  Processing stage taking several consecutive frames at once, e.g. batched inference
+ *  @date   26/10/17
+ */
+public interface BatchFrameProcessor {
+    /** @return one output frame per input frame, in the same order */
+    List<Frame> process(List<Frame> frames) throws IOException;
+}
@@ -0,0 +1,102 @@
+package com.example.mobedsr;
+
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Bicubic upscale of ARGB images by an integer factor, rows in parallel
+ *  @date   26/10/17
+ *  Keys' cubic kernel (a = -0.5) on pixel centers, edges clamped. With an
+ *  integer scale the sampling phase repeats every `scale` output pixels, so
+ *  the taps and weights are tabulated once per phase instead of per pixel.
+ *  Alpha is dropped, as by the models.
+ */
+public class BicubicUpscaler {
+    private static final float A = -0.5f;
+
+    private final int scale;
+    // Per phase: offset of the first of the 4 source taps, relative to output / scale
+    private final int[] firstTap;
+    // Per phase: the 4 tap weights
+    private final float[][] weights;
+
+
+    public BicubicUpscaler(int scale) {
+        if (scale < 1)
+            throw new IllegalArgumentException("Scale must be >= 1");
+        this.scale = scale;
+        firstTap = new int[scale];
+        weights = new float[scale][4];
+        for (int phase = 0; phase < scale; phase++) {
+            // Source coordinate of the output pixel center, relative to output / scale
+            float u = (phase + 0.5f) / scale - 0.5f;
+            int base = (int) Math.floor(u);
+            float t = u - base;
+            firstTap[phase] = base - 1;
+            for (int k = 0; k < 4; k++)
+                weights[phase][k] = cubic(k - 1 - t);
+        }
+    }
+
+    static float cubic(float x) {
+        x = Math.abs(x);
+        if (x <= 1)
+            return ((A + 2) * x - (A + 3)) * x * x + 1;
+        if (x < 2)
+            return ((A * x - 5 * A) * x + 8 * A) * x - 4 * A;
+        return 0;
+    }
+
+
+    /** @brief  Upscale the whole image
+     *  @param  dst ARGB image of (width * scale) * (height * scale)
+     */
+    public void upscale(int[] src, int width, int height, int[] dst) {
+        upscale(src, width, height, dst, 0, 0, width * scale, height * scale);
+    }
+
+    /** @brief  Upscale the region [x0, x1) x [y0, y1) of the output, in output pixels
+     *  @date   26/10/17
+     */
+    public void upscale(int[] src, int width, int height, int[] dst, int x0, int y0, int x1, int y1) {
+        int dstWidth = width * scale;
+        TensorConverter.forRows(y1 - y0, ForkJoinPool.commonPool(), (rowStart, rowEnd) -> {
+            for (int y = y0 + rowStart; y < y0 + rowEnd; y++)
+                for (int x = x0; x < x1; x++)
+                    dst[y * dstWidth + x] = sample(src, width, height, x, y);
+        });
+    }
+
+    /** @return bicubic ARGB value of one output pixel */
+    public int sample(int[] src, int width, int height, int x, int y) {
+        int phaseX = x % scale;
+        int phaseY = y % scale;
+        int sx = x / scale + firstTap[phaseX];
+        int sy = y / scale + firstTap[phaseY];
+        float[] wx = weights[phaseX];
+        float[] wy = weights[phaseY];
+
+        float r = 0, g = 0, b = 0;
+        for (int j = 0; j < 4; j++) {
+            int row = clamp(sy + j, height) * width;
+            float rowR = 0, rowG = 0, rowB = 0;
+            for (int i = 0; i < 4; i++) {
+                int pixel = src[row + clamp(sx + i, width)];
+                rowR += ((pixel >> 16) & 0xFF) * wx[i];
+                rowG += ((pixel >> 8) & 0xFF) * wx[i];
+                rowB += (pixel & 0xFF) * wx[i];
+            }
+            r += rowR * wy[j];
+            g += rowG * wy[j];
+            b += rowB * wy[j];
+        }
+        return TensorConverter.packPixel(r / 255.0f, g / 255.0f, b / 255.0f);
+    }
+
+    private static int clamp(int i, int length) {
+        return (i < 0) ? 0 : (i >= length) ? length - 1 : i;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+/** @brief  Video pipeline stage super resolving whole frames on a GPU and a CPU
+ *          interpreter at once
+ *  @date   26/10/17
+ *  Frames go through the CoExecutionScheduler; each backend converts and
+ *  runs its frames with its own interpreter and arena. The pipeline stage
+ *  has more threads than backends so that both always have a frame queued,
+ *  and the stage's reorder window restores the frame order.
+ */
+public class CoExecutionFrameStage implements FrameProcessor, Closeable {
+    // GPU : CPU speed guess, replaced by measurements after the first frames
+    private static final double[] INITIAL_WEIGHTS = {3.0, 1.0};
+
+    private final CoExecutionScheduler<SRBackend.Job> scheduler;
+    private final int backends;
+
+
+    /** @param width  width of the LR frames
+     *  @param height height of the LR frames
+     */
+    CoExecutionFrameStage(SRModelPool pool, String modelName, int cpuThreads, int width, int height) {
+        List<SRBackend> srBackends = SRBackend.cpuAndGpu(pool, modelName, cpuThreads, new int[]{1, height, width, 3});
+        backends = srBackends.size();
+        scheduler = new CoExecutionScheduler<>(srBackends, INITIAL_WEIGHTS);
+    }
+
+
+    /** @brief  Append the SR stage to the pipeline
+     *  @date   26/10/17
+     */
+    public void addTo(FramePipeline pipeline) {
+        pipeline.addStage("coexec", backends * 2, this);
+    }
+
+
+    @Override
+    public Frame process(final Frame frame) throws IOException {
+        final Frame[] result = new Frame[1];
+        try {
+            scheduler.submit(backend -> {
+                SRModel srModel = backend.getModel();
+                int scale = srModel.getScale();
+                int[] srPixels = new int[frame.width * frame.height * scale * scale];
+                srModel.superResolve(frame.pixels, frame.width, frame.height, srPixels);
+                result[0] = new Frame(frame.index, frame.width * scale, frame.height * scale, srPixels);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the SR backends", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Frame " + frame.index + " failed", e.getCause());
+        }
+        return result[0];
+    }
+
+    public List<CoExecutionScheduler.BackendStats> getStats() {
+        return scheduler.getStats();
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+}
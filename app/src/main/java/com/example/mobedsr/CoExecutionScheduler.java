@@ -0,0 +1,351 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+/** @brief  Shares frames or tiles between heterogeneous backends, e.g. a CPU
+ *          and a GPU interpreter, that are live at the same time
+ *  @date   26/10/17
+ *  Each backend has its own worker thread (interpreters and delegates are
+ *  bound to one thread) and its own queue. A submitted item goes to the
+ *  backend with the earliest expected finish, (pending + 1) / throughput,
+ *  where throughput is a moving average of the measured items per second.
+ *  An idle worker steals the newest queued item of the most loaded other
+ *  backend, so a wrong estimate only costs the item in flight.
+ */
+public class CoExecutionScheduler<T> implements Closeable {
+    // Weight of the newest sample in the throughput average
+    static final double SMOOTHING = 0.2;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final Object lock = new Object();
+    private boolean closed;
+
+
+    /** @brief  One execution resource
+     *  @date   26/10/17
+     *  All methods are called on the backend's own worker thread.
+     */
+    public interface Backend<T> {
+        String getName();
+
+        /** @brief  Acquire the resources, e.g. build the interpreter */
+        void open() throws Exception;
+
+        void process(T item) throws Exception;
+
+        void close();
+    }
+
+
+    /** @brief  Counters of one backend
+     *  @date   26/10/17
+     */
+    public static final class BackendStats {
+        public final String name;
+        public final int processed;
+        public final int stolen;
+        public final double itemsPerSecond;
+        public final boolean failed;
+
+        BackendStats(String name, int processed, int stolen, double itemsPerSecond, boolean failed) {
+            this.name = name;
+            this.processed = processed;
+            this.stolen = stolen;
+            this.itemsPerSecond = itemsPerSecond;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d items (%d stolen), %.1f items/s%s",
+                    name, processed, stolen, itemsPerSecond, failed ? ", failed" : "");
+        }
+    }
+
+
+    private final class Task {
+        final T item;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Task(T item) {
+            this.item = item;
+        }
+    }
+
+
+    private final class Worker implements Runnable {
+        final Backend<T> backend;
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        final Thread thread;
+        final double weight;
+        // Guarded by lock
+        double throughput;
+        boolean ready;
+        boolean busy;
+        boolean failed;
+        int processed;
+        int stolen;
+
+        Worker(Backend<T> backend, double weight) {
+            this.backend = backend;
+            this.weight = weight;
+            thread = new Thread(this, "CoExec-" + backend.getName());
+        }
+
+        @Override
+        public void run() {
+            try {
+                backend.open();
+            } catch (Exception e) {
+                e.printStackTrace();
+                abandon(this, e);
+                return;
+            }
+            synchronized (lock) {
+                ready = true;
+            }
+
+            try {
+                while (true) {
+                    Task task;
+                    synchronized (lock) {
+                        while ((task = queue.pollFirst()) == null && (task = steal(this)) == null && !closed)
+                            lock.wait();
+                        if (task == null)
+                            return;
+                        busy = true;
+                    }
+
+                    long startTime = System.nanoTime();
+                    try {
+                        backend.process(task.item);
+                        task.future.complete(null);
+                    } catch (Exception e) {
+                        task.future.completeExceptionally(e);
+                    }
+                    long elapsed = Math.max(System.nanoTime() - startTime, 1);
+
+                    synchronized (lock) {
+                        double sample = 1e9 / elapsed;
+                        throughput = processed == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput;
+                        processed += 1;
+                        busy = false;
+                        // Estimates changed: idle workers re-check whether to steal
+                        lock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                backend.close();
+            }
+        }
+    }
+
+
+    /** @param backends        backends to share the work between
+     *  @param initialWeights  relative speed guesses used until measured, or null for equal
+     */
+    public CoExecutionScheduler(List<? extends Backend<T>> backends, double[] initialWeights) {
+        if (backends.isEmpty())
+            throw new IllegalArgumentException("No backend");
+        for (int i = 0; i < backends.size(); i++) {
+            double weight = (initialWeights == null) ? 1.0 : initialWeights[i];
+            workers.add(new Worker(backends.get(i), weight));
+        }
+        for (Worker worker : workers)
+            worker.thread.start();
+    }
+
+
+    /** @brief  Queue an item on the backend expected to finish it first
+     *  @date   26/10/17
+     *  @return future completed when the item is processed, exceptionally if it failed
+     */
+    public Future<Void> submit(T item) {
+        Task task = new Task(item);
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("Scheduler closed");
+
+            Worker target = null;
+            double best = Double.MAX_VALUE;
+            for (Worker worker : workers) {
+                if (worker.failed)
+                    continue;
+                double finish = (pending(worker) + 1) / estimate(worker);
+                if (finish < best) {
+                    best = finish;
+                    target = worker;
+                }
+            }
+            if (target == null)
+                task.future.completeExceptionally(new IllegalStateException("Every backend failed"));
+            else {
+                target.queue.addLast(task);
+                lock.notifyAll();
+            }
+        }
+        return task.future;
+    }
+
+
+    /** @brief  Process every item and wait for all of them
+     *  @date   26/10/17
+     *  @throws ExecutionException with the first failure, after all items finished
+     */
+    public void executeAll(Collection<? extends T> items) throws ExecutionException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<>(items.size());
+        for (T item : items)
+            futures.add(submit(item));
+
+        ExecutionException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+
+    /** @return queued items plus the one in flight; called with the lock held */
+    private int pending(Worker worker) {
+        return worker.queue.size() + (worker.busy ? 1 : 0);
+    }
+
+
+    /** @brief  Items per second of a backend
+     *  @date   26/10/17
+     *  Until a backend has a measurement, its weight is scaled by the
+     *  measured backends, so guesses and measurements stay comparable.
+     *  Called with the lock held.
+     */
+    private double estimate(Worker worker) {
+        if (worker.processed > 0)
+            return worker.throughput;
+
+        double measured = 0;
+        double weights = 0;
+        for (Worker other : workers) {
+            if (other.processed > 0) {
+                measured += other.throughput;
+                weights += other.weight;
+            }
+        }
+        return weights == 0 ? worker.weight : worker.weight * measured / weights;
+    }
+
+
+    /** @brief  Take the newest queued item of the most loaded other backend
+     *  @date   26/10/17
+     *  Called with the lock held.
+     */
+    private Task steal(Worker thief) {
+        Worker victim = null;
+        for (Worker worker : workers)
+            if (worker != thief && !worker.queue.isEmpty()
+                    && (victim == null || worker.queue.size() > victim.queue.size()))
+                victim = worker;
+        if (victim == null)
+            return null;
+
+        // Only worth it if the thief is expected to finish the item before the victim gets to it
+        double thiefFinish = 1.0 / estimate(thief);
+        double victimFinish = pending(victim) / estimate(victim);
+        if (victim.ready && !victim.failed && thiefFinish > victimFinish)
+            return null;
+
+        thief.stolen += 1;
+        return victim.queue.pollLast();
+    }
+
+
+    /** @brief  A backend failed to open: hand its queue to the others
+     *  @date   26/10/17
+     */
+    private void abandon(Worker worker, Exception e) {
+        List<Task> orphans;
+        boolean anyAlive = false;
+        synchronized (lock) {
+            worker.failed = true;
+            orphans = new ArrayList<>(worker.queue);
+            worker.queue.clear();
+            for (Worker other : workers)
+                anyAlive |= !other.failed;
+            if (anyAlive) {
+                for (Task task : orphans)
+                    leastLoaded().queue.addLast(task);
+                lock.notifyAll();
+            }
+        }
+        if (!anyAlive)
+            for (Task task : orphans)
+                task.future.completeExceptionally(e);
+    }
+
+    private Worker leastLoaded() {
+        Worker target = null;
+        for (Worker worker : workers)
+            if (!worker.failed && (target == null
+                    || (pending(worker) + 1) / estimate(worker) < (pending(target) + 1) / estimate(target)))
+                target = worker;
+        return target;
+    }
+
+
+    /** @return share of the processed items per backend, in backend order */
+    public double[] getShares() {
+        synchronized (lock) {
+            double[] shares = new double[workers.size()];
+            int total = 0;
+            for (Worker worker : workers)
+                total += worker.processed;
+            for (int i = 0; i < shares.length; i++)
+                shares[i] = total == 0 ? 0 : (double) workers.get(i).processed / total;
+            return shares;
+        }
+    }
+
+    public List<BackendStats> getStats() {
+        synchronized (lock) {
+            List<BackendStats> stats = new ArrayList<>();
+            for (Worker worker : workers)
+                stats.add(new BackendStats(worker.backend.getName(), worker.processed, worker.stolen,
+                        estimate(worker), worker.failed));
+            return stats;
+        }
+    }
+
+
+    /** @brief  Let the workers drain their queues, then close the backends
+     *  @date   26/10/17
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+/** @brief  Tiled super resolution shared between a GPU and a CPU interpreter
+ *  @date   26/10/17
+ *  Both interpreters are resized to the tile shape and live at once; the
+ *  CoExecutionScheduler hands each tile to the backend expected to finish
+ *  it first and lets an idle backend steal queued tiles, so the split
+ *  follows the measured speed of the two. Each backend uses a slot of its
+ *  own interpreter's arena; blending into the output is serialized.
+ */
+public class CoTiledSR implements Closeable {
+    // Initial GPU : CPU speed guess, replaced by measurements after the first tiles
+    private static final double[] INITIAL_WEIGHTS = {3.0, 1.0};
+
+    private final CoExecutionScheduler<SRBackend.Job> scheduler;
+    private final int tileSize;
+    private final int overlap;
+    private final int scale;
+
+
+    /** @param cpuThreads threads of the CPU interpreter */
+    CoTiledSR(SRModelPool pool, String modelName, int cpuThreads) throws ExecutionException, InterruptedException {
+        this.tileSize = TiledSR.TILE_SIZE;
+        this.overlap = TiledSR.OVERLAP;
+        scheduler = new CoExecutionScheduler<>(SRBackend.cpuAndGpu(pool, modelName, cpuThreads,
+                new int[]{1, tileSize, tileSize, 3}), INITIAL_WEIGHTS);
+
+        // Ask whichever backend is up first for the scale of the model
+        final int[] modelScale = new int[1];
+        try {
+            scheduler.submit(backend -> modelScale[0] = backend.getModel().getScale()).get();
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            // The caller never gets the instance to close, stop the workers and their interpreters here
+            scheduler.close();
+            throw e;
+        }
+        scale = modelScale[0];
+    }
+
+
+    public FloatBuffer allocateOutput(int width, int height) {
+        return TiledSR.allocateOutput(width, height, scale);
+    }
+
+
+    /** @brief  Super resolve the image tile by tile on both backends
+     *  @date   26/10/17
+     *  @param  output preallocated RGB float tensor of (width * scale) * (height * scale) * 3
+     */
+    public void run(final int[] pixels, int width, int height, final FloatBuffer output)
+            throws ExecutionException, InterruptedException {
+        final TileGrid grid = new TileGrid(width, height, tileSize, overlap, scale);
+        for (int i = 0; i < output.capacity(); i++)
+            output.put(i, 0.0f);
+
+        final int inputCount = tileSize * tileSize * 3;
+        List<SRBackend.Job> jobs = new ArrayList<>();
+        for (final TileGrid.Tile tile : grid.getTiles()) {
+            jobs.add(backend -> {
+                SRModel srModel = backend.getModel();
+                TensorArena arena = srModel.getArena();
+                TensorArena.Slot slot = arena.acquire();
+                try {
+                    FloatBuffer tileInput = (srModel.getInputQuantization() == null)
+                            ? null : backend.getTileInput(inputCount);
+                    FloatBuffer tileOutput = (srModel.getOutputQuantization() == null)
+                            ? null : backend.getTileOutput(inputCount * scale * scale);
+                    TiledSR.runTile(srModel, grid, tile, pixels, slot, tileInput, tileOutput, output);
+                } finally {
+                    arena.release(slot);
+                }
+            });
+        }
+        scheduler.executeAll(jobs);
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public List<CoExecutionScheduler.BackendStats> getStats() {
+        return scheduler.getStats();
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/** @brief  Frame sink encoding raw ARGB frames to a video with FFmpeg
+ *  @date   26/10/17
+ *  FFmpeg is started on the first frame, once the frame size is known,
+ *  and reads the frames from a named pipe. Software encoder, see
+ *  VideoEncoderConfig.ffmpegArguments(); MediaCodecFrameSink falls back to it.
+ */
+public class FFmpegFrameSink implements FrameSink {
+    private final Context context;
+    private final String outputPath;
+    private final VideoEncoderConfig config;
+
+    private FFmpegPipe pipe;
+    private OutputStream outputStream;
+    private ByteBuffer frameBytes;
+
+
+    /** @param outputPath path of the encoded video, overwritten if it exists
+     *  @param fps        frame rate of the encoded video
+     */
+    public FFmpegFrameSink(Context context, String outputPath, String fps) {
+        this(context, outputPath, new VideoEncoderConfig(fps, VideoEncoderConfig.Preset.BALANCED, 0, null));
+    }
+
+    public FFmpegFrameSink(Context context, String outputPath, VideoEncoderConfig config) {
+        this.context = context;
+        this.outputPath = outputPath;
+        this.config = config;
+    }
+
+    private void start(int width, int height) throws IOException {
+        pipe = new FFmpegPipe(context, false);
+        pipe.start(config.ffmpegArguments(pipe.path, width, height, outputPath));
+
+        outputStream = new BufferedOutputStream(new FileOutputStream(pipe.path), 1 << 20);
+        frameBytes = ByteBuffer.allocate(width * height * 4);
+    }
+
+
+    @Override
+    public void write(Frame frame) throws IOException {
+        if (pipe == null)
+            start(frame.width, frame.height);
+
+        frameBytes.clear();
+        frameBytes.asIntBuffer().put(frame.pixels, 0, frame.width * frame.height);
+        outputStream.write(frameBytes.array(), 0, frameBytes.capacity());
+    }
+
+
+    /** @brief  Flush the remaining frames and wait for the encoder to finish
+     *  @date   26/10/17
+     */
+    @Override
+    public void close() throws IOException {
+        if (pipe == null)
+            return;
+        try {
+            outputStream.close();
+            pipe.await();
+        } finally {
+            pipe.close();
+            pipe = null;
+        }
+    }
+}
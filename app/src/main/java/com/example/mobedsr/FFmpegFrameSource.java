@@ -0,0 +1,144 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.StreamInformation;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/** @brief  Frame source decoding a video with FFmpeg into a pipe
+ *  @date   26/10/17
+ *  FFmpeg writes raw ARGB frames to a named pipe, so no intermediate image
+ *  files hit the storage. ARGB bytes read big-endian are exactly the packed
+ *  ARGB_8888 ints used by Bitmap.
+ */
+public class FFmpegFrameSource implements FrameSource {
+    private final FFmpegPipe pipe;
+    private final int width;
+    private final int height;
+    private final int frameCount;
+    private final byte[] frameBytes;
+
+    private DataInputStream inputStream;
+    private int frameIndex;
+
+
+    /** @param inputPath path of the input video
+     *  @param fps       frame rate to sample the video at
+     */
+    public FFmpegFrameSource(Context context, String inputPath, String fps) throws IOException {
+        MediaInformation information = probe(inputPath);
+        StreamInformation stream = videoStream(information, inputPath);
+        width = stream.getWidth().intValue();
+        height = stream.getHeight().intValue();
+        frameCount = estimateFrameCount(information, fps);
+        frameBytes = new byte[width * height * 4];
+
+        pipe = new FFmpegPipe(context, true);
+        start(new String[]{"-i", inputPath, "-vf", "fps=" + fps});
+    }
+
+    /** @brief  Decode with the given input and filter arguments, e.g. a segment of the video
+     *  @date   26/10/17
+     *  @param inputArguments FFmpeg arguments up to the output options
+     */
+    FFmpegFrameSource(Context context, String[] inputArguments, int width, int height, int frameCount) {
+        this.width = width;
+        this.height = height;
+        this.frameCount = frameCount;
+        frameBytes = new byte[width * height * 4];
+
+        pipe = new FFmpegPipe(context, true);
+        start(inputArguments);
+    }
+
+    private void start(String[] inputArguments) {
+        String[] arguments = Arrays.copyOf(inputArguments, inputArguments.length + 6);
+        System.arraycopy(new String[]{"-f", "rawvideo", "-pix_fmt", "argb", "-y", pipe.path}, 0,
+                arguments, inputArguments.length, 6);
+        pipe.start(arguments);
+    }
+
+
+    /** @brief  Read the media information of the input
+     *  @date   26/10/17
+     */
+    static MediaInformation probe(String inputPath) throws IOException {
+        MediaInformationSession session = FFprobeKit.getMediaInformation(inputPath);
+        MediaInformation information = session.getMediaInformation();
+        if (information == null)
+            throw new IOException("Cannot probe " + inputPath);
+        return information;
+    }
+
+    static StreamInformation videoStream(MediaInformation information, String inputPath) throws IOException {
+        for (StreamInformation stream : information.getStreams()) {
+            if ("video".equals(stream.getType()) && stream.getWidth() != null && stream.getHeight() != null)
+                return stream;
+        }
+        throw new IOException("No video stream in " + inputPath);
+    }
+
+    private static int estimateFrameCount(MediaInformation information, String fps) {
+        try {
+            return (int) Math.round(Double.parseDouble(information.getDuration()) * Double.parseDouble(fps));
+        } catch (NullPointerException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    @Override
+    public Frame read() throws IOException {
+        if (inputStream == null)
+            inputStream = new DataInputStream(new FileInputStream(pipe.path));
+
+        // EOF at a frame boundary is the end of the stream
+        int first = inputStream.read();
+        if (first < 0) {
+            pipe.await();
+            return null;
+        }
+        frameBytes[0] = (byte) first;
+        try {
+            inputStream.readFully(frameBytes, 1, frameBytes.length - 1);
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame " + frameIndex, e);
+        }
+
+        int[] pixels = new int[width * height];
+        ByteBuffer.wrap(frameBytes).asIntBuffer().get(pixels);
+
+        return new Frame(frameIndex++, width, height, pixels);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pipe.cancel();
+        if (inputStream != null)
+            inputStream.close();
+        pipe.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+
+/** @brief  Named pipe between the app and an asynchronous FFmpeg session
+ *  @date   26/10/17
+ *  Opening a pipe blocks until the other end is opened. If FFmpeg fails
+ *  before it opens its end, the pipe is opened and closed here instead so
+ *  that the app side sees EOF (or a broken pipe) rather than hanging.
+ */
+class FFmpegPipe {
+    private static final String TAG = "MobedSR";
+
+    final String path;
+    private final boolean ffmpegWrites;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private FFmpegSession session;
+    private volatile Session result;
+
+
+    /** @param ffmpegWrites true when FFmpeg writes to the pipe and the app reads */
+    FFmpegPipe(Context context, boolean ffmpegWrites) {
+        this.path = FFmpegKitConfig.registerNewFFmpegPipe(context);
+        this.ffmpegWrites = ffmpegWrites;
+    }
+
+
+    /** @brief  Start FFmpeg asynchronously with the given arguments
+     *  @date   26/10/17
+     */
+    void start(String[] arguments) {
+        session = FFmpegKit.executeWithArgumentsAsync(arguments, completed -> {
+            result = completed;
+            if (!ReturnCode.isSuccess(completed.getReturnCode())) {
+                Log.d(TAG, String.format("FFmpeg failed with state %s and rc %s.%s", completed.getState(),
+                        completed.getReturnCode(), completed.getFailStackTrace()));
+                unblock();
+            }
+            done.countDown();
+        });
+    }
+
+    private void unblock() {
+        try {
+            if (ffmpegWrites)
+                new FileOutputStream(path).close();
+            else
+                new FileInputStream(path).close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /** @brief  Wait for FFmpeg to finish
+     *  @date   26/10/17
+     *  @throws IOException when FFmpeg failed
+     */
+    void await() throws IOException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for FFmpeg", e);
+        }
+        if (!ReturnCode.isSuccess(result.getReturnCode()))
+            throw new IOException("FFmpeg failed with rc " + result.getReturnCode());
+    }
+
+    boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    void cancel() {
+        if (session != null && !isDone())
+            FFmpegKit.cancel(session.getSessionId());
+    }
+
+    void close() {
+        FFmpegKitConfig.closeFFmpegPipe(path);
+    }
+}
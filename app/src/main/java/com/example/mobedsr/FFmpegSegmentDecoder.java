@@ -0,0 +1,38 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+
+import java.util.Locale;
+
+
+/** @brief  Decodes a segment of a video with its own FFmpeg session
+ *  @date   26/10/17
+ *  The session seeks to the segment's keyframe and stops after its frames,
+ *  at the native frame rate. Each session decodes with `threads` threads so
+ *  that the concurrent sessions share the cores instead of oversubscribing.
+ */
+class FFmpegSegmentDecoder implements SegmentDecoder {
+    private final Context context;
+    private final VideoProbe probe;
+    private final int threads;
+
+
+    FFmpegSegmentDecoder(Context context, VideoProbe probe, int threads) {
+        this.context = context;
+        this.probe = probe;
+        this.threads = threads;
+    }
+
+
+    @Override
+    public FrameSource open(VideoSegment segment) {
+        // Fast seek to the last keyframe before the position: half a frame
+        // after the start lands on the segment's keyframe despite the rounding
+        // of the printed timestamps
+        double seek = segment.startTime + 0.5 / probe.fps;
+        String[] arguments = new String[]{"-threads", String.valueOf(threads), "-noaccurate_seek",
+                "-ss", String.format(Locale.US, "%.6f", seek), "-i", probe.path,
+                "-frames:v", String.valueOf(segment.frameCount), "-vsync", "passthrough"};
+        return new FFmpegFrameSource(context, arguments, probe.width, probe.height, segment.frameCount);
+    }
+}
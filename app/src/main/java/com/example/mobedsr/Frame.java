@@ -0,0 +1,29 @@
+package com.example.mobedsr;
+
+
+/** @brief  Raw video frame passed between the pipeline stages
+ *  @date   26/10/17
+ */
+public class Frame {
+    public final int index;
+    public final int width;
+    public final int height;
+
+    // ARGB_8888 pixels, row-major
+    public final int[] pixels;
+
+    // Tensors of the frame between preparation and conversion, or null
+    public final TensorArena.Slot slot;
+
+    public Frame(int index, int width, int height, int[] pixels) {
+        this(index, width, height, pixels, null);
+    }
+
+    public Frame(int index, int width, int height, int[] pixels, TensorArena.Slot slot) {
+        this.index = index;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.slot = slot;
+    }
+}
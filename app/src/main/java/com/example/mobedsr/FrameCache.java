@@ -0,0 +1,660 @@
+package com.example.mobedsr;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/** @brief  Two-tier cache of decoded and super resolved video frames
+ *  @date   26/10/17
+ *  Frames are keyed by (video, frame index, config), where the config names
+ *  what produced the frame: LR_CONFIG for decoded frames, the SR mode and
+ *  model for SR frames. The memory tier keeps ARGB pixels up to a byte
+ *  budget, evicting the least recently used frame first. Every frame is
+ *  also written to the disk tier, one file of packed RGB per frame (raw or
+ *  deflated), up to a byte budget with the same eviction.
+ *  A sequence records that every frame of a video was stored for a config,
+ *  so a re-run reads the frames instead of decoding or super resolving them.
+ *  The index lists the disk frames in LRU order and the sequences; like
+ *  TuningProfileStore it is a text file replaced through a temporary file,
+ *  and a missing or corrupt index empties the disk tier. Frame files not in
+ *  the index, e.g. of a crashed run, are deleted when the cache is opened.
+ *  The process-wide instance drops its memory tier on memory pressure.
+ *  Frames returned by get() share their pixels with the cache: do not modify them.
+ */
+public class FrameCache implements ComponentCallbacks2, Closeable {
+    public static final String LR_CONFIG = "lr";
+    static final String INDEX_FILE = "index";
+    static final String FRAME_SUFFIX = ".frm";
+
+    // Budgets of the process-wide cache: a share of the heap, and of the free storage up to MAX_DISK_BYTES
+    private static final int MEMORY_DIVISOR = 8;
+    private static final int DISK_DIVISOR = 4;
+    private static final long MAX_DISK_BYTES = 1L << 30;
+
+    // Frame file: magic, width, height, codec, then the RGB bytes
+    private static final int MAGIC = 0x4d535246;
+    private static final int RAW = 0;
+    private static final int DEFLATE = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static FrameCache instance;
+
+    private final File dir;
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final boolean compress;
+
+    // Guarded by this; access-ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Frame> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Sequence> sequences = new HashMap<>();
+    private long memoryBytes;
+    private long diskBytes;
+    private long nextFile;
+    private boolean dirty;
+
+    private long memoryHits;
+    private long diskHits;
+    private long misses;
+    private long memoryEvictions;
+    private long diskEvictions;
+
+
+    /** @brief  Key of a cached frame
+     *  @date   26/10/17
+     */
+    public static final class Key {
+        public final String video;
+        public final int index;
+        public final String config;
+
+        /** @param video  see videoKey()
+         *  @param config producer of the frame, whitespace is replaced by '_'
+         */
+        public Key(String video, int index, String config) {
+            this.video = video;
+            this.index = index;
+            this.config = config.replaceAll("\\s", "_");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return index == key.index && video.equals(key.video) && config.equals(key.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return (video.hashCode() * 31 + config.hashCode()) * 31 + index;
+        }
+
+        @Override
+        public String toString() {
+            return config + "#" + index + " " + video;
+        }
+    }
+
+
+    /** @brief  Every frame of a video stored for one config
+     *  @date   26/10/17
+     */
+    public static final class Sequence {
+        public final int frameCount;
+        public final int width;
+        public final int height;
+
+        Sequence(int frameCount, int width, int height) {
+            this.frameCount = frameCount;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+
+    /** @brief  Hit, miss and eviction counters of the cache
+     *  @date   26/10/17
+     */
+    public static final class Stats {
+        public final long memoryHits;
+        public final long diskHits;
+        public final long misses;
+        public final long memoryEvictions;
+        public final long diskEvictions;
+        public final long memoryBytes;
+        public final long diskBytes;
+
+        Stats(long memoryHits, long diskHits, long misses, long memoryEvictions, long diskEvictions,
+              long memoryBytes, long diskBytes) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.memoryEvictions = memoryEvictions;
+            this.diskEvictions = diskEvictions;
+            this.memoryBytes = memoryBytes;
+            this.diskBytes = diskBytes;
+        }
+
+        /** @return share of the lookups served by either tier, 0 without lookups */
+        public double getHitRatio() {
+            long lookups = memoryHits + diskHits + misses;
+            return lookups == 0 ? 0 : (double) (memoryHits + diskHits) / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Frame cache: %d memory hits, %d disk hits, %d misses (%.1f%%), "
+                            + "%d memory / %d disk evictions, %.1f MB in memory, %.1f MB on disk",
+                    memoryHits, diskHits, misses, getHitRatio() * 100, memoryEvictions, diskEvictions,
+                    memoryBytes / 1048576.0, diskBytes / 1048576.0);
+        }
+    }
+
+
+    private static final class DiskEntry {
+        final String file;
+        final long bytes;
+
+        DiskEntry(String file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /** @param dir          directory of the disk tier, created if missing
+     *  @param memoryBudget bytes of ARGB pixels kept in memory
+     *  @param diskBudget   bytes of frame files kept on disk
+     *  @param compress     deflate the frame files instead of storing raw RGB
+     */
+    public FrameCache(File dir, long memoryBudget, long diskBudget, boolean compress) {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.compress = compress;
+
+        dir.mkdirs();
+        loadIndex();
+    }
+
+    public static synchronized FrameCache getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            File dir = new File(appContext.getCacheDir(), "frames");
+            dir.mkdirs();
+            long diskBudget = Math.min(MAX_DISK_BYTES, dir.getUsableSpace() / DISK_DIVISOR);
+            instance = new FrameCache(dir, Runtime.getRuntime().maxMemory() / MEMORY_DIVISOR, diskBudget, true);
+            appContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+
+    /** @brief  Identify a video file by path, size and modification time
+     *  @date   26/10/17
+     *  A video replaced at the same path gets a new key, so its stale frames
+     *  are never read and age out of the cache.
+     */
+    public static String videoKey(String path) {
+        File file = new File(path);
+        return String.format(Locale.US, "%d:%d:%s", file.length(), file.lastModified(), path);
+    }
+
+
+    /** @brief  Look a frame up in memory, then on disk
+     *  @date   26/10/17
+     *  A frame read from disk is kept in memory for the next lookup.
+     *  @return the frame, or null on a miss
+     */
+    public Frame get(Key key) {
+        DiskEntry entry;
+        synchronized (this) {
+            Frame frame = memory.get(key);
+            if (frame != null) {
+                memoryHits += 1;
+                return frame;
+            }
+            entry = disk.get(key);
+            if (entry == null) {
+                misses += 1;
+                return null;
+            }
+        }
+
+        long startTime = SRMetrics.now();
+        Frame frame;
+        try {
+            frame = readFrame(new File(dir, entry.file), key.index);
+        } catch (IOException e) {
+            // Deleted or corrupt file: forget the frame
+            e.printStackTrace();
+            synchronized (this) {
+                if (disk.get(key) == entry)
+                    removeDisk(key, false);
+                misses += 1;
+            }
+            return null;
+        }
+        SRMetrics.getInstance().record("cache_disk_read", startTime);
+
+        synchronized (this) {
+            diskHits += 1;
+            putMemory(key, frame);
+        }
+        return frame;
+    }
+
+
+    /** @brief  Store a frame in memory and on disk
+     *  @date   26/10/17
+     *  A frame already on disk under the key is not written again.
+     *  @throws IOException if the frame file cannot be written; the frame stays in memory
+     */
+    public void put(Key key, Frame frame) throws IOException {
+        Frame pixels = new Frame(frame.index, frame.width, frame.height, frame.pixels);
+        String name;
+        synchronized (this) {
+            putMemory(key, pixels);
+            if (disk.containsKey(key))
+                return;
+            name = String.format(Locale.US, "%08x%s", nextFile++, FRAME_SUFFIX);
+        }
+
+        long startTime = SRMetrics.now();
+        File file = new File(dir, name);
+        try {
+            writeFrame(file, pixels, compress);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        SRMetrics.getInstance().record("cache_disk_write", startTime);
+
+        synchronized (this) {
+            DiskEntry old = disk.put(key, new DiskEntry(name, file.length()));
+            if (old != null) {
+                new File(dir, old.file).delete();
+                diskBytes -= old.bytes;
+            }
+            diskBytes += file.length();
+            dirty = true;
+            while (diskBytes > diskBudget && disk.size() > 1)
+                removeDisk(disk.keySet().iterator().next(), true);
+        }
+    }
+
+
+    /** @brief  Store a frame in the memory tier only
+     *  @date   26/10/17
+     *  For frames kept durably elsewhere, e.g. in a JobCheckpoint spool, so
+     *  they are not written to disk twice.
+     */
+    public synchronized void putInMemory(Key key, Frame frame) {
+        putMemory(key, new Frame(frame.index, frame.width, frame.height, frame.pixels));
+    }
+
+
+    /** @brief  Record that frames [0, frameCount) of the video are stored for the config
+     *  @date   26/10/17
+     *  Writes the index, so the sequence survives the process.
+     */
+    public void markComplete(String video, String config, int frameCount, int width, int height) throws IOException {
+        synchronized (this) {
+            sequences.put(sequenceKey(video, new Key(video, 0, config).config),
+                    new Sequence(frameCount, width, height));
+            dirty = true;
+        }
+        flush();
+    }
+
+    /** @return the complete sequence of the video for the config, or null if a frame is missing */
+    public synchronized Sequence getSequence(String video, String config) {
+        String sequenceKey = sequenceKey(video, new Key(video, 0, config).config);
+        Sequence sequence = sequences.get(sequenceKey);
+        if (sequence == null)
+            return null;
+        for (int i = 0; i < sequence.frameCount; i++) {
+            Key key = new Key(video, i, config);
+            if (!memory.containsKey(key) && !disk.containsKey(key)) {
+                sequences.remove(sequenceKey);
+                dirty = true;
+                return null;
+            }
+        }
+        return sequence;
+    }
+
+    /** @return source of the frames of a complete sequence, in order, or null if it is not complete */
+    public SequenceSource openSequence(String video, String config) {
+        Sequence sequence = getSequence(video, config);
+        return (sequence == null) ? null : new SequenceSource(video, config, sequence);
+    }
+
+    private static String sequenceKey(String video, String config) {
+        return config + " " + video;
+    }
+
+
+    /** Called with the lock held */
+    private void putMemory(Key key, Frame frame) {
+        long bytes = frame.pixels.length * 4L;
+        Frame old = memory.remove(key);
+        if (old != null)
+            memoryBytes -= old.pixels.length * 4L;
+        if (bytes > memoryBudget)
+            return;
+
+        memory.put(key, frame);
+        memoryBytes += bytes;
+        Iterator<Map.Entry<Key, Frame>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryBudget) {
+            Frame evicted = eldest.next().getValue();
+            eldest.remove();
+            memoryBytes -= evicted.pixels.length * 4L;
+            memoryEvictions += 1;
+        }
+    }
+
+    /** Called with the lock held */
+    private void removeDisk(Key key, boolean evicted) {
+        DiskEntry entry = disk.remove(key);
+        new File(dir, entry.file).delete();
+        diskBytes -= entry.bytes;
+        dirty = true;
+        if (evicted)
+            diskEvictions += 1;
+        // The sequence cannot be replayed without the frame, unless it is still in memory
+        if (!memory.containsKey(key))
+            sequences.remove(sequenceKey(key.video, key.config));
+    }
+
+
+    /** @brief  Drop the memory tier, e.g. on memory pressure
+     *  @date   26/10/17
+     */
+    public synchronized void trimMemory() {
+        memory.clear();
+        memoryBytes = 0;
+        // Sequences whose frames were only in memory are no longer complete, see getSequence()
+    }
+
+    /** @brief  Drop every frame and sequence, in memory and on disk
+     *  @date   26/10/17
+     */
+    public void clear() throws IOException {
+        synchronized (this) {
+            trimMemory();
+            for (DiskEntry entry : disk.values())
+                new File(dir, entry.file).delete();
+            disk.clear();
+            diskBytes = 0;
+            sequences.clear();
+            dirty = true;
+        }
+        flush();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(memoryHits, diskHits, misses, memoryEvictions, diskEvictions, memoryBytes, diskBytes);
+    }
+
+
+    /** @brief  Write the index if it changed since the last flush
+     *  @date   26/10/17
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            if (!dirty)
+                return;
+            File temp = new File(dir, INDEX_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                Writer writer = new OutputStreamWriter(new BufferedOutputStream(out), "UTF-8");
+                writeIndex(writer);
+                writer.flush();
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(new File(dir, INDEX_FILE)))
+                throw new IOException("Cannot replace " + INDEX_FILE + " in " + dir);
+            dirty = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+
+    /** @brief  Index lines, eldest frame first:
+     *      frame <file> <bytes> <frame index> <config> <video>
+     *      sequence <frame count> <width> <height> <config> <video>
+     */
+    private void writeIndex(Writer writer) throws IOException {
+        for (Map.Entry<Key, DiskEntry> entry : disk.entrySet()) {
+            Key key = entry.getKey();
+            writer.write(String.format(Locale.US, "frame %s %d %d %s %s\n", entry.getValue().file,
+                    entry.getValue().bytes, key.index, key.config, key.video));
+        }
+        for (Map.Entry<String, Sequence> entry : sequences.entrySet()) {
+            Sequence sequence = entry.getValue();
+            writer.write(String.format(Locale.US, "sequence %d %d %d %s\n",
+                    sequence.frameCount, sequence.width, sequence.height, entry.getKey()));
+        }
+    }
+
+    private void loadIndex() {
+        try (Reader reader = new InputStreamReader(new FileInputStream(new File(dir, INDEX_FILE)), "UTF-8")) {
+            parseIndex(reader);
+        } catch (FileNotFoundException e) {
+            // Empty cache
+        } catch (IOException | RuntimeException e) {
+            // Corrupt index: start over, the orphaned files are deleted below
+            e.printStackTrace();
+            disk.clear();
+            sequences.clear();
+            diskBytes = 0;
+        }
+
+        Set<String> indexed = new HashSet<>();
+        for (DiskEntry entry : disk.values()) {
+            indexed.add(entry.file);
+            nextFile = Math.max(nextFile, Long.parseLong(entry.file.substring(0, 8), 16) + 1);
+        }
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (file.getName().endsWith(FRAME_SUFFIX) && !indexed.contains(file.getName()))
+                    file.delete();
+    }
+
+    private void parseIndex(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber += 1;
+            if (line.trim().isEmpty())
+                continue;
+
+            // The video is the rest of the line, paths may contain spaces
+            String[] fields = line.split(" ", 6);
+            if (fields.length != 6)
+                throw new IOException("Line " + lineNumber + ": malformed entry '" + line + "'");
+            if (fields[0].equals("frame")) {
+                long bytes = Long.parseLong(fields[2]);
+                disk.put(new Key(fields[5], Integer.parseInt(fields[3]), fields[4]), new DiskEntry(fields[1], bytes));
+                diskBytes += bytes;
+            }
+            else if (fields[0].equals("sequence"))
+                sequences.put(sequenceKey(fields[5], fields[4]), new Sequence(Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+            else
+                throw new IOException("Line " + lineNumber + ": unknown entry '" + fields[0] + "'");
+        }
+    }
+
+
+    /** @brief  Write the RGB channels of a frame, dropping alpha
+     *  @date   26/10/17
+     */
+    static void writeFrame(File file, Frame frame, boolean compress) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            writeFrame(fileOut, frame, compress);
+        }
+    }
+
+    /** @brief  Write a frame in the frame file format to a stream, e.g. a JobCheckpoint spool; the stream stays open */
+    static void writeFrame(OutputStream stream, Frame frame, boolean compress) throws IOException {
+        DataOutputStream header = new DataOutputStream(new BufferedOutputStream(stream, HEADER_BYTES));
+        header.writeInt(MAGIC);
+        header.writeInt(frame.width);
+        header.writeInt(frame.height);
+        header.writeInt(compress ? DEFLATE : RAW);
+        header.flush();
+
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            OutputStream out = compress ? new DeflaterOutputStream(stream, deflater, 1 << 16) : stream;
+            byte[] row = new byte[frame.width * 3];
+            for (int y = 0; y < frame.height; y++) {
+                int p = y * frame.width;
+                for (int x = 0, d = 0; x < frame.width; x++, p++) {
+                    int pixel = frame.pixels[p];
+                    row[d++] = (byte) (pixel >> 16);
+                    row[d++] = (byte) (pixel >> 8);
+                    row[d++] = (byte) pixel;
+                }
+                out.write(row);
+            }
+            if (compress)
+                ((DeflaterOutputStream) out).finish();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    static Frame readFrame(File file, int index) throws IOException {
+        try (InputStream fileIn = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            return readFrame(fileIn, index, file.toString());
+        }
+    }
+
+    /** @param name of the stream, for the error messages */
+    static Frame readFrame(InputStream stream, int index, String name) throws IOException {
+        DataInputStream header = new DataInputStream(stream);
+        int magic = header.readInt();
+        int width = header.readInt();
+        int height = header.readInt();
+        int codec = header.readInt();
+        if (magic != MAGIC || width <= 0 || height <= 0 || (codec != RAW && codec != DEFLATE))
+            throw new IOException("Not a frame file: " + name);
+
+        DataInputStream in = (codec == DEFLATE) ? new DataInputStream(new InflaterInputStream(stream)) : header;
+        int[] pixels = new int[width * height];
+        byte[] row = new byte[width * 3];
+        for (int y = 0; y < height; y++) {
+            in.readFully(row);
+            int p = y * width;
+            for (int x = 0, s = 0; x < width; x++, p++, s += 3)
+                pixels[p] = 0xFF000000 | ((row[s] & 0xFF) << 16) | ((row[s + 1] & 0xFF) << 8) | (row[s + 2] & 0xFF);
+        }
+        return new Frame(index, width, height, pixels);
+    }
+
+
+    /** @brief  Replays a complete sequence in frame order
+     *  @date   26/10/17
+     */
+    public class SequenceSource implements FrameSource {
+        private final String video;
+        private final String config;
+        private final Sequence sequence;
+        private int next;
+
+        SequenceSource(String video, String config, Sequence sequence) {
+            this.video = video;
+            this.config = config;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public Frame read() throws IOException {
+            if (next == sequence.frameCount)
+                return null;
+            Frame frame = get(new Key(video, next, config));
+            if (frame == null)
+                throw new IOException("Frame " + next + " of " + config + " left the cache");
+            next += 1;
+            return frame;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return sequence.frameCount;
+        }
+
+        public int getWidth() {
+            return sequence.width;
+        }
+
+        public int getHeight() {
+            return sequence.height;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            trimMemory();
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
@@ -0,0 +1,440 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** @brief  Staged decode -> process... -> encode pipeline over bounded ring buffers
+ *  @date   26/10/17
+ *  Every stage runs on its own thread budget, so decoding, inference,
+ *  output conversion and encoding of different frames overlap. Stages are
+ *  connected by bounded queues of queueCapacity frames, so memory stays
+ *  bounded for videos of any length.
+ *
+ *  Frames leave every stage in source order: the output of a stage with
+ *  several threads goes through a reorder window before the next queue.
+ *  Per-stage busy / starved / blocked times show which stage is the
+ *  bottleneck.
+ */
+public class FramePipeline {
+    private final FrameSource source;
+    private final FrameSink sink;
+    private final int queueCapacity;
+    private final List<StageSpec> specs = new ArrayList<>();
+    private SRMetrics metrics;
+
+    private final List<StageStats> stats = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Exception failure;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private int processedFrames;
+
+
+    private static final class StageSpec {
+        final String name;
+        final int threads;
+        final FrameProcessor processor;
+        // Batch stages only, single-threaded
+        final int batchSize;
+        final BatchFrameProcessor batchProcessor;
+
+        StageSpec(String name, int threads, FrameProcessor processor) {
+            this.name = name;
+            this.threads = threads;
+            this.processor = processor;
+            this.batchSize = 1;
+            this.batchProcessor = null;
+        }
+
+        StageSpec(String name, int batchSize, BatchFrameProcessor batchProcessor) {
+            this.name = name;
+            this.threads = 1;
+            this.processor = null;
+            this.batchSize = batchSize;
+            this.batchProcessor = batchProcessor;
+        }
+    }
+
+    /** @brief  Frame with its position in the stream; frame == null marks the end */
+    private static final class Item {
+        final long seq;
+        final Frame frame;
+
+        Item(long seq, Frame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+
+    /** @brief  Utilization counters of one stage
+     *  @date   26/10/17
+     *  busy: processing, starved: waiting for input, blocked: waiting for
+     *  space downstream. All times are summed over the stage threads.
+     */
+    public static final class StageStats {
+        public final String name;
+        public final int threads;
+        private final AtomicInteger frames = new AtomicInteger();
+        private volatile long busyNanos;
+        private volatile long starvedNanos;
+        private volatile long blockedNanos;
+        private volatile long wallNanos;
+        // Per-frame busy time histogram, "video_<name>"; null if not recorded
+        private final SRMetrics metrics;
+        private final String metricName;
+
+        StageStats(String name, int threads, SRMetrics metrics) {
+            this.name = name;
+            this.threads = threads;
+            this.metrics = metrics;
+            this.metricName = "video_" + name;
+        }
+
+        /** Account one frame; call after counting it in frames */
+        void add(long busy, long starved, long blocked) {
+            // The first frame of each thread pays for start-up (FFmpeg launch, first inference)
+            add(busy, starved, blocked, frames.get() <= threads);
+        }
+
+        synchronized void add(long busy, long starved, long blocked, boolean warmup) {
+            busyNanos += busy;
+            starvedNanos += starved;
+            blockedNanos += blocked;
+            if (metrics != null)
+                metrics.recordNanos(metricName, busy, warmup);
+        }
+
+        public int getFrames() {
+            return frames.get();
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getStarvedNanos() {
+            return starvedNanos;
+        }
+
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        /** @return fraction of the stage's thread time spent processing */
+        public double getUtilization() {
+            return wallNanos == 0 ? 0 : (double) busyNanos / (wallNanos * threads);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s x%d: %d frames, busy %.0f%%, starved %dms, blocked %dms",
+                    name, threads, getFrames(), getUtilization() * 100,
+                    starvedNanos / 1000000, blockedNanos / 1000000);
+        }
+    }
+
+
+    public FramePipeline(FrameSource source, FrameSink sink, int queueCapacity) {
+        this.source = source;
+        this.sink = sink;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public FramePipeline(FrameSource source, FrameProcessor processor, FrameSink sink, int queueCapacity) {
+        this(source, sink, queueCapacity);
+        addStage("process", 1, processor);
+    }
+
+
+    /** @brief  Append a processing stage
+     *  @date   26/10/17
+     *  @param  threads number of threads; processor must be thread-safe when > 1
+     */
+    public FramePipeline addStage(String name, int threads, FrameProcessor processor) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Stage needs at least one thread");
+        specs.add(new StageSpec(name, threads, processor));
+        return this;
+    }
+
+
+    /** @brief  Append a single-threaded stage processing batchSize consecutive frames at a time
+     *  @date   26/10/17
+     *  A batch is cut short by the end of the stream, so the last one may be
+     *  smaller. The stage's metrics histogram records one sample per batch.
+     */
+    public FramePipeline addBatchStage(String name, int batchSize, BatchFrameProcessor processor) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch needs at least one frame");
+        specs.add(new StageSpec(name, batchSize, processor));
+        return this;
+    }
+
+
+    /** @brief  Also record per-frame stage latencies as "video_<stage>" histograms
+     *  @date   26/10/17
+     */
+    public FramePipeline setMetrics(SRMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+
+    /** @brief  Run the pipeline until the source is exhausted
+     *  @date   26/10/17
+     *  @throws IOException when a stage fails; the other stages are stopped
+     */
+    public void run() throws IOException, InterruptedException {
+        if (!threads.isEmpty())
+            throw new IllegalStateException("Pipeline already ran");
+        startNanos = System.nanoTime();
+
+        // decode -> queue -> stage -> queue -> ... -> encode
+        List<BlockingQueue<Item>> queues = new ArrayList<>();
+        for (int i = 0; i <= specs.size(); i++)
+            queues.add(new ArrayBlockingQueue<Item>(queueCapacity));
+
+        StageStats decodeStats = new StageStats("decode", 1, metrics);
+        stats.add(decodeStats);
+        threads.add(new Thread(() -> decode(queues.get(0), decodeStats), "SR-decode"));
+
+        for (int i = 0; i < specs.size(); i++) {
+            StageSpec spec = specs.get(i);
+            StageStats stageStats = new StageStats(spec.name, spec.threads, metrics);
+            stats.add(stageStats);
+
+            BlockingQueue<Item> input = queues.get(i);
+            Output output = new Output(queues.get(i + 1), spec.threads > 1 ? queueCapacity + spec.threads : 0);
+            if (spec.batchProcessor != null) {
+                threads.add(new Thread(() -> processBatches(spec.batchProcessor, spec.batchSize, input, output,
+                        stageStats), "SR-" + spec.name));
+                continue;
+            }
+            AtomicInteger running = new AtomicInteger(spec.threads);
+            for (int t = 0; t < spec.threads; t++) {
+                threads.add(new Thread(() -> process(spec.processor, input, output, running, stageStats),
+                        "SR-" + spec.name + "-" + t));
+            }
+        }
+
+        StageStats encodeStats = new StageStats("encode", 1, metrics);
+        stats.add(encodeStats);
+        Thread encodeThread = new Thread(() -> encode(queues.get(specs.size()), encodeStats), "SR-encode");
+        threads.add(encodeThread);
+
+        for (Thread thread : threads)
+            thread.start();
+
+        // Done when the encoder has written the last frame or any stage failed
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+
+        // Closing unblocks stages stuck in pipe I/O
+        try {
+            source.close();
+        } finally {
+            sink.close();
+            for (Thread thread : threads)
+                thread.join();
+
+            endNanos = System.nanoTime();
+            for (StageStats s : stats)
+                s.wallNanos = endNanos - startNanos;
+        }
+
+        if (failure instanceof InterruptedException)
+            throw (InterruptedException) failure;
+        if (failure != null)
+            throw new IOException("Video pipeline failed", failure);
+    }
+
+
+    private void decode(BlockingQueue<Item> output, StageStats stageStats) {
+        long seq = 0;
+        try {
+            while (true) {
+                long t0 = System.nanoTime();
+                Frame frame = source.read();
+                long t1 = System.nanoTime();
+                if (frame == null) {
+                    output.put(new Item(seq, null));
+                    break;
+                }
+                output.put(new Item(seq++, frame));
+                stageStats.frames.incrementAndGet();
+                stageStats.add(t1 - t0, 0, System.nanoTime() - t1);
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void process(FrameProcessor processor, BlockingQueue<Item> input, Output output,
+                         AtomicInteger running, StageStats stageStats) {
+        try {
+            while (true) {
+                long t0 = System.nanoTime();
+                Item item = input.take();
+                long t1 = System.nanoTime();
+
+                if (item.frame == null) {
+                    // Last thread of the stage forwards the end marker, the others pass it on
+                    if (running.decrementAndGet() == 0)
+                        output.put(item);
+                    else
+                        input.put(item);
+                    break;
+                }
+
+                Frame frame = processor.process(item.frame);
+                long t2 = System.nanoTime();
+                output.put(new Item(item.seq, frame));
+                stageStats.frames.incrementAndGet();
+                stageStats.add(t2 - t1, t1 - t0, System.nanoTime() - t2);
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void processBatches(BatchFrameProcessor processor, int batchSize, BlockingQueue<Item> input,
+                                Output output, StageStats stageStats) {
+        boolean first = true;
+        try {
+            Item end = null;
+            while (end == null) {
+                // Collect up to batchSize frames, fewer at the end of the stream
+                long t0 = System.nanoTime();
+                List<Item> items = new ArrayList<>(batchSize);
+                List<Frame> frames = new ArrayList<>(batchSize);
+                while (items.size() < batchSize) {
+                    Item item = input.take();
+                    if (item.frame == null) {
+                        end = item;
+                        break;
+                    }
+                    items.add(item);
+                    frames.add(item.frame);
+                }
+                long t1 = System.nanoTime();
+                if (items.isEmpty())
+                    break;
+
+                List<Frame> results = processor.process(frames);
+                if (results.size() != items.size())
+                    throw new IOException(String.format("Batch of %d frames gave %d", items.size(), results.size()));
+                long t2 = System.nanoTime();
+                for (int i = 0; i < items.size(); i++)
+                    output.put(new Item(items.get(i).seq, results.get(i)));
+                stageStats.frames.addAndGet(items.size());
+                stageStats.add(t2 - t1, t1 - t0, System.nanoTime() - t2, first);
+                first = false;
+            }
+            // The end marker keeps its position, a reordering stage downstream expects it last
+            output.put(end);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void encode(BlockingQueue<Item> input, StageStats stageStats) {
+        try {
+            while (true) {
+                long t0 = System.nanoTime();
+                Item item = input.take();
+                long t1 = System.nanoTime();
+                if (item.frame == null)
+                    break;
+
+                sink.write(item.frame);
+                processedFrames += 1;
+                stageStats.frames.incrementAndGet();
+                stageStats.add(System.nanoTime() - t1, t1 - t0, 0);
+            }
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+            for (Thread thread : threads)
+                thread.interrupt();
+            done.countDown();
+        }
+    }
+
+
+    /** @brief  Output of a stage, restoring the source order when the stage has several threads
+     *  @date   26/10/17
+     *  A thread holding a frame too far ahead of the next expected one waits,
+     *  so at most `window` frames are held here.
+     */
+    private static final class Output {
+        private final BlockingQueue<Item> queue;
+        private final int window;
+        private final PriorityQueue<Item> pending;
+        private long nextSeq;
+
+        Output(BlockingQueue<Item> queue, int window) {
+            this.queue = queue;
+            this.window = window;
+            this.pending = window > 0
+                    ? new PriorityQueue<Item>(window, (a, b) -> Long.compare(a.seq, b.seq))
+                    : null;
+        }
+
+        void put(Item item) throws InterruptedException {
+            if (pending == null) {
+                queue.put(item);
+                return;
+            }
+            synchronized (this) {
+                while (item.seq >= nextSeq + window)
+                    wait();
+
+                pending.add(item);
+                while (!pending.isEmpty() && pending.peek().seq == nextSeq) {
+                    queue.put(pending.poll());
+                    nextSeq += 1;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+
+    public int getProcessedFrames() {
+        return processedFrames;
+    }
+
+    /** @return per-stage counters, in pipeline order; complete once run() returned */
+    public List<StageStats> getStats() {
+        return stats;
+    }
+
+    /** @return stage with the highest utilization, or null before run() */
+    public StageStats getBottleneck() {
+        StageStats bottleneck = null;
+        for (StageStats s : stats) {
+            if (bottleneck == null || s.getUtilization() > bottleneck.getUtilization())
+                bottleneck = s;
+        }
+        return bottleneck;
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+
+
+/** @brief  Per-frame processing stage, e.g. super resolution
+ *  @date   26/10/17
+ */
+public interface FrameProcessor {
+    Frame process(Frame frame) throws IOException;
+}
@@ -0,0 +1,13 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/** @brief  Consumer of processed video frames, e.g. an encoder
+ *  @date   26/10/17
+ *  Frames are written in order; close() finishes the output.
+ */
+public interface FrameSink extends Closeable {
+    void write(Frame frame) throws IOException;
+}
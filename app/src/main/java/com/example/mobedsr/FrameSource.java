@@ -0,0 +1,18 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/** @brief  Producer of decoded video frames
+ *  @date   26/10/17
+ */
+public interface FrameSource extends Closeable {
+    /** @return next frame in display order, or null at the end of the stream */
+    Frame read() throws IOException;
+
+    /** @return number of frames the source will produce, or -1 when unknown */
+    default int getFrameCount() {
+        return -1;
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.mobedsr;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/** @brief  Full-reference image quality metrics, PSNR and SSIM
+ *  @date   26/10/17
+ *  Images are read row by row from ARGB pixels or RGB float tensors, so SR
+ *  outputs are compared without Bitmap round-trips or intermediate images.
+ *  Rows are split into bands evaluated in parallel on a fork-join pool; a
+ *  band keeps only the WINDOW rows of filtered statistics SSIM needs.
+ *  SSIM follows Wang et al. (11x11 Gaussian window, sigma 1.5, K1 0.01,
+ *  K2 0.03) over the positions where the window fits in the image. Y is
+ *  the BT.601 luma in [16, 235] used by the SR literature.
+ */
+public class ImageQuality {
+    // Output rows evaluated by one fork-join task
+    static final int BAND_ROWS = 32;
+
+    static final int WINDOW = 11;
+    private static final int RADIUS = WINDOW / 2;
+    private static final float[] GAUSSIAN = gaussian(WINDOW, 1.5);
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    // Planes compared: R, G, B and luma
+    public enum Channel { R, G, B, Y }
+    private static final int PLANES = 4;
+
+
+    /** @brief  Row-wise read access to a RGB image
+     *  @date   26/10/17
+     */
+    public interface Image {
+        int getWidth();
+        int getHeight();
+
+        /** @brief  Read row y as channel values in [0, 255] into arrays of getWidth() */
+        void readRow(int y, float[] r, float[] g, float[] b);
+    }
+
+
+    /** @brief  Image over ARGB pixels of width * height
+     *  @date   26/10/17
+     */
+    public static Image ofArgb(final int[] pixels, final int width, final int height) {
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("Pixels smaller than " + width + "x" + height);
+
+        return new Image() {
+            @Override public int getWidth() { return width; }
+            @Override public int getHeight() { return height; }
+
+            @Override
+            public void readRow(int y, float[] r, float[] g, float[] b) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[offset + x];
+                    r[x] = (pixel >> 16) & 0xFF;
+                    g[x] = (pixel >> 8) & 0xFF;
+                    b[x] = pixel & 0xFF;
+                }
+            }
+        };
+    }
+
+    /** @brief  Image over a RGB float tensor in [0, 1], e.g. an SR output
+     *  @date   26/10/17
+     *  Values are clamped to [0, 1] but not rounded to 8 bits.
+     */
+    public static Image ofTensor(FloatBuffer tensor, int width, int height) {
+        return ofTensor(tensor, width, width, height);
+    }
+
+    /** @param tensorWidth width of the tensor rows, e.g. of a padded shape bucket */
+    public static Image ofTensor(final FloatBuffer tensor, final int tensorWidth, final int width, final int height) {
+        if (tensor.limit() < tensorWidth * (height - 1) * 3 + width * 3)
+            throw new IllegalArgumentException("Tensor smaller than " + width + "x" + height);
+
+        return new Image() {
+            @Override public int getWidth() { return width; }
+            @Override public int getHeight() { return height; }
+
+            @Override
+            public void readRow(int y, float[] r, float[] g, float[] b) {
+                int s = y * tensorWidth * 3;
+                for (int x = 0; x < width; x++, s += 3) {
+                    r[x] = clamp(tensor.get(s)) * 255.0f;
+                    g[x] = clamp(tensor.get(s + 1)) * 255.0f;
+                    b[x] = clamp(tensor.get(s + 2)) * 255.0f;
+                }
+            }
+        };
+    }
+
+    private static float clamp(float v) {
+        // NaN becomes 0, as in TensorConverter
+        return v > 0.0f ? (v < 1.0f ? v : 1.0f) : 0.0f;
+    }
+
+
+    /** @brief  PSNR and SSIM per channel, of RGB and of luma
+     *  @date   26/10/17
+     */
+    public static final class Result {
+        private final double[] psnr;
+        private final double[] ssim;
+        private final double psnrRgb;
+        private final double ssimRgb;
+
+        Result(double[] squaredErrors, long pixels, double[] ssimSums, long windows) {
+            psnr = new double[PLANES];
+            ssim = new double[PLANES];
+            for (int p = 0; p < PLANES; p++) {
+                psnr[p] = toPsnr(squaredErrors[p], pixels);
+                ssim[p] = windows == 0 ? Double.NaN : ssimSums[p] / windows;
+            }
+            psnrRgb = toPsnr(squaredErrors[0] + squaredErrors[1] + squaredErrors[2], 3 * pixels);
+            ssimRgb = (ssim[0] + ssim[1] + ssim[2]) / 3.0;
+        }
+
+        private static double toPsnr(double squaredError, long samples) {
+            if (squaredError == 0)
+                return Double.POSITIVE_INFINITY;
+            return 10.0 * Math.log10(255.0 * 255.0 * samples / squaredError);
+        }
+
+        /** @return PSNR over the R, G and B samples, in dB */
+        public double getPsnr() {
+            return psnrRgb;
+        }
+
+        public double getPsnr(Channel channel) {
+            return psnr[channel.ordinal()];
+        }
+
+        /** @return mean of the R, G and B SSIM, NaN if the image is smaller than the window */
+        public double getSsim() {
+            return ssimRgb;
+        }
+
+        public double getSsim(Channel channel) {
+            return ssim[channel.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("PSNR %.2fdB (Y %.2fdB), SSIM %.4f (Y %.4f)",
+                    psnrRgb, psnr[Channel.Y.ordinal()], ssimRgb, ssim[Channel.Y.ordinal()]);
+        }
+    }
+
+
+    /** @brief  PSNR of the RGB channels of two ARGB images, in dB
+     *  @date   26/10/17
+     *  @return Double.POSITIVE_INFINITY for identical images
+     */
+    public static double psnr(int[] a, int[] b) {
+        if (a.length != b.length)
+            throw new IllegalArgumentException("Images differ in size: " + a.length + " vs " + b.length);
+
+        long squaredError = 0;
+        for (int i = 0; i < a.length; i++) {
+            int pa = a[i];
+            int pb = b[i];
+            int dr = ((pa >> 16) & 0xFF) - ((pb >> 16) & 0xFF);
+            int dg = ((pa >> 8) & 0xFF) - ((pb >> 8) & 0xFF);
+            int db = (pa & 0xFF) - (pb & 0xFF);
+            squaredError += dr * dr + dg * dg + db * db;
+        }
+        if (squaredError == 0)
+            return Double.POSITIVE_INFINITY;
+
+        double mse = (double) squaredError / (3.0 * a.length);
+        return 10.0 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+
+    /** @brief  Compare an SR image with its HR reference on the common pool
+     *  @date   26/10/17
+     */
+    public static Result evaluate(Image sr, Image hr) {
+        return evaluate(sr, hr, 0, ForkJoinPool.commonPool());
+    }
+
+    /** @brief  Compare an SR image with its HR reference
+     *  @date   26/10/17
+     *  @param  shave border in pixels left out on every side, usually the SR scale
+     *  @param  pool  fork-join pool, or null to evaluate on the calling thread
+     */
+    public static Result evaluate(Image sr, Image hr, int shave, ForkJoinPool pool) {
+        if (sr.getWidth() != hr.getWidth() || sr.getHeight() != hr.getHeight())
+            throw new IllegalArgumentException(String.format("Images differ in size: %dx%d vs %dx%d",
+                    sr.getWidth(), sr.getHeight(), hr.getWidth(), hr.getHeight()));
+        int regionWidth = sr.getWidth() - 2 * shave;
+        int regionHeight = sr.getHeight() - 2 * shave;
+        if (shave < 0 || regionWidth <= 0 || regionHeight <= 0)
+            throw new IllegalArgumentException("Nothing left after shaving " + shave + " pixels");
+
+        BandTask task = new BandTask(sr, hr, shave, 0, regionHeight);
+        Sums sums = (pool == null) ? task.compute() : pool.invoke(task);
+
+        return new Result(sums.squaredErrors, (long) regionWidth * regionHeight, sums.ssimSums, sums.windows);
+    }
+
+
+    /** @brief  Partial sums of a band of rows
+     *  @date   26/10/17
+     */
+    private static final class Sums {
+        final double[] squaredErrors = new double[PLANES];
+        final double[] ssimSums = new double[PLANES];
+        long windows;
+
+        void add(Sums other) {
+            for (int p = 0; p < PLANES; p++) {
+                squaredErrors[p] += other.squaredErrors[p];
+                ssimSums[p] += other.ssimSums[p];
+            }
+            windows += other.windows;
+        }
+    }
+
+
+    /** @brief  Evaluate region rows [rowStart, rowEnd), splitting them in bands of BAND_ROWS
+     *  @date   26/10/17
+     *  PSNR covers the band's rows, SSIM the windows centered in them; the
+     *  RADIUS rows around a band are read again by its neighbours.
+     */
+    private static final class BandTask extends RecursiveTask<Sums> {
+        private static final long serialVersionUID = 1L;
+
+        private final Image sr;
+        private final Image hr;
+        private final int shave;
+        private final int rowStart;
+        private final int rowEnd;
+
+        BandTask(Image sr, Image hr, int shave, int rowStart, int rowEnd) {
+            this.sr = sr;
+            this.hr = hr;
+            this.shave = shave;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected Sums compute() {
+            if (rowEnd - rowStart > BAND_ROWS) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                BandTask top = new BandTask(sr, hr, shave, rowStart, mid);
+                BandTask bottom = new BandTask(sr, hr, shave, mid, rowEnd);
+                if (!inForkJoinPool()) {
+                    // Not running in a pool: evaluate the halves in turn
+                    Sums sums = top.compute();
+                    sums.add(bottom.compute());
+                    return sums;
+                }
+                bottom.fork();
+                Sums sums = top.compute();
+                sums.add(bottom.join());
+                return sums;
+            }
+            return computeBand();
+        }
+
+        private Sums computeBand() {
+            int width = sr.getWidth();
+            int regionWidth = width - 2 * shave;
+            int regionHeight = sr.getHeight() - 2 * shave;
+            Sums sums = new Sums();
+
+            // Rows of window centers, and the input rows they need
+            int centerStart = Math.max(rowStart, RADIUS);
+            int centerEnd = Math.min(rowEnd, regionHeight - RADIUS);
+            boolean ssim = centerStart < centerEnd && regionWidth >= WINDOW;
+            int readStart = ssim ? Math.min(rowStart, centerStart - RADIUS) : rowStart;
+            int readEnd = ssim ? Math.max(rowEnd, centerEnd + RADIUS) : rowEnd;
+
+            float[][] srRow = new float[PLANES][width];
+            float[][] hrRow = new float[PLANES][width];
+            // Horizontally filtered mu_x, mu_y, x^2, y^2, xy of the last WINDOW rows, per plane
+            int filteredWidth = regionWidth - 2 * RADIUS;
+            float[][][][] ring = ssim ? new float[PLANES][5][WINDOW][filteredWidth] : null;
+            double[][] window = ssim ? new double[5][filteredWidth] : null;
+
+            for (int y = readStart; y < readEnd; y++) {
+                readPlanes(sr, y + shave, srRow);
+                readPlanes(hr, y + shave, hrRow);
+
+                if (y >= rowStart && y < rowEnd)
+                    for (int p = 0; p < PLANES; p++)
+                        sums.squaredErrors[p] += squaredError(srRow[p], hrRow[p], shave, regionWidth);
+
+                if (!ssim || y < centerStart - RADIUS || y >= centerEnd + RADIUS)
+                    continue;
+
+                int slot = y % WINDOW;
+                for (int p = 0; p < PLANES; p++)
+                    filterRow(srRow[p], hrRow[p], shave, filteredWidth, ring[p], slot);
+
+                // The window centered RADIUS rows above is complete
+                int center = y - RADIUS;
+                if (center >= centerStart) {
+                    for (int p = 0; p < PLANES; p++)
+                        sums.ssimSums[p] += ssimRow(ring[p], (center - RADIUS) % WINDOW, window, filteredWidth);
+                    sums.windows += filteredWidth;
+                }
+            }
+            return sums;
+        }
+    }
+
+
+    /** @brief  Read a row into the R, G, B planes and derive the luma plane
+     *  @date   26/10/17
+     */
+    private static void readPlanes(Image image, int y, float[][] planes) {
+        float[] r = planes[0];
+        float[] g = planes[1];
+        float[] b = planes[2];
+        float[] luma = planes[3];
+        image.readRow(y, r, g, b);
+        for (int x = 0; x < luma.length; x++)
+            luma[x] = 16.0f + (65.481f * r[x] + 128.553f * g[x] + 24.966f * b[x]) / 255.0f;
+    }
+
+    private static double squaredError(float[] a, float[] b, int offset, int count) {
+        double sum = 0;
+        for (int x = offset; x < offset + count; x++) {
+            float d = a[x] - b[x];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /** @brief  Horizontal Gaussian pass of the five SSIM statistics of one row
+     *  @date   26/10/17
+     */
+    private static void filterRow(float[] a, float[] b, int offset, int count, float[][][] ring, int slot) {
+        float[] muA = ring[0][slot];
+        float[] muB = ring[1][slot];
+        float[] aa = ring[2][slot];
+        float[] bb = ring[3][slot];
+        float[] ab = ring[4][slot];
+        for (int x = 0; x < count; x++) {
+            float sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+            int base = offset + x;
+            for (int k = 0; k < WINDOW; k++) {
+                float w = GAUSSIAN[k];
+                float va = a[base + k];
+                float vb = b[base + k];
+                sa += w * va;
+                sb += w * vb;
+                saa += w * va * va;
+                sbb += w * vb * vb;
+                sab += w * va * vb;
+            }
+            muA[x] = sa;
+            muB[x] = sb;
+            aa[x] = saa;
+            bb[x] = sbb;
+            ab[x] = sab;
+        }
+    }
+
+    /** @brief  Vertical Gaussian pass over the ring and the SSIM of each window
+     *  @date   26/10/17
+     *  @param  first  ring slot of the window's top row
+     *  @param  window scratch for the five filtered statistics
+     *  @return sum of the SSIM of the row's windows
+     */
+    private static double ssimRow(float[][][] ring, int first, double[][] window, int count) {
+        for (int q = 0; q < 5; q++) {
+            double[] acc = window[q];
+            Arrays.fill(acc, 0, count, 0.0);
+            for (int k = 0; k < WINDOW; k++) {
+                float[] row = ring[q][(first + k) % WINDOW];
+                double w = GAUSSIAN[k];
+                for (int x = 0; x < count; x++)
+                    acc[x] += w * row[x];
+            }
+        }
+
+        double[] muA = window[0];
+        double[] muB = window[1];
+        double[] aa = window[2];
+        double[] bb = window[3];
+        double[] ab = window[4];
+        double sum = 0;
+        for (int x = 0; x < count; x++) {
+            double varA = aa[x] - muA[x] * muA[x];
+            double varB = bb[x] - muB[x] * muB[x];
+            double cov = ab[x] - muA[x] * muB[x];
+            sum += ((2 * muA[x] * muB[x] + C1) * (2 * cov + C2))
+                    / ((muA[x] * muA[x] + muB[x] * muB[x] + C1) * (varA + varB + C2));
+        }
+        return sum;
+    }
+
+    private static float[] gaussian(int size, double sigma) {
+        float[] weights = new float[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            double d = i - size / 2;
+            weights[i] = (float) Math.exp(-d * d / (2 * sigma * sigma));
+            total += weights[i];
+        }
+        for (int i = 0; i < size; i++)
+            weights[i] = (float) (weights[i] / total);
+        return weights;
+    }
+}
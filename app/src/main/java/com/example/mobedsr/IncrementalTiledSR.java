@@ -0,0 +1,125 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+
+/** @brief  Video SR stage that only re-runs the tiles that changed since their last run
+ *  @date   26/10/17
+ *  Frames are tiled with an overlap of two HALOs. Each tile owns the output
+ *  up to the middle of its overlaps, so its SR pixels have at least HALO LR
+ *  pixels of context and can be replaced on their own. The SR frame is kept
+ *  between frames; tiles that TileChangeDetector finds unchanged keep their
+ *  previous output, the others are super resolved and copied in.
+ *  Single-threaded: the frames must arrive in order (one pipeline thread).
+ *  The interpreter lives on the worker of a one-backend CoExecutionScheduler,
+ *  which builds, runs and closes it, as a GPU delegate requires.
+ */
+public class IncrementalTiledSR implements FrameProcessor, Closeable {
+    // Context around each owned region, in LR pixels
+    static final int HALO = 8;
+
+    private final CoExecutionScheduler<SRBackend.Job> scheduler;
+    private final TileGrid grid;
+    private final TileChangeDetector detector;
+    // SR output of the latest frame, updated tile by tile
+    private final int[] srFrame;
+
+
+    /** @param key       interpreter configuration; its input shape is replaced by the tile shape
+     *  @param width     width of the LR frames
+     *  @param height    height of the LR frames
+     *  @param threshold see TileChangeDetector
+     */
+    IncrementalTiledSR(SRModelPool pool, SRModelPool.Key key, int width, int height, double threshold)
+            throws IOException {
+        int tileSize = TiledSR.TILE_SIZE;
+        SRModelPool.Key tileKey = new SRModelPool.Key(key.modelName, key.accelerator, key.numThreads,
+                new int[]{1, tileSize, tileSize, 3});
+        scheduler = new CoExecutionScheduler<>(Collections.singletonList(new SRBackend(pool, tileKey)), null);
+
+        final int[] scale = new int[1];
+        try {
+            scheduler.submit(backend -> scale[0] = backend.getModel().getScale()).get();
+        } catch (InterruptedException e) {
+            scheduler.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building the interpreter", e);
+        } catch (ExecutionException e) {
+            scheduler.close();
+            throw new IOException("Cannot build the interpreter of " + tileKey, e.getCause());
+        }
+        grid = new TileGrid(width, height, tileSize, 2 * HALO, scale[0]);
+        detector = new TileChangeDetector(grid, threshold);
+        srFrame = new int[grid.getOutputWidth() * grid.getOutputHeight()];
+    }
+
+
+    @Override
+    public Frame process(Frame frame) throws IOException {
+        if (frame.width != grid.getImageWidth() || frame.height != grid.getImageHeight())
+            throw new IOException(String.format("Frame %d is %dx%d, expected %dx%d", frame.index,
+                    frame.width, frame.height, grid.getImageWidth(), grid.getImageHeight()));
+
+        boolean[] changed = detector.update(frame.pixels);
+        try {
+            scheduler.submit(backend -> superResolveTiles(backend, frame.pixels, changed)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the SR backend", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Frame " + frame.index + " failed", e.getCause());
+        }
+        SRMetrics.getInstance().setLabel("reuse_ratio", String.format(Locale.US, "%.3f", detector.getReuseRatio()));
+
+        // The encoder gets its own copy, srFrame is updated in place by the next frame
+        return new Frame(frame.index, grid.getOutputWidth(), grid.getOutputHeight(), srFrame.clone());
+    }
+
+    /** @brief  Run the changed tiles and copy them into srFrame, on the backend's worker
+     *  @date   26/10/17
+     */
+    private void superResolveTiles(SRBackend backend, int[] pixels, boolean[] changed) throws InterruptedException {
+        SRModel srModel = backend.getModel();
+        int inputCount = grid.getTileSize() * grid.getTileSize() * 3;
+        FloatBuffer tileInput = (srModel.getInputQuantization() == null) ? null : backend.getTileInput(inputCount);
+        FloatBuffer tileOutput = (srModel.getOutputQuantization() == null) ? null
+                : backend.getTileOutput(inputCount * grid.getScale() * grid.getScale());
+
+        TensorArena arena = srModel.getArena();
+        TensorArena.Slot slot = arena.acquire();
+        try {
+            for (TileGrid.Tile tile : grid.getTiles()) {
+                if (!changed[tile.index])
+                    continue;
+                FloatBuffer srTile = TiledSR.inferTile(srModel, grid, tile, pixels, slot, tileInput, tileOutput);
+                long startTime = SRMetrics.now();
+                grid.copyOwnedRegion(srTile, tile, srFrame);
+                SRMetrics.getInstance().record("tile_copy", startTime);
+            }
+        } finally {
+            arena.release(slot);
+        }
+    }
+
+
+    /** @brief  Append the SR stage to the pipeline
+     *  @date   26/10/17
+     */
+    public void addTo(FramePipeline pipeline) {
+        pipeline.addStage("sr_incremental", 1, this);
+    }
+
+    public TileChangeDetector getDetector() {
+        return detector;
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+}
@@ -0,0 +1,496 @@
+package com.example.mobedsr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/** @brief  Durable progress of a video SR job, so a restarted job skips the finished frames
+ *  @date   26/10/17
+ *  The SR frames are appended to a spool file in the FrameCache frame
+ *  format, and every frame to an append-only text log: its index, offset
+ *  and length in the spool and the CRC32 of its bytes, the line closed by
+ *  the CRC32 of its own text. The log starts with the SHA-256 of the job's
+ *  config (video and SR mode), so a job with another config starts over.
+ *  Appending a frame costs two writes; both files are fsynced only every
+ *  SYNC_FRAMES frames or SYNC_INTERVAL_NANOS, and a sync line follows each
+ *  fsync. When the checkpoint is opened, a partial or corrupt line ends the
+ *  log, and every frame is checked against its CRC, as the bytes of those
+ *  after the last sync line may not have reached the disk and synced ones
+ *  may have rotted since; the log and spool are truncated before the first
+ *  bad entry, whose frames are recomputed. That costs one read of the
+ *  spool, so replaying the resumed frames never meets a bad one.
+ *  Checkpoints of jobs that never finish are removed by cleanUp().
+ *  Plain Java; wrap the job's source and sink with skipCompleted() and
+ *  replayCompleted() to resume.
+ */
+public class JobCheckpoint implements Closeable {
+    static final String LOG_SUFFIX = ".log";
+    static final String SPOOL_SUFFIX = ".frames";
+    static final int SYNC_FRAMES = 16;
+    static final long SYNC_INTERVAL_NANOS = 2_000_000_000L;
+    private static final String HEADER = "mobedsr-job 1 ";
+
+    private final File logFile;
+    private final File spoolFile;
+    private final String configHash;
+    // Guarded by this; by frame index
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private final int resumedFrames;
+    private int droppedEntries;
+
+    private FileOutputStream log;
+    private FileChannel spool;
+    private long spoolSize;
+    private long logSize;
+    private int unsynced;
+    private long lastSync;
+
+
+    /** @brief  A frame in the spool */
+    static final class Entry {
+        final int index;
+        final long offset;
+        final int length;
+        final long crc;
+        // Where the entry's line starts in the log
+        final long logOffset;
+
+        Entry(int index, long offset, int length, long crc, long logOffset) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.logOffset = logOffset;
+        }
+    }
+
+
+    /** @brief  Open the checkpoint of a job, recovering the frames a previous run completed
+     *  @date   26/10/17
+     *  @param  config everything the SR frames depend on, e.g. the video key and SR config
+     */
+    public static JobCheckpoint open(File directory, String config) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        String name = fileName(config);
+        return new JobCheckpoint(new File(directory, name + LOG_SUFFIX), new File(directory, name + SPOOL_SUFFIX),
+                sha256(config));
+    }
+
+    /** @return base name of the files of a config's checkpoint */
+    private static String fileName(String config) throws IOException {
+        // Jobs of different configs have different files, the header tells the rare collision apart
+        return "job_" + sha256(config).substring(0, 16);
+    }
+
+    JobCheckpoint(File logFile, File spoolFile, String configHash) throws IOException {
+        this.logFile = logFile;
+        this.spoolFile = spoolFile;
+        this.configHash = configHash;
+        spool = FileChannel.open(spoolFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long logLength = recover();
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(logLength);
+                channel.force(true);
+            }
+            spool.truncate(spoolSize);
+            log = new FileOutputStream(logFile, true);
+            logSize = logLength;
+            if (logLength == 0) {
+                spool.force(true);
+                writeLine(HEADER + configHash);
+                log.getFD().sync();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        resumedFrames = getCompletedFrames();
+        lastSync = System.nanoTime();
+    }
+
+
+    /** @brief  Read back the entries of the log
+     *  @date   26/10/17
+     *  @return length of the valid part of the log, 0 to start over
+     */
+    private long recover() throws IOException {
+        if (!logFile.exists() && !logFile.createNewFile())
+            throw new IOException("Cannot create " + logFile);
+        byte[] bytes = Files.readAllBytes(logFile.toPath());
+
+        int end = indexOf(bytes, 0);
+        String header = HEADER + configHash;
+        if (end < 0 || !new String(bytes, 0, end, StandardCharsets.UTF_8).equals(header + " " + lineCrc(header))) {
+            // New job, or the log of another config
+            spoolSize = 0;
+            return 0;
+        }
+
+        long validLength = end + 1;
+        List<Entry> logged = new ArrayList<>();
+        for (int start = end + 1; start < bytes.length; start = end + 1) {
+            end = indexOf(bytes, start);
+            Entry entry = (end < 0) ? null : parse(new String(bytes, start, end - start, StandardCharsets.UTF_8), start);
+            if (end < 0 || entry == null) {
+                // A partial line of a crash, or corruption: everything from here on is redone
+                droppedEntries += countLines(bytes, start);
+                break;
+            }
+            if (entry.index >= 0) {
+                entries.put(entry.index, entry);
+                spoolSize = entry.offset + entry.length;
+                logged.add(entry);
+            }
+            validLength = end + 1;
+        }
+
+        // Unsynced frames may have reached the log without their bytes, synced ones may have rotted
+        for (int i = 0; i < logged.size(); i++) {
+            Entry entry = logged.get(i);
+            if (!checkData(entry)) {
+                for (Entry dropped : logged.subList(i, logged.size()))
+                    entries.remove(dropped.index);
+                droppedEntries += logged.size() - i;
+                spoolSize = entry.offset;
+                return entry.logOffset;
+            }
+        }
+        return validLength;
+    }
+
+    /** @return the entry of a line, a sync line as an entry of index -1, or null if the line is malformed */
+    private Entry parse(String line, long logOffset) {
+        int split = line.lastIndexOf(' ');
+        if (split < 0 || !line.substring(split + 1).equals(lineCrc(line.substring(0, split))))
+            return null;
+        String[] fields = line.substring(0, split).split(" ");
+        try {
+            if (fields[0].equals("sync") && fields.length == 2)
+                return new Entry(-1, 0, 0, 0, logOffset);
+            if (!fields[0].equals("frame") || fields.length != 5)
+                return null;
+            Entry entry = new Entry(Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), Long.parseLong(fields[4], 16), logOffset);
+            // Frames are appended back to back
+            if (entry.index < 0 || entry.offset != spoolSize || entry.length <= 0)
+                return null;
+            return entry;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean checkData(Entry entry) throws IOException {
+        if (entry.offset + entry.length > spool.size())
+            return false;
+        return checksum(readData(entry)) == entry.crc;
+    }
+
+
+    /** @brief  Append a completed SR frame
+     *  @date   26/10/17
+     *  The frame is durable after the next sync(), at most SYNC_FRAMES frames later.
+     */
+    public synchronized void append(Frame frame) throws IOException {
+        encoded.reset();
+        FrameCache.writeFrame(encoded, frame, true);
+        byte[] data = encoded.toByteArray();
+        long dataCrc = checksum(data);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = spoolSize;
+        while (buffer.hasRemaining())
+            position += spool.write(buffer, position);
+
+        long logOffset = logSize;
+        writeLine(String.format(Locale.US, "frame %d %d %d %08x", frame.index, spoolSize, data.length, dataCrc));
+        entries.put(frame.index, new Entry(frame.index, spoolSize, data.length, dataCrc, logOffset));
+        spoolSize = position;
+
+        unsynced += 1;
+        if (unsynced >= SYNC_FRAMES || System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS)
+            sync();
+    }
+
+    /** @brief  Make the appended frames durable: spool first, then the log, then a sync line
+     *  @date   26/10/17
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced == 0 || log == null)
+            return;
+        spool.force(false);
+        log.getFD().sync();
+        writeLine("sync " + entries.size());
+        unsynced = 0;
+        lastSync = System.nanoTime();
+    }
+
+    private void writeLine(String line) throws IOException {
+        // One write per line, so a crash leaves at most the last line partial
+        byte[] bytes = (line + " " + lineCrc(line) + "\n").getBytes(StandardCharsets.UTF_8);
+        log.write(bytes);
+        logSize += bytes.length;
+    }
+
+
+    /** @brief  Read a frame back from the spool
+     *  @date   26/10/17
+     *  @throws IOException if the frame is not in the checkpoint or its bytes are corrupt
+     */
+    public Frame read(int index) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(index);
+            if (spool == null)
+                throw new IOException("Checkpoint " + logFile + " is closed");
+        }
+        if (entry == null)
+            throw new IOException("Frame " + index + " is not in " + logFile);
+        byte[] data = readData(entry);
+        if (checksum(data) != entry.crc)
+            throw new IOException("Frame " + index + " of " + spoolFile + " is corrupt");
+        return FrameCache.readFrame(new ByteArrayInputStream(data), index, spoolFile.toString());
+    }
+
+    private byte[] readData(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining())
+            if (spool.read(buffer, entry.offset + buffer.position()) < 0)
+                throw new IOException("Frame " + entry.index + " is past the end of " + spoolFile);
+        return buffer.array();
+    }
+
+
+    /** @return frames 0 .. n-1 are all in the checkpoint */
+    public synchronized int getCompletedFrames() {
+        int n = 0;
+        while (entries.containsKey(n))
+            n += 1;
+        return n;
+    }
+
+    public synchronized boolean contains(int index) {
+        return entries.containsKey(index);
+    }
+
+    /** @return frames completed by the previous runs, when the checkpoint was opened */
+    public int getResumedFrames() {
+        return resumedFrames;
+    }
+
+    /** @return entries recomputed because they were partial or corrupt */
+    public int getDroppedEntries() {
+        return droppedEntries;
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    public File getSpoolFile() {
+        return spoolFile;
+    }
+
+
+    /** @brief  Sync and close the files; the checkpoint stays on disk for the next run */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (log != null) {
+                sync();
+                log.getFD().sync();
+                log.close();
+            }
+        } finally {
+            log = null;
+            if (spool != null)
+                spool.close();
+            spool = null;
+        }
+    }
+
+    /** @brief  Close and delete the checkpoint, once the job's output is complete */
+    public synchronized void delete() throws IOException {
+        close();
+        if ((logFile.exists() && !logFile.delete()) || (spoolFile.exists() && !spoolFile.delete()))
+            throw new IOException("Cannot delete " + logFile);
+    }
+
+
+    /** @brief  Delete the checkpoints of a directory that are too old or over the size budget
+     *  @date   26/10/17
+     *  Jobs that were never finished nor cancelled, e.g. of videos never
+     *  opened again, leave their checkpoint behind. Checkpoints last
+     *  modified more than maxAgeMillis ago are deleted, then the least
+     *  recently modified ones until the rest fit maxBytes.
+     *  @param  keepConfig config of a checkpoint to keep whatever its size, e.g. of the job being opened
+     *  @return number of checkpoints deleted
+     */
+    public static int cleanUp(File directory, String keepConfig, long maxBytes, long maxAgeMillis)
+            throws IOException {
+        return cleanUp(directory, keepConfig, maxBytes, maxAgeMillis, System.currentTimeMillis());
+    }
+
+    static int cleanUp(File directory, String keepConfig, long maxBytes, long maxAgeMillis, long now)
+            throws IOException {
+        File[] logs = directory.listFiles((dir, name) -> name.startsWith("job_") && name.endsWith(LOG_SUFFIX));
+        if (logs == null)
+            return 0;
+        String keep = (keepConfig == null) ? null : fileName(keepConfig) + LOG_SUFFIX;
+
+        // Least recently modified first
+        List<File> candidates = new ArrayList<>();
+        long totalBytes = 0;
+        for (File log : logs) {
+            totalBytes += log.length() + spoolOf(log).length();
+            if (!log.getName().equals(keep))
+                candidates.add(log);
+        }
+        Map<File, Long> modified = new HashMap<>();
+        for (File log : candidates)
+            modified.put(log, Math.max(log.lastModified(), spoolOf(log).lastModified()));
+        candidates.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+
+        int deleted = 0;
+        for (File log : candidates) {
+            if (now - modified.get(log) <= maxAgeMillis && totalBytes <= maxBytes)
+                continue;
+            File spool = spoolOf(log);
+            long bytes = log.length() + spool.length();
+            if ((spool.exists() && !spool.delete()) || !log.delete())
+                throw new IOException("Cannot delete " + log);
+            totalBytes -= bytes;
+            deleted += 1;
+        }
+        return deleted;
+    }
+
+    private static File spoolOf(File log) {
+        String name = log.getName();
+        return new File(log.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + SPOOL_SUFFIX);
+    }
+
+
+    /** @brief  Source of the frames after the completed ones
+     *  @date   26/10/17
+     *  The resumed frames are still decoded, which costs far less than SR,
+     *  and dropped; the frame count is of the frames left.
+     */
+    public FrameSource skipCompleted(FrameSource source) {
+        return new FrameSource() {
+            @Override
+            public Frame read() throws IOException {
+                Frame frame = source.read();
+                while (frame != null && frame.index < resumedFrames)
+                    frame = source.read();
+                return frame;
+            }
+
+            @Override
+            public int getFrameCount() {
+                int count = source.getFrameCount();
+                return (count < 0) ? -1 : Math.max(0, count - resumedFrames);
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    /** @brief  Sink that first writes the completed frames from the spool
+     *  @date   26/10/17
+     *  The encoded output cannot be appended to, so it is written again
+     *  from the start: the resumed frames before the first new one, or at
+     *  close() if every frame was resumed.
+     */
+    public FrameSink replayCompleted(FrameSink sink) {
+        return new FrameSink() {
+            private boolean replayed;
+
+            private void replay() throws IOException {
+                if (replayed)
+                    return;
+                replayed = true;
+                for (int i = 0; i < resumedFrames; i++)
+                    sink.write(JobCheckpoint.this.read(i));
+            }
+
+            @Override
+            public void write(Frame frame) throws IOException {
+                replay();
+                sink.write(frame);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    replay();
+                } finally {
+                    sink.close();
+                }
+            }
+        };
+    }
+
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static String lineCrc(String text) {
+        return String.format(Locale.US, "%08x", checksum(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static int indexOf(byte[] bytes, int start) {
+        for (int i = start; i < bytes.length; i++)
+            if (bytes[i] == '\n')
+                return i;
+        return -1;
+    }
+
+    private static int countLines(byte[] bytes, int start) {
+        int lines = 0;
+        for (int i = start; i < bytes.length; i++)
+            if (bytes[i] == '\n' || i == bytes.length - 1)
+                lines += 1;
+        return lines;
+    }
+
+    static String sha256(String text) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8)))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.mobedsr;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/** @brief  Lock-free histogram of latencies in nanoseconds
+ *  @date   26/10/17
+ *  Log-linear buckets: 16 linear sub-buckets per power of two, so any
+ *  percentile is within 1/32 (~3%) of the recorded value, over the whole
+ *  long range in under 1000 counters. Recording is a few atomic adds.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /** @brief  Percentiles and totals of a histogram, in milliseconds
+     *  @date   26/10/17
+     */
+    public static final class Summary {
+        public final long count;
+        public final double meanMs;
+        public final double p50Ms;
+        public final double p95Ms;
+        public final double p99Ms;
+        public final double maxMs;
+
+        Summary(long count, double meanMs, double p50Ms, double p95Ms, double p99Ms, double maxMs) {
+            this.count = count;
+            this.meanMs = meanMs;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.p99Ms = p99Ms;
+            this.maxMs = maxMs;
+        }
+
+        public String toJson() {
+            return String.format(Locale.US,
+                    "{\"count\":%d,\"mean_ms\":%.3f,\"p50_ms\":%.3f,\"p95_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f}",
+                    count, meanMs, p50Ms, p95Ms, p99Ms, maxMs);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    count, meanMs, p50Ms, p95Ms, p99Ms, maxMs);
+        }
+    }
+
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(nanos, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /** @return middle of the values falling into the bucket */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket % SUB_BUCKETS)) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** @param  quantile in [0, 1], e.g. 0.95
+     *  @return latency in nanoseconds at the quantile, 0 if nothing was recorded
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        if (rank >= total)
+            return max.get();
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public Summary summarize() {
+        long n = count.get();
+        return new Summary(n, n == 0 ? 0 : sum.get() / 1e6 / n,
+                percentile(0.50) / 1e6, percentile(0.95) / 1e6, percentile(0.99) / 1e6, max.get() / 1e6);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
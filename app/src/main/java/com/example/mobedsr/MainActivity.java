@@ -1,10 +1,12 @@
 package com.example.mobedsr;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -27,9 +29,14 @@ import androidx.appcompat.widget.Toolbar;
 
 import com.example.mobedsr.databinding.ActivityMainBinding;
 
-import org.tensorflow.lite.support.image.TensorImage;
-
+import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -37,9 +44,25 @@ public class MainActivity extends AppCompatActivity {
     private int height;
     private Bitmap bitmap_lr;
     private Bitmap bitmap_sr;
+    private int[] pixels_sr;
 
     private final String TAG = "MobedSR";
     private boolean useGpu = false;
+    // Run the tuned profile of the device instead of the GPU switch
+    private boolean autotune = true;
+    // Show an upscaled preview of large images at once and refine it tile by tile
+    private boolean progressive = true;
+    // Super resolve only the salient tiles, bicubic for the rest
+    private boolean roi = false;
+    // Incremented by each SR run, progressive runs of older generations stop
+    private volatile int srGeneration;
+    // Progressive and ROI runs share one long-lived thread, so the GPU interpreters
+    // they pool, which are pinned to it, are reused by the next run
+    private final ExecutorService srExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "SR"));
+
+    private static final String METRICS_FILE = "metrics_image.json";
+    // Largest side run as one interpreter invocation, larger images are tiled
+    private static final int MAX_WHOLE_SIZE = 512;
 
     // View variables
     private View decorView;
@@ -77,6 +100,18 @@ public class MainActivity extends AppCompatActivity {
         // Hide the soft-keys
         hideSoftKeys(decorView);
 
+        // Select the models of the untuned fallback, then tune on first launch or load the stored
+        // profile; runSR reads the published results
+        Context appContext = getApplicationContext();
+        new Thread(() -> {
+            ModelCatalog.getModelName(appContext, false);
+            if (SRModel.isGpuSupported())
+                ModelCatalog.getModelName(appContext, true);
+            ModelCatalog.getProfile(appContext);
+            // The GPU interpreters of the selection are pinned to this thread, close them before it ends
+            SRModelPool.getInstance(appContext).evictOwned();
+        }, "Autotune").start();
+
         // switch listener
         switch_gpu.setOnCheckedChangeListener((buttonView, isChecked) -> {
             if (isChecked) {
@@ -116,6 +151,15 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        // Stop a progressive run after its tile, then close the SR thread's pinned interpreters on it
+        srGeneration += 1;
+        srExecutor.execute(SRModelPool.getInstance(this)::evictOwned);
+        srExecutor.shutdown();
+        super.onDestroy();
+    }
+
 
     // Launcher for setting the low resolution image
     ActivityResultLauncher<Intent> startActivityResult = registerForActivityResult(
@@ -128,7 +172,9 @@ public class MainActivity extends AppCompatActivity {
 
                         try {
                             // Set the low resolution image
+                            long startTime = SRMetrics.now();
                             Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), uri);
+                            SRMetrics.getInstance().record("bitmap_decode", startTime);
                             img_lr.setImageBitmap(bitmap);
 
                         } catch (IOException e) {
@@ -200,6 +246,18 @@ public class MainActivity extends AppCompatActivity {
             case R.id.videoSR:
                 startActivity(new Intent(this, VideoSRActivity.class));
                 return true;
+            case R.id.autotune:
+                autotune = !item.isChecked();
+                item.setChecked(autotune);
+                return true;
+            case R.id.progressive:
+                progressive = !item.isChecked();
+                item.setChecked(progressive);
+                return true;
+            case R.id.roi:
+                roi = !item.isChecked();
+                item.setChecked(roi);
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -213,42 +271,311 @@ public class MainActivity extends AppCompatActivity {
         // Get the image by bitmap
         BitmapDrawable drawable = (BitmapDrawable) img_lr.getDrawable();
         bitmap_lr = drawable.getBitmap();
+        int lrWidth = bitmap_lr.getWidth();
+        int lrHeight = bitmap_lr.getHeight();
+
+        SRMetrics metrics = SRMetrics.getInstance();
+        long totalStart = SRMetrics.now();
+
+        // The tuned profile, or the GPU switch when autotune is off, still running or failed
+        TuningProfile profile = autotune ? ModelCatalog.getCachedProfile() : null;
+        String modelName;
+        Accelerator accelerator;
+        int numThreads;
+        if (profile != null) {
+            modelName = profile.modelFile;
+            accelerator = profile.accelerator;
+            numThreads = profile.numThreads;
+        }
+        else {
+            modelName = ModelCatalog.getCachedModelName(useGpu);
+            accelerator = useGpu ? Accelerator.GPU : Accelerator.CPU;
+            numThreads = -1;
+        }
 
-        SRModel srModel = new SRModel(getAssets(), useGpu);
+        // Small images run whole on an interpreter of their shape bucket, large ones tile by tile
+        SRModelPool pool = SRModelPool.getInstance(this);
+        boolean tiled = Math.max(lrWidth, lrHeight) > MAX_WHOLE_SIZE;
+        srGeneration += 1;
+        if (roi) {
+            startRoiSR(pool, new SRModelPool.Key(modelName, accelerator, numThreads,
+                    new int[]{1, TiledSR.TILE_SIZE, TiledSR.TILE_SIZE, 3}), accelerator, numThreads);
+            return;
+        }
+        if (tiled && progressive) {
+            startProgressiveSR(pool, new SRModelPool.Key(modelName, accelerator, numThreads,
+                    new int[]{1, TiledSR.TILE_SIZE, TiledSR.TILE_SIZE, 3}), accelerator, numThreads);
+            return;
+        }
+        long startTime;
+        if (tiled && accelerator == Accelerator.GPU) {
+            // GPU and CPU interpreters share the tiles
+            startTime = coExecuteSR(pool, modelName, lrWidth, lrHeight);
+            if (startTime < 0)
+                return;
+        }
+        else {
+            SRModelPool.Key key = tiled
+                    ? new SRModelPool.Key(modelName, accelerator, numThreads,
+                            new int[]{1, TiledSR.TILE_SIZE, TiledSR.TILE_SIZE, 3})
+                    : SRModelPool.Key.forImage(modelName, accelerator, numThreads, lrWidth, lrHeight);
+            long acquireStart = SRMetrics.now();
+            SRModel srModel = pool.acquire(key);
+            metrics.record("model_acquire", acquireStart);
+
+            int scale = srModel.getScale();
+            int srWidth = lrWidth * scale;
+            int srHeight = lrHeight * scale;
+            prepareSrBitmap(srWidth, srHeight);
+
+            startTime = System.currentTimeMillis();
+            try {
+                if (tiled) {
+                    TiledSR tiledSR = new TiledSR(srModel);
+                    FloatBuffer outputTensor = tiledSR.allocateOutput(lrWidth, lrHeight);
+                    tiledSR.run(bitmap_lr, outputTensor);
+                    srModel.tensorToImage(outputTensor, srWidth, srHeight, pixels_sr, bitmap_sr);
+                }
+                else {
+                    int[] pixels = new int[lrWidth * lrHeight];
+                    bitmap_lr.getPixels(pixels, 0, lrWidth, 0, 0, lrWidth, lrHeight);
+                    srModel.superResolve(pixels, lrWidth, lrHeight, pixels_sr);
+                    long setStart = SRMetrics.now();
+                    bitmap_sr.setPixels(pixels_sr, 0, srWidth, 0, 0, srWidth, srHeight);
+                    metrics.record("bitmap_set", setStart);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                pool.release(srModel);
+            }
+        }
+        long spentTime = System.currentTimeMillis() - startTime;
+        metrics.record("sr_total", totalStart);
 
-        // Prepare image by TensorImage
-        TensorImage inputTensor = srModel.prepareInputTensor(bitmap_lr);
-        TensorImage outputTensor = srModel.prepareOutputTensor();
+        text_time.setText(String.format("Spent time: %dms (cold start: %.0fms)", spentTime, pool.getColdLatencyMs()));
+        text_sr.setVisibility(View.GONE);
+        Log.d(TAG, pool.getStats());
+        exportMetrics(accelerator, numThreads);
 
-//        // Set GPU delegate
-//        CompatibilityList compatList = new CompatibilityList();
-//        GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
-//        GpuDelegate gpuDelegate = new GpuDelegate(delegateOptions);
-//
-//        // Create the interpreter
-//        Interpreter.Options options = new Interpreter.Options();
-//        options.addDelegate(gpuDelegate);
-//        Interpreter interpreter = new Interpreter(loadModelFile(), options);
+        img_hr.setImageBitmap(bitmap_sr);
+    }
 
 
-        // Debug: Get input size
-        // Tensor input = interpreter.getInputTensor(0);
-        // int[] inputShape = input.shape();
-        // Log.d(TAG, String.format("input shape %d %d", width, height));
 
-        // Run the interpreter
-        long startTime = System.currentTimeMillis();
-        srModel.run(inputTensor.getBuffer(), outputTensor.getBuffer());
+    /** @brief  Show an upscaled preview of bitmap_lr at once, then refine it tile by tile, center-out
+     *  @date   26/10/17
+     *  SR runs on srExecutor and each finished tile is copied into
+     *  the displayed bitmap on the UI thread, so the first SR pixels show up
+     *  after one tile. A newer SR run stops this one after its current tile.
+     */
+    private void startProgressiveSR(SRModelPool pool, SRModelPool.Key key, Accelerator accelerator, int numThreads) {
+        int generation = srGeneration;
+        int lrWidth = bitmap_lr.getWidth();
+        int lrHeight = bitmap_lr.getHeight();
+        int[] pixels = new int[lrWidth * lrHeight];
+        bitmap_lr.getPixels(pixels, 0, lrWidth, 0, 0, lrWidth, lrHeight);
+        long totalStart = SRMetrics.now();
+
+        srExecutor.execute(() -> {
+            SRMetrics metrics = SRMetrics.getInstance();
+            SRModel srModel;
+            try {
+                long acquireStart = SRMetrics.now();
+                srModel = pool.acquire(key);
+                metrics.record("model_acquire", acquireStart);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
 
-        text_time.setText(String.format("Spent time: %dms", (System.currentTimeMillis()-startTime)));
-        text_sr.setVisibility(View.GONE);
+            TileGrid grid = ProgressiveSR.grid(lrWidth, lrHeight, srModel.getScale());
+            int srWidth = grid.getOutputWidth();
+            int srHeight = grid.getOutputHeight();
+            int[] output = new int[srWidth * srHeight];
+            Bitmap bitmap = Bitmap.createBitmap(srWidth, srHeight, Bitmap.Config.ARGB_8888);
+            AtomicLong firstTileMs = new AtomicLong();
+
+            try (ProgressiveSR.ModelTileRunner runner = new ProgressiveSR.ModelTileRunner(srModel, grid)) {
+                ProgressiveSR progressiveSR = new ProgressiveSR(grid, runner);
+                boolean complete = progressiveSR.run(pixels, output, new TileScheduler(grid),
+                        new ProgressiveSR.Listener() {
+                            @Override
+                            public void onPreview(int[] preview) {
+                                runOnUiThread(() -> {
+                                    if (generation != srGeneration)
+                                        return;
+                                    bitmap.setPixels(preview, 0, srWidth, 0, 0, srWidth, srHeight);
+                                    bitmap_sr = bitmap;
+                                    img_hr.setImageBitmap(bitmap);
+                                });
+                            }
+
+                            @Override
+                            public void onTile(TileGrid.Tile tile, int[] region, int done, int total) {
+                                if (generation != srGeneration) {
+                                    progressiveSR.cancel();
+                                    return;
+                                }
+                                if (done == 1)
+                                    firstTileMs.set((SRMetrics.now() - totalStart) / 1000000);
+                                runOnUiThread(() -> {
+                                    if (generation != srGeneration)
+                                        return;
+                                    bitmap.setPixels(output, region[1] * srWidth + region[0], srWidth,
+                                            region[0], region[1], region[2] - region[0], region[3] - region[1]);
+                                    img_hr.invalidate();
+                                    text_time.setText(String.format(Locale.US, "Refining: %d/%d tiles", done, total));
+                                });
+                            }
+                        });
+                if (!complete)
+                    return;
+                long spentMs = (metrics.record("sr_total", totalStart) - totalStart) / 1000000;
+                runOnUiThread(() -> {
+                    if (generation != srGeneration)
+                        return;
+                    text_time.setText(String.format(Locale.US, "Spent time: %dms (first tile: %dms)",
+                            spentMs, firstTileMs.get()));
+                    text_sr.setVisibility(View.GONE);
+                    Log.d(TAG, pool.getStats());
+                    exportMetrics(accelerator, numThreads);
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.release(srModel);
+            }
+        });
+    }
 
-        // Show the result
-        bitmap_sr = srModel.tensorToImage(outputTensor);
-        img_hr.setImageBitmap(bitmap_sr);
+
+    /** @brief  Super resolve the salient tiles of bitmap_lr and upscale the rest with bicubic
+     *  @date   26/10/17
+     *  Runs on srExecutor; the tiles are picked by RoiSR's edge
+     *  heuristic and the compute saved is logged and shown.
+     */
+    private void startRoiSR(SRModelPool pool, SRModelPool.Key key, Accelerator accelerator, int numThreads) {
+        int generation = srGeneration;
+        int lrWidth = bitmap_lr.getWidth();
+        int lrHeight = bitmap_lr.getHeight();
+        int[] pixels = new int[lrWidth * lrHeight];
+        bitmap_lr.getPixels(pixels, 0, lrWidth, 0, 0, lrWidth, lrHeight);
+        long totalStart = SRMetrics.now();
+
+        srExecutor.execute(() -> {
+            SRMetrics metrics = SRMetrics.getInstance();
+            SRModel srModel;
+            try {
+                long acquireStart = SRMetrics.now();
+                srModel = pool.acquire(key);
+                metrics.record("model_acquire", acquireStart);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            TileGrid grid = ProgressiveSR.grid(lrWidth, lrHeight, srModel.getScale());
+            int srWidth = grid.getOutputWidth();
+            int srHeight = grid.getOutputHeight();
+            int[] output = new int[srWidth * srHeight];
+
+            try (ProgressiveSR.ModelTileRunner runner = new ProgressiveSR.ModelTileRunner(srModel, grid)) {
+                long selectStart = SRMetrics.now();
+                boolean[] selected = RoiSR.selectSalient(grid, pixels, RoiSR.DEFAULT_EDGE_THRESHOLD);
+                metrics.record("roi_select", selectStart);
+                RoiSR.Report report = new RoiSR(grid, runner).run(pixels, selected, output);
+                long spentMs = (metrics.record("sr_total", totalStart) - totalStart) / 1000000;
+                Log.d(TAG, report.toString());
+
+                Bitmap bitmap = Bitmap.createBitmap(output, srWidth, srHeight, Bitmap.Config.ARGB_8888);
+                runOnUiThread(() -> {
+                    if (generation != srGeneration)
+                        return;
+                    bitmap_sr = bitmap;
+                    img_hr.setImageBitmap(bitmap);
+                    text_time.setText(String.format(Locale.US, "Spent time: %dms (ROI: %d/%d tiles, ~%dms saved)",
+                            spentMs, report.srTiles, report.tiles, report.getSavedNanos() / 1000000));
+                    text_sr.setVisibility(View.GONE);
+                    Log.d(TAG, pool.getStats());
+                    exportMetrics(accelerator, numThreads);
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.release(srModel);
+            }
+        });
     }
 
 
+    /** @brief  Super resolve bitmap_lr tile by tile on the GPU and the CPU at once
+     *  @date   26/10/17
+     *  @return start time of the SR in ms, or -1 if it failed
+     */
+    private long coExecuteSR(SRModelPool pool, String modelName, int lrWidth, int lrHeight) {
+        long acquireStart = SRMetrics.now();
+        try (CoTiledSR coTiledSR = new CoTiledSR(pool, modelName, SRBackend.defaultCpuThreads())) {
+            SRMetrics.getInstance().record("model_acquire", acquireStart);
+            int srWidth = lrWidth * coTiledSR.getScale();
+            int srHeight = lrHeight * coTiledSR.getScale();
+            prepareSrBitmap(srWidth, srHeight);
+
+            long startTime = System.currentTimeMillis();
+            int[] pixels = new int[lrWidth * lrHeight];
+            bitmap_lr.getPixels(pixels, 0, lrWidth, 0, 0, lrWidth, lrHeight);
+            FloatBuffer outputTensor = coTiledSR.allocateOutput(lrWidth, lrHeight);
+            coTiledSR.run(pixels, lrWidth, lrHeight, outputTensor);
+
+            TensorConverter.floatToArgb(outputTensor, pixels_sr, srWidth, srHeight);
+            bitmap_sr.setPixels(pixels_sr, 0, srWidth, 0, 0, srWidth, srHeight);
+            for (CoExecutionScheduler.BackendStats stats : coTiledSR.getStats())
+                Log.d(TAG, stats.toString());
+            return startTime;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+
+    /** @brief  Reuse the previous SR bitmap and pixels when the size matches
+     *  @date   26/10/17
+     */
+    private void prepareSrBitmap(int srWidth, int srHeight) {
+        if (bitmap_sr == null || bitmap_sr.getWidth() != srWidth || bitmap_sr.getHeight() != srHeight) {
+            bitmap_sr = Bitmap.createBitmap(srWidth, srHeight, Bitmap.Config.ARGB_8888);
+            pixels_sr = new int[srWidth * srHeight];
+        }
+    }
+
+
+    /** @brief  Log the stage latency histograms and save them as JSON
+     *  @date   26/10/17
+     */
+    private void exportMetrics(Accelerator accelerator, int numThreads) {
+        SRMetrics metrics = SRMetrics.getInstance();
+        metrics.setLabel("device", Build.MODEL);
+        metrics.setLabel("delegate", accelerator.name().toLowerCase(Locale.US));
+        metrics.setLabel("threads", String.valueOf(numThreads));
+        SRMetrics.Snapshot snapshot = metrics.snapshot();
+        for (String line : snapshot.toLogLines())
+            Log.d(TAG, line);
+        try {
+            snapshot.writeJson(new File(getExternalFilesDir(null), METRICS_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 
     /**
      * A native method that is implemented by the 'mobedsr' native library,
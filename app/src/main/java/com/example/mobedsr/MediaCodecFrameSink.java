@@ -0,0 +1,253 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/** @brief  Frame sink encoding SR frames to H.264 with the hardware encoder
+ *  @date   26/10/17
+ *  Frames are converted to YUV 4:2:0 straight into the encoder's input
+ *  images and the encoded samples are muxed into an MP4 as they come out,
+ *  with the audio samples of the source interleaved up to the same time,
+ *  copied without decoding. Runs on the pipeline's encode thread, so
+ *  encoding overlaps the inference of the next frames.
+ *  If the device has no H.264 encoder for the frame size, e.g. 4x SR of a
+ *  HD video, the frames go to the FFmpeg software encoder instead.
+ */
+public class MediaCodecFrameSink implements FrameSink {
+    private static final String TAG = "MobedSR";
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    // Wait for an encoder buffer before draining the output again
+    private static final long TIMEOUT_US = 10_000;
+    private static final int AUDIO_BUFFER_SIZE = 1 << 20;
+
+    private final Context context;
+    private final String outputPath;
+    private final VideoEncoderConfig config;
+
+    private MediaCodec codec;
+    private FFmpegFrameSink fallback;
+    private MediaMuxer muxer;
+    private MediaExtractor audio;
+    private ByteBuffer audioBuffer;
+    private int videoTrack = -1;
+    private int audioTrack = -1;
+    private boolean audioDone;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private long framesWritten;
+    private long lastVideoTimeUs = -1;
+
+
+    /** @param outputPath path of the MP4, overwritten if it exists */
+    public MediaCodecFrameSink(Context context, String outputPath, VideoEncoderConfig config) {
+        this.context = context;
+        this.outputPath = outputPath;
+        this.config = config;
+    }
+
+
+    /** @brief  Configure the hardware encoder for the frame size, or fall back to FFmpeg
+     *  @date   26/10/17
+     */
+    private void start(int width, int height) throws IOException {
+        MediaCodec encoder = null;
+        try {
+            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            MediaCodecInfo.CodecCapabilities capabilities = encoder.getCodecInfo().getCapabilitiesForType(MIME_TYPE);
+            if (!capabilities.getVideoCapabilities().isSizeSupported(width, height))
+                throw new IllegalArgumentException("Size " + width + "x" + height + " not supported by "
+                        + encoder.getName());
+
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitrate(width, height));
+            format.setFloat(MediaFormat.KEY_FRAME_RATE, (float) config.fps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.preset.keyframeSeconds);
+            int bitrateMode = config.preset.constantBitrate
+                    ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR
+                    : MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+            if (capabilities.getEncoderCapabilities().isBitrateModeSupported(bitrateMode))
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+            codec = encoder;
+            Log.d(TAG, String.format("Encoding %dx%d with %s at %d bps", width, height, encoder.getName(),
+                    config.getBitrate(width, height)));
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.d(TAG, "No hardware encoder, falling back to FFmpeg: " + e.getMessage());
+            if (encoder != null)
+                encoder.release();
+            fallback = new FFmpegFrameSink(context, outputPath, config);
+        }
+    }
+
+
+    @Override
+    public void write(Frame frame) throws IOException {
+        if (codec == null && fallback == null)
+            start(frame.width, frame.height);
+        if (fallback != null) {
+            fallback.write(frame);
+            return;
+        }
+
+        try {
+            int index = dequeueInput();
+            Image image = codec.getInputImage(index);
+            Image.Plane[] planes = image.getPlanes();
+            YuvConverter.argbToYuv420(frame.pixels, frame.width, frame.height,
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+            long timeUs = Math.round(framesWritten++ * 1_000_000 / config.fps);
+            codec.queueInputBuffer(index, 0, frame.width * frame.height * 3 / 2, timeUs, 0);
+            drain(false);
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed at frame " + frame.index, e);
+        }
+    }
+
+    private int dequeueInput() {
+        int index;
+        // Free input buffers by taking the encoded samples out
+        while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0)
+            drain(false);
+        return index;
+    }
+
+
+    /** @brief  Mux the encoded samples available, or all of them up to the end of stream
+     *  @date   26/10/17
+     */
+    private void drain(boolean endOfStream) {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream)
+                    return;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                startMuxer(codec.getOutputFormat());
+            } else if (index >= 0) {
+                ByteBuffer sample = codec.getOutputBuffer(index);
+                // The SPS/PPS are already in the output format
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+                    info.size = 0;
+                if (info.size > 0) {
+                    muxer.writeSampleData(videoTrack, sample, info);
+                    lastVideoTimeUs = info.presentationTimeUs;
+                    copyAudio(lastVideoTimeUs);
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    return;
+            }
+        }
+    }
+
+    private void startMuxer(MediaFormat videoFormat) {
+        try {
+            muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create " + outputPath, e);
+        }
+        videoTrack = muxer.addTrack(videoFormat);
+        if (config.audioPath != null)
+            audioTrack = addAudioTrack(config.audioPath);
+        muxer.start();
+    }
+
+    /** @return muxer track of the first audio track of the video, -1 if it has none the MP4 can hold */
+    private int addAudioTrack(String path) {
+        audio = new MediaExtractor();
+        try {
+            audio.setDataSource(path);
+            for (int i = 0; i < audio.getTrackCount(); i++) {
+                MediaFormat format = audio.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime == null || !mime.startsWith("audio/"))
+                    continue;
+                int track = muxer.addTrack(format);
+                audio.selectTrack(i);
+                audioBuffer = ByteBuffer.allocateDirect(format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                        ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : AUDIO_BUFFER_SIZE);
+                return track;
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.d(TAG, "Output without audio: " + e.getMessage());
+        }
+        audio.release();
+        audio = null;
+        return -1;
+    }
+
+
+    /** @brief  Copy the compressed audio samples up to the given time
+     *  @date   26/10/17
+     */
+    private void copyAudio(long untilUs) {
+        if (audio == null || audioDone)
+            return;
+        MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+        while (true) {
+            long timeUs = audio.getSampleTime();
+            if (timeUs < 0) {
+                audioDone = true;
+                return;
+            }
+            if (timeUs > untilUs)
+                return;
+            int size = audio.readSampleData(audioBuffer, 0);
+            if (size < 0) {
+                audioDone = true;
+                return;
+            }
+            int flags = ((audio.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0)
+                    ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            audioInfo.set(0, size, timeUs, flags);
+            muxer.writeSampleData(audioTrack, audioBuffer, audioInfo);
+            audio.advance();
+        }
+    }
+
+
+    /** @brief  Encode the remaining frames and finish the MP4
+     *  @date   26/10/17
+     *  The audio stops at the last video frame, as FFmpeg's -shortest.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fallback != null) {
+            fallback.close();
+            return;
+        }
+        if (codec == null)
+            return;
+        try {
+            codec.queueInputBuffer(dequeueInput(), 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed at the end of stream", e);
+        } finally {
+            codec.stop();
+            codec.release();
+            codec = null;
+            if (audio != null)
+                audio.release();
+            if (muxer != null) {
+                // Stopping a muxer without samples throws
+                if (lastVideoTimeUs >= 0)
+                    muxer.stop();
+                muxer.release();
+            }
+        }
+    }
+}
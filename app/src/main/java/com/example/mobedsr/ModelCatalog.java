@@ -0,0 +1,305 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import org.tensorflow.lite.TensorFlowLite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** @brief  Model variants of the asset manifest and the one selected for this device
+ *  @date   26/10/17
+ *  The selection runs once per delegate on center crops of the calibration
+ *  images, through SRModelPool so the evaluated CPU interpreters stay warm;
+ *  GPU ones are pinned to the selecting thread, which must evict them with
+ *  SRModelPool.evictOwned() before it ends.
+ *  The autotuned profile (variant, accelerator and threads) is searched on
+ *  first launch and then loaded from PROFILE_FILE.
+ */
+public class ModelCatalog {
+    private static final String TAG = "MobedSR";
+    // Side of the calibration crops; small enough to keep the selection quick
+    static final int CALIBRATION_SIZE = 64;
+    // Side of the autotuning input: one tile, the unit of work of large images
+    static final int TUNING_SIZE = TiledSR.TILE_SIZE;
+    static final String PROFILE_FILE = "autotune.profiles";
+
+    // Selection per delegate, written under the class lock, read without it by getCachedModelName()
+    private static final Map<Boolean, ModelSelector.Selection> selections = new ConcurrentHashMap<>();
+    // Written under the class lock, read without it by getCachedProfile()
+    private static volatile TuningProfile profile;
+    // Tuning failed, it is not retried until the next launch
+    private static volatile boolean profileFailed;
+
+
+    /** @brief  Asset file of the fastest variant that passes the accuracy guardrail
+     *  @date   26/10/17
+     *  Falls back to SRModel.MODEL_NAME if the manifest cannot be read.
+     *  Runs the selection on first call, so it must not run on the UI
+     *  thread; the UI reads getCachedModelName() instead.
+     */
+    public static synchronized String getModelName(Context context, boolean useGpu) {
+        try {
+            return getSelection(context, useGpu).selected.file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return SRModel.MODEL_NAME;
+        }
+    }
+
+    /** @brief  Model selected by getModelName(), without blocking
+     *  @date   26/10/17
+     *  @return the selected variant's file, or SRModel.MODEL_NAME while the selection has not run
+     */
+    public static String getCachedModelName(boolean useGpu) {
+        ModelSelector.Selection selection = selections.get(useGpu);
+        return (selection != null) ? selection.selected.file : SRModel.MODEL_NAME;
+    }
+
+    private static synchronized ModelSelector.Selection getSelection(Context context, boolean useGpu)
+            throws IOException {
+        ModelSelector.Selection selection = selections.get(useGpu);
+        if (selection == null) {
+            selection = select(context, useGpu);
+            selections.put(useGpu, selection);
+        }
+        return selection;
+    }
+
+
+    /** @brief  Evaluate every variant of the manifest on the calibration images
+     *  @date   26/10/17
+     */
+    public static ModelSelector.Selection select(Context context, boolean useGpu) throws IOException {
+        AssetManager assetManager = context.getAssets();
+        ModelManifest manifest = loadManifest(assetManager);
+
+        List<int[]> images = new ArrayList<>();
+        for (String name : manifest.getCalibrationImages())
+            images.add(loadCrop(assetManager, name, CALIBRATION_SIZE));
+
+        SRModelPool pool = SRModelPool.getInstance(context);
+        ModelSelector.Runner runner = (variant, image) -> {
+            SRModelPool.Key key = SRModelPool.Key.forImage(variant.file, useGpu, -1,
+                    CALIBRATION_SIZE, CALIBRATION_SIZE);
+            SRModel srModel;
+            try {
+                srModel = pool.acquire(key);
+            } catch (RuntimeException e) {
+                // The interpreter rejects models it cannot run, e.g. on this delegate
+                throw new IOException(e.getMessage(), e);
+            }
+
+            try {
+                int scale = srModel.getScale();
+                int[] srPixels = new int[CALIBRATION_SIZE * CALIBRATION_SIZE * scale * scale];
+                long startTime = System.nanoTime();
+                srModel.superResolve(images.get(image), CALIBRATION_SIZE, CALIBRATION_SIZE, srPixels);
+                return new ModelSelector.Output(srPixels, System.nanoTime() - startTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } finally {
+                pool.release(srModel);
+            }
+        };
+
+        ModelSelector.Selection selection = new ModelSelector().select(manifest, runner, images.size());
+        for (ModelSelector.Report report : selection.reports)
+            Log.d(TAG, (useGpu ? "gpu " : "cpu ") + report);
+        Log.d(TAG, "Selected model " + selection.selected);
+
+        return selection;
+    }
+
+
+    /** @brief  Tuned configuration of this device, searched once per device and model files
+     *  @date   26/10/17
+     *  The first call on a device benchmarks every accelerator, thread count
+     *  and model variant passing the accuracy guardrail, and persists the
+     *  fastest; later calls, also in later launches, load it.
+     *  Blocks for the whole search on first launch, so it must not run on
+     *  the UI thread; the UI reads getCachedProfile() instead.
+     *  @return the profile, or null if the models cannot be tuned
+     */
+    public static synchronized TuningProfile getProfile(Context context) {
+        if (profile != null || profileFailed)
+            return profile;
+
+        AssetManager assetManager = context.getAssets();
+        try {
+            ModelManifest manifest = loadManifest(assetManager);
+            String device = TuningProfile.deviceKey(Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT,
+                    TensorFlowLite.runtimeVersion());
+            String modelHash = hashModels(assetManager, manifest);
+            TuningProfileStore store = new TuningProfileStore(new File(context.getFilesDir(), PROFILE_FILE));
+
+            TuningProfile found = store.find(device, modelHash);
+            if (found == null) {
+                found = tune(context, manifest, device, modelHash);
+                store.save(found);
+            }
+            profile = found;
+        } catch (IOException e) {
+            e.printStackTrace();
+            profileFailed = true;
+            return null;
+        }
+        Log.d(TAG, "Tuning profile " + profile);
+        return profile;
+    }
+
+    /** @brief  Profile found by getProfile(), without blocking
+     *  @date   26/10/17
+     *  @return the profile, or null while tuning runs or if it failed
+     */
+    public static TuningProfile getCachedProfile() {
+        return profile;
+    }
+
+
+    /** @brief  Benchmark the candidate configurations on a tile of the first calibration image
+     *  @date   26/10/17
+     *  Interpreters are built outside the pool, so the losing configurations
+     *  do not take its idle budget.
+     */
+    private static TuningProfile tune(Context context, ModelManifest manifest, String device, String modelHash)
+            throws IOException {
+        long startTime = SRMetrics.now();
+        AssetManager assetManager = context.getAssets();
+
+        // Precision candidates: the variants whose accuracy passes on the CPU
+        List<ModelVariant> variants = new ArrayList<>();
+        for (ModelSelector.Report report : getSelection(context, false).reports)
+            if (report.passed)
+                variants.add(report.variant);
+
+        List<Accelerator> accelerators = new ArrayList<>(
+                Arrays.asList(Accelerator.CPU, Accelerator.XNNPACK, Accelerator.NNAPI));
+        if (SRModel.isGpuSupported())
+            accelerators.add(Accelerator.GPU);
+        List<Autotuner.Candidate> candidates = Autotuner.candidates(variants, accelerators,
+                Autotuner.threadCounts(Runtime.getRuntime().availableProcessors()));
+
+        if (manifest.getCalibrationImages().isEmpty())
+            throw new IOException("Manifest lists no calibration image");
+        int[] pixels = loadCrop(assetManager, manifest.getCalibrationImages().get(0), TUNING_SIZE);
+        ModelRegistry registry = ModelRegistry.getInstance(context);
+        Autotuner.Runner runner = candidate -> {
+            SRModel srModel = new SRModel(registry, candidate.variant.file, candidate.accelerator,
+                    candidate.numThreads);
+            try {
+                srModel.resizeInput(new int[]{1, TUNING_SIZE, TUNING_SIZE, 3});
+            } catch (RuntimeException e) {
+                srModel.close();
+                throw e;
+            }
+            int scale = srModel.getScale();
+            int[] srPixels = new int[TUNING_SIZE * TUNING_SIZE * scale * scale];
+            return new Autotuner.Trial() {
+                @Override
+                public void run() throws IOException {
+                    try {
+                        srModel.superResolve(pixels, TUNING_SIZE, TUNING_SIZE, srPixels);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted", e);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    srModel.close();
+                }
+            };
+        };
+
+        Autotuner.Outcome outcome = new Autotuner().tune(candidates, runner);
+        for (Autotuner.Result result : outcome.results)
+            Log.d(TAG, "autotune " + result);
+        SRMetrics.getInstance().record("autotune", startTime, true);
+
+        Autotuner.Candidate best = outcome.best.candidate;
+        return new TuningProfile(device, modelHash, best.variant.file, best.accelerator, best.numThreads,
+                outcome.best.latencyMs);
+    }
+
+
+    /** @brief  SHA-256 of the model files of the manifest, as hex
+     *  @date   26/10/17
+     *  Missing variant files contribute their name only, so adding one changes the hash.
+     */
+    private static String hashModels(AssetManager assetManager, ModelManifest manifest) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        for (ModelVariant variant : manifest.getVariants()) {
+            digest.update(variant.file.getBytes(StandardCharsets.UTF_8));
+            InputStream in;
+            try {
+                in = assetManager.open(variant.file);
+            } catch (IOException e) {
+                continue;
+            }
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                    digest.update(buffer, 0, read);
+            } finally {
+                in.close();
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+
+    private static ModelManifest loadManifest(AssetManager assetManager) throws IOException {
+        try (InputStream in = assetManager.open(ModelManifest.ASSET_NAME)) {
+            return ModelManifest.parse(new InputStreamReader(in, "UTF-8"));
+        }
+    }
+
+
+    /** @brief  Center crop of size x size of an asset image, as ARGB pixels
+     *  @date   26/10/17
+     */
+    private static int[] loadCrop(AssetManager assetManager, String name, int size) throws IOException {
+        Bitmap bitmap;
+        try (InputStream in = assetManager.open(name)) {
+            bitmap = BitmapFactory.decodeStream(in);
+        }
+        if (bitmap == null || bitmap.getWidth() < size || bitmap.getHeight() < size)
+            throw new IOException("Unusable calibration image " + name);
+
+        int[] pixels = new int[size * size];
+        bitmap.getPixels(pixels, 0, size, (bitmap.getWidth() - size) / 2,
+                (bitmap.getHeight() - size) / 2, size, size);
+        bitmap.recycle();
+        return pixels;
+    }
+}
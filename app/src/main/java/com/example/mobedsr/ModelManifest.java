@@ -0,0 +1,94 @@
+package com.example.mobedsr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/** @brief  Model variants and calibration images listed in an asset manifest
+ *  @date   26/10/17
+ *  One entry per line, '#' starts a comment:
+ *      model <name> <asset file> <FP32|FP16|INT8> [sha256]
+ *      calibration <asset image>
+ *  The first FP32 model is the reference of the accuracy guardrail.
+ */
+public class ModelManifest {
+    public static final String ASSET_NAME = "models.manifest";
+
+    private final List<ModelVariant> variants;
+    private final List<String> calibrationImages;
+
+
+    ModelManifest(List<ModelVariant> variants, List<String> calibrationImages) {
+        this.variants = Collections.unmodifiableList(variants);
+        this.calibrationImages = Collections.unmodifiableList(calibrationImages);
+    }
+
+
+    /** @brief  Parse a manifest
+     *  @date   26/10/17
+     *  @throws IOException on malformed lines, or if no FP32 reference model is listed
+     */
+    public static ModelManifest parse(Reader reader) throws IOException {
+        List<ModelVariant> variants = new ArrayList<>();
+        List<String> calibrationImages = new ArrayList<>();
+
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber += 1;
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields[0].equals("model") && (fields.length == 4 || fields.length == 5)) {
+                ModelVariant.Precision precision;
+                try {
+                    precision = ModelVariant.Precision.valueOf(fields[3]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + ": unknown precision " + fields[3]);
+                }
+                String sha256 = (fields.length == 5) ? fields[4] : null;
+                if (sha256 != null && !sha256.matches("[0-9a-fA-F]{64}"))
+                    throw new IOException("Line " + lineNumber + ": malformed SHA-256 " + sha256);
+                variants.add(new ModelVariant(fields[1], fields[2], precision, sha256));
+            }
+            else if (fields[0].equals("calibration") && fields.length == 2) {
+                calibrationImages.add(fields[1]);
+            }
+            else {
+                throw new IOException("Line " + lineNumber + ": malformed entry '" + line + "'");
+            }
+        }
+
+        ModelManifest manifest = new ModelManifest(variants, calibrationImages);
+        if (manifest.getReference() == null)
+            throw new IOException("Manifest lists no FP32 reference model");
+        return manifest;
+    }
+
+
+    public List<ModelVariant> getVariants() {
+        return variants;
+    }
+
+    public List<String> getCalibrationImages() {
+        return calibrationImages;
+    }
+
+    /** @return the first FP32 variant, or null */
+    public ModelVariant getReference() {
+        for (ModelVariant variant : variants)
+            if (variant.precision == ModelVariant.Precision.FP32)
+                return variant;
+        return null;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.mobedsr;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/** @brief  Process-wide registry of memory-mapped model files
+ *  @date   26/10/17
+ *  Each model file is mapped once, read-only, and the mapping is shared
+ *  by every interpreter of the model, whichever activity or pool built
+ *  it. Models are loaded on first acquire() and checksummed then; a
+ *  model whose SHA-256 differs from the one of the manifest is refused.
+ *  A model is unloaded when its last interpreter releases it; the mapping
+ *  goes away with the last reference to its buffer.
+ */
+public class ModelRegistry {
+    private static ModelRegistry instance;
+
+    private final Source source;
+    // Expected SHA-256 per model file, from the manifest
+    private final Map<String, String> expectedChecksums;
+    private final Map<String, Model> loaded = new HashMap<>();
+    // Checksums verified in this process, so reloading a model does not hash it again
+    private final Map<String, String> verified = new HashMap<>();
+    private int loadCount;
+
+
+    /** @brief  Where model files are mapped from
+     *  @date   26/10/17
+     */
+    public interface Source {
+        /** @return read-only mapping of the whole model; the descriptors opened to map it are closed */
+        MappedByteBuffer map(String name) throws IOException;
+    }
+
+
+    /** @brief  A loaded model, shared by its interpreters
+     *  @date   26/10/17
+     */
+    public static final class Model {
+        public final String name;
+        // Read-only: interpreters may share it, nothing can write to it
+        public final MappedByteBuffer buffer;
+        public final String sha256;
+        private int references;
+
+        Model(String name, MappedByteBuffer buffer, String sha256) {
+            this.name = name;
+            this.buffer = buffer;
+            this.sha256 = sha256;
+        }
+    }
+
+
+    /** @param expectedChecksums SHA-256 in hex per model file, unlisted models are not checked */
+    public ModelRegistry(Source source, Map<String, String> expectedChecksums) {
+        this.source = source;
+        this.expectedChecksums = new HashMap<>(expectedChecksums);
+    }
+
+    /** @brief  Registry of the app's asset models, checked against the asset manifest
+     *  @date   26/10/17
+     */
+    public static synchronized ModelRegistry getInstance(Context context) {
+        if (instance == null) {
+            AssetManager assetManager = context.getApplicationContext().getAssets();
+            Map<String, String> checksums = new HashMap<>();
+            try (InputStream in = assetManager.open(ModelManifest.ASSET_NAME)) {
+                for (ModelVariant variant : ModelManifest.parse(new InputStreamReader(in, "UTF-8")).getVariants())
+                    if (variant.sha256 != null)
+                        checksums.put(variant.file, variant.sha256);
+            } catch (IOException e) {
+                // No manifest: models are mapped unchecked, as ModelCatalog falls back to SRModel.MODEL_NAME
+                e.printStackTrace();
+            }
+            instance = new ModelRegistry(new AssetSource(assetManager), checksums);
+        }
+        return instance;
+    }
+
+
+    /** @brief  Take a reference to a model, mapping and checksumming it if it is not loaded
+     *  @date   26/10/17
+     *  @throws IOException if the model cannot be mapped or its checksum does not match
+     */
+    public synchronized Model acquire(String name) throws IOException {
+        Model model = loaded.get(name);
+        if (model == null) {
+            long startTime = SRMetrics.now();
+            MappedByteBuffer buffer = source.map(name);
+            String sha256 = verified.get(name);
+            if (sha256 == null) {
+                sha256 = sha256(buffer);
+                String expected = expectedChecksums.get(name);
+                if (expected != null && !expected.equalsIgnoreCase(sha256))
+                    throw new IOException("Checksum mismatch of " + name + ": " + sha256 + ", expected " + expected);
+                verified.put(name, sha256);
+            }
+            model = new Model(name, buffer, sha256);
+            loaded.put(name, model);
+            loadCount += 1;
+            SRMetrics.getInstance().record("model_load", startTime, true);
+        }
+        model.references += 1;
+        return model;
+    }
+
+    /** @brief  Drop a reference taken by acquire(), unloading the model after the last one
+     *  @date   26/10/17
+     *  Call once the interpreters built on the buffer are closed.
+     */
+    public synchronized void release(Model model) {
+        if (loaded.get(model.name) != model || model.references == 0)
+            throw new IllegalStateException("Model " + model.name + " is not held");
+        model.references -= 1;
+        if (model.references == 0)
+            loaded.remove(model.name);
+    }
+
+
+    public synchronized boolean isLoaded(String name) {
+        return loaded.containsKey(name);
+    }
+
+    /** @return references held on a model, 0 if it is not loaded */
+    public synchronized int getReferences(String name) {
+        Model model = loaded.get(name);
+        return (model == null) ? 0 : model.references;
+    }
+
+    /** @return number of times a model was mapped, for the stats */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+
+    /** @return SHA-256 of the buffer's content in hex, read through the mapping */
+    static String sha256(MappedByteBuffer buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(buffer.duplicate());
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+
+    /** @brief  Models stored uncompressed in the APK assets (noCompress "tflite")
+     *  @date   26/10/17
+     */
+    static final class AssetSource implements Source {
+        private final AssetManager assetManager;
+
+        AssetSource(AssetManager assetManager) {
+            this.assetManager = assetManager;
+        }
+
+        @Override
+        public MappedByteBuffer map(String name) throws IOException {
+            try (AssetFileDescriptor descriptor = assetManager.openFd(name);
+                 FileInputStream in = descriptor.createInputStream();
+                 FileChannel channel = in.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(),
+                        descriptor.getDeclaredLength());
+            }
+        }
+    }
+
+    /** @brief  Models as files of a directory, e.g. downloaded ones
+     *  @date   26/10/17
+     */
+    static final class FileSource implements Source {
+        private final File directory;
+
+        FileSource(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public MappedByteBuffer map(String name) throws IOException {
+            try (FileChannel channel = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+    }
+}
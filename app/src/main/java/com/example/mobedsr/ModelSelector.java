@@ -0,0 +1,153 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/** @brief  Pick the fastest model variant that keeps the accuracy of the reference
+ *  @date   26/10/17
+ *  Every variant super resolves the calibration images. A variant passes the
+ *  guardrail if the PSNR of its outputs against the reference (FP32) outputs
+ *  is at least minPsnr on every image; the passing variant with the lowest
+ *  average latency is selected. Variants that fail to load are skipped.
+ */
+public class ModelSelector {
+    // Above this, quantization noise is not visible in the SR output
+    public static final double DEFAULT_MIN_PSNR = 35.0;
+
+    private final double minPsnr;
+
+
+    /** @brief  Runs a variant on calibration images
+     *  @date   26/10/17
+     */
+    public interface Runner {
+        /** @brief  Super resolve calibration image number image with the variant
+         *  @throws IOException if the variant cannot be loaded or run
+         */
+        Output run(ModelVariant variant, int image) throws IOException;
+    }
+
+    /** @brief  SR output of a calibration image and the inference time, excluding model loading
+     *  @date   26/10/17
+     */
+    public static final class Output {
+        public final int[] pixels;
+        public final long nanos;
+
+        public Output(int[] pixels, long nanos) {
+            this.pixels = pixels;
+            this.nanos = nanos;
+        }
+    }
+
+
+    /** @brief  Measurements of one variant
+     *  @date   26/10/17
+     */
+    public static final class Report {
+        public final ModelVariant variant;
+        public final double latencyMs;
+        public final double minPsnr;
+        public final boolean passed;
+        public final String error;
+
+        Report(ModelVariant variant, double latencyMs, double minPsnr, boolean passed, String error) {
+            this.variant = variant;
+            this.latencyMs = latencyMs;
+            this.minPsnr = minPsnr;
+            this.passed = passed;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null)
+                return variant.name + ": skipped, " + error;
+            return String.format("%s: %.1fms, PSNR %.2fdB%s", variant.name, latencyMs, minPsnr,
+                    passed ? "" : " (rejected)");
+        }
+    }
+
+
+    /** @brief  Selected variant and the reports of all candidates
+     *  @date   26/10/17
+     */
+    public static final class Selection {
+        public final ModelVariant selected;
+        public final List<Report> reports;
+
+        Selection(ModelVariant selected, List<Report> reports) {
+            this.selected = selected;
+            this.reports = Collections.unmodifiableList(reports);
+        }
+    }
+
+
+    public ModelSelector() {
+        this(DEFAULT_MIN_PSNR);
+    }
+
+    public ModelSelector(double minPsnr) {
+        this.minPsnr = minPsnr;
+    }
+
+
+    /** @brief  Evaluate the variants of the manifest and select one
+     *  @date   26/10/17
+     *  @param  imageCount number of calibration images the runner can run
+     *  @throws IOException if the reference variant itself fails
+     */
+    public Selection select(ModelManifest manifest, Runner runner, int imageCount) throws IOException {
+        ModelVariant reference = manifest.getReference();
+        List<Report> reports = new ArrayList<>();
+
+        // Reference outputs are the ground truth of the guardrail
+        int[][] referenceOutputs = new int[imageCount][];
+        long referenceNanos = 0;
+        for (int i = 0; i < imageCount; i++) {
+            Output output = runner.run(reference, i);
+            referenceNanos += output.nanos;
+            referenceOutputs[i] = output.pixels;
+        }
+        Report best = new Report(reference, averageMs(referenceNanos, imageCount),
+                Double.POSITIVE_INFINITY, true, null);
+        reports.add(best);
+
+        for (ModelVariant variant : manifest.getVariants()) {
+            if (variant == reference)
+                continue;
+
+            Report report = evaluate(variant, runner, imageCount, referenceOutputs);
+            reports.add(report);
+            if (report.passed && report.latencyMs < best.latencyMs)
+                best = report;
+        }
+
+        return new Selection(best.variant, reports);
+    }
+
+    private Report evaluate(ModelVariant variant, Runner runner, int imageCount, int[][] referenceOutputs) {
+        long nanos = 0;
+        double worstPsnr = Double.POSITIVE_INFINITY;
+        try {
+            for (int i = 0; i < imageCount; i++) {
+                Output output = runner.run(variant, i);
+                if (output.pixels.length != referenceOutputs[i].length)
+                    return new Report(variant, 0, 0, false, "output size differs from the reference");
+                nanos += output.nanos;
+                worstPsnr = Math.min(worstPsnr, ImageQuality.psnr(referenceOutputs[i], output.pixels));
+            }
+        } catch (IOException e) {
+            return new Report(variant, 0, 0, false, e.getMessage());
+        }
+
+        return new Report(variant, averageMs(nanos, imageCount), worstPsnr, worstPsnr >= minPsnr, null);
+    }
+
+    private static double averageMs(long nanos, int count) {
+        return count == 0 ? 0 : nanos / 1e6 / count;
+    }
+}
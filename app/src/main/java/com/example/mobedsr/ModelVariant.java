@@ -0,0 +1,32 @@
+package com.example.mobedsr;
+
+
+/** @brief  One entry of the model manifest, e.g. the INT8 build of EVSRNet
+ *  @date   26/10/17
+ */
+public final class ModelVariant {
+    public enum Precision { FP32, FP16, INT8 }
+
+    public final String name;
+    public final String file;
+    public final Precision precision;
+    // SHA-256 of the file in hex, or null if the manifest does not give it
+    public final String sha256;
+
+
+    public ModelVariant(String name, String file, Precision precision) {
+        this(name, file, precision, null);
+    }
+
+    public ModelVariant(String name, String file, Precision precision, String sha256) {
+        this.name = name;
+        this.file = file;
+        this.precision = precision;
+        this.sha256 = sha256;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + file + ", " + precision + ")";
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** @brief  Frame source decoding the keyframe-aligned segments of a video concurrently
+ *  @date   26/10/17
+ *  Up to `parallelism` segments are decoded at once, each by its own
+ *  SegmentDecoder source on a worker thread, into a bounded queue of
+ *  frames. read() drains the segments in order and numbers the frames
+ *  consecutively, so the stream is the same as one serial decode.
+ *  Segments are started in order, so the segment being read is always in
+ *  flight and the full queues of the segments ahead never block it.
+ */
+public class ParallelFrameSource implements FrameSource {
+    // Time close() waits for the decoders to stop
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final List<VideoSegment> segments;
+    private final SegmentDecoder decoder;
+    private final int parallelism;
+    private final List<BlockingQueue<Item>> queues = new ArrayList<>();
+    private final int frameCount;
+
+    private ExecutorService executor;
+    private volatile boolean closed;
+    private int current;
+    private int nextIndex;
+
+
+    /** @brief  Decoded frame of a segment, the end of a segment or its failure */
+    private static final class Item {
+        static final Item END = new Item(null, null);
+
+        final Frame frame;
+        final IOException error;
+
+        Item(Frame frame, IOException error) {
+            this.frame = frame;
+            this.error = error;
+        }
+    }
+
+
+    /** @param segments    segments of the video in order, see VideoSegment.plan()
+     *  @param parallelism segments decoded at once
+     *  @param bufferFrames decoded frames buffered per segment
+     */
+    public ParallelFrameSource(List<VideoSegment> segments, SegmentDecoder decoder, int parallelism, int bufferFrames) {
+        this.segments = segments;
+        this.decoder = decoder;
+        this.parallelism = parallelism;
+        int frames = 0;
+        for (VideoSegment segment : segments) {
+            queues.add(new ArrayBlockingQueue<>(bufferFrames));
+            frames += segment.frameCount;
+        }
+        frameCount = frames;
+    }
+
+
+    private void start() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, "Decode-" + threads.getAndIncrement()));
+        for (VideoSegment segment : segments)
+            executor.execute(() -> decode(segment));
+    }
+
+    private void decode(VideoSegment segment) {
+        BlockingQueue<Item> queue = queues.get(segment.index);
+        try {
+            if (closed)
+                return;
+            long startTime = SRMetrics.now();
+            try (FrameSource source = decoder.open(segment)) {
+                Frame frame;
+                while (!closed && (frame = source.read()) != null)
+                    queue.put(new Item(frame, null));
+            }
+            SRMetrics.getInstance().record("segment_decode", startTime);
+            queue.put(Item.END);
+        } catch (IOException | RuntimeException e) {
+            IOException error = (e instanceof IOException) ? (IOException) e
+                    : new IOException("Decoder of " + segment + " failed", e);
+            // Make room for the failure if the queue is full, the reader stops at it anyway
+            queue.poll();
+            queue.offer(new Item(null, error));
+        } catch (InterruptedException e) {
+            // Closed while waiting for the reader
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** @return next frame in display order, or null after the last segment */
+    @Override
+    public Frame read() throws IOException {
+        if (closed)
+            throw new IOException("Source closed");
+        if (executor == null)
+            start();
+
+        while (current < segments.size()) {
+            Item item;
+            try {
+                item = queues.get(current).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + segments.get(current));
+            }
+            if (item == Item.END) {
+                current += 1;
+                continue;
+            }
+            if (item.error != null)
+                throw new IOException("Cannot decode " + segments.get(current), item.error);
+
+            Frame frame = item.frame;
+            return new Frame(nextIndex++, frame.width, frame.height, frame.pixels);
+        }
+        return null;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+
+    /** @brief  Stop the decoders and wait for them to close their sources
+     *  @date   26/10/17
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                throw new IOException("Segment decoders did not stop");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Progressive super resolution: an instant upscaled preview, refined tile by tile
+ *  @date   26/10/17
+ *  The output is first filled with a nearest-neighbour upscale, then the
+ *  tiles are super resolved in the order of a TileScheduler and each one's
+ *  owned region (see TileGrid.copyOwnedRegion) is copied in and published.
+ *  Owned regions do not depend on the neighbouring tiles, so a published
+ *  region is final and the viewer sees SR pixels after the first tile
+ *  instead of after the whole image. Plain Java; the listener moves the
+ *  regions to the screen.
+ */
+public class ProgressiveSR {
+    // Context around each owned region, in LR pixels, as in IncrementalTiledSR
+    static final int HALO = IncrementalTiledSR.HALO;
+
+    private final TileGrid grid;
+    private final TileRunner runner;
+    private volatile boolean cancelled;
+
+
+    /** @brief  Super resolves one tile of the LR image
+     *  @date   26/10/17
+     */
+    public interface TileRunner {
+        /** @return float SR tile of (tileSize * scale)^2 * 3, valid until the next call */
+        FloatBuffer run(TileGrid.Tile tile, int[] pixels) throws IOException;
+    }
+
+    /** @brief  Receives the output as it is refined, on the SR thread
+     *  @date   26/10/17
+     */
+    public interface Listener {
+        /** The whole output holds the preview */
+        void onPreview(int[] output);
+
+        /** @param region {x0, y0, x1, y1} of the output, in SR pixels, now final */
+        void onTile(TileGrid.Tile tile, int[] region, int done, int total);
+    }
+
+
+    /** @param grid tiles of the image, with an overlap of 2 * HALO for context */
+    public ProgressiveSR(TileGrid grid, TileRunner runner) {
+        this.grid = grid;
+        this.runner = runner;
+    }
+
+    /** @brief  Grid of the tile interpreters' input size for an image */
+    public static TileGrid grid(int width, int height, int scale) {
+        return new TileGrid(width, height, TiledSR.TILE_SIZE, 2 * HALO, scale);
+    }
+
+
+    /** @brief  Preview, then super resolve every tile the scheduler hands out
+     *  @date   26/10/17
+     *  Returns when the scheduler is empty or after cancel().
+     *  @param  output ARGB image of grid.getOutputWidth() * grid.getOutputHeight()
+     *  @return true if every tile was refined
+     */
+    public boolean run(int[] pixels, int[] output, TileScheduler scheduler, Listener listener) throws IOException {
+        SRMetrics metrics = SRMetrics.getInstance();
+        long startTime = SRMetrics.now();
+        upscaleNearest(pixels, grid.getImageWidth(), grid.getImageHeight(), grid.getScale(), output);
+        listener.onPreview(output);
+        metrics.record("preview", startTime);
+
+        int total = grid.getTiles().size();
+        int done = 0;
+        TileGrid.Tile tile;
+        while (!cancelled && (tile = scheduler.poll()) != null) {
+            FloatBuffer srTile = runner.run(tile, pixels);
+            long copyStart = SRMetrics.now();
+            grid.copyOwnedRegion(srTile, tile, output);
+            metrics.record("tile_copy", copyStart);
+
+            int[] region = grid.getOwnedRegion(tile);
+            for (int i = 0; i < region.length; i++)
+                region[i] *= grid.getScale();
+            done += 1;
+            if (done == 1)
+                metrics.record("first_tile", startTime);
+            listener.onTile(tile, region, done, total);
+        }
+        return done == total;
+    }
+
+    /** @brief  Stop after the tile in progress, e.g. when a new image replaces this one */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /** @brief  Nearest-neighbour upscale of an ARGB image, rows in parallel
+     *  @date   26/10/17
+     *  @param  dst ARGB image of (width * scale) * (height * scale)
+     */
+    static void upscaleNearest(int[] src, int width, int height, int scale, int[] dst) {
+        int dstWidth = width * scale;
+        TensorConverter.forRows(height, ForkJoinPool.commonPool(), (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int row = y * scale * dstWidth;
+                for (int x = 0; x < width; x++) {
+                    int pixel = src[y * width + x];
+                    for (int i = 0; i < scale; i++)
+                        dst[row + x * scale + i] = pixel;
+                }
+                // The other rows of the block repeat the first one
+                for (int i = 1; i < scale; i++)
+                    System.arraycopy(dst, row, dst, row + i * dstWidth, dstWidth);
+            }
+        });
+    }
+
+
+    /** @brief  TileRunner on an SRModel resized to the tile shape
+     *  @date   26/10/17
+     *  Holds a slot of the model's arena until closed.
+     */
+    public static final class ModelTileRunner implements TileRunner, Closeable {
+        private final SRModel srModel;
+        private final TileGrid grid;
+        private final TensorArena arena;
+        private final TensorArena.Slot slot;
+        private final FloatBuffer tileInput;
+        private final FloatBuffer tileOutput;
+
+        public ModelTileRunner(SRModel srModel, TileGrid grid) throws InterruptedException {
+            this.srModel = srModel;
+            this.grid = grid;
+            srModel.resizeInput(new int[]{1, grid.getTileSize(), grid.getTileSize(), 3});
+            arena = srModel.getArena();
+            slot = arena.acquire();
+            int inputCount = grid.getTileSize() * grid.getTileSize() * 3;
+            tileInput = (srModel.getInputQuantization() == null) ? null : FloatBuffer.allocate(inputCount);
+            tileOutput = (srModel.getOutputQuantization() == null) ? null
+                    : FloatBuffer.allocate(inputCount * grid.getScale() * grid.getScale());
+        }
+
+        @Override
+        public FloatBuffer run(TileGrid.Tile tile, int[] pixels) {
+            return TiledSR.inferTile(srModel, grid, tile, pixels, slot, tileInput, tileOutput);
+        }
+
+        @Override
+        public void close() {
+            arena.release(slot);
+        }
+    }
+}
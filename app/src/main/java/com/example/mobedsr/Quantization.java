@@ -0,0 +1,142 @@
+package com.example.mobedsr;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Affine quantization of an 8-bit tensor, real = scale * (q - zeroPoint)
+ *  @date   26/10/17
+ *  Real values are the model's normalized [0, 1] pixels. Conversion from and
+ *  to 8-bit ARGB goes through 256-entry lookup tables, so a pixel costs
+ *  three table reads instead of float math.
+ */
+public final class Quantization {
+    public final float scale;
+    public final int zeroPoint;
+    public final boolean signed;
+
+    // Pixel value -> quantized byte, and quantized byte (as unsigned index) -> pixel value
+    private final byte[] toQuantized = new byte[256];
+    private final int[] toChannel = new int[256];
+    private final boolean identity;
+
+
+    /** @param signed true for INT8 tensors, false for UINT8 */
+    public Quantization(float scale, int zeroPoint, boolean signed) {
+        if (!(scale > 0.0f))
+            throw new IllegalArgumentException("Quantization scale must be positive: " + scale);
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+        this.signed = signed;
+
+        for (int c = 0; c < 256; c++) {
+            toQuantized[c] = (byte) quantize(c / 255.0f);
+            int q = signed ? c - 128 : c;
+            toChannel[q & 0xFF] = TensorConverter.toChannel(dequantize(q));
+        }
+        boolean same = true;
+        for (int c = 0; c < 256; c++)
+            same &= (toQuantized[c] & 0xFF) == c;
+        identity = same;
+    }
+
+
+    /** @return quantized value of a real value, saturated to the 8-bit range */
+    public int quantize(float value) {
+        int q = Math.round(value / scale) + zeroPoint;
+        int min = signed ? -128 : 0;
+        int max = signed ? 127 : 255;
+        return q < min ? min : (q > max ? max : q);
+    }
+
+    /** @return real value of a quantized value */
+    public float dequantize(int q) {
+        return scale * (q - zeroPoint);
+    }
+
+    private int read(ByteBuffer src, int index) {
+        return signed ? src.get(index) : src.get(index) & 0xFF;
+    }
+
+
+    /** @brief  Quantize ARGB pixels into a larger tensor, replicating the edge pixels
+     *  @date   26/10/17
+     *  Same layout and row-parallel fused kernel as TensorConverter.argbToFloat(),
+     *  one byte per channel. For the usual UINT8 input of scale 1/255 and zero
+     *  point 0 the channels are the bytes themselves and the table is skipped.
+     *  @param  dst  8-bit tensor of dstWidth * dstHeight * 3, its position is not used
+     *  @param  pool fork-join pool, or null to convert on the calling thread
+     */
+    public void argbToQuantized(int[] src, int width, int height, ByteBuffer dst, int dstWidth, int dstHeight,
+                                ForkJoinPool pool) {
+        if (src.length < width * height || dst.limit() < dstWidth * dstHeight * 3)
+            throw new IllegalArgumentException("Buffer smaller than " + dstWidth + "x" + dstHeight);
+
+        TensorConverter.forRows(dstHeight, pool, (rowStart, rowEnd) -> {
+            // Absolute puts: the row chunks allocate no buffer views
+            int d = rowStart * dstWidth * 3;
+            for (int y = rowStart; y < rowEnd; y++) {
+                int rowOffset = Math.min(y, height - 1) * width;
+                if (identity) {
+                    for (int x = 0; x < dstWidth; x++) {
+                        int pixel = src[rowOffset + Math.min(x, width - 1)];
+                        dst.put(d++, (byte) (pixel >> 16));
+                        dst.put(d++, (byte) (pixel >> 8));
+                        dst.put(d++, (byte) pixel);
+                    }
+                }
+                else {
+                    for (int x = 0; x < dstWidth; x++) {
+                        int pixel = src[rowOffset + Math.min(x, width - 1)];
+                        dst.put(d++, toQuantized[(pixel >> 16) & 0xFF]);
+                        dst.put(d++, toQuantized[(pixel >> 8) & 0xFF]);
+                        dst.put(d++, toQuantized[pixel & 0xFF]);
+                    }
+                }
+            }
+        });
+    }
+
+    public void argbToQuantized(int[] src, int width, int height, ByteBuffer dst, int dstWidth, int dstHeight) {
+        argbToQuantized(src, width, height, dst, dstWidth, dstHeight, ForkJoinPool.commonPool());
+    }
+
+    /** @return true if each quantized byte equals its 8-bit pixel channel */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+
+
+    /** @brief  Convert the top-left width x height region of an 8-bit tensor to ARGB
+     *  @date   26/10/17
+     *  @param  src 8-bit tensor with rows of srcWidth pixels
+     */
+    public void quantizedToArgb(ByteBuffer src, int srcWidth, int[] dst, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int s = y * srcWidth * 3;
+            int d = y * width;
+            for (int x = 0; x < width; x++, s += 3)
+                dst[d + x] = 0xFF000000 | (toChannel[src.get(s) & 0xFF] << 16)
+                        | (toChannel[src.get(s + 1) & 0xFF] << 8) | toChannel[src.get(s + 2) & 0xFF];
+        }
+    }
+
+
+    /** @brief  Quantize count real values, e.g. a tile extracted by TileGrid
+     *  @date   26/10/17
+     */
+    public void quantize(FloatBuffer src, ByteBuffer dst, int count) {
+        for (int i = 0; i < count; i++)
+            dst.put(i, (byte) quantize(src.get(i)));
+    }
+
+    /** @brief  Dequantize count values to real values
+     *  @date   26/10/17
+     */
+    public void dequantize(ByteBuffer src, FloatBuffer dst, int count) {
+        for (int i = 0; i < count; i++)
+            dst.put(i, dequantize(read(src, i)));
+    }
+}
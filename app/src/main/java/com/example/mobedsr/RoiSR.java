@@ -0,0 +1,240 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Region-of-interest super resolution: SR on the selected tiles, bicubic elsewhere
+ *  @date   26/10/17
+ *  The image is tiled by ProgressiveSR.grid(), so the regions the model
+ *  runs on are whole interpreter inputs with HALO pixels of context. Tiles are
+ *  selected from rectangles given by the caller (selectRegions) or by a
+ *  cheap edge heuristic on the LR image (selectSalient): the mean absolute
+ *  luma gradient of the tile's owned region. The owned regions of the other
+ *  tiles are upscaled with BicubicUpscaler. Where a selected tile borders
+ *  an unselected one, its SR pixels fade into bicubic over HALO LR pixels
+ *  so the ROI has no visible seam. The Report compares the interpreter time
+ *  spent with the estimated time of SR on every tile.
+ */
+public class RoiSR {
+    // Mean absolute luma gradient (0 - 510) above which a tile counts as salient, e.g. edges or text
+    public static final double DEFAULT_EDGE_THRESHOLD = 12.0;
+
+    private final TileGrid grid;
+    private final ProgressiveSR.TileRunner runner;
+    private final BicubicUpscaler bicubic;
+
+
+    /** @brief  Work done by one run and the compute saved by the ROI
+     *  @date   26/10/17
+     */
+    public static final class Report {
+        public final int tiles;
+        public final int srTiles;
+        // Share of the output pixels owned by SR tiles, including their blended borders
+        public final double srPixelFraction;
+        public final long backgroundNanos;
+        // Interpreter runs, including the tile extraction
+        public final long srNanos;
+        public final long compositeNanos;
+
+        Report(int tiles, int srTiles, double srPixelFraction, long backgroundNanos, long srNanos,
+               long compositeNanos) {
+            this.tiles = tiles;
+            this.srTiles = srTiles;
+            this.srPixelFraction = srPixelFraction;
+            this.backgroundNanos = backgroundNanos;
+            this.srNanos = srNanos;
+            this.compositeNanos = compositeNanos;
+        }
+
+        /** @return share of the interpreter runs saved */
+        public double getSavedFraction() {
+            return 1 - (double) srTiles / tiles;
+        }
+
+        /** @return estimated time of SR on every tile, from the mean time of the tiles run, 0 if none ran */
+        public long getFullFrameNanos() {
+            return (srTiles == 0) ? 0 : srNanos / srTiles * tiles;
+        }
+
+        /** @return estimated time saved over SR on every tile; may be negative */
+        public long getSavedNanos() {
+            return getFullFrameNanos() - (backgroundNanos + srNanos + compositeNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "ROI SR: %d/%d tiles, %.1f%% of the pixels, %.1f%% of the interpreter runs saved, "
+                            + "background %.1fms, SR %.1fms, composite %.1fms, ~%.1fms saved",
+                    srTiles, tiles, srPixelFraction * 100, getSavedFraction() * 100, backgroundNanos / 1e6,
+                    srNanos / 1e6, compositeNanos / 1e6, getSavedNanos() / 1e6);
+        }
+    }
+
+
+    /** @param grid tiles of the image from ProgressiveSR.grid(), with an overlap of 2 * HALO for context */
+    public RoiSR(TileGrid grid, ProgressiveSR.TileRunner runner) {
+        this.grid = grid;
+        this.runner = runner;
+        this.bicubic = new BicubicUpscaler(grid.getScale());
+    }
+
+
+    /** @brief  Select the tiles whose owned region meets one of the regions
+     *  @date   26/10/17
+     *  @param  regions {x0, y0, x1, y1} in LR pixels, e.g. detected faces or text
+     *  @return selected flag per tile, by tile index
+     */
+    public static boolean[] selectRegions(TileGrid grid, List<int[]> regions) {
+        boolean[] selected = new boolean[grid.getTiles().size()];
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            int[] owned = grid.getOwnedRegion(tile);
+            for (int[] region : regions)
+                if (region[0] < owned[2] && owned[0] < region[2] && region[1] < owned[3] && owned[1] < region[3]) {
+                    selected[tile.index] = true;
+                    break;
+                }
+        }
+        return selected;
+    }
+
+    /** @brief  Select the tiles whose edge score is above a threshold
+     *  @date   26/10/17
+     *  @param  threshold see DEFAULT_EDGE_THRESHOLD
+     */
+    public static boolean[] selectSalient(TileGrid grid, int[] pixels, double threshold) {
+        float[] scores = edgeScores(grid, pixels);
+        boolean[] selected = new boolean[scores.length];
+        for (int i = 0; i < scores.length; i++)
+            selected[i] = scores[i] > threshold;
+        return selected;
+    }
+
+    /** @brief  Mean absolute horizontal plus vertical luma gradient of each tile's owned region
+     *  @date   26/10/17
+     *  One pass over the LR pixels, tiles in parallel.
+     */
+    static float[] edgeScores(TileGrid grid, int[] pixels) {
+        int width = grid.getImageWidth();
+        int height = grid.getImageHeight();
+        List<TileGrid.Tile> tiles = grid.getTiles();
+        float[] scores = new float[tiles.size()];
+        TensorConverter.forRows(tiles.size(), ForkJoinPool.commonPool(), (start, end) -> {
+            for (int t = start; t < end; t++) {
+                int[] region = grid.getOwnedRegion(tiles.get(t));
+                long sum = 0;
+                for (int y = region[1]; y < region[3]; y++) {
+                    int row = y * width;
+                    int nextRow = Math.min(y + 1, height - 1) * width;
+                    for (int x = region[0]; x < region[2]; x++) {
+                        int luma = luma(pixels[row + x]);
+                        sum += Math.abs(luma(pixels[row + Math.min(x + 1, width - 1)]) - luma)
+                                + Math.abs(luma(pixels[nextRow + x]) - luma);
+                    }
+                }
+                int count = (region[2] - region[0]) * (region[3] - region[1]);
+                scores[t] = (count == 0) ? 0 : (float) sum / count;
+            }
+        });
+        return scores;
+    }
+
+    private static int luma(int pixel) {
+        return (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF)) >> 8;
+    }
+
+
+    /** @brief  Upscale the background with bicubic, then super resolve and composite the selected tiles
+     *  @date   26/10/17
+     *  @param  selected flag per tile, from selectRegions() or selectSalient()
+     *  @param  output   ARGB image of grid.getOutputWidth() * grid.getOutputHeight()
+     */
+    public Report run(int[] pixels, boolean[] selected, int[] output) throws IOException {
+        SRMetrics metrics = SRMetrics.getInstance();
+        int width = grid.getImageWidth();
+        int height = grid.getImageHeight();
+        int scale = grid.getScale();
+
+        long backgroundStart = SRMetrics.now();
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            if (selected[tile.index])
+                continue;
+            int[] region = grid.getOwnedRegion(tile);
+            bicubic.upscale(pixels, width, height, output,
+                    region[0] * scale, region[1] * scale, region[2] * scale, region[3] * scale);
+        }
+        long backgroundNanos = metrics.record("roi_background", backgroundStart) - backgroundStart;
+
+        int srTiles = 0;
+        long srPixels = 0;
+        long srNanos = 0;
+        long compositeNanos = 0;
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            if (!selected[tile.index])
+                continue;
+            long tileStart = SRMetrics.now();
+            FloatBuffer srTile = runner.run(tile, pixels);
+            long compositeStart = metrics.record("roi_tile", tileStart);
+            composite(srTile, tile, selected, pixels, output);
+            compositeNanos += metrics.record("roi_composite", compositeStart) - compositeStart;
+            srNanos += compositeStart - tileStart;
+
+            int[] region = grid.getOwnedRegion(tile);
+            srPixels += (long) (region[2] - region[0]) * (region[3] - region[1]);
+            srTiles += 1;
+        }
+        return new Report(grid.getTiles().size(), srTiles, (double) srPixels / ((long) width * height),
+                backgroundNanos, srNanos, compositeNanos);
+    }
+
+    /** @brief  Write the owned region of an SR tile, faded into bicubic towards unselected neighbours
+     *  @date   26/10/17
+     */
+    private void composite(FloatBuffer srTile, TileGrid.Tile tile, boolean[] selected, int[] pixels, int[] output) {
+        int scale = grid.getScale();
+        int columns = grid.getColumnCount();
+        int srTileWidth = grid.getTileSize() * scale;
+        int outputWidth = grid.getOutputWidth();
+        int[] region = grid.getOwnedRegion(tile);
+        int x0 = region[0] * scale, y0 = region[1] * scale, x1 = region[2] * scale, y1 = region[3] * scale;
+
+        // Sides towards a background tile are blended, image borders and SR neighbours are not
+        boolean left = tile.column > 0 && !selected[tile.index - 1];
+        boolean right = tile.column < columns - 1 && !selected[tile.index + 1];
+        boolean top = tile.row > 0 && !selected[tile.index - columns];
+        boolean bottom = tile.row < grid.getRowCount() - 1 && !selected[tile.index + columns];
+        float feather = ProgressiveSR.HALO * scale;
+
+        TensorConverter.forRows(y1 - y0, ForkJoinPool.commonPool(), (rowStart, rowEnd) -> {
+            for (int oy = y0 + rowStart; oy < y0 + rowEnd; oy++) {
+                int src = ((oy - tile.y * scale) * srTileWidth + (x0 - tile.x * scale)) * 3;
+                int dst = oy * outputWidth;
+                float rowWeight = 1;
+                if (top)
+                    rowWeight = Math.min(rowWeight, (oy - y0 + 0.5f) / feather);
+                if (bottom)
+                    rowWeight = Math.min(rowWeight, (y1 - oy - 0.5f) / feather);
+                for (int ox = x0; ox < x1; ox++, src += 3) {
+                    float w = rowWeight;
+                    if (left)
+                        w = Math.min(w, (ox - x0 + 0.5f) / feather);
+                    if (right)
+                        w = Math.min(w, (x1 - ox - 0.5f) / feather);
+                    float r = srTile.get(src), g = srTile.get(src + 1), b = srTile.get(src + 2);
+                    if (w < 1) {
+                        int background = bicubic.sample(pixels, grid.getImageWidth(), grid.getImageHeight(), ox, oy);
+                        r = w * r + (1 - w) * ((background >> 16) & 0xFF) / 255.0f;
+                        g = w * g + (1 - w) * ((background >> 8) & 0xFF) / 255.0f;
+                        b = w * b + (1 - w) * (background & 0xFF) / 255.0f;
+                    }
+                    output[dst + ox] = TensorConverter.packPixel(r, g, b);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.mobedsr;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/** @brief  Pooled SRModel as a backend of the co-execution scheduler
+ *  @date   26/10/17
+ *  The interpreter is acquired and released on the scheduler's worker
+ *  thread, which is the only thread that runs it. Thread-bound (GPU)
+ *  interpreters are not pooled: the worker ends with the scheduler, so the
+ *  backend builds its own in open() and closes it in close().
+ */
+public class SRBackend implements CoExecutionScheduler.Backend<SRBackend.Job> {
+    private final SRModelPool pool;
+    private final SRModelPool.Key key;
+    private final String name;
+    private SRModel srModel;
+    // Float tile buffers for quantized models, see TiledSR
+    private FloatBuffer tileInput;
+    private FloatBuffer tileOutput;
+
+
+    /** @brief  Work item run with the backend's interpreter
+     *  @date   26/10/17
+     */
+    public interface Job {
+        void run(SRBackend backend) throws Exception;
+    }
+
+
+    SRBackend(SRModelPool pool, SRModelPool.Key key) {
+        this.pool = pool;
+        this.key = key;
+        this.name = key.accelerator.name().toLowerCase(Locale.US);
+    }
+
+    /** @return CPU interpreter threads next to a GPU backend: half the cores, the rest feed the GPU and the pipeline */
+    static int defaultCpuThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /** @brief  A CPU and a GPU backend of the same model and input shape
+     *  @date   26/10/17
+     *  @param  cpuThreads threads of the CPU interpreter
+     */
+    static List<SRBackend> cpuAndGpu(SRModelPool pool, String modelName, int cpuThreads, int[] inputShape) {
+        List<SRBackend> backends = new ArrayList<>();
+        backends.add(new SRBackend(pool, new SRModelPool.Key(modelName, true, -1, inputShape)));
+        backends.add(new SRBackend(pool, new SRModelPool.Key(modelName, false, cpuThreads, inputShape)));
+        return backends;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void open() throws Exception {
+        srModel = key.accelerator.isThreadBound() ? pool.create(key) : pool.acquire(key);
+    }
+
+    @Override
+    public void process(Job job) throws Exception {
+        job.run(this);
+    }
+
+    @Override
+    public void close() {
+        if (srModel != null) {
+            if (key.accelerator.isThreadBound())
+                srModel.close();
+            else
+                pool.release(srModel);
+            srModel = null;
+        }
+    }
+
+    public SRModel getModel() {
+        return srModel;
+    }
+
+    FloatBuffer getTileInput(int count) {
+        if (tileInput == null || tileInput.capacity() < count)
+            tileInput = FloatBuffer.allocate(count);
+        return tileInput;
+    }
+
+    FloatBuffer getTileOutput(int count) {
+        if (tileOutput == null || tileOutput.capacity() < count)
+            tileOutput = FloatBuffer.allocate(count);
+        return tileOutput;
+    }
+}
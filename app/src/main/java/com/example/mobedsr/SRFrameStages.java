@@ -0,0 +1,168 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** @brief  Super resolution stages of the video pipeline
+ *  @date   26/10/17
+ *  prepare: LR pixels into the input tensor of an arena slot
+ *  infer:   interpreter run on the slot (one thread, it owns the interpreter)
+ *  convert: output tensor of the slot to ARGB pixels, then frees the slot
+ *  The slots come from the SRModel's tensor arena, one per stage, so the
+ *  next frame is prepared while the current one runs and no tensor is
+ *  allocated per frame. The ARGB pixels of each SR frame are still
+ *  allocated by convert: the frame outlives the pipeline in the FrameCache
+ *  memory tier and the encoder queue, so its buffer cannot be recycled.
+ *
+ *  With a batch size N > 1 the interpreter input is [N, H, W, 3]: prepare
+ *  fills one slot with N consecutive frames, infer runs them in a single
+ *  invocation, and convert reads each frame's part of the output and frees
+ *  the slot after the last one. The last batch of a video may be partial;
+ *  its unused parts keep stale data and their outputs are ignored.
+ */
+public class SRFrameStages {
+    // One arena slot per stage in flight
+    static final int SLOTS = 3;
+    // Largest batch, beyond it the invocation overhead is already amortized
+    static final int MAX_BATCH = 8;
+    // Interpreter tensors and activations, in units of the input + output tensors (see SRModel.getNativeBytes)
+    static final int ACTIVATION_COPIES = 2;
+
+    private final SRModel srModel;
+    private final TensorArena arena;
+    private final int lrWidth;
+    private final int lrHeight;
+    private final int scale;
+    private final int batchSize;
+    // Frames of each slot not converted yet, by slot index
+    private final AtomicInteger[] unconverted;
+
+
+    /** @param width  width of the LR frames
+     *  @param height height of the LR frames
+     */
+    SRFrameStages(SRModel srModel, int width, int height) {
+        this(srModel, width, height, 1);
+    }
+
+    /** @param batchSize frames per interpreter invocation, see chooseBatchSize() */
+    SRFrameStages(SRModel srModel, int width, int height, int batchSize) {
+        this.srModel = srModel;
+        this.lrWidth = width;
+        this.lrHeight = height;
+        this.batchSize = batchSize;
+
+        // The whole batch of frames is one interpreter invocation
+        srModel.resizeInput(new int[]{batchSize, height, width, 3});
+        scale = srModel.getOutputShape()[1] / height;
+        arena = srModel.getArena(SLOTS);
+        unconverted = new AtomicInteger[arena.getSlotCount()];
+        for (int i = 0; i < unconverted.length; i++)
+            unconverted[i] = new AtomicInteger();
+    }
+
+
+    /** @brief  Input and output tensor bytes of one frame
+     *  @date   26/10/17
+     *  Resizes the interpreter to a single frame of the given size.
+     */
+    static long frameBytes(SRModel srModel, int width, int height) {
+        srModel.resizeInput(new int[]{1, height, width, 3});
+        return (long) srModel.interpreter.getInputTensor(0).numBytes()
+                + srModel.interpreter.getOutputTensor(0).numBytes();
+    }
+
+    /** @brief  Largest batch size whose memory fits the budget
+     *  @date   26/10/17
+     *  Each of the SLOTS arena slots holds a batch, and the interpreter
+     *  about ACTIVATION_COPIES more for its tensors and activations.
+     *  @param  frameBytes  input + output tensor bytes of one frame, see frameBytes()
+     *  @return batch size in [1, MAX_BATCH]
+     */
+    static int chooseBatchSize(long frameBytes, long budgetBytes) {
+        long batchBytes = frameBytes * (SLOTS + ACTIVATION_COPIES);
+        return (int) Math.max(1, Math.min(MAX_BATCH, budgetBytes / batchBytes));
+    }
+
+
+    /** @brief  Append the prepare, infer and convert stages to the pipeline
+     *  @date   26/10/17
+     */
+    public void addTo(FramePipeline pipeline, int convertThreads) {
+        if (batchSize == 1) {
+            pipeline.addStage("prepare", 1, this::prepare);
+            pipeline.addStage("infer", 1, this::infer);
+        }
+        else {
+            pipeline.addBatchStage("prepare", batchSize, this::prepare);
+            pipeline.addBatchStage("infer", batchSize, this::infer);
+        }
+        pipeline.addStage("convert", convertThreads, this::convert);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    private Frame prepare(Frame frame) throws IOException {
+        List<Frame> frames = new ArrayList<>(1);
+        frames.add(frame);
+        return prepare(frames).get(0);
+    }
+
+    /** @brief  Write up to batchSize frames into the parts of one slot */
+    private List<Frame> prepare(List<Frame> frames) throws IOException {
+        for (Frame frame : frames) {
+            if (frame.width != lrWidth || frame.height != lrHeight)
+                throw new IOException(String.format("Frame %d is %dx%d, expected %dx%d",
+                        frame.index, frame.width, frame.height, lrWidth, lrHeight));
+        }
+
+        TensorArena.Slot slot;
+        try {
+            slot = arena.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a tensor slot", e);
+        }
+        unconverted[slot.index].set(frames.size());
+
+        List<Frame> prepared = new ArrayList<>(frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            TensorArena.Slot part = slot.part(i, batchSize);
+            srModel.writeInput(frame.pixels, frame.width, frame.height, part, frame.width, frame.height);
+            prepared.add(new Frame(frame.index, frame.width, frame.height, null, part));
+        }
+        return prepared;
+    }
+
+    private Frame infer(Frame frame) {
+        srModel.run(frame.slot);
+
+        return new Frame(frame.index, frame.width * scale, frame.height * scale, null, frame.slot);
+    }
+
+    /** @brief  One invocation for the frames of a slot */
+    private List<Frame> infer(List<Frame> frames) {
+        srModel.run(frames.get(0).slot.whole);
+
+        List<Frame> results = new ArrayList<>(frames.size());
+        for (Frame frame : frames)
+            results.add(new Frame(frame.index, frame.width * scale, frame.height * scale, null, frame.slot));
+        return results;
+    }
+
+    private Frame convert(Frame frame) {
+        int[] pixels = new int[frame.width * frame.height];
+        srModel.readOutput(frame.slot, frame.width, pixels, frame.width, frame.height);
+        if (unconverted[frame.slot.index].decrementAndGet() == 0)
+            arena.release(frame.slot.whole);
+
+        return new Frame(frame.index, frame.width, frame.height, pixels);
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.mobedsr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** @brief  Per-stage latency histograms of SR runs
+ *  @date   26/10/17
+ *  Stages are named by the code that times them, e.g. "interpreter_init",
+ *  "inference" or "video_decode". Each stage has a histogram of steady
+ *  state samples and one of warmup samples (first invocations, delegate
+ *  compilation), so cold starts do not skew the percentiles. Timers are
+ *  System.nanoTime() deltas; recording is lock-free. Labels such as the
+ *  device and the delegate are exported with the snapshot, to compare runs.
+ */
+public class SRMetrics {
+    private static final SRMetrics instance = new SRMetrics();
+
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final Map<String, String> labels = new ConcurrentHashMap<>();
+
+
+    private static final class Stage {
+        final LatencyHistogram steady = new LatencyHistogram();
+        final LatencyHistogram warmup = new LatencyHistogram();
+    }
+
+
+    /** @brief  Summaries of one stage
+     *  @date   26/10/17
+     */
+    public static final class StageSummary {
+        public final String name;
+        public final LatencyHistogram.Summary steady;
+        public final LatencyHistogram.Summary warmup;
+
+        StageSummary(String name, LatencyHistogram.Summary steady, LatencyHistogram.Summary warmup) {
+            this.name = name;
+            this.steady = steady;
+            this.warmup = warmup;
+        }
+
+        @Override
+        public String toString() {
+            String line = name + ": " + steady;
+            if (warmup.count > 0)
+                line += String.format(" (warmup n=%d mean=%.2fms)", warmup.count, warmup.meanMs);
+            return line;
+        }
+    }
+
+
+    /** @brief  Point-in-time copy of all stages and labels
+     *  @date   26/10/17
+     */
+    public static final class Snapshot {
+        public final Map<String, String> labels;
+        public final List<StageSummary> stages;
+
+        Snapshot(Map<String, String> labels, List<StageSummary> stages) {
+            this.labels = Collections.unmodifiableMap(labels);
+            this.stages = Collections.unmodifiableList(stages);
+        }
+
+        public StageSummary getStage(String name) {
+            for (StageSummary stage : stages)
+                if (stage.name.equals(name))
+                    return stage;
+            return null;
+        }
+
+        /** @return one line per stage, for logcat */
+        public List<String> toLogLines() {
+            List<String> lines = new ArrayList<>();
+            if (!labels.isEmpty())
+                lines.add("labels: " + labels);
+            for (StageSummary stage : stages)
+                lines.add(stage.toString());
+            return lines;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"labels\":{");
+            String separator = "";
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                json.append(separator).append(quote(label.getKey())).append(':').append(quote(label.getValue()));
+                separator = ",";
+            }
+            json.append("},\"stages\":[");
+            separator = "";
+            for (StageSummary stage : stages) {
+                json.append(separator).append("{\"name\":").append(quote(stage.name))
+                        .append(",\"steady\":").append(stage.steady.toJson())
+                        .append(",\"warmup\":").append(stage.warmup.toJson()).append('}');
+                separator = ",";
+            }
+            return json.append("]}").toString();
+        }
+
+        /** @brief  Write the JSON snapshot to a file, e.g. in getFilesDir() */
+        public void writeJson(File file) throws IOException {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+                writer.write(toJson());
+            }
+        }
+
+        private static String quote(String value) {
+            StringBuilder quoted = new StringBuilder("\"");
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\')
+                    quoted.append('\\').append(c);
+                else if (c < 0x20)
+                    quoted.append(String.format("\\u%04x", (int) c));
+                else
+                    quoted.append(c);
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+
+    /** @return process-wide metrics shared by the model, the activities and the pipeline */
+    public static SRMetrics getInstance() {
+        return instance;
+    }
+
+
+    /** @return start of a timed section, for record() */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /** @brief  Record the time since startNanos as a steady state sample
+     *  @date   26/10/17
+     *  @return end of the section, to chain consecutive sections
+     */
+    public long record(String stage, long startNanos) {
+        return record(stage, startNanos, false);
+    }
+
+    /** @param warmup true for first invocations and other one-off costs */
+    public long record(String stage, long startNanos, boolean warmup) {
+        long end = System.nanoTime();
+        recordNanos(stage, end - startNanos, warmup);
+        return end;
+    }
+
+    public void recordNanos(String stage, long nanos, boolean warmup) {
+        Stage s = stages.get(stage);
+        if (s == null) {
+            stages.putIfAbsent(stage, new Stage());
+            s = stages.get(stage);
+        }
+        (warmup ? s.warmup : s.steady).record(nanos);
+    }
+
+
+    /** @brief  Attach a label to the exported snapshots, e.g. "delegate" -> "gpu"
+     *  @date   26/10/17
+     */
+    public void setLabel(String key, String value) {
+        labels.put(key, value);
+    }
+
+    public Snapshot snapshot() {
+        List<StageSummary> summaries = new ArrayList<>();
+        for (Map.Entry<String, Stage> entry : new TreeMap<>(stages).entrySet())
+            summaries.add(new StageSummary(entry.getKey(),
+                    entry.getValue().steady.summarize(), entry.getValue().warmup.summarize()));
+        return new Snapshot(new TreeMap<>(labels), summaries);
+    }
+
+    /** @brief  Drop all samples, keeping the labels
+     *  @date   26/10/17
+     */
+    public void reset() {
+        stages.clear();
+    }
+}
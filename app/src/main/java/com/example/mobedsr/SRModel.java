@@ -1,114 +1,329 @@
 package com.example.mobedsr;
 
-import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.CompatibilityList;
 import org.tensorflow.lite.gpu.GpuDelegate;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
-import org.tensorflow.lite.support.image.ImageProcessor;
+import org.tensorflow.lite.nnapi.NnApiDelegate;
 import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeOp;
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
 
 
 /** @brief  Super Resolution Model class
  *  @date   23/01/27
  */
 public class SRModel {
-    private boolean useGpu;
+    private Accelerator accelerator;
+    private int numThreads;
+    private String modelName;
 
     public Interpreter interpreter;
     private Interpreter.Options options;
     private GpuDelegate gpuDelegate;
-    private AssetManager assetManager;
+    private NnApiDelegate nnApiDelegate;
+    private ModelRegistry registry;
+    // Mapped model file, shared with the other interpreters of the model
+    private ModelRegistry.Model model;
+    private TensorArena arena;
+    // ARGB <-> tensor conversion in the tensors' types
+    private TensorIO tensorIO;
+
+    // Latency of the first invocation vs. the accumulated later ones
+    private long coldRunNanos;
+    private long warmRunNanos;
+    private int warmRuns;
+    private boolean warm;
+
+    static final String MODEL_NAME = "evsrnet_x4.tflite";
+
+    SRModel(ModelRegistry registry, boolean useGpu) throws IOException {
+        this(registry, MODEL_NAME, useGpu, -1);
+    }
 
-    private final String MODEL_NAME = "evsrnet_x4.tflite";
+    /** @param numThreads number of CPU threads, or -1 to keep the TF Lite default */
+    SRModel(ModelRegistry registry, String modelName, boolean useGpu, int numThreads) throws IOException {
+        this(registry, modelName, useGpu ? Accelerator.GPU : Accelerator.CPU, numThreads);
+    }
 
-    SRModel(AssetManager assetManager, boolean useGpu) throws IOException {
+    /** @param numThreads number of CPU threads, or -1 to keep the TF Lite default; unused by delegates */
+    SRModel(ModelRegistry registry, String modelName, Accelerator accelerator, int numThreads) throws IOException {
         interpreter = null;
         gpuDelegate = null;
+        nnApiDelegate = null;
 
-        this.assetManager = assetManager;
-        this.useGpu = useGpu;
+        this.registry = registry;
+        this.modelName = modelName;
+        this.accelerator = accelerator;
+        this.numThreads = numThreads;
 
         // Initialize the TF Lite interpreter
         init();
     }
 
     private void init() throws IOException {
+        long startTime = SRMetrics.now();
         options = new Interpreter.Options();
+        if (numThreads > 0 && accelerator.usesThreads())
+            options.setNumThreads(numThreads);
+
+        switch (accelerator) {
+            case CPU:
+                options.setUseXNNPACK(false);
+                break;
+            case XNNPACK:
+                options.setUseXNNPACK(true);
+                break;
+            case NNAPI:
+                nnApiDelegate = new NnApiDelegate();
+                options.addDelegate(nnApiDelegate);
+                break;
+            case GPU:
+                // Set gpu delegate
+                CompatibilityList compatList = new CompatibilityList();
+                GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
+                gpuDelegate = new GpuDelegate(delegateOptions);
+                options.addDelegate(gpuDelegate);
+                break;
+        }
 
-        // Set gpu delegate
-        if (useGpu) {
-            CompatibilityList compatList = new CompatibilityList();
-            GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
-            gpuDelegate = new GpuDelegate(delegateOptions);
-            options.addDelegate(gpuDelegate);
+        // Set TF Lite interpreter on the shared mapping of the model
+        try {
+            model = registry.acquire(modelName);
+            interpreter = new Interpreter(model.buffer, options);
+            tensorIO = new TensorIO(interpreter);
+        } catch (IOException | RuntimeException e) {
+            // Corrupt model, or the delegate rejected it: do not leak the delegate or the model
+            close();
+            throw e;
         }
+        SRMetrics.getInstance().record(accelerator == Accelerator.CPU ? "interpreter_init"
+                : "interpreter_init_" + accelerator.name().toLowerCase(Locale.US), startTime, true);
+    }
 
-        // Set TF Lite interpreter
-        interpreter = new Interpreter(loadModelFile(), options);
+    /** @return true if the GPU delegate can run on this device */
+    static boolean isGpuSupported() {
+        CompatibilityList compatList = new CompatibilityList();
+        try {
+            return compatList.isDelegateSupportedOnThisDevice();
+        } finally {
+            compatList.close();
+        }
     }
 
-    /** @brief  Load .tflite model file to ByteBuffer
-     *  @date   23/01/25
+    public void run(Object a, Object b) {
+        long startTime = System.nanoTime();
+        interpreter.run(a, b);
+        long elapsed = System.nanoTime() - startTime;
+        SRMetrics.getInstance().recordNanos("inference", elapsed, !warm);
+
+        if (!warm) {
+            coldRunNanos = elapsed;
+            warm = true;
+        }
+        else {
+            warmRunNanos += elapsed;
+            warmRuns += 1;
+        }
+    }
+
+
+    /** @brief  Run the interpreter on the buffers of an arena slot
+     *  @date   26/10/17
      */
-    private ByteBuffer loadModelFile() throws IOException {
-        AssetFileDescriptor assetFileDescriptor = assetManager.openFd(MODEL_NAME);
-        FileInputStream fileInputStream = new FileInputStream(assetFileDescriptor.getFileDescriptor());
+    public void run(TensorArena.Slot slot) {
+        slot.input.rewind();
+        slot.output.rewind();
+        run(slot.input, slot.output);
+    }
 
-        FileChannel fileChannel = fileInputStream.getChannel();
-        long startOffset = assetFileDescriptor.getStartOffset();
-        long declaredLength = assetFileDescriptor.getDeclaredLength();
 
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    /** @brief  Double-buffered tensor arena sized from the current input/output tensors
+     *  @date   26/10/17
+     */
+    public TensorArena getArena() {
+        return getArena(TensorArena.DOUBLE_BUFFERED);
     }
 
-    public void run(Object a, Object b) {
-        interpreter.run(a, b);
+    /** @brief  Tensor arena with at least the given number of slots
+     *  @date   26/10/17
+     *  The arena is reused until the tensor sizes change, e.g. by resizeInput().
+     */
+    public synchronized TensorArena getArena(int slots) {
+        int inputBytes = interpreter.getInputTensor(0).numBytes();
+        int outputBytes = interpreter.getOutputTensor(0).numBytes();
+        if (arena == null || !arena.fits(inputBytes, outputBytes) || arena.getSlotCount() < slots)
+            arena = new TensorArena(inputBytes, outputBytes, slots);
+        return arena;
     }
 
 
-    /** @brief  Prepare the input tensor from low resolution image
-     *  @date   23/01/25
+    /** @brief  Resize the input tensor and reallocate the interpreter tensors
+     *  @date   26/10/17
+     *  @param  shape new input shape, e.g. {1, height, width, 3}
+     */
+    public void resizeInput(int[] shape) {
+        if (Arrays.equals(interpreter.getInputTensor(0).shape(), shape))
+            return;
+        interpreter.resizeInput(0, shape);
+        interpreter.allocateTensors();
+    }
+
+
+    /** @brief  Release the interpreter, its delegate and its reference to the model
+     *  @date   26/10/17
      */
-    public TensorImage prepareInputTensor(Bitmap bitmap_lr) {
-        TensorImage inputImage = TensorImage.fromBitmap(bitmap_lr);
-        int height = bitmap_lr.getHeight();
-        int width = bitmap_lr.getWidth();
+    public void close() {
+        if (interpreter != null) {
+            interpreter.close();
+            interpreter = null;
+        }
+        arena = null;
+        if (gpuDelegate != null) {
+            gpuDelegate.close();
+            gpuDelegate = null;
+        }
+        if (nnApiDelegate != null) {
+            nnApiDelegate.close();
+            nnApiDelegate = null;
+        }
+        // After the interpreter, which reads the mapping until it is closed
+        if (model != null) {
+            registry.release(model);
+            model = null;
+        }
+    }
 
-        ImageProcessor imageProcessor = new ImageProcessor.Builder()
-                .add(new ResizeOp(height, width, ResizeOp.ResizeMethod.NEAREST_NEIGHBOR))
-                .add(new NormalizeOp(0.0f, 255.0f))
-                .build();
-        inputImage = imageProcessor.process(inputImage);
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public long getColdRunNanos() {
+        return coldRunNanos;
+    }
 
-        return inputImage;
+    /** @brief  Return the warm latency accumulated since the last call and reset it
+     *  @date   26/10/17
+     *  @return {total nanos, number of runs}
+     */
+    public long[] takeWarmRuns() {
+        long[] runs = new long[]{warmRunNanos, warmRuns};
+        warmRunNanos = 0;
+        warmRuns = 0;
+        return runs;
     }
 
 
     /** @brief  Prepare the output tensor for super resolution
      *  @date   23/01/25
+     *  Shape and data type follow the interpreter's output tensor.
      */
     public TensorImage prepareOutputTensor() {
-        TensorImage srImage = new TensorImage(DataType.FLOAT32);
-//        int[] srShape = new int[]{1080, 1920, 3};
-        int[] srShape = new int[]{1920, 1080, 3};
-        srImage.load(TensorBuffer.createFixedSize(srShape, DataType.FLOAT32));
+        Tensor output = interpreter.getOutputTensor(0);
+        TensorImage srImage = new TensorImage(output.dataType());
+        int[] shape = output.shape();
+        int[] srShape = new int[]{shape[1], shape[2], shape[3]};
+        srImage.load(TensorBuffer.createFixedSize(srShape, output.dataType()));
 
         return srImage;
     }
 
 
+    /** @brief  Super resolve a whole image of any size up to the input shape
+     *  @date   26/10/17
+     *  The image is edge-padded to the current input shape (e.g. a shape
+     *  bucket of SRModelPool) and the SR output is cropped back.
+     *  @param pixels   ARGB pixels of width * height
+     *  @param srPixels ARGB output of (width * scale) * (height * scale)
+     */
+    public void superResolve(int[] pixels, int width, int height, int[] srPixels) throws InterruptedException {
+        int[] inputShape = getInputShape();
+        if (width > inputShape[2] || height > inputShape[1])
+            throw new IllegalArgumentException(String.format("%dx%d does not fit the input shape %s",
+                    width, height, Arrays.toString(inputShape)));
+        int scale = getScale();
+
+        TensorArena arena = getArena();
+        TensorArena.Slot slot = arena.acquire();
+        try {
+            SRMetrics metrics = SRMetrics.getInstance();
+            long startTime = SRMetrics.now();
+            writeInput(pixels, width, height, slot, inputShape[2], inputShape[1]);
+            metrics.record("tensor_prep", startTime);
+
+            run(slot);
+
+            startTime = SRMetrics.now();
+            readOutput(slot, inputShape[2] * scale, srPixels, width * scale, height * scale);
+            metrics.record("output_convert", startTime);
+        } finally {
+            arena.release(slot);
+        }
+    }
+
+
+    /** @brief  Write ARGB pixels to the input buffer of a slot, see TensorIO.writeInput()
+     *  @date   26/10/17
+     */
+    public void writeInput(int[] pixels, int width, int height, TensorArena.Slot slot,
+                           int tensorWidth, int tensorHeight) {
+        tensorIO.writeInput(pixels, width, height, slot, tensorWidth, tensorHeight);
+    }
+
+    /** @brief  Read a region of a slot's output buffer as ARGB, see TensorIO.readOutput()
+     *  @date   26/10/17
+     */
+    public void readOutput(TensorArena.Slot slot, int tensorWidth, int[] srPixels, int width, int height) {
+        tensorIO.readOutput(slot, tensorWidth, srPixels, width, height);
+    }
+
+
+    /** @return quantization of the input tensor, or null if it is FLOAT32 */
+    public Quantization getInputQuantization() {
+        return tensorIO.getInputQuantization();
+    }
+
+    /** @return quantization of the output tensor, or null if it is FLOAT32 */
+    public Quantization getOutputQuantization() {
+        return tensorIO.getOutputQuantization();
+    }
+
+
+    /** @return input shape of the interpreter, {1, height, width, 3} */
+    public int[] getInputShape() {
+        return interpreter.getInputTensor(0).shape();
+    }
+
+    /** @return output shape of the interpreter, {1, height * scale, width * scale, 3} */
+    public int[] getOutputShape() {
+        return interpreter.getOutputTensor(0).shape();
+    }
+
+    /** @return upscaling factor, from the current input and output shapes */
+    public int getScale() {
+        return getOutputShape()[1] / getInputShape()[1];
+    }
+
+    /** @brief  Estimate of the native memory held by the interpreter
+     *  @date   26/10/17
+     *  Input and output tensors, twice for the intermediate activations
+     *  (not visible from Java), plus the tensor arena.
+     */
+    public synchronized long getNativeBytes() {
+        long tensors = interpreter.getInputTensor(0).numBytes() + interpreter.getOutputTensor(0).numBytes();
+        long arenaBytes = (arena == null) ? 0
+                : (long) arena.getSlotCount() * (arena.getInputBytes() + arena.getOutputBytes());
+        return 2 * tensors + arenaBytes;
+    }
+
+
     /** @brief  Convert tensor to bitmap image
      *  @date   23/01/25
      *  @param outputTensor super resolutioned image
@@ -117,24 +332,34 @@ public class SRModel {
         ByteBuffer srOut = outputTensor.getBuffer();
         srOut.rewind();
 
-        int height = outputTensor.getHeight();
-        int width = outputTensor.getWidth();
+        return tensorToImage(srOut.asFloatBuffer(), outputTensor.getWidth(), outputTensor.getHeight());
+    }
 
-        Bitmap bmpImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        int[] pixels = new int[width * height];
 
-        for (int i = 0; i < width * height; i++) {
-            int a = 0xFF;
-            float r = srOut.getFloat() * 255.0f;
-            float g = srOut.getFloat() * 255.0f;
-            float b = srOut.getFloat() * 255.0f;
+    /** @brief  Convert a RGB float tensor of the given size to bitmap image
+     *  @date   26/10/17
+     *  @param srOut  super resolutioned image, e.g. the output of TiledSR
+     */
+    public Bitmap tensorToImage(FloatBuffer srOut, int width, int height) {
+        return tensorToImage(srOut, width, height, new int[width * height],
+                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
 
-            pixels[i] = a << 24 | ((int) r << 16) | ((int) g << 8) | ((int) b);
-        }
 
-        bmpImage.setPixels(pixels, 0, width, 0, 0, width, height);
+    /** @brief  Convert a RGB float tensor to bitmap image without allocating
+     *  @date   26/10/17
+     *  @param srOut  super resolutioned image
+     *  @param pixels reused pixel array of at least width * height
+     *  @param target reused mutable ARGB_8888 bitmap of width x height
+     *  @return target
+     */
+    public Bitmap tensorToImage(FloatBuffer srOut, int width, int height, int[] pixels, Bitmap target) {
+        long startTime = SRMetrics.now();
+        TensorConverter.floatToArgb(srOut, pixels, width, height);
+        target.setPixels(pixels, 0, width, 0, 0, width, height);
+        SRMetrics.getInstance().record("output_convert", startTime);
 
-        return bmpImage;
+        return target;
     }
 
 
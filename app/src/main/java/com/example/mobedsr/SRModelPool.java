@@ -0,0 +1,390 @@
+package com.example.mobedsr;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/** @brief  Process-wide pool of warmed-up SRModel interpreters
+ *  @date   26/10/17
+ *  Interpreters are keyed by (model file, accelerator, thread count, input shape).
+ *  Images of arbitrary size map to shape buckets (see Key.forImage), so
+ *  mixed resolutions reuse already resized interpreters instead of
+ *  reallocating the tensors on every image. Idle interpreters are kept
+ *  while their estimated native memory fits MAX_IDLE_BYTES, closing the
+ *  least recently released one first, and are dropped on memory pressure.
+ *  Thread-bound interpreters (GPU) are pinned to the thread that built
+ *  them: only that thread is handed them again, and they are closed on it
+ *  unless it has finished.
+ */
+public class SRModelPool implements ComponentCallbacks2 {
+    private static final String TAG = "MobedSR";
+    private static final long MAX_IDLE_BYTES = 128L << 20;
+    // Input sizes are rounded up to a multiple of SHAPE_BUCKET pixels
+    static final int SHAPE_BUCKET = 32;
+
+    private static SRModelPool instance;
+
+    private final ModelRegistry registry;
+
+    // Idle interpreters per key, and all idle interpreters in release order
+    private final Map<Key, ArrayDeque<SRModel>> idleModels = new HashMap<>();
+    private final LinkedHashMap<SRModel, Key> idleOrder = new LinkedHashMap<>();
+    private final Map<SRModel, Key> leasedModels = new HashMap<>();
+    private long idleBytes;
+    // Building thread of each thread-bound interpreter, and those evicted while it was busy
+    private final Map<SRModel, Thread> owners = new HashMap<>();
+    private final List<SRModel> pendingClose = new ArrayList<>();
+
+    // Cold: interpreter construction + first invocation, warm: invocations on a reused interpreter
+    private long coldNanos;
+    private int coldCount;
+    private long warmNanos;
+    private int warmCount;
+
+
+    /** @brief  Key of pooled interpreters
+     *  @date   26/10/17
+     */
+    public static final class Key {
+        final String modelName;
+        final Accelerator accelerator;
+        final int numThreads;
+        final int[] inputShape;
+
+        /** @param inputShape input shape to resize to, or null to keep the model's own */
+        public Key(String modelName, boolean useGpu, int numThreads, int[] inputShape) {
+            this(modelName, useGpu ? Accelerator.GPU : Accelerator.CPU, numThreads, inputShape);
+        }
+
+        public Key(String modelName, Accelerator accelerator, int numThreads, int[] inputShape) {
+            this.modelName = modelName;
+            this.accelerator = accelerator;
+            // Delegates ignore the thread count, do not let it split the pool
+            this.numThreads = accelerator.usesThreads() ? numThreads : -1;
+            this.inputShape = inputShape == null ? null : inputShape.clone();
+        }
+
+        /** @brief  Key of an interpreter for images of the given size
+         *  @date   26/10/17
+         *  The input shape is the size rounded up to the shape bucket; the
+         *  image is edge-padded to it, see SRModel.superResolve().
+         */
+        public static Key forImage(String modelName, boolean useGpu, int numThreads, int width, int height) {
+            return forImage(modelName, useGpu ? Accelerator.GPU : Accelerator.CPU, numThreads, width, height);
+        }
+
+        public static Key forImage(String modelName, Accelerator accelerator, int numThreads, int width, int height) {
+            return new Key(modelName, accelerator, numThreads,
+                    new int[]{1, bucket(height), bucket(width), 3});
+        }
+
+        /** @brief  Key of the tuned configuration of a profile
+         *  @date   26/10/17
+         */
+        public static Key forProfile(TuningProfile profile, int[] inputShape) {
+            return new Key(profile.modelFile, profile.accelerator, profile.numThreads, inputShape);
+        }
+
+        static int bucket(int size) {
+            return (size + SHAPE_BUCKET - 1) / SHAPE_BUCKET * SHAPE_BUCKET;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return accelerator == key.accelerator && numThreads == key.numThreads
+                    && modelName.equals(key.modelName) && Arrays.equals(inputShape, key.inputShape);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = modelName.hashCode();
+            result = 31 * result + accelerator.hashCode();
+            result = 31 * result + numThreads;
+            result = 31 * result + Arrays.hashCode(inputShape);
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format("%s/%s/%d/%s", modelName, accelerator.name().toLowerCase(Locale.US),
+                    numThreads, Arrays.toString(inputShape));
+        }
+    }
+
+
+    private SRModelPool(Context context) {
+        registry = ModelRegistry.getInstance(context);
+    }
+
+    public static synchronized SRModelPool getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new SRModelPool(appContext);
+            appContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+
+    /** @brief  Hand out a warmed-up interpreter for the key, building one if none is idle
+     *  @date   26/10/17
+     *  A new interpreter is built and warmed up outside the pool's lock, so
+     *  other threads keep acquiring and releasing meanwhile.
+     *  @param  key configuration of the interpreter
+     */
+    public SRModel acquire(Key key) throws IOException {
+        synchronized (this) {
+            closePending();
+            SRModel srModel = pollIdle(key);
+            if (srModel != null) {
+                leasedModels.put(srModel, key);
+                return srModel;
+            }
+        }
+
+        SRModel srModel = create(key);
+        synchronized (this) {
+            if (key.accelerator.isThreadBound())
+                owners.put(srModel, Thread.currentThread());
+            leasedModels.put(srModel, key);
+        }
+        return srModel;
+    }
+
+    /** @brief  Take an idle interpreter of the key that the calling thread may run
+     *  @date   26/10/17
+     *  @return the interpreter, or null if there is none
+     */
+    private SRModel pollIdle(Key key) {
+        ArrayDeque<SRModel> models = idleModels.get(key);
+        if (models == null)
+            return null;
+
+        for (Iterator<SRModel> it = models.iterator(); it.hasNext(); ) {
+            SRModel srModel = it.next();
+            Thread owner = owners.get(srModel);
+            if (owner != null && owner != Thread.currentThread())
+                continue;
+            it.remove();
+            if (models.isEmpty())
+                idleModels.remove(key);
+            idleOrder.remove(srModel);
+            idleBytes -= srModel.getNativeBytes();
+            return srModel;
+        }
+        return null;
+    }
+
+
+    /** @brief  Build and warm up an interpreter of the key outside the pool
+     *  @date   26/10/17
+     *  For callers that own a thread-bound interpreter for the life of a
+     *  worker thread, e.g. SRBackend; they close it themselves on that
+     *  thread. Counted as a cold start.
+     */
+    SRModel create(Key key) throws IOException {
+        long startTime = System.nanoTime();
+        SRModel srModel = build(key);
+        long spentNanos = System.nanoTime() - startTime;
+        Log.d(TAG, String.format("Cold start %s: %dms", key, srModel.getColdRunNanos() / 1000000));
+
+        synchronized (this) {
+            coldNanos += spentNanos;
+            coldCount += 1;
+        }
+        return srModel;
+    }
+
+    /** @brief  New interpreter of the key, resized and warmed up; closed again if either fails
+     *  @date   26/10/17
+     */
+    private SRModel build(Key key) throws IOException {
+        SRModel srModel = new SRModel(registry, key.modelName, key.accelerator, key.numThreads);
+        try {
+            if (key.inputShape != null)
+                srModel.resizeInput(key.inputShape);
+            warmUp(srModel);
+        } catch (RuntimeException e) {
+            srModel.close();
+            throw e;
+        }
+        return srModel;
+    }
+
+
+    /** @brief  Take back an interpreter handed out by acquire()
+     *  @date   26/10/17
+     */
+    public synchronized void release(SRModel srModel) {
+        closePending();
+        Key key = leasedModels.remove(srModel);
+        if (key == null)
+            return;
+
+        // The caller may have resized the interpreter, key it by its current shape
+        if (key.inputShape != null && !Arrays.equals(key.inputShape, srModel.getInputShape()))
+            key = new Key(key.modelName, key.accelerator, key.numThreads, srModel.getInputShape());
+
+        long[] runs = srModel.takeWarmRuns();
+        warmNanos += runs[0];
+        warmCount += (int) runs[1];
+
+        ArrayDeque<SRModel> models = idleModels.get(key);
+        if (models == null) {
+            models = new ArrayDeque<>();
+            idleModels.put(key, models);
+        }
+        models.addFirst(srModel);
+        idleOrder.put(srModel, key);
+        idleBytes += srModel.getNativeBytes();
+
+        // Close the least recently released interpreters over the budget
+        Iterator<Map.Entry<SRModel, Key>> it = idleOrder.entrySet().iterator();
+        while (idleBytes > MAX_IDLE_BYTES && it.hasNext()) {
+            Map.Entry<SRModel, Key> eldest = it.next();
+            it.remove();
+            evict(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+
+    /** @brief  Close every idle interpreter and its delegate
+     *  @date   26/10/17
+     */
+    public synchronized void evictIdle() {
+        for (Map.Entry<SRModel, Key> entry : idleOrder.entrySet())
+            evict(entry.getKey(), entry.getValue());
+        idleOrder.clear();
+    }
+
+    /** @brief  Close the idle interpreters pinned to the calling thread, before it finishes
+     *  @date   26/10/17
+     */
+    public synchronized void evictOwned() {
+        closePending();
+        for (Iterator<Map.Entry<SRModel, Key>> it = idleOrder.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SRModel, Key> entry = it.next();
+            if (owners.get(entry.getKey()) == Thread.currentThread()) {
+                it.remove();
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void evict(SRModel srModel, Key key) {
+        ArrayDeque<SRModel> models = idleModels.get(key);
+        if (models != null) {
+            models.remove(srModel);
+            if (models.isEmpty())
+                idleModels.remove(key);
+        }
+        idleBytes -= srModel.getNativeBytes();
+        close(srModel);
+        Log.d(TAG, "Evicted interpreter " + key);
+    }
+
+    /** @brief  Close an interpreter on its owner thread, or defer it to the owner's next call
+     *  @date   26/10/17
+     *  An interpreter whose owner has finished can never be closed on it, it is closed here.
+     */
+    private void close(SRModel srModel) {
+        Thread owner = owners.get(srModel);
+        if (owner != null && owner != Thread.currentThread() && owner.isAlive()) {
+            pendingClose.add(srModel);
+            return;
+        }
+        owners.remove(srModel);
+        srModel.close();
+    }
+
+    /** @brief  Close the deferred interpreters of the calling thread and the idle ones of finished threads
+     *  @date   26/10/17
+     */
+    private void closePending() {
+        for (Iterator<SRModel> it = pendingClose.iterator(); it.hasNext(); ) {
+            SRModel srModel = it.next();
+            Thread owner = owners.get(srModel);
+            if (owner == Thread.currentThread() || !owner.isAlive()) {
+                it.remove();
+                owners.remove(srModel);
+                srModel.close();
+            }
+        }
+
+        // Nothing can acquire these again
+        for (Iterator<Map.Entry<SRModel, Key>> it = idleOrder.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SRModel, Key> entry = it.next();
+            Thread owner = owners.get(entry.getKey());
+            if (owner != null && !owner.isAlive()) {
+                it.remove();
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+
+    /** @brief  Run one inference on zeroed buffers so that delegate compilation
+     *          and tensor allocation are not part of the first measured run
+     *  @date   26/10/17
+     */
+    private void warmUp(SRModel srModel) {
+        ByteBuffer input = ByteBuffer.allocateDirect(srModel.interpreter.getInputTensor(0).numBytes())
+                .order(ByteOrder.nativeOrder());
+        ByteBuffer output = ByteBuffer.allocateDirect(srModel.interpreter.getOutputTensor(0).numBytes())
+                .order(ByteOrder.nativeOrder());
+        srModel.run(input, output);
+    }
+
+
+    /** @return average cold start (construction + first run) in ms */
+    public synchronized double getColdLatencyMs() {
+        return coldCount == 0 ? 0 : coldNanos / 1e6 / coldCount;
+    }
+
+    /** @return average run on a warmed-up interpreter in ms */
+    public synchronized double getWarmLatencyMs() {
+        return warmCount == 0 ? 0 : warmNanos / 1e6 / warmCount;
+    }
+
+    public synchronized String getStats() {
+        return String.format("cold %.1fms (%d), warm %.1fms (%d), idle %d (%dMB)",
+                getColdLatencyMs(), coldCount, getWarmLatencyMs(), warmCount, idleOrder.size(), idleBytes >> 20);
+    }
+
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            evictIdle();
+    }
+
+    @Override
+    public void onLowMemory() {
+        evictIdle();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
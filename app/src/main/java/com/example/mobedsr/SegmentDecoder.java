@@ -0,0 +1,12 @@
+package com.example.mobedsr;
+
+import java.io.IOException;
+
+
+/** @brief  Decoder of one segment of a video, e.g. an FFmpeg session seeking to its start
+ *  @date   26/10/17
+ */
+public interface SegmentDecoder {
+    /** @return source of the frames of the segment, indexed from 0 */
+    FrameSource open(VideoSegment segment) throws IOException;
+}
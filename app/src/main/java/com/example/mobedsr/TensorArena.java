@@ -0,0 +1,133 @@
+package com.example.mobedsr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/** @brief  Preallocated input/output tensor buffers of an interpreter
+ *  @date   26/10/17
+ *  Holds a fixed number of slots, each a pair of direct, native-ordered
+ *  input and output buffers. With two slots the next frame is filled while
+ *  the current one runs; acquire() blocks while every slot is in use, which
+ *  also bounds the frames in flight. Nothing is allocated per frame.
+ *  A slot of a batched interpreter splits into per-frame views, see Slot.part().
+ */
+public class TensorArena {
+    public static final int DOUBLE_BUFFERED = 2;
+
+    private final int inputBytes;
+    private final int outputBytes;
+    private final Slot[] slots;
+    private final BlockingQueue<Slot> freeSlots;
+
+
+    /** @brief  One input/output buffer pair
+     *  @date   26/10/17
+     */
+    public static final class Slot {
+        public final int index;
+        public final ByteBuffer input;
+        public final ByteBuffer output;
+        // Float views of the buffers, for absolute gets / puts
+        public final FloatBuffer inputFloats;
+        public final FloatBuffer outputFloats;
+        // Slot owning the buffers: this one, or the slot a part() view was taken from
+        public final Slot whole;
+        private Slot[] parts;
+
+        Slot(int index, int inputBytes, int outputBytes) {
+            this(index, ByteBuffer.allocateDirect(inputBytes), ByteBuffer.allocateDirect(outputBytes), null);
+        }
+
+        private Slot(int index, ByteBuffer input, ByteBuffer output, Slot whole) {
+            this.index = index;
+            this.input = input.order(ByteOrder.nativeOrder());
+            this.output = output.order(ByteOrder.nativeOrder());
+            this.whole = (whole == null) ? this : whole;
+            inputFloats = this.input.asFloatBuffer();
+            outputFloats = this.output.asFloatBuffer();
+        }
+
+        /** @brief  View of the part-th of count equal parts of the buffers, e.g. one frame of a batch
+         *  @date   26/10/17
+         *  The views share the slot's memory and are created once per count.
+         *  Only the whole slot can be released.
+         */
+        public synchronized Slot part(int part, int count) {
+            if (count == 1)
+                return this;
+            if (input.capacity() % count != 0 || output.capacity() % count != 0)
+                throw new IllegalArgumentException("Buffers do not split into " + count + " parts");
+
+            if (parts == null || parts.length != count) {
+                parts = new Slot[count];
+                int inputPart = input.capacity() / count;
+                int outputPart = output.capacity() / count;
+                for (int i = 0; i < count; i++)
+                    parts[i] = new Slot(index, range(input, i * inputPart, inputPart),
+                            range(output, i * outputPart, outputPart), this);
+            }
+            return parts[part];
+        }
+
+        private static ByteBuffer range(ByteBuffer buffer, int offset, int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice();
+        }
+    }
+
+
+    public TensorArena(int inputBytes, int outputBytes, int slotCount) {
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+
+        slots = new Slot[slotCount];
+        freeSlots = new ArrayBlockingQueue<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot(i, inputBytes, outputBytes);
+            freeSlots.add(slots[i]);
+        }
+    }
+
+
+    /** @brief  Take a free slot, waiting while every slot is in use
+     *  @date   26/10/17
+     */
+    public Slot acquire() throws InterruptedException {
+        Slot slot = freeSlots.take();
+        slot.input.rewind();
+        slot.output.rewind();
+        return slot;
+    }
+
+    /** @brief  Return a slot taken by acquire()
+     *  @date   26/10/17
+     */
+    public void release(Slot slot) {
+        if (slot != slots[slot.index])
+            throw new IllegalArgumentException("Slot of another arena");
+        freeSlots.add(slot);
+    }
+
+    /** @return true when the buffers match the given tensor sizes */
+    public boolean fits(int inputBytes, int outputBytes) {
+        return this.inputBytes == inputBytes && this.outputBytes == outputBytes;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    public int getInputBytes() {
+        return inputBytes;
+    }
+
+    public int getOutputBytes() {
+        return outputBytes;
+    }
+}
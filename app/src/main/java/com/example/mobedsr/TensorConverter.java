@@ -0,0 +1,175 @@
+package com.example.mobedsr;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/** @brief  Conversion between packed ARGB pixels and RGB float tensors
+ *  @date   26/10/17
+ *  Pure Java over buffers so that it runs (and is benchmarked) off-device.
+ *  Channels are clamped to [0, 255] and rounded to the nearest integer.
+ */
+public class TensorConverter {
+    // Rows converted by one fork-join task
+    static final int ROWS_PER_TASK = 16;
+
+
+    /** @brief  Pack one RGB float pixel in [0, 1] to opaque ARGB
+     *  @date   26/10/17
+     */
+    static int packPixel(float r, float g, float b) {
+        return 0xFF000000 | (toChannel(r) << 16) | (toChannel(g) << 8) | toChannel(b);
+    }
+
+    static int toChannel(float value) {
+        // NaN becomes 0, overshoots saturate instead of wrapping around
+        int c = (int) (value * 255.0f + 0.5f);
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+
+    /** @brief  Convert ARGB pixels to a RGB float tensor normalized to [0, 1]
+     *  @date   26/10/17
+     *  @param  src ARGB pixels of width * height
+     *  @param  dst RGB float tensor, written from index 0
+     */
+    public static void argbToFloat(int[] src, FloatBuffer dst, int width, int height) {
+        int d = 0;
+        for (int i = 0; i < width * height; i++) {
+            int pixel = src[i];
+            dst.put(d++, ((pixel >> 16) & 0xFF) / 255.0f);
+            dst.put(d++, ((pixel >> 8) & 0xFF) / 255.0f);
+            dst.put(d++, (pixel & 0xFF) / 255.0f);
+        }
+    }
+
+
+    /** @brief  Convert ARGB pixels to a larger RGB float tensor, replicating the edge pixels
+     *  @date   26/10/17
+     *  Fused preprocessing: each source row is read once, normalized and
+     *  written with absolute puts, so the row chunks split across the pool
+     *  allocate no buffer views. The values are bit-identical to
+     *  NormalizeOp(0, 255) on the TensorImage of the pixels.
+     *  @param  src       ARGB pixels of width * height
+     *  @param  dst       RGB float tensor of dstWidth * dstHeight * 3, its position is not used
+     *  @param  pool      fork-join pool, or null to convert on the calling thread
+     */
+    public static void argbToFloat(int[] src, int width, int height, FloatBuffer dst, int dstWidth, int dstHeight,
+                                   ForkJoinPool pool) {
+        if (src.length < width * height || dst.limit() < dstWidth * dstHeight * 3)
+            throw new IllegalArgumentException("Buffer smaller than " + dstWidth + "x" + dstHeight);
+
+        forRows(dstHeight, pool, (rowStart, rowEnd) -> {
+            int d = rowStart * dstWidth * 3;
+            for (int y = rowStart; y < rowEnd; y++) {
+                int rowOffset = Math.min(y, height - 1) * width;
+                for (int x = 0; x < dstWidth; x++) {
+                    int pixel = src[rowOffset + Math.min(x, width - 1)];
+                    dst.put(d++, ((pixel >> 16) & 0xFF) / 255.0f);
+                    dst.put(d++, ((pixel >> 8) & 0xFF) / 255.0f);
+                    dst.put(d++, (pixel & 0xFF) / 255.0f);
+                }
+            }
+        });
+    }
+
+    public static void argbToFloat(int[] src, int width, int height, FloatBuffer dst, int dstWidth, int dstHeight) {
+        argbToFloat(src, width, height, dst, dstWidth, dstHeight, ForkJoinPool.commonPool());
+    }
+
+
+    /** @brief  Convert the top-left width x height region of a RGB float tensor to ARGB
+     *  @date   26/10/17
+     *  Rows are split across the pool, as by the unpadded conversion.
+     *  @param  src      RGB float tensor with rows of srcWidth pixels, read with absolute gets
+     *  @param  dst      ARGB pixels of width * height
+     *  @param  pool     fork-join pool, or null to convert on the calling thread
+     */
+    public static void floatToArgb(FloatBuffer src, int srcWidth, int[] dst, int width, int height,
+                                   ForkJoinPool pool) {
+        if (dst.length < width * height || srcWidth < width || src.limit() < srcWidth * height * 3)
+            throw new IllegalArgumentException("Buffer smaller than " + width + "x" + height);
+
+        forRows(height, pool, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int s = y * srcWidth * 3;
+                int d = y * width;
+                for (int x = 0; x < width; x++, s += 3)
+                    dst[d + x] = packPixel(src.get(s), src.get(s + 1), src.get(s + 2));
+            }
+        });
+    }
+
+    public static void floatToArgb(FloatBuffer src, int srcWidth, int[] dst, int width, int height) {
+        floatToArgb(src, srcWidth, dst, width, height, ForkJoinPool.commonPool());
+    }
+
+
+    /** @brief  Convert rows [rowStart, rowEnd) of a RGB float tensor to ARGB
+     *  @date   26/10/17
+     *  @param  src    RGB float tensor of width * height * 3, read with absolute gets
+     *  @param  dst    ARGB pixels of width * height
+     */
+    public static void floatToArgb(FloatBuffer src, int[] dst, int width, int rowStart, int rowEnd) {
+        int s = rowStart * width * 3;
+        int end = rowEnd * width;
+        for (int i = rowStart * width; i < end; i++, s += 3)
+            dst[i] = packPixel(src.get(s), src.get(s + 1), src.get(s + 2));
+    }
+
+
+    /** @brief  Convert a RGB float tensor to ARGB, splitting the rows across the pool
+     *  @date   26/10/17
+     *  @param  pool fork-join pool, or null to convert on the calling thread
+     */
+    public static void floatToArgb(FloatBuffer src, int[] dst, int width, int height, ForkJoinPool pool) {
+        floatToArgb(src, width, dst, width, height, pool);
+    }
+
+    public static void floatToArgb(FloatBuffer src, int[] dst, int width, int height) {
+        floatToArgb(src, dst, width, height, ForkJoinPool.commonPool());
+    }
+
+
+    /** @brief  Work on rows [rowStart, rowEnd), called once per chunk of rows */
+    interface RowRange {
+        void run(int rowStart, int rowEnd);
+    }
+
+    /** @brief  Split rows [0, height) into chunks of up to ROWS_PER_TASK across the pool
+     *  @date   26/10/17
+     *  @param  pool fork-join pool, or null to run all rows on the calling thread
+     */
+    static void forRows(int height, ForkJoinPool pool, RowRange rows) {
+        if (pool == null || height <= ROWS_PER_TASK)
+            rows.run(0, height);
+        else
+            pool.invoke(new RowTask(rows, 0, height));
+    }
+
+
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowRange rows;
+        private final int rowStart;
+        private final int rowEnd;
+
+        RowTask(RowRange rows, int rowStart, int rowEnd) {
+            this.rows = rows;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart <= ROWS_PER_TASK) {
+                rows.run(rowStart, rowEnd);
+                return;
+            }
+            int mid = (rowStart + rowEnd) >>> 1;
+            invokeAll(new RowTask(rows, rowStart, mid), new RowTask(rows, mid, rowEnd));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.mobedsr;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Conversion between ARGB pixels and the input/output tensors of an interpreter
+ *  @date   26/10/17
+ *  FLOAT32 tensors go through TensorConverter, 8-bit tensors through their
+ *  Quantization. Uses the TF Lite Java API only, so it is shared by
+ *  SRModel and the JVM batch runner of :cli.
+ */
+public final class TensorIO {
+    // Quantization of 8-bit input/output tensors, null for FLOAT32 tensors
+    private final Quantization inputQuantization;
+    private final Quantization outputQuantization;
+    // Pool the rows are converted on, null for the calling thread
+    private final ForkJoinPool pool;
+
+
+    public TensorIO(Interpreter interpreter) throws IOException {
+        this(quantizationOf(interpreter.getInputTensor(0)), quantizationOf(interpreter.getOutputTensor(0)));
+    }
+
+    /** @param inputQuantization  of an 8-bit input tensor, or null for FLOAT32
+     *  @param outputQuantization of an 8-bit output tensor, or null for FLOAT32
+     */
+    TensorIO(Quantization inputQuantization, Quantization outputQuantization) {
+        this(inputQuantization, outputQuantization, ForkJoinPool.commonPool());
+    }
+
+    /** @param pool fork-join pool of the conversions, or null to convert on the calling thread */
+    TensorIO(Quantization inputQuantization, Quantization outputQuantization, ForkJoinPool pool) {
+        this.inputQuantization = inputQuantization;
+        this.outputQuantization = outputQuantization;
+        this.pool = pool;
+    }
+
+
+    /** @brief  Read the quantization parameters of an 8-bit tensor
+     *  @date   26/10/17
+     *  @return null for FLOAT32 tensors (FP32 models and FP16 models with float I/O)
+     */
+    static Quantization quantizationOf(Tensor tensor) throws IOException {
+        DataType dataType = tensor.dataType();
+        if (dataType == DataType.FLOAT32)
+            return null;
+        if (dataType != DataType.UINT8 && dataType != DataType.INT8)
+            throw new IOException("Unsupported tensor type " + dataType);
+
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return new Quantization(params.getScale(), params.getZeroPoint(), dataType == DataType.INT8);
+    }
+
+
+    /** @brief  Write ARGB pixels to the input buffer of a slot in the input tensor's type
+     *  @date   26/10/17
+     *  The image is edge-padded to tensorWidth x tensorHeight. Rows are
+     *  converted in parallel on the common pool by default, UINT8 tensors take the
+     *  byte fast path of Quantization.
+     */
+    public void writeInput(int[] pixels, int width, int height, TensorArena.Slot slot,
+                           int tensorWidth, int tensorHeight) {
+        if (inputQuantization == null)
+            TensorConverter.argbToFloat(pixels, width, height, slot.inputFloats, tensorWidth, tensorHeight, pool);
+        else
+            inputQuantization.argbToQuantized(pixels, width, height, slot.input, tensorWidth, tensorHeight, pool);
+    }
+
+    /** @brief  Read the top-left width x height region of a slot's output buffer as ARGB
+     *  @date   26/10/17
+     *  @param  tensorWidth width of the output tensor rows
+     */
+    public void readOutput(TensorArena.Slot slot, int tensorWidth, int[] srPixels, int width, int height) {
+        if (outputQuantization == null)
+            TensorConverter.floatToArgb(slot.outputFloats, tensorWidth, srPixels, width, height, pool);
+        else
+            outputQuantization.quantizedToArgb(slot.output, tensorWidth, srPixels, width, height);
+    }
+
+
+    /** @return quantization of the input tensor, or null if it is FLOAT32 */
+    public Quantization getInputQuantization() {
+        return inputQuantization;
+    }
+
+    /** @return quantization of the output tensor, or null if it is FLOAT32 */
+    public Quantization getOutputQuantization() {
+        return outputQuantization;
+    }
+}
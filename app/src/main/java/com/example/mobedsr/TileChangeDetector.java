@@ -0,0 +1,120 @@
+package com.example.mobedsr;
+
+import java.util.Arrays;
+
+
+/** @brief  Decide which tiles of a video frame need super resolution again
+ *  @date   26/10/17
+ *  Each tile keeps a copy of the LR pixels its current SR output was
+ *  computed from. A tile is changed when the mean absolute difference of
+ *  the new pixels to that copy, per channel in 0..255, exceeds the
+ *  threshold; the sum stops at the first row over the limit, so changed
+ *  tiles are cheap to detect. Comparing against the reference rather than
+ *  the previous frame keeps slow drifts from accumulating below the
+ *  threshold. The whole tile input is compared, overlap included, since
+ *  the overlap is the context of the tile's owned output region.
+ *
+ *  A threshold of 0 reuses only bit-identical tiles, so the output is the
+ *  same as running every tile; higher thresholds trade quality for speed.
+ */
+public class TileChangeDetector {
+    public static final double DEFAULT_THRESHOLD = 1.0;
+
+    private final TileGrid grid;
+    private final double threshold;
+    // LR pixels of each tile at its last SR run, null before the first
+    private final int[][] references;
+
+    private long reusedTiles;
+    private long totalTiles;
+    private float[] reuseRatios = new float[64];
+    private int frames;
+
+
+    /** @param threshold mean absolute difference per channel up to which a tile is reused */
+    public TileChangeDetector(TileGrid grid, double threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Negative threshold");
+        this.grid = grid;
+        this.threshold = threshold;
+        this.references = new int[grid.getTiles().size()][];
+    }
+
+
+    /** @brief  Compare a frame to the references and take the changed tiles as new references
+     *  @date   26/10/17
+     *  The caller must super resolve the changed tiles of this frame.
+     *  @param  pixels ARGB pixels of the LR frame, of the grid's image size
+     *  @return changed flag per tile, by tile index
+     */
+    public boolean[] update(int[] pixels) {
+        boolean[] changed = new boolean[references.length];
+        int reused = 0;
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            int[] reference = references[tile.index];
+            if (reference != null && !differs(pixels, tile, reference)) {
+                reused += 1;
+                continue;
+            }
+            changed[tile.index] = true;
+            if (reference == null)
+                reference = references[tile.index] = new int[tile.width * tile.height];
+            copyTile(pixels, tile, reference);
+        }
+
+        reusedTiles += reused;
+        totalTiles += references.length;
+        if (frames == reuseRatios.length)
+            reuseRatios = Arrays.copyOf(reuseRatios, frames * 2);
+        reuseRatios[frames++] = (float) reused / references.length;
+        return changed;
+    }
+
+    private boolean differs(int[] pixels, TileGrid.Tile tile, int[] reference) {
+        int imageWidth = grid.getImageWidth();
+        long limit = (long) (threshold * tile.width * tile.height * 3);
+        long sum = 0;
+        int r = 0;
+        for (int y = 0; y < tile.height; y++) {
+            int p = (tile.y + y) * imageWidth + tile.x;
+            for (int x = 0; x < tile.width; x++, p++, r++) {
+                int a = pixels[p];
+                int b = reference[r];
+                if (a == b)
+                    continue;
+                sum += Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+                        + Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+                        + Math.abs((a & 0xFF) - (b & 0xFF));
+            }
+            if (sum > limit)
+                return true;
+        }
+        return false;
+    }
+
+    private void copyTile(int[] pixels, TileGrid.Tile tile, int[] reference) {
+        int imageWidth = grid.getImageWidth();
+        for (int y = 0; y < tile.height; y++)
+            System.arraycopy(pixels, (tile.y + y) * imageWidth + tile.x, reference, y * tile.width, tile.width);
+    }
+
+
+    /** @return share of reused tiles in the last frame, 0 before the first */
+    public float getLastReuseRatio() {
+        return frames == 0 ? 0 : reuseRatios[frames - 1];
+    }
+
+    /** @return share of reused tiles of every frame so far, in frame order */
+    public float[] getReuseRatios() {
+        return Arrays.copyOf(reuseRatios, frames);
+    }
+
+    /** @return share of reused tiles over all frames */
+    public double getReuseRatio() {
+        return totalTiles == 0 ? 0 : (double) reusedTiles / totalTiles;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+}
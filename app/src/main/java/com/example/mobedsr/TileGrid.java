@@ -0,0 +1,286 @@
+package com.example.mobedsr;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/** @brief  Tiling and stitching math for tiled super resolution
+ *  @date   26/10/17
+ *  The low resolution image is split into fixed-size tiles that overlap by
+ *  a configurable margin. Tiles at the right/bottom border are shifted back
+ *  so that every tile has the same size as the interpreter input; images
+ *  smaller than a tile are padded by replicating the edge pixels.
+ *
+ *  SR tiles are blended with linear ramps over the overlap. The ramps are
+ *  separable, so the per-pixel weight sum is the product of a column sum and
+ *  a row sum and the weights are normalized up front with O(width + height)
+ *  memory. Tiles can then be accumulated into the output in any order.
+ *
+ *  Alternatively each tile owns the part of the output up to the middle of
+ *  its overlaps (copyOwnedRegion), so one tile can be replaced without its
+ *  neighbours; the overlap then serves as a halo of context around it.
+ */
+public class TileGrid {
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int tileSize;
+    private final int overlap;
+    private final int scale;
+
+    private final int[] columns;
+    private final int[] rows;
+    private final List<Tile> tiles;
+
+    // Normalized blending weights of each tile column / row, in output pixels
+    private final float[][] columnWeights;
+    private final float[][] rowWeights;
+
+    // Owned region of tile column / row i is [cuts[i], cuts[i + 1]), in LR pixels
+    private final int[] columnCuts;
+    private final int[] rowCuts;
+
+
+    /** @brief  Region of the low resolution image covered by one tile
+     *  @date   26/10/17
+     */
+    public static final class Tile {
+        public final int index;
+        public final int column;
+        public final int row;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        Tile(int index, int column, int row, int x, int y, int width, int height) {
+            this.index = index;
+            this.column = column;
+            this.row = row;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+
+    /** @param tileSize side of the (square) interpreter input, in LR pixels
+     *  @param overlap  overlap between neighbouring tiles, in LR pixels
+     *  @param scale    upscaling factor of the model
+     */
+    public TileGrid(int imageWidth, int imageHeight, int tileSize, int overlap, int scale) {
+        if (imageWidth <= 0 || imageHeight <= 0)
+            throw new IllegalArgumentException("Empty image");
+        if (overlap < 0 || overlap * 2 > tileSize)
+            throw new IllegalArgumentException("Overlap must be within [0, tileSize / 2]");
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.scale = scale;
+
+        columns = positions(imageWidth, tileSize, overlap);
+        rows = positions(imageHeight, tileSize, overlap);
+
+        List<Tile> list = new ArrayList<>(columns.length * rows.length);
+        for (int r = 0; r < rows.length; r++) {
+            for (int c = 0; c < columns.length; c++) {
+                list.add(new Tile(list.size(), c, r, columns[c], rows[r],
+                        Math.min(tileSize, imageWidth), Math.min(tileSize, imageHeight)));
+            }
+        }
+        tiles = Collections.unmodifiableList(list);
+
+        columnWeights = weights(columns, imageWidth);
+        rowWeights = weights(rows, imageHeight);
+        columnCuts = cuts(columns, Math.min(tileSize, imageWidth), imageWidth);
+        rowCuts = cuts(rows, Math.min(tileSize, imageHeight), imageHeight);
+    }
+
+
+    /** @brief  Start positions of the tiles along one axis
+     *  @date   26/10/17
+     */
+    static int[] positions(int length, int tileSize, int overlap) {
+        if (length <= tileSize)
+            return new int[]{0};
+
+        int stride = tileSize - overlap;
+        int count = (length - overlap + stride - 1) / stride;
+        int[] starts = new int[count];
+        for (int i = 0; i < count - 1; i++)
+            starts[i] = i * stride;
+        starts[count - 1] = length - tileSize;
+
+        return starts;
+    }
+
+
+    /** @brief  Boundaries of the owned regions along one axis, in the middle of each overlap
+     *  @date   26/10/17
+     */
+    static int[] cuts(int[] starts, int span, int length) {
+        int[] cuts = new int[starts.length + 1];
+        for (int i = 1; i < starts.length; i++)
+            cuts[i] = (starts[i] + starts[i - 1] + span) / 2;
+        cuts[starts.length] = length;
+        return cuts;
+    }
+
+
+    /** @brief  Blending weights of every tile along one axis, normalized so
+     *          that the weights covering any output pixel sum to one
+     *  @date   26/10/17
+     */
+    private float[][] weights(int[] starts, int length) {
+        int span = Math.min(tileSize, length) * scale;
+        int ramp = overlap * scale;
+        float[][] weights = new float[starts.length][span];
+        float[] sums = new float[length * scale];
+
+        for (int i = 0; i < starts.length; i++) {
+            boolean rampIn = i > 0;
+            boolean rampOut = i < starts.length - 1;
+            for (int t = 0; t < span; t++) {
+                float w = 1.0f;
+                if (rampIn && t < ramp)
+                    w = Math.min(w, (t + 0.5f) / ramp);
+                if (rampOut && span - 1 - t < ramp)
+                    w = Math.min(w, (span - 1 - t + 0.5f) / ramp);
+                weights[i][t] = w;
+                sums[starts[i] * scale + t] += w;
+            }
+        }
+
+        for (int i = 0; i < starts.length; i++) {
+            for (int t = 0; t < span; t++)
+                weights[i][t] /= sums[starts[i] * scale + t];
+        }
+        return weights;
+    }
+
+
+    /** @brief  Copy one tile of an ARGB image into a normalized RGB float tensor
+     *  @date   26/10/17
+     *  @param  argb pixels of the whole LR image, row-major
+     *  @param  tile tile to extract
+     *  @param  dst  tensor of tileSize * tileSize * 3 floats, written from index 0
+     */
+    public void extractTile(int[] argb, Tile tile, FloatBuffer dst) {
+        int i = 0;
+        for (int ty = 0; ty < tileSize; ty++) {
+            // Replicate the edge pixels when the image is smaller than a tile
+            int y = tile.y + Math.min(ty, tile.height - 1);
+            int rowOffset = y * imageWidth;
+            for (int tx = 0; tx < tileSize; tx++) {
+                int x = tile.x + Math.min(tx, tile.width - 1);
+                int pixel = argb[rowOffset + x];
+                dst.put(i++, ((pixel >> 16) & 0xFF) / 255.0f);
+                dst.put(i++, ((pixel >> 8) & 0xFF) / 255.0f);
+                dst.put(i++, (pixel & 0xFF) / 255.0f);
+            }
+        }
+    }
+
+
+    /** @brief  Accumulate one SR tile into the output image
+     *  @date   26/10/17
+     *  @param  srTile output tensor of the tile, (tileSize * scale)^2 * 3 floats
+     *  @param  tile   tile the SR output belongs to
+     *  @param  output RGB float image of getOutputWidth() * getOutputHeight() * 3,
+     *                 zeroed before the first tile
+     */
+    public void blendTile(FloatBuffer srTile, Tile tile, FloatBuffer output) {
+        float[] wx = columnWeights[tile.column];
+        float[] wy = rowWeights[tile.row];
+        int srTileWidth = tileSize * scale;
+        int outputWidth = getOutputWidth();
+        int ox = tile.x * scale;
+        int oy = tile.y * scale;
+
+        for (int ty = 0; ty < wy.length; ty++) {
+            int src = ty * srTileWidth * 3;
+            int dst = ((oy + ty) * outputWidth + ox) * 3;
+            for (int tx = 0; tx < wx.length; tx++) {
+                float w = wx[tx] * wy[ty];
+                for (int c = 0; c < 3; c++, src++, dst++)
+                    output.put(dst, output.get(dst) + srTile.get(src) * w);
+            }
+        }
+    }
+
+
+    /** @brief  Write the region of the output owned by one tile as ARGB
+     *  @date   26/10/17
+     *  Unlike blendTile(), the pixels only depend on this tile, so a tile can
+     *  be overwritten while the other tiles' regions are kept.
+     *  @param  srTile output tensor of the tile, (tileSize * scale)^2 * 3 floats
+     *  @param  output ARGB image of getOutputWidth() * getOutputHeight()
+     */
+    public void copyOwnedRegion(FloatBuffer srTile, Tile tile, int[] output) {
+        int srTileWidth = tileSize * scale;
+        int outputWidth = getOutputWidth();
+        int x0 = columnCuts[tile.column] * scale;
+        int x1 = columnCuts[tile.column + 1] * scale;
+        int y0 = rowCuts[tile.row] * scale;
+        int y1 = rowCuts[tile.row + 1] * scale;
+
+        for (int oy = y0; oy < y1; oy++) {
+            int src = ((oy - tile.y * scale) * srTileWidth + (x0 - tile.x * scale)) * 3;
+            int dst = oy * outputWidth;
+            for (int ox = x0; ox < x1; ox++, src += 3)
+                output[dst + ox] = TensorConverter.packPixel(srTile.get(src), srTile.get(src + 1), srTile.get(src + 2));
+        }
+    }
+
+    /** @return {x0, y0, x1, y1} of the LR region owned by the tile */
+    public int[] getOwnedRegion(Tile tile) {
+        return new int[]{columnCuts[tile.column], rowCuts[tile.row],
+                columnCuts[tile.column + 1], rowCuts[tile.row + 1]};
+    }
+
+
+    public List<Tile> getTiles() {
+        return tiles;
+    }
+
+    /** @return tiles per row; tile (column, row) has index row * getColumnCount() + column */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public int getRowCount() {
+        return rows.length;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getOverlap() {
+        return overlap;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getOutputWidth() {
+        return imageWidth * scale;
+    }
+
+    public int getOutputHeight() {
+        return imageHeight * scale;
+    }
+}
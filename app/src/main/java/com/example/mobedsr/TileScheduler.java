@@ -0,0 +1,73 @@
+package com.example.mobedsr;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/** @brief  Priority queue of the tiles of a grid, nearest to a focus point first
+ *  @date   26/10/17
+ *  The focus starts at the image center, so tiles come center-out, where
+ *  the viewer looks first. setFocus() reorders the tiles not yet taken,
+ *  e.g. towards a touched point. Thread-safe, so several interpreters can
+ *  take tiles from the same scheduler; each tile is handed out once.
+ */
+public class TileScheduler {
+    private final TileGrid grid;
+    private final PriorityQueue<TileGrid.Tile> queue;
+    private double focusX;
+    private double focusY;
+
+
+    /** @brief  Center-out order */
+    public TileScheduler(TileGrid grid) {
+        this(grid, grid.getImageWidth() / 2.0, grid.getImageHeight() / 2.0);
+    }
+
+    /** @param focusX focus point, in LR pixels
+     *  @param focusY focus point, in LR pixels
+     */
+    public TileScheduler(TileGrid grid, double focusX, double focusY) {
+        this.grid = grid;
+        this.focusX = focusX;
+        this.focusY = focusY;
+        queue = new PriorityQueue<>(Math.max(1, grid.getTiles().size()), order());
+        queue.addAll(grid.getTiles());
+    }
+
+
+    // Distance of the owned region's center to the focus, ties in raster order
+    private Comparator<TileGrid.Tile> order() {
+        return Comparator.<TileGrid.Tile>comparingDouble(this::distance).thenComparingInt(tile -> tile.index);
+    }
+
+    private double distance(TileGrid.Tile tile) {
+        int[] region = grid.getOwnedRegion(tile);
+        double dx = (region[0] + region[2]) / 2.0 - focusX;
+        double dy = (region[1] + region[3]) / 2.0 - focusY;
+        return dx * dx + dy * dy;
+    }
+
+
+    /** @return next tile, or null when every tile was taken */
+    public synchronized TileGrid.Tile poll() {
+        return queue.poll();
+    }
+
+    /** @brief  Move the focus; the remaining tiles are taken nearest to it first
+     *  @date   26/10/17
+     */
+    public synchronized void setFocus(double focusX, double focusY) {
+        List<TileGrid.Tile> remaining = new ArrayList<>(queue);
+        queue.clear();
+        this.focusX = focusX;
+        this.focusY = focusY;
+        queue.addAll(remaining);
+    }
+
+    /** @return tiles not taken yet */
+    public synchronized int remaining() {
+        return queue.size();
+    }
+}
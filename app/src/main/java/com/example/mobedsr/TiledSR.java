@@ -0,0 +1,142 @@
+package com.example.mobedsr;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+
+/** @brief  Tiled super resolution on top of SRModel.run()
+ *  @date   26/10/17
+ *  The interpreter is resized once to the tile shape, so images of any size
+ *  run through the same interpreter and the tensor memory is bounded by the
+ *  tile size instead of the image size. Tiles of quantized models are
+ *  extracted and blended in float and (de)quantized at the interpreter.
+ */
+public class TiledSR {
+    public static final int TILE_SIZE = 128;
+    public static final int OVERLAP = 8;
+
+    private final SRModel srModel;
+    private final int tileSize;
+    private final int overlap;
+    private final int scale;
+
+
+    TiledSR(SRModel srModel) {
+        this(srModel, TILE_SIZE, OVERLAP);
+    }
+
+    TiledSR(SRModel srModel, int tileSize, int overlap) {
+        this.srModel = srModel;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+
+        // Resize the interpreter to the tile shape once
+        srModel.resizeInput(new int[]{1, tileSize, tileSize, 3});
+        scale = srModel.interpreter.getOutputTensor(0).shape()[1] / tileSize;
+    }
+
+
+    /** @brief  Allocate an output tensor for an image of the given size
+     *  @date   26/10/17
+     */
+    public FloatBuffer allocateOutput(int width, int height) {
+        return allocateOutput(width, height, scale);
+    }
+
+    static FloatBuffer allocateOutput(int width, int height, int scale) {
+        return ByteBuffer.allocateDirect(width * height * scale * scale * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+
+    /** @brief  Super resolve the bitmap tile by tile
+     *  @date   26/10/17
+     *  @param  bitmap_lr low resolution image
+     *  @param  output    preallocated RGB float tensor of (width * scale) * (height * scale) * 3
+     *  @throws InterruptedException if interrupted while waiting for a tensor slot; output is then incomplete
+     */
+    public void run(Bitmap bitmap_lr, FloatBuffer output) throws InterruptedException {
+        int width = bitmap_lr.getWidth();
+        int height = bitmap_lr.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap_lr.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        run(pixels, width, height, output);
+    }
+
+    public void run(int[] pixels, int width, int height, FloatBuffer output) throws InterruptedException {
+        TileGrid grid = new TileGrid(width, height, tileSize, overlap, scale);
+
+        for (int i = 0; i < output.capacity(); i++)
+            output.put(i, 0.0f);
+
+        // Tile tensors come from the interpreter's arena
+        TensorArena arena = srModel.getArena();
+        TensorArena.Slot slot = arena.acquire();
+        Quantization inputQuantization = srModel.getInputQuantization();
+        Quantization outputQuantization = srModel.getOutputQuantization();
+        int inputCount = tileSize * tileSize * 3;
+        FloatBuffer tileInput = (inputQuantization == null) ? null : FloatBuffer.allocate(inputCount);
+        FloatBuffer tileOutput = (outputQuantization == null) ? null : FloatBuffer.allocate(inputCount * scale * scale);
+        try {
+            for (TileGrid.Tile tile : grid.getTiles())
+                runTile(srModel, grid, tile, pixels, slot, tileInput, tileOutput, output);
+        } finally {
+            arena.release(slot);
+        }
+    }
+
+
+    /** @brief  Extract, super resolve and blend one tile
+     *  @date   26/10/17
+     *  Blending locks the output, so tiles may run on several interpreters
+     *  at once (see CoTiledSR).
+     *  @param  tileInput  float tile of a quantized input tensor, or null to use the slot
+     *  @param  tileOutput float tile of a quantized output tensor, or null to use the slot
+     */
+    static void runTile(SRModel srModel, TileGrid grid, TileGrid.Tile tile, int[] pixels, TensorArena.Slot slot,
+                        FloatBuffer tileInput, FloatBuffer tileOutput, FloatBuffer output) {
+        FloatBuffer srTile = inferTile(srModel, grid, tile, pixels, slot, tileInput, tileOutput);
+
+        long startTime = SRMetrics.now();
+        synchronized (output) {
+            grid.blendTile(srTile, tile, output);
+        }
+        SRMetrics.getInstance().record("tile_blend", startTime);
+    }
+
+    /** @brief  Extract and super resolve one tile
+     *  @date   26/10/17
+     *  @return float SR tile: the slot's output, or tileOutput for quantized models
+     */
+    static FloatBuffer inferTile(SRModel srModel, TileGrid grid, TileGrid.Tile tile, int[] pixels,
+                                 TensorArena.Slot slot, FloatBuffer tileInput, FloatBuffer tileOutput) {
+        Quantization inputQuantization = srModel.getInputQuantization();
+        Quantization outputQuantization = srModel.getOutputQuantization();
+        int inputCount = grid.getTileSize() * grid.getTileSize() * 3;
+        int outputCount = inputCount * grid.getScale() * grid.getScale();
+
+        long startTime = SRMetrics.now();
+        if (inputQuantization == null)
+            grid.extractTile(pixels, tile, slot.inputFloats);
+        else {
+            grid.extractTile(pixels, tile, tileInput);
+            inputQuantization.quantize(tileInput, slot.input, inputCount);
+        }
+        SRMetrics.getInstance().record("tile_extract", startTime);
+
+        srModel.run(slot);
+
+        if (outputQuantization == null)
+            return slot.outputFloats;
+        outputQuantization.dequantize(slot.output, tileOutput, outputCount);
+        return tileOutput;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.mobedsr;
+
+import java.util.Locale;
+
+
+/** @brief  Winning autotuner configuration of a model on a device
+ *  @date   26/10/17
+ *  Profiles are keyed by the device (model, OS and TF Lite runtime) and by
+ *  the hash of the model files, so a new device or new model files are
+ *  tuned again. See TuningProfileStore for the persisted form.
+ */
+public final class TuningProfile {
+    public final String device;
+    public final String modelHash;
+    public final String modelFile;
+    public final Accelerator accelerator;
+    public final int numThreads;
+    public final double latencyMs;
+
+
+    public TuningProfile(String device, String modelHash, String modelFile, Accelerator accelerator,
+                         int numThreads, double latencyMs) {
+        this.device = device;
+        this.modelHash = modelHash;
+        this.modelFile = modelFile;
+        this.accelerator = accelerator;
+        this.numThreads = numThreads;
+        this.latencyMs = latencyMs;
+    }
+
+    /** @brief  Device key from its describing parts, e.g. manufacturer, model and SDK level
+     *  @date   26/10/17
+     *  Whitespace is replaced, so the key is a single field of the store.
+     */
+    public static String deviceKey(Object... parts) {
+        StringBuilder key = new StringBuilder();
+        for (Object part : parts) {
+            if (key.length() > 0)
+                key.append('/');
+            key.append(String.valueOf(part).trim().replaceAll("\\s+", "_"));
+        }
+        return key.toString();
+    }
+
+    boolean matches(String device, String modelHash) {
+        return this.device.equals(device) && this.modelHash.equals(modelHash);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s on %s%s: %.1fms", modelFile, accelerator.name().toLowerCase(Locale.US),
+                numThreads > 0 ? " x" + numThreads : "", latencyMs);
+    }
+}
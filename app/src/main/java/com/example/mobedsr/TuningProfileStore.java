@@ -0,0 +1,110 @@
+package com.example.mobedsr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/** @brief  Tuning profiles persisted in a text file, one per device and model hash
+ *  @date   26/10/17
+ *  One profile per line:
+ *      profile <device> <model hash> <model file> <accelerator> <threads> <latency ms>
+ *  The file is a cache: if it is missing or unreadable, the models are tuned
+ *  again. Saving rewrites a temporary file and renames it over the old one.
+ */
+public class TuningProfileStore {
+    private final File file;
+
+
+    public TuningProfileStore(File file) {
+        this.file = file;
+    }
+
+
+    /** @return the profile of the device and model hash, or null if none is stored */
+    public synchronized TuningProfile find(String device, String modelHash) {
+        for (TuningProfile profile : loadAll())
+            if (profile.matches(device, modelHash))
+                return profile;
+        return null;
+    }
+
+    /** @brief  Store a profile, replacing the one of the same device and model hash
+     *  @date   26/10/17
+     */
+    public synchronized void save(TuningProfile profile) throws IOException {
+        List<TuningProfile> profiles = new ArrayList<>();
+        for (TuningProfile stored : loadAll())
+            if (!stored.matches(profile.device, profile.modelHash))
+                profiles.add(stored);
+        profiles.add(profile);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            write(writer, profiles);
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+
+    private List<TuningProfile> loadAll() {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+            return parse(reader);
+        } catch (FileNotFoundException e) {
+            return new ArrayList<>();
+        } catch (IOException e) {
+            // Corrupt store, e.g. written by an older version: tune again
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+
+    /** @brief  Parse the lines of a store
+     *  @date   26/10/17
+     *  @throws IOException on malformed lines
+     */
+    static List<TuningProfile> parse(Reader reader) throws IOException {
+        List<TuningProfile> profiles = new ArrayList<>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber += 1;
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (!fields[0].equals("profile") || fields.length != 7)
+                throw new IOException("Line " + lineNumber + ": malformed profile '" + line + "'");
+            try {
+                profiles.add(new TuningProfile(fields[1], fields[2], fields[3], Accelerator.valueOf(fields[4]),
+                        Integer.parseInt(fields[5]), Double.parseDouble(fields[6])));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return profiles;
+    }
+
+    static void write(Writer writer, List<TuningProfile> profiles) throws IOException {
+        for (TuningProfile profile : profiles)
+            writer.write(String.format(Locale.US, "profile %s %s %s %s %d %.3f\n", profile.device,
+                    profile.modelHash, profile.modelFile, profile.accelerator.name(), profile.numThreads,
+                    profile.latencyMs));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.mobedsr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/** @brief  Settings of the SR video encoder: frame rate, bitrate, preset and audio
+ *  @date   26/10/17
+ *  A bitrate of 0 follows the frame size: the preset's bits per pixel
+ *  times the pixel rate, so 4x SR output does not starve at a bitrate
+ *  meant for the LR video.
+ */
+public final class VideoEncoderConfig {
+    /** @brief  Speed / size / quality trade-off, for both the hardware and the software encoder */
+    public enum Preset {
+        // Constant bitrate, short GOPs: cheapest to encode and to seek
+        REALTIME(0.07, 1, true, 0),
+        BALANCED(0.10, 2, false, 1),
+        // Rate-distortion macroblock decisions in software, larger GOPs
+        QUALITY(0.15, 4, false, 2);
+
+        final double bitsPerPixel;
+        final int keyframeSeconds;
+        final boolean constantBitrate;
+        // FFmpeg mpeg4 -mbd: 0 simple, 1 fewest bits, 2 rate distortion
+        final int macroblockDecision;
+
+        Preset(double bitsPerPixel, int keyframeSeconds, boolean constantBitrate, int macroblockDecision) {
+            this.bitsPerPixel = bitsPerPixel;
+            this.keyframeSeconds = keyframeSeconds;
+            this.constantBitrate = constantBitrate;
+            this.macroblockDecision = macroblockDecision;
+        }
+    }
+
+    // As FFmpeg prints it, e.g. "30000/1001", and its value
+    public final String frameRate;
+    public final double fps;
+    public final Preset preset;
+    // Bits per second, 0 to follow the frame size
+    public final int bitrate;
+    // Video whose audio track is copied into the output, or null for none
+    public final String audioPath;
+
+
+    public VideoEncoderConfig(String frameRate, Preset preset, int bitrate, String audioPath) {
+        double fps = VideoProbe.parseRate(frameRate);
+        if (!(fps > 0))
+            throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+        if (bitrate < 0)
+            throw new IllegalArgumentException("Negative bitrate " + bitrate);
+        this.frameRate = frameRate;
+        this.fps = fps;
+        this.preset = preset;
+        this.bitrate = bitrate;
+        this.audioPath = audioPath;
+    }
+
+
+    /** @return bits per second for frames of the given size */
+    public int getBitrate(int width, int height) {
+        if (bitrate > 0)
+            return bitrate;
+        return (int) Math.min(Integer.MAX_VALUE, preset.bitsPerPixel * width * height * fps);
+    }
+
+    /** @return frames between keyframes, at least 1 */
+    public int getKeyframeInterval() {
+        return (int) Math.max(1, Math.round(fps * preset.keyframeSeconds));
+    }
+
+
+    /** @brief  FFmpeg arguments of the software encoder
+     *  @date   26/10/17
+     *  Raw ARGB frames from the input pipe, MPEG-4 Part 2 at the target
+     *  bitrate. The first audio stream of audioPath, if any, is copied
+     *  without decoding and cut to the video's length.
+     */
+    String[] ffmpegArguments(String inputPipe, int width, int height, String outputPath) {
+        String bitrate = String.valueOf(getBitrate(width, height));
+        List<String> arguments = new ArrayList<>();
+        Collections.addAll(arguments, "-f", "rawvideo", "-pix_fmt", "argb", "-s", width + "x" + height,
+                "-r", frameRate, "-i", inputPipe);
+        if (audioPath != null)
+            Collections.addAll(arguments, "-i", audioPath, "-map", "0:v:0", "-map", "1:a:0?", "-c:a", "copy",
+                    "-shortest");
+        Collections.addAll(arguments, "-c:v", "mpeg4", "-b:v", bitrate, "-maxrate", bitrate, "-bufsize", bitrate,
+                "-g", String.valueOf(getKeyframeInterval()), "-mbd", String.valueOf(preset.macroblockDecision));
+        if (preset == Preset.QUALITY)
+            Collections.addAll(arguments, "-trellis", "1");
+        Collections.addAll(arguments, "-pix_fmt", "yuv420p", "-y", outputPath);
+        return arguments.toArray(new String[0]);
+    }
+}
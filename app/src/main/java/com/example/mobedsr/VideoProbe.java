@@ -0,0 +1,89 @@
+package com.example.mobedsr;
+
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.FFprobeSession;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.StreamInformation;
+
+import java.io.IOException;
+
+
+/** @brief  Stream metadata of a video: size, real frame rate, frame count and keyframes
+ *  @date   26/10/17
+ *  Read from the FFprobe stream information rather than from the log text
+ *  of an FFmpeg run.
+ */
+public final class VideoProbe {
+    public final String path;
+    public final int width;
+    public final int height;
+    // Average frame rate as FFmpeg prints it, e.g. "30000/1001", and its value
+    public final String frameRate;
+    public final double fps;
+    // From the container, -1 when it does not say; see keyframes() for the exact count
+    public final int frameCount;
+
+
+    VideoProbe(String path, int width, int height, String frameRate, int frameCount) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.fps = parseRate(frameRate);
+        this.frameCount = frameCount;
+    }
+
+
+    /** @brief  Read the metadata of the first video stream
+     *  @date   26/10/17
+     */
+    public static VideoProbe probe(String path) throws IOException {
+        MediaInformation information = FFmpegFrameSource.probe(path);
+        StreamInformation stream = FFmpegFrameSource.videoStream(information, path);
+
+        String frameRate = stream.getAverageFrameRate();
+        if (!(parseRate(frameRate) > 0))
+            frameRate = stream.getRealFrameRate();
+        if (!(parseRate(frameRate) > 0))
+            throw new IOException("No frame rate for " + path);
+
+        int frameCount = -1;
+        try {
+            frameCount = Integer.parseInt(stream.getStringProperty("nb_frames"));
+        } catch (NumberFormatException e) {
+            // Not in the container, e.g. a stream without an index
+        }
+        return new VideoProbe(path, stream.getWidth().intValue(), stream.getHeight().intValue(), frameRate,
+                frameCount);
+    }
+
+
+    /** @brief  List the packets of the video stream to find its keyframes
+     *  @date   26/10/17
+     *  Reads the packets without decoding them.
+     */
+    public VideoSegment.Keyframes keyframes() throws IOException {
+        FFprobeSession session = FFprobeKit.executeWithArguments(new String[]{"-v", "error",
+                "-select_streams", "v:0", "-show_entries", "packet=pts_time,flags", "-of", "csv=p=0", path});
+        if (!ReturnCode.isSuccess(session.getReturnCode()))
+            throw new IOException("Cannot list the packets of " + path + ": rc " + session.getReturnCode());
+        return VideoSegment.parsePackets(session.getOutput());
+    }
+
+
+    /** @return frames per second of a rate such as "30000/1001" or "25", NaN if malformed */
+    static double parseRate(String rate) {
+        if (rate == null)
+            return Double.NaN;
+        try {
+            int slash = rate.indexOf('/');
+            if (slash < 0)
+                return Double.parseDouble(rate);
+            double denominator = Double.parseDouble(rate.substring(slash + 1));
+            return denominator == 0 ? Double.NaN : Double.parseDouble(rate.substring(0, slash)) / denominator;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
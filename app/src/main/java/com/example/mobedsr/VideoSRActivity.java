@@ -1,58 +1,38 @@
 package com.example.mobedsr;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.MediaController;
+import android.widget.Switch;
+import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.VideoView;
 
 import androidx.activity.result.ActivityResult;
 import androidx.activity.result.ActivityResultCallback;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.lifecycle.ViewModelProvider;
 
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegSession;
-import com.arthenica.ffmpegkit.ReturnCode;
 import com.example.mobedsr.databinding.ActivityVideosrBinding;
 
-import org.tensorflow.lite.support.image.TensorImage;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-
 public class VideoSRActivity extends AppCompatActivity {
 
-    private int width;
-    private int height;
-
     private final String TAG = "MobedSR";
-    private final String VIDEO_NAME = "input.mp4";
     private final String SR_VIDEO_NAME = "output.mp4";
     private final String INPUT_DIR = "DCIM";
-    private final String FRAMES_DIR = "frames";
-    private final String SR_DIR = "SRFrames";
-    private String absoluteFramesDir;
-    private String absoluteSRFramesDir;
+    private final String KEY_URI = "uri";
 
     private View decorView;
     private ImageView img_frame;
@@ -60,13 +40,14 @@ public class VideoSRActivity extends AppCompatActivity {
 
     private Uri uri;
     private Button btn_run_sr;
+    private Button btn_cancel_sr;
+    private Switch switch_reuse;
+    private TextView text_progress;
     private Button btn_lr_video;
     private Toolbar toolbar;
     private ActivityVideosrBinding binding;
 
-    private SRModel srModel;
-    private ArrayList<String> videoFramePaths = new ArrayList<>();
-    private ArrayList<String> srFramePaths = new ArrayList<>();
+    private VideoSRViewModel viewModel;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -76,19 +57,31 @@ public class VideoSRActivity extends AppCompatActivity {
         setComponentById();
         hideSoftKeys(decorView);
 
-        absoluteFramesDir = getExternalFilesDir(INPUT_DIR) + "/" + FRAMES_DIR;
-        absoluteSRFramesDir = getExternalFilesDir(INPUT_DIR) + "/" + SR_DIR;
+        // The job lives in the view model and survives activity recreation
+        viewModel = new ViewModelProvider(this).get(VideoSRViewModel.class);
+        viewModel.getProgress().observe(this, this::showProgress);
+        viewModel.getState().observe(this, this::showState);
+
+        if (savedInstanceState != null && savedInstanceState.getParcelable(KEY_URI) != null) {
+            uri = savedInstanceState.getParcelable(KEY_URI);
+            video_lr.setVideoURI(uri);
+        }
 
         btn_run_sr.setOnClickListener(v -> {
-            if (video_lr.getDuration() != 0) {
-                try {
-                    runVideoSR();
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+            VideoSRJob.State state = viewModel.getState().getValue();
+            if (state == VideoSRJob.State.RUNNING)
+                viewModel.pause();
+            else if (state == VideoSRJob.State.PAUSED)
+                viewModel.resume();
+            else if (video_lr.getDuration() != 0)
+                runVideoSR();
         });
 
+        btn_cancel_sr.setOnClickListener(v -> viewModel.cancel());
+
+        // Scrub: the SR frame at the position of the LR video, from the frame cache
+        img_frame.setOnClickListener(v -> showSRFrame(video_lr.getCurrentPosition()));
+
 
         btn_lr_video.setOnClickListener(v -> {
             Intent intent = new Intent(Intent.ACTION_PICK);
@@ -98,6 +91,12 @@ public class VideoSRActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(KEY_URI, uri);
+    }
+
     // launcher for getting low resolution video
     ActivityResultLauncher<Intent> startActivityResult = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -124,7 +123,10 @@ public class VideoSRActivity extends AppCompatActivity {
         video_lr = findViewById(R.id.video_lr);
 
         btn_run_sr = findViewById(R.id.btn_run_sr);
+        btn_cancel_sr = findViewById(R.id.btn_cancel_sr);
+        switch_reuse = findViewById(R.id.switch_reuse);
         btn_lr_video = findViewById(R.id.btn_video);
+        text_progress = findViewById(R.id.text_progress);
     }
 
 
@@ -143,27 +145,6 @@ public class VideoSRActivity extends AppCompatActivity {
     }
 
 
-    /** @brief  Get the frame rate of video
-     *  @date   23/01/26
-     *  TODO: Refactor the code more generally & solve the issue of read-only file system
-     */
-    private String getFPS() {
-        String inputPath = INPUT_DIR + "/" + VIDEO_NAME;
-
-        FFmpegSession fFmpegSession = FFmpegKit.execute("-i " + inputPath + " ");
-        if (ReturnCode.isSuccess(fFmpegSession.getReturnCode()))
-            return null;
-        else {
-            String out = fFmpegSession.getOutput();
-            String fpsLine = out.substring(out.lastIndexOf("/s"));
-            String fps = fpsLine.substring(fpsLine.lastIndexOf("/s"), fpsLine.indexOf("fps"));
-
-            fps = fps.substring(3).replaceAll("\\s", "");
-            fps = String.valueOf(Math.round(Float.parseFloat(fps)));
-            return fps;
-        }
-    }
-
     /**
      * @brief   Get the real path from uri
      * @date    23/01/26
@@ -179,160 +160,74 @@ public class VideoSRActivity extends AppCompatActivity {
     }
 
 
-    /**
-     * @brief   Get the list of frames and sort
-     * @date    23/01/26
-     */
-    private void fillFrames() {
-        // inputDir: External Storage of app
-        File inputDir = new File(absoluteFramesDir);
-        File[] frames = inputDir.listFiles();
-
-        videoFramePaths = new ArrayList<String>();
-        for (File frame : frames) {
-            videoFramePaths.add(frame.getName());
-        }
-        Collections.sort(videoFramePaths);
-        Log.d(TAG, videoFramePaths.get(0));
-    }
-
-
-    /**
-     * @brief   Read low resolution frames from video
-     * @date    23/01/26
-     * @param   fps: FPS of video by getFPS()
+    /** @brief  Run video super resolution
+     *  @date 23/01/26
+     *  Frames stream from the FFmpeg decoder through the SR model into the
+     *  FFmpeg encoder as raw pixels, without intermediate image files.
+     *  The job runs in the background; see VideoSRViewModel.
      */
-    private void readFrames(String fps) {
-        // External storage path to store frames
-        // path: com.example.mobedsr/ ... /DCIM/frames
-        File path = new File(getExternalFilesDir(INPUT_DIR), FRAMES_DIR);
-
-        if (!path.exists()) {
-            if (!path.mkdirs())
-                Log.d(TAG, "Directory not created");
-        }
+    private void runVideoSR() {
+        Log.d(TAG, "Run video super resolution");
 
-        // Get real path from Uri of MediaStore
+        // Frames are decoded at the native frame rate of the video, see VideoProbe
         String inputPath = getRealPathFromURI(uri);
-        String outputPath = absoluteFramesDir + "/frame_%04d.png";
-        Log.d(TAG, outputPath);
-
-        FFmpegSession ffmpegSession = FFmpegKit.execute("-i " + inputPath + " -vf fps=" + fps + " -preset ultrafast " + outputPath);
-        if (ReturnCode.isSuccess(ffmpegSession.getReturnCode())) {
-            Log.i("Log", "Extracted frames successfully");
-        } else {
-            // Failure
-            Log.d("Error", String.format("Extracting frames failed with state %s and rc %s.%s", ffmpegSession.getState(),
-                    ffmpegSession.getReturnCode(), ffmpegSession.getFailStackTrace()));
-        }
-        fillFrames();
-    }
-
+        String outputPath = getExternalFilesDir(INPUT_DIR) + "/" + SR_VIDEO_NAME;
 
-    /** @brief Save the super resolution image
-     *  @date 23/01/27
-     *  @param bitmap_sr super resolution bitmap
-     *  @param name      name of resulted image
-     */
-    private void saveImage(Bitmap bitmap_sr, String name) {
-        OutputStream fOut = null;
-        File file = new File(absoluteSRFramesDir, name);
-
-        try {
-            fOut = new FileOutputStream(file);
-            bitmap_sr.compress(Bitmap.CompressFormat.JPEG, 100, fOut);
-            fOut.flush();
-            fOut.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void saveImage(Bitmap bitmap_lr) {
-        ContentValues values = new ContentValues();
-        values.put(MediaStore.Images.Media.DISPLAY_NAME, "example.JPG");
-        values.put(MediaStore.Images.Media.MIME_TYPE, "image/*");
-
-        ContentResolver contentResolver = getContentResolver();
-        Uri item = contentResolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap_lr.compress(Bitmap.CompressFormat.JPEG, 100, stream);
-        byte[] bytearray = stream.toByteArray();
-
-        try {
-            ParcelFileDescriptor pdf = contentResolver.openFileDescriptor(item, "w", null);
-            FileOutputStream fos = new FileOutputStream(pdf.getFileDescriptor());
-            fos.write(bytearray);
-            fos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Incremental mode: tiles that did not change keep their previous SR output
+        double reuseThreshold = switch_reuse.isChecked() ? TileChangeDetector.DEFAULT_THRESHOLD : -1;
+        viewModel.start(this, inputPath, outputPath, null, reuseThreshold);
     }
 
 
-    /** @brief Save the super resolution video
-     *  @date 23/01/27
+    /** @brief  Show the cached SR frame at a position of the video
+     *  @date   26/10/17
      */
-    private void saveSrVideo(String fps) {
-        String inputPath = absoluteSRFramesDir + "/srframe_%04d.jpeg";
-//        String outputPath =
+    private void showSRFrame(long positionMs) {
+        new Thread(() -> {
+            Bitmap bitmap_sr = viewModel.getSRFrame(positionMs);
+            if (bitmap_sr != null)
+                img_frame.post(() -> img_frame.setImageBitmap(bitmap_sr));
+            else
+                Log.d(TAG, "No cached SR frame at " + positionMs + "ms");
+        }, "FramePreview").start();
     }
 
 
-
-    /** @brief  Run video super resolution
-     *  @date 23/01/26
-     *  @throws IOException
-     *  @throws InterruptedException
+    /** @brief  Show frames done, throughput and ETA of the running job
+     *  @date   26/10/17
      */
-    private void runVideoSR() throws IOException, InterruptedException {
-        Log.d(TAG, "Run video super resolution");
-
-        // Make the folder of SR frames
-        File srPath = new File(getExternalFilesDir(INPUT_DIR), SR_DIR);
-        if (!srPath.exists()) {
-            if (!srPath.mkdirs())
-                Log.d(TAG, "Directory not created");
-        }
-
-        // Get low resolution frames from the video
-        // String fps = getFPS();
-        String fps = "15";
-        readFrames(fps);
-
-        // Prepare the TF Lite Interpreter, Delegate
-        srModel = new SRModel(getAssets(), true);
-        Log.d(TAG, absoluteFramesDir);
-        // Run super resolution
-        int frame_index = 0;
-        Bitmap bitmap_sr = null;
-        for (String frame : videoFramePaths) {
-            Bitmap bitmap_lr = BitmapFactory.decodeFile(absoluteFramesDir + "/" + frame);
-            Log.d(TAG, absoluteFramesDir + "/" + frame);
-            TensorImage lrImage = srModel.prepareInputTensor(bitmap_lr);
-            TensorImage srImage = srModel.prepareOutputTensor();
-
-
-            if (lrImage != null && srImage != null) {
-                // Super Resolution
-                srModel.interpreter.run(lrImage.getBuffer(), srImage.getBuffer());
-            }
-            bitmap_sr = srModel.tensorToImage(srImage);
-
-            String img_name = String.format("srframe_%04d.jpeg", frame_index);
-            frame_index += 1;
+    private void showProgress(VideoSRJob.Progress progress) {
+        String frames = (progress.totalFrames >= 0)
+                ? progress.framesDone + "/" + progress.totalFrames
+                : String.valueOf(progress.framesDone);
+        String eta = (progress.etaMillis >= 0)
+                ? String.format("%ds", progress.etaMillis / 1000)
+                : "-";
+        text_progress.setText(String.format("Frame %s, %.2f fps, ETA %s", frames, progress.framesPerSecond, eta));
+    }
 
-            // Save the SR image
-            saveImage(bitmap_sr, img_name);
-            srFramePaths.add(absoluteSRFramesDir + "/" + img_name);
+    private void showState(VideoSRJob.State state) {
+        switch (state) {
+            case RUNNING:
+                btn_run_sr.setText("pause");
+                break;
+            case PAUSED:
+                btn_run_sr.setText("resume");
+                break;
+            case FINISHED:
+                btn_run_sr.setText("resolution");
+                Toast.makeText(this, "Saved " + SR_VIDEO_NAME, Toast.LENGTH_SHORT).show();
+                break;
+            case FAILED:
+                btn_run_sr.setText("resolution");
+                Log.d(TAG, "Video super resolution failed", viewModel.getError());
+                Toast.makeText(this, "Video super resolution failed", Toast.LENGTH_SHORT).show();
+                break;
+            default:
+                btn_run_sr.setText("resolution");
+                break;
         }
-        saveImage(bitmap_sr);   // debug
-
-
-        // Convert the image sequence to video
-        saveSrVideo(fps);
-
+        btn_cancel_sr.setEnabled(state == VideoSRJob.State.RUNNING || state == VideoSRJob.State.PAUSED);
     }
 
 }
@@ -0,0 +1,264 @@
+package com.example.mobedsr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+
+/** @brief  Cancellable, pausable video super resolution job
+ *  @date   26/10/17
+ *  Runs the whole decode -> SR -> encode pipeline, including the interpreter
+ *  construction, on the thread that calls run(). Progress is published after
+ *  every encoded frame. Plain Java: the stages come from a Stages factory
+ *  so the orchestration can be tested with fake sources and models.
+ */
+public class VideoSRJob implements Runnable {
+    public enum State { IDLE, RUNNING, PAUSED, CANCELLED, FINISHED, FAILED }
+
+    /** @brief  Factory of the pipeline stages, called on the job thread */
+    public interface Stages {
+        FrameSource createSource() throws IOException;
+        FrameSink createSink() throws IOException;
+
+        /** Append the processing stages, e.g. SR inference and conversion */
+        void addStages(FramePipeline pipeline) throws IOException;
+
+        /** Release what the stages hold, e.g. the interpreter; called once at the end */
+        void release();
+    }
+
+    public interface Listener {
+        void onProgress(Progress progress);
+        void onStateChanged(State state, Exception error);
+    }
+
+    /** @brief  Snapshot of the job progress */
+    public static final class Progress {
+        public final int framesDone;
+        // -1 when the frame count is unknown
+        public final int totalFrames;
+        public final double framesPerSecond;
+        // -1 when unknown
+        public final long etaMillis;
+
+        Progress(int framesDone, int totalFrames, double framesPerSecond, long etaMillis) {
+            this.framesDone = framesDone;
+            this.totalFrames = totalFrames;
+            this.framesPerSecond = framesPerSecond;
+            this.etaMillis = etaMillis;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final Stages stages;
+    private final Listener listener;
+    private final Object lock = new Object();
+
+    private volatile List<FramePipeline.StageStats> stageStats = Collections.emptyList();
+
+    private State state = State.IDLE;
+    private boolean cancelled;
+    private int framesDone;
+    private int totalFrames = -1;
+
+    // Time spent running, excluding pauses
+    private long activeNanos;
+    private long resumedAt;
+
+
+    public VideoSRJob(Stages stages, Listener listener) {
+        this.stages = stages;
+        this.listener = listener;
+    }
+
+
+    @Override
+    public void run() {
+        synchronized (lock) {
+            if (state != State.IDLE)
+                throw new IllegalStateException("Job already started");
+            if (cancelled) {
+                setState(State.CANCELLED, null);
+                return;
+            }
+            resumedAt = System.nanoTime();
+            setState(State.RUNNING, null);
+        }
+
+        FrameSource source = null;
+        FrameSink sink = null;
+        try {
+            source = stages.createSource();
+            totalFrames = source.getFrameCount();
+            sink = stages.createSink();
+
+            FramePipeline pipeline = new FramePipeline(new GatedSource(source), new CountingSink(sink), QUEUE_CAPACITY);
+            stages.addStages(pipeline);
+            try {
+                pipeline.run();
+            } finally {
+                stageStats = pipeline.getStats();
+            }
+            setState(State.FINISHED, null);
+        } catch (Exception e) {
+            if (isCancelled() || e instanceof InterruptedException)
+                setState(State.CANCELLED, null);
+            else
+                setState(State.FAILED, e);
+        } finally {
+            // The pipeline closes the stages it ran, the rest is closed here
+            closeQuietly(source);
+            closeQuietly(sink);
+            stages.release();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /** @brief  Stop processing new frames until resume() */
+    public void pause() {
+        synchronized (lock) {
+            if (state != State.RUNNING)
+                return;
+            activeNanos += System.nanoTime() - resumedAt;
+            setState(State.PAUSED, null);
+        }
+    }
+
+    public void resume() {
+        synchronized (lock) {
+            if (state != State.PAUSED)
+                return;
+            resumedAt = System.nanoTime();
+            setState(State.RUNNING, null);
+            lock.notifyAll();
+        }
+    }
+
+    /** @brief  Stop the job at the next frame boundary */
+    public void cancel() {
+        synchronized (lock) {
+            cancelled = true;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        synchronized (lock) {
+            return cancelled;
+        }
+    }
+
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+
+    /** @brief  Current progress; throughput excludes the time spent paused */
+    public Progress getProgress() {
+        synchronized (lock) {
+            long nanos = activeNanos;
+            if (state == State.RUNNING)
+                nanos += System.nanoTime() - resumedAt;
+
+            double fps = (nanos > 0) ? framesDone * 1e9 / nanos : 0;
+            long eta = -1;
+            if (totalFrames >= 0 && fps > 0)
+                eta = (long) (Math.max(0, totalFrames - framesDone) * 1000 / fps);
+
+            return new Progress(framesDone, totalFrames, fps, eta);
+        }
+    }
+
+    private void setState(State newState, Exception error) {
+        synchronized (lock) {
+            if (state == State.RUNNING && newState != State.PAUSED)
+                activeNanos += System.nanoTime() - resumedAt;
+            state = newState;
+        }
+        if (listener != null)
+            listener.onStateChanged(newState, error);
+    }
+
+
+    /** @return per-stage utilization of the last run, see FramePipeline */
+    public List<FramePipeline.StageStats> getStageStats() {
+        return stageStats;
+    }
+
+
+    /** @brief  Stops decoding while paused and stops the pipeline once cancelled */
+    private class GatedSource implements FrameSource {
+        private final FrameSource source;
+
+        GatedSource(FrameSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Frame read() throws IOException {
+            synchronized (lock) {
+                while (state == State.PAUSED && !cancelled) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("Interrupted while paused");
+                    }
+                }
+                if (cancelled)
+                    throw new CancellationException("Video SR cancelled");
+            }
+            return source.read();
+        }
+
+        @Override
+        public int getFrameCount() {
+            return source.getFrameCount();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+
+    /** @brief  Counts the encoded frames and publishes the progress */
+    private class CountingSink implements FrameSink {
+        private final FrameSink sink;
+
+        CountingSink(FrameSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(Frame frame) throws IOException {
+            sink.write(frame);
+            synchronized (lock) {
+                framesDone += 1;
+            }
+            if (listener != null)
+                listener.onProgress(getProgress());
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.example.mobedsr;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.ViewModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** @brief  Holds the video SR job across activity recreation
+ *  @date   26/10/17
+ *  The job runs on its own thread; progress and state are posted to
+ *  LiveData so a recreated activity picks up where the old one left off.
+ */
+public class VideoSRViewModel extends ViewModel {
+    private static final String TAG = "MobedSR";
+    static final String METRICS_FILE = "metrics_video.json";
+    // Checkpoints of unfinished jobs, in the files dir so they survive cache clearing
+    static final String JOBS_DIR = "jobs";
+    // Checkpoints of other jobs older than this are deleted, then the oldest over the budget:
+    // a share of the free storage, up to MAX_JOBS_BYTES
+    static final long MAX_JOB_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MAX_JOBS_BYTES = 1L << 30;
+    private static final int JOBS_DISK_DIVISOR = 4;
+
+    private final MutableLiveData<VideoSRJob.Progress> progress = new MutableLiveData<>();
+    private final MutableLiveData<VideoSRJob.State> state = new MutableLiveData<>(VideoSRJob.State.IDLE);
+    private volatile Exception error;
+
+    private VideoSRJob job;
+    private VideoSRStages stages;
+
+
+    /** @brief  Start a new job unless one is already running or paused
+     *  @date   26/10/17
+     *  @param  fps frame rate to sample the video at, or null for its native
+     *              rate; native-rate videos are decoded in parallel segments
+     */
+    public void start(Context context, String inputPath, String outputPath, String fps) {
+        start(context, inputPath, outputPath, fps, -1);
+    }
+
+    /** @param reuseThreshold threshold of the incremental mode (see TileChangeDetector), or < 0 to run every pixel */
+    public void start(Context context, String inputPath, String outputPath, String fps, double reuseThreshold) {
+        if (isActive())
+            return;
+
+        error = null;
+        Context appContext = context.getApplicationContext();
+        VideoSRStages stages = new VideoSRStages(appContext, inputPath, outputPath, fps, reuseThreshold);
+        this.stages = stages;
+        job = new VideoSRJob(stages, new VideoSRJob.Listener() {
+            @Override
+            public void onProgress(VideoSRJob.Progress p) {
+                progress.postValue(p);
+            }
+
+            @Override
+            public void onStateChanged(VideoSRJob.State s, Exception e) {
+                error = e;
+                state.postValue(s);
+                // A cancelled job starts over, only a killed or failed one resumes
+                if (s == VideoSRJob.State.CANCELLED)
+                    stages.discardCheckpoint();
+                if (s == VideoSRJob.State.FINISHED) {
+                    stages.discardCheckpoint();
+                    for (FramePipeline.StageStats stageStats : job.getStageStats())
+                        Log.d(TAG, stageStats.toString());
+                    Log.d(TAG, FrameCache.getInstance(appContext).getStats().toString());
+                    exportMetrics(appContext);
+                }
+            }
+        });
+        new Thread(job, "VideoSR").start();
+    }
+
+    /** @brief  Log the stage latency histograms and save them as JSON next to the output
+     *  @date   26/10/17
+     */
+    private static void exportMetrics(Context context) {
+        SRMetrics metrics = SRMetrics.getInstance();
+        metrics.setLabel("device", Build.MODEL);
+        metrics.setLabel("run", "video");
+        metrics.setLabel("frame_cache_hit_ratio",
+                String.format(Locale.US, "%.3f", FrameCache.getInstance(context).getStats().getHitRatio()));
+        SRMetrics.Snapshot snapshot = metrics.snapshot();
+        for (String line : snapshot.toLogLines())
+            Log.d(TAG, line);
+        try {
+            snapshot.writeJson(new File(context.getExternalFilesDir(null), METRICS_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isActive() {
+        if (job == null)
+            return false;
+        VideoSRJob.State s = job.getState();
+        return s == VideoSRJob.State.IDLE || s == VideoSRJob.State.RUNNING || s == VideoSRJob.State.PAUSED;
+    }
+
+    public void pause() {
+        if (job != null)
+            job.pause();
+    }
+
+    public void resume() {
+        if (job != null)
+            job.resume();
+    }
+
+    public void cancel() {
+        if (job != null)
+            job.cancel();
+    }
+
+    /** @brief  SR frame of the last job at a position of the video, from the frame cache
+     *  @date   26/10/17
+     *  Reads from disk if the frame left memory; call off the main thread.
+     *  @return the frame, or null if no job ran or the frame is not cached
+     */
+    public Bitmap getSRFrame(long positionMs) {
+        VideoSRStages last = stages;
+        if (last == null || last.srConfig == null)
+            return null;
+        int index = (int) (positionMs * VideoProbe.parseRate(last.frameRate) / 1000);
+        Frame frame = last.cache.get(new FrameCache.Key(last.videoKey, index, last.srConfig));
+        if (frame == null)
+            return null;
+        return Bitmap.createBitmap(frame.pixels, frame.width, frame.height, Bitmap.Config.ARGB_8888);
+    }
+
+    public LiveData<VideoSRJob.Progress> getProgress() {
+        return progress;
+    }
+
+    public LiveData<VideoSRJob.State> getState() {
+        return state;
+    }
+
+    /** @return error of the last failed job, or null */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    protected void onCleared() {
+        // The activity is finishing for good, not just being recreated
+        cancel();
+    }
+
+
+    /** @brief  FFmpeg decoder -> SR -> FFmpeg encoder
+     *  @date   26/10/17
+     *  Decoded and SR frames go to the frame cache. A video whose SR frames
+     *  are all cached for the same mode and model is only re-encoded; one
+     *  whose decoded frames are all cached skips the decoder. While the job
+     *  has a JobCheckpoint its SR frames are spooled there, and cached in
+     *  memory only so each is written to disk once. A job that was killed or
+     *  failed resumes after its last durable frame; finishing or cancelling
+     *  deletes the checkpoint.
+     */
+    private static class VideoSRStages implements VideoSRJob.Stages {
+        private static final int CONVERT_THREADS = 2;
+        // Share of the available memory the batched frame tensors may take
+        private static final int BATCH_MEMORY_DIVISOR = 4;
+        // Concurrent segment decoders, segments per decoder for load balance, and their frame buffers
+        private static final int MAX_DECODERS = 3;
+        private static final int SEGMENTS_PER_DECODER = 2;
+        private static final int DECODE_MEMORY_DIVISOR = 8;
+        private static final int MIN_BUFFER_FRAMES = 2;
+        private static final int MAX_BUFFER_FRAMES = 32;
+        private static final VideoEncoderConfig.Preset ENCODER_PRESET = VideoEncoderConfig.Preset.BALANCED;
+
+        private final Context context;
+        private final String inputPath;
+        private final String outputPath;
+        private final String fps;
+        private final double reuseThreshold;
+        private final FrameCache cache;
+
+        // Frame rate of the decoded frames, and cache key parts, set by createSource()
+        private volatile String frameRate;
+        private volatile String videoKey;
+        private volatile String srConfig;
+        private boolean cachedOutput;
+        private RecordingSource recording;
+        private JobCheckpoint checkpoint;
+        private final AtomicInteger stored = new AtomicInteger();
+        private volatile int srWidth;
+        private volatile int srHeight;
+
+        private SRModelPool pool;
+        private SRModel srModel;
+        private CoExecutionFrameStage coExecution;
+        private IncrementalTiledSR incremental;
+        private int width;
+        private int height;
+
+        VideoSRStages(Context context, String inputPath, String outputPath, String fps, double reuseThreshold) {
+            this.context = context;
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+            this.fps = fps;
+            this.reuseThreshold = reuseThreshold;
+            this.cache = FrameCache.getInstance(context);
+        }
+
+        @Override
+        public FrameSource createSource() throws IOException {
+            VideoProbe probe = (fps == null) ? VideoProbe.probe(inputPath) : null;
+            frameRate = (probe != null) ? probe.frameRate : fps;
+            videoKey = ((fps != null) ? fps : "native") + ":" + FrameCache.videoKey(inputPath);
+            srConfig = describeConfig();
+
+            FrameSource replay = cache.openSequence(videoKey, srConfig);
+            if (replay != null) {
+                Log.d(TAG, "SR frames of " + inputPath + " are cached, re-encoding only");
+                cachedOutput = true;
+                return replay;
+            }
+
+            FrameCache.SequenceSource decoded = cache.openSequence(videoKey, FrameCache.LR_CONFIG);
+            if (decoded != null) {
+                width = decoded.getWidth();
+                height = decoded.getHeight();
+                recording = new RecordingSource(decoded, false);
+            }
+            else if (probe != null) {
+                width = probe.width;
+                height = probe.height;
+                recording = new RecordingSource(openSegments(probe), true);
+            }
+            else {
+                FFmpegFrameSource source = new FFmpegFrameSource(context, inputPath, fps);
+                width = source.getWidth();
+                height = source.getHeight();
+                recording = new RecordingSource(source, true);
+            }
+            return resume(recording);
+        }
+
+        /** @brief  Skip the frames a previous run of the job completed
+         *  @date   26/10/17
+         *  Without a checkpoint the job runs from the start.
+         */
+        private FrameSource resume(FrameSource source) {
+            File jobs = new File(context.getFilesDir(), JOBS_DIR);
+            String config = videoKey + "|" + srConfig;
+            try {
+                if (jobs.isDirectory()) {
+                    long budget = Math.min(MAX_JOBS_BYTES, jobs.getUsableSpace() / JOBS_DISK_DIVISOR);
+                    int deleted = JobCheckpoint.cleanUp(jobs, config, budget, MAX_JOB_AGE_MILLIS);
+                    if (deleted > 0)
+                        Log.d(TAG, "Deleted " + deleted + " stale job checkpoints");
+                }
+                checkpoint = JobCheckpoint.open(jobs, config);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return source;
+            }
+            if (checkpoint.getDroppedEntries() > 0)
+                Log.d(TAG, "Checkpoint of " + inputPath + ": recomputing " + checkpoint.getDroppedEntries()
+                        + " partial or corrupt entries");
+            if (checkpoint.getResumedFrames() > 0)
+                Log.d(TAG, "Resuming " + inputPath + " at frame " + checkpoint.getResumedFrames());
+            return checkpoint.skipCompleted(source);
+        }
+
+        /** @brief  Decode keyframe-aligned segments of the video concurrently, at its native rate
+         *  @date   26/10/17
+         */
+        private ParallelFrameSource openSegments(VideoProbe probe) throws IOException {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int parallelism = Math.max(1, Math.min(MAX_DECODERS, cores / 2));
+            List<VideoSegment> segments = VideoSegment.plan(probe.keyframes(), parallelism * SEGMENTS_PER_DECODER);
+
+            long frameBytes = (long) probe.width * probe.height * 4;
+            long bufferFrames = getAvailableMemory() / DECODE_MEMORY_DIVISOR / frameBytes / parallelism;
+            bufferFrames = Math.max(MIN_BUFFER_FRAMES, Math.min(MAX_BUFFER_FRAMES, bufferFrames));
+            Log.d(TAG, String.format(Locale.US, "Decoding %d segments at %s fps, %d at once, %d frames buffered each",
+                    segments.size(), probe.frameRate, parallelism, bufferFrames));
+            return new ParallelFrameSource(segments, new FFmpegSegmentDecoder(context, probe,
+                    Math.max(1, cores / parallelism)), parallelism, (int) bufferFrames);
+        }
+
+        /** @return what produces the SR frames, the config of their cache key */
+        private String describeConfig() {
+            TuningProfile profile = ModelCatalog.getProfile(context);
+            if (reuseThreshold >= 0)
+                return String.format(Locale.US, "incremental-%.3f/%s", reuseThreshold, (profile != null)
+                        ? profile.modelFile : ModelCatalog.getModelName(context, SRModel.isGpuSupported()));
+            if (SRModel.isGpuSupported())
+                return "full/" + ModelCatalog.getModelName(context, true);
+            return "full/" + ((profile != null) ? profile.modelFile : ModelCatalog.getModelName(context, false));
+        }
+
+        @Override
+        public void addStages(FramePipeline pipeline) throws IOException {
+            if (cachedOutput)
+                return;
+            pool = SRModelPool.getInstance(context);
+            pipeline.setMetrics(SRMetrics.getInstance());
+
+            // Incremental mode: only the tiles that changed since their last run
+            if (reuseThreshold >= 0) {
+                int[] tileShape = new int[]{1, TiledSR.TILE_SIZE, TiledSR.TILE_SIZE, 3};
+                TuningProfile profile = ModelCatalog.getProfile(context);
+                boolean useGpu = SRModel.isGpuSupported();
+                // Built, run and closed on the stage's own backend thread, the GPU delegate is bound to one
+                incremental = new IncrementalTiledSR(pool, (profile != null)
+                        ? SRModelPool.Key.forProfile(profile, tileShape)
+                        : new SRModelPool.Key(ModelCatalog.getModelName(context, useGpu), useGpu, -1, tileShape),
+                        width, height, reuseThreshold);
+                incremental.addTo(pipeline);
+            }
+            // GPU and CPU share the frames when there is a GPU delegate, the CPU runs alone otherwise
+            else if (SRModel.isGpuSupported()) {
+                coExecution = new CoExecutionFrameStage(pool, ModelCatalog.getModelName(context, true),
+                        SRBackend.defaultCpuThreads(), width, height);
+                coExecution.addTo(pipeline);
+            }
+            else {
+                // The tuned profile picks the CPU-side accelerator and threads, if tuning succeeded
+                int[] inputShape = new int[]{1, height, width, 3};
+                TuningProfile profile = ModelCatalog.getProfile(context);
+                SRModelPool.Key key = (profile != null)
+                        ? SRModelPool.Key.forProfile(profile, inputShape)
+                        : new SRModelPool.Key(ModelCatalog.getModelName(context, false), false,
+                                SRBackend.defaultCpuThreads(), inputShape);
+                srModel = pool.acquire(key);
+                // Several frames per invocation amortize the dispatch overhead of small frames
+                int batchSize = SRFrameStages.chooseBatchSize(
+                        SRFrameStages.frameBytes(srModel, width, height),
+                        getBatchMemoryBudget());
+                Log.d(TAG, "Video SR batch size " + batchSize);
+                new SRFrameStages(srModel, width, height, batchSize)
+                        .addTo(pipeline, CONVERT_THREADS);
+            }
+            pipeline.addStage("cache_store", 1, this::store);
+        }
+
+        private Frame store(Frame frame) {
+            cacheSRFrame(frame);
+            if (checkpoint != null) {
+                long startTime = SRMetrics.now();
+                try {
+                    checkpoint.append(frame);
+                } catch (IOException e) {
+                    // Only a restarted job would redo the frame
+                    e.printStackTrace();
+                }
+                SRMetrics.getInstance().record("checkpoint", startTime);
+            }
+            return frame;
+        }
+
+        /** @brief  Put an SR frame in the cache, counting it towards the complete sequence
+         *  With a checkpoint, the frame's disk copy is the one in the spool.
+         */
+        private void cacheSRFrame(Frame frame) {
+            FrameCache.Key key = new FrameCache.Key(videoKey, frame.index, srConfig);
+            try {
+                if (checkpoint != null)
+                    cache.putInMemory(key, frame);
+                else
+                    cache.put(key, frame);
+                srWidth = frame.width;
+                srHeight = frame.height;
+                stored.incrementAndGet();
+            } catch (IOException e) {
+                // The frame is only missing from the cache, the video is still encoded
+                e.printStackTrace();
+            }
+        }
+
+        /** @return bytes the batched tensors may take, a share of the currently available memory */
+        private long getBatchMemoryBudget() {
+            return getAvailableMemory() / BATCH_MEMORY_DIVISOR;
+        }
+
+        private long getAvailableMemory() {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            return memoryInfo.availMem;
+        }
+
+        @Override
+        public FrameSink createSink() {
+            // Bitrate from the SR frame size, audio copied from the input
+            FrameSink sink = new MediaCodecFrameSink(context, outputPath,
+                    new VideoEncoderConfig(frameRate, ENCODER_PRESET, 0, inputPath));
+            if (checkpoint == null)
+                return sink;
+
+            // A resumed job encodes the checkpointed frames first. They are cached again on the way, as the
+            // crashed run may not have flushed the cache index, so the whole sequence can be marked complete
+            int resumedFrames = checkpoint.getResumedFrames();
+            return checkpoint.replayCompleted(new FrameSink() {
+                @Override
+                public void write(Frame frame) throws IOException {
+                    if (frame.index < resumedFrames)
+                        cacheSRFrame(frame);
+                    sink.write(frame);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    sink.close();
+                }
+            });
+        }
+
+        /** @brief  Delete the checkpoint once the output is complete */
+        void discardCheckpoint() {
+            if (checkpoint == null)
+                return;
+            try {
+                checkpoint.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void release() {
+            if (checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // Every decoded frame, resumed ones included, was super resolved and stored: the next run only re-encodes
+            try {
+                if (recording != null && recording.exhausted && stored.get() == recording.framesRead)
+                    cache.markComplete(videoKey, srConfig, stored.get(), srWidth, srHeight);
+                cache.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (incremental != null) {
+                incremental.close();
+                Log.d(TAG, String.format("Reused %.1f%% of the tiles, per frame: %s",
+                        incremental.getDetector().getReuseRatio() * 100,
+                        Arrays.toString(incremental.getDetector().getReuseRatios())));
+            }
+            if (srModel != null)
+                pool.release(srModel);
+            if (coExecution != null) {
+                coExecution.close();
+                for (CoExecutionScheduler.BackendStats stats : coExecution.getStats())
+                    Log.d(TAG, stats.toString());
+            }
+        }
+
+
+        /** @brief  Counts the frames read and stores the decoded ones in the cache
+         *  @date   26/10/17
+         */
+        private class RecordingSource implements FrameSource {
+            private final FrameSource source;
+            private final boolean store;
+            volatile int framesRead;
+            volatile boolean exhausted;
+
+            RecordingSource(FrameSource source, boolean store) {
+                this.source = source;
+                this.store = store;
+            }
+
+            @Override
+            public Frame read() throws IOException {
+                Frame frame = source.read();
+                try {
+                    if (frame == null && store)
+                        cache.markComplete(videoKey, FrameCache.LR_CONFIG, framesRead, width, height);
+                    else if (frame != null && store)
+                        cache.put(new FrameCache.Key(videoKey, frame.index, FrameCache.LR_CONFIG), frame);
+                } catch (IOException e) {
+                    // Only the cache misses the frames, decoding goes on
+                    e.printStackTrace();
+                }
+                if (frame == null)
+                    exhausted = true;
+                else
+                    framesRead += 1;
+                return frame;
+            }
+
+            @Override
+            public int getFrameCount() {
+                return source.getFrameCount();
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.mobedsr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/** @brief  Keyframe-aligned part of a video that can be decoded on its own
+ *  @date   26/10/17
+ *  A segment starts at a keyframe, so a decoder seeking to startTime
+ *  needs no frame of the previous segment, and holds frameCount frames.
+ */
+public final class VideoSegment {
+    public final int index;
+    // Seconds from the first keyframe of the video
+    public final double startTime;
+    public final int firstFrame;
+    public final int frameCount;
+
+    VideoSegment(int index, double startTime, int firstFrame, int frameCount) {
+        this.index = index;
+        this.startTime = startTime;
+        this.firstFrame = firstFrame;
+        this.frameCount = frameCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("segment %d: frames [%d, %d) from %.3fs", index, firstFrame,
+                firstFrame + frameCount, startTime);
+    }
+
+
+    /** @brief  Keyframes of a video stream
+     *  @date   26/10/17
+     */
+    public static final class Keyframes {
+        // Frame index and presentation time in seconds of each keyframe
+        public final int[] frames;
+        public final double[] times;
+        public final int frameCount;
+
+        Keyframes(int[] frames, double[] times, int frameCount) {
+            this.frames = frames;
+            this.times = times;
+            this.frameCount = frameCount;
+        }
+    }
+
+
+    /** @brief  Parse the packet list of a video stream
+     *  @date   26/10/17
+     *  One packet per line as printed by
+     *      ffprobe -select_streams v:0 -show_entries packet=pts_time,flags -of csv=p=0
+     *  e.g. "2.002000,K_". Every packet is a frame; keyframes without a
+     *  timestamp cannot be seeked to and are not segment boundaries.
+     */
+    static Keyframes parsePackets(String packets) throws IOException {
+        List<Integer> frames = new ArrayList<>();
+        List<Double> times = new ArrayList<>();
+        int frameCount = 0;
+        BufferedReader in = new BufferedReader(new StringReader(packets));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] fields = line.trim().split(",");
+            if (fields.length < 2)
+                continue;
+            if (fields[1].contains("K")) {
+                try {
+                    times.add(Double.parseDouble(fields[0]));
+                    frames.add(frameCount);
+                } catch (NumberFormatException e) {
+                    // N/A timestamp
+                }
+            }
+            frameCount += 1;
+        }
+        if (frameCount > 0 && (frames.isEmpty() || frames.get(0) != 0))
+            throw new IOException("The video stream does not start with a keyframe");
+
+        int[] frameArray = new int[frames.size()];
+        double[] timeArray = new double[times.size()];
+        for (int i = 0; i < frameArray.length; i++) {
+            frameArray[i] = frames.get(i);
+            timeArray[i] = times.get(i);
+        }
+        return new Keyframes(frameArray, timeArray, frameCount);
+    }
+
+
+    /** @brief  Split a video into about segmentCount segments of similar length
+     *  @date   26/10/17
+     *  Segments start at keyframes: a segment ends at the first keyframe at
+     *  least frameCount / segmentCount frames after its start, so long
+     *  keyframe intervals give fewer, longer segments.
+     */
+    static List<VideoSegment> plan(Keyframes keyframes, int segmentCount) {
+        List<VideoSegment> segments = new ArrayList<>();
+        if (keyframes.frameCount == 0)
+            return segments;
+
+        int target = Math.max(1, (keyframes.frameCount + segmentCount - 1) / segmentCount);
+        double origin = keyframes.times[0];
+        int start = 0;
+        double startTime = 0;
+        for (int k = 1; k < keyframes.frames.length; k++) {
+            int frame = keyframes.frames[k];
+            if (frame - start >= target) {
+                segments.add(new VideoSegment(segments.size(), startTime, start, frame - start));
+                start = frame;
+                startTime = keyframes.times[k] - origin;
+            }
+        }
+        segments.add(new VideoSegment(segments.size(), startTime, start, keyframes.frameCount - start));
+        return segments;
+    }
+}
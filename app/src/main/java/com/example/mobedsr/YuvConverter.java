@@ -0,0 +1,66 @@
+package com.example.mobedsr;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Conversion of ARGB frames to the YUV 4:2:0 planes of a video encoder
+ *  @date   26/10/17
+ *  BT.601 limited range in 8-bit fixed point, as most encoders expect for
+ *  SD and HD content. Chroma is the average of each 2x2 block. The planes
+ *  are written through absolute puts at the given strides, so both planar
+ *  (I420) and semi-planar (NV12) layouts of MediaCodec input images work.
+ */
+public final class YuvConverter {
+    private YuvConverter() {
+    }
+
+
+    /** @brief  Convert an ARGB frame into Y, U and V planes
+     *  @date   26/10/17
+     *  Rows are converted in parallel, two luma rows per chroma row.
+     *  @param  yRowStride    bytes between luma rows, luma pixels are contiguous
+     *  @param  uvRowStride   bytes between chroma rows of u and v
+     *  @param  uvPixelStride bytes between chroma samples, 1 planar or 2 interleaved
+     */
+    public static void argbToYuv420(int[] argb, int width, int height, ByteBuffer y, int yRowStride,
+                                    ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        int chromaHeight = (height + 1) / 2;
+        TensorConverter.forRows(chromaHeight, ForkJoinPool.commonPool(), (rowStart, rowEnd) -> {
+            for (int cy = rowStart; cy < rowEnd; cy++)
+                convertRows(argb, width, height, cy, y, yRowStride, u, v, uvRowStride, uvPixelStride);
+        });
+    }
+
+    private static void convertRows(int[] argb, int width, int height, int cy, ByteBuffer y, int yRowStride,
+                                    ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        int row0 = cy * 2;
+        int row1 = Math.min(row0 + 1, height - 1);
+        for (int row = row0; row <= row1; row++) {
+            int src = row * width;
+            int dst = row * yRowStride;
+            for (int x = 0; x < width; x++)
+                y.put(dst + x, (byte) luma(argb[src + x]));
+        }
+
+        int uvRow = cy * uvRowStride;
+        for (int cx = 0; cx < (width + 1) / 2; cx++) {
+            int x0 = cx * 2;
+            int x1 = Math.min(x0 + 1, width - 1);
+            int p00 = argb[row0 * width + x0], p01 = argb[row0 * width + x1];
+            int p10 = argb[row1 * width + x0], p11 = argb[row1 * width + x1];
+            int r = (((p00 >> 16) & 0xff) + ((p01 >> 16) & 0xff) + ((p10 >> 16) & 0xff) + ((p11 >> 16) & 0xff) + 2) >> 2;
+            int g = (((p00 >> 8) & 0xff) + ((p01 >> 8) & 0xff) + ((p10 >> 8) & 0xff) + ((p11 >> 8) & 0xff) + 2) >> 2;
+            int b = ((p00 & 0xff) + (p01 & 0xff) + (p10 & 0xff) + (p11 & 0xff) + 2) >> 2;
+            int index = uvRow + cx * uvPixelStride;
+            u.put(index, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+            v.put(index, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+        }
+    }
+
+    /** @return limited-range luma, 16 to 235, of an ARGB pixel */
+    static int luma(int pixel) {
+        int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+        return ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+    }
+}
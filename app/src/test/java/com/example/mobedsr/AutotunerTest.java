@@ -0,0 +1,162 @@
+package com.example.mobedsr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Candidate search of Autotuner with fake trials, and persistence of the winning profiles.
+ */
+public class AutotunerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final ModelVariant FP32 = new ModelVariant("fp32", "m.tflite", ModelVariant.Precision.FP32);
+    private static final ModelVariant INT8 = new ModelVariant("int8", "m_int8.tflite", ModelVariant.Precision.INT8);
+
+    /** Sleeps a fixed time per run; unsupported configurations fail to open */
+    private static class FakeRunner implements Autotuner.Runner {
+        final Map<String, Integer> millis = new HashMap<>();
+        final Map<String, Integer> runs = new HashMap<>();
+        int closed;
+
+        FakeRunner latency(String candidate, int ms) {
+            millis.put(candidate, ms);
+            return this;
+        }
+
+        @Override
+        public Autotuner.Trial open(Autotuner.Candidate candidate) throws IOException {
+            String name = candidate.toString();
+            Integer ms = millis.get(name);
+            if (ms == null)
+                throw new IOException(name + " unsupported");
+            return new Autotuner.Trial() {
+                @Override
+                public void run() {
+                    runs.merge(name, 1, Integer::sum);
+                    try {
+                        Thread.sleep(ms);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closed += 1;
+                }
+            };
+        }
+    }
+
+    @Test
+    public void candidates_crossVariantsAcceleratorsAndThreads() {
+        List<Autotuner.Candidate> candidates = Autotuner.candidates(Arrays.asList(FP32, INT8),
+                Arrays.asList(Accelerator.XNNPACK, Accelerator.GPU), new int[]{1, 4});
+
+        assertEquals(6, candidates.size());
+        assertEquals("fp32/xnnpack/1t", candidates.get(0).toString());
+        assertEquals("fp32/xnnpack/4t", candidates.get(1).toString());
+        assertEquals("fp32/gpu", candidates.get(2).toString());
+        assertEquals(-1, candidates.get(5).numThreads);
+    }
+
+    @Test
+    public void threadCounts_powersOfTwoUpToCores() {
+        assertArrayEquals(new int[]{1}, Autotuner.threadCounts(1));
+        assertArrayEquals(new int[]{1, 2, 4, 6}, Autotuner.threadCounts(6));
+        assertArrayEquals(new int[]{1, 2, 4, 8}, Autotuner.threadCounts(8));
+    }
+
+    @Test
+    public void tune_picksFastestAndSkipsUnsupported() throws IOException {
+        FakeRunner runner = new FakeRunner()
+                .latency("fp32/cpu/1t", 12)
+                .latency("fp32/cpu/2t", 7)
+                .latency("int8/cpu/2t", 3)
+                .latency("int8/cpu/1t", 5);
+        List<Autotuner.Candidate> candidates = Autotuner.candidates(Arrays.asList(FP32, INT8),
+                Arrays.asList(Accelerator.CPU, Accelerator.NNAPI), new int[]{1, 2});
+
+        Autotuner.Outcome outcome = new Autotuner().tune(candidates, runner);
+
+        assertEquals("int8/cpu/2t", outcome.best.candidate.toString());
+        assertEquals(3, outcome.best.latencyMs, 2.5);
+        assertEquals(candidates.size(), outcome.results.size());
+        assertNotNull(outcome.results.get(2).error);     // fp32/nnapi
+        assertEquals(4, runner.closed);
+        assertEquals(Autotuner.WARMUP_RUNS + Autotuner.RUNS, (int) runner.runs.get("int8/cpu/2t"));
+    }
+
+    @Test
+    public void tune_prunesFarSlowerCandidatesAfterWarmup() throws IOException {
+        FakeRunner runner = new FakeRunner()
+                .latency("fp32/gpu", 2)
+                .latency("fp32/cpu", 40);
+        List<Autotuner.Candidate> candidates = Autotuner.candidates(Arrays.asList(FP32),
+                Arrays.asList(Accelerator.GPU, Accelerator.CPU), new int[]{-1});
+
+        Autotuner.Outcome outcome = new Autotuner().tune(candidates, runner);
+
+        assertEquals(Accelerator.GPU, outcome.best.candidate.accelerator);
+        assertTrue(outcome.results.get(1).pruned);
+        assertEquals(Autotuner.WARMUP_RUNS, (int) runner.runs.get("fp32/cpu"));
+    }
+
+    @Test(expected = IOException.class)
+    public void tune_failsWhenNothingRuns() throws IOException {
+        new Autotuner().tune(Autotuner.candidates(Arrays.asList(FP32),
+                Arrays.asList(Accelerator.GPU), new int[]{1}), new FakeRunner());
+    }
+
+    @Test
+    public void store_findsProfileByDeviceAndModelHash() throws IOException {
+        TuningProfileStore store = new TuningProfileStore(new File(folder.getRoot(), "profiles"));
+        String device = TuningProfile.deviceKey("Google", "Pixel 6", 33, "2.5.0");
+        assertEquals("Google/Pixel_6/33/2.5.0", device);
+        assertNull(store.find(device, "abc"));
+
+        store.save(new TuningProfile(device, "abc", "m.tflite", Accelerator.XNNPACK, 4, 12.5));
+        store.save(new TuningProfile("other", "abc", "m.tflite", Accelerator.GPU, -1, 8.0));
+        store.save(new TuningProfile(device, "abc", "m_int8.tflite", Accelerator.CPU, 2, 9.25));
+
+        // A new store on the same file, as in the next launch
+        TuningProfile profile = new TuningProfileStore(new File(folder.getRoot(), "profiles")).find(device, "abc");
+        assertEquals("m_int8.tflite", profile.modelFile);
+        assertEquals(Accelerator.CPU, profile.accelerator);
+        assertEquals(2, profile.numThreads);
+        assertEquals(9.25, profile.latencyMs, 1e-9);
+        assertNull(store.find(device, "def"));
+        assertEquals(Accelerator.GPU, store.find("other", "abc").accelerator);
+    }
+
+    @Test
+    public void store_treatsCorruptFileAsEmpty() throws IOException {
+        File file = new File(folder.getRoot(), "profiles");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("profile d h m.tflite TPU 1 2.0\n".getBytes("UTF-8"));
+        }
+        TuningProfileStore store = new TuningProfileStore(file);
+        assertNull(store.find("d", "h"));
+
+        store.save(new TuningProfile("d", "h", "m.tflite", Accelerator.NNAPI, -1, 3.0));
+        assertEquals(Accelerator.NNAPI, store.find("d", "h").accelerator);
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_rejectsMalformedLines() throws IOException {
+        TuningProfileStore.parse(new StringReader("profile d h m.tflite CPU\n"));
+    }
+}
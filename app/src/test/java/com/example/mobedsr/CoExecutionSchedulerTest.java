@@ -0,0 +1,149 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Work split of CoExecutionScheduler between simulated backends of different speeds.
+ */
+public class CoExecutionSchedulerTest {
+
+    /** Sleeps for a fixed time per item, like an interpreter of a given speed */
+    private static class SimulatedBackend implements CoExecutionScheduler.Backend<Integer> {
+        final String name;
+        final long millisPerItem;
+        final long openMillis;
+        final boolean failOpen;
+        final AtomicInteger processed = new AtomicInteger();
+        volatile boolean closed;
+
+        SimulatedBackend(String name, long millisPerItem, long openMillis, boolean failOpen) {
+            this.name = name;
+            this.millisPerItem = millisPerItem;
+            this.openMillis = openMillis;
+            this.failOpen = failOpen;
+        }
+
+        SimulatedBackend(String name, long millisPerItem) {
+            this(name, millisPerItem, 0, false);
+        }
+
+        @Override public String getName() { return name; }
+
+        @Override
+        public void open() throws Exception {
+            Thread.sleep(openMillis);
+            if (failOpen)
+                throw new IllegalStateException(name + " has no delegate");
+        }
+
+        @Override
+        public void process(Integer item) throws Exception {
+            if (item < 0)
+                throw new IllegalArgumentException("bad item " + item);
+            Thread.sleep(millisPerItem);
+            processed.incrementAndGet();
+        }
+
+        @Override public void close() { closed = true; }
+    }
+
+    private static List<Integer> items(int count) {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            items.add(i);
+        return items;
+    }
+
+    @Test
+    public void split_followsMeasuredSpeed() throws Exception {
+        SimulatedBackend gpu = new SimulatedBackend("gpu", 2);
+        SimulatedBackend cpu = new SimulatedBackend("cpu", 8);
+        CoExecutionScheduler<Integer> scheduler = new CoExecutionScheduler<>(Arrays.asList(gpu, cpu), null);
+
+        long start = System.nanoTime();
+        scheduler.executeAll(items(200));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        scheduler.close();
+
+        // Ideal split is 4:1; both together beat the fast backend alone (400ms)
+        double[] shares = scheduler.getShares();
+        assertEquals(200, gpu.processed.get() + cpu.processed.get());
+        assertTrue("gpu share " + shares[0], shares[0] > 0.65 && shares[0] < 0.9);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 400);
+        assertTrue(gpu.closed && cpu.closed);
+    }
+
+    @Test
+    public void wrongInitialWeights_areCorrectedOnline() throws Exception {
+        SimulatedBackend fast = new SimulatedBackend("fast", 2);
+        SimulatedBackend slow = new SimulatedBackend("slow", 10);
+        // Claim the slow backend is ten times faster
+        CoExecutionScheduler<Integer> scheduler = new CoExecutionScheduler<>(
+                Arrays.asList(fast, slow), new double[]{1.0, 10.0});
+
+        scheduler.executeAll(items(50));
+        int slowFirst = slow.processed.get();
+        scheduler.executeAll(items(100));
+        scheduler.close();
+
+        // Once measured, the second batch mostly goes to the fast backend
+        int slowSecond = slow.processed.get() - slowFirst;
+        assertTrue("slow took " + slowSecond + " of the second batch", slowSecond < 35);
+        assertTrue(scheduler.getStats().get(0).itemsPerSecond > scheduler.getStats().get(1).itemsPerSecond);
+    }
+
+    @Test
+    public void idleBackend_stealsFromOneStillOpening() throws Exception {
+        // The GPU delegate takes a while to compile; the CPU should not sit idle meanwhile
+        SimulatedBackend gpu = new SimulatedBackend("gpu", 1, 150, false);
+        SimulatedBackend cpu = new SimulatedBackend("cpu", 3);
+        CoExecutionScheduler<Integer> scheduler = new CoExecutionScheduler<>(
+                Arrays.asList(gpu, cpu), new double[]{10.0, 1.0});
+
+        scheduler.executeAll(items(60));
+        scheduler.close();
+
+        assertTrue(cpu.processed.get() > 0);
+        assertTrue(scheduler.getStats().get(1).stolen > 0);
+    }
+
+    @Test
+    public void failedBackend_handsItsWorkToTheOthers() throws Exception {
+        SimulatedBackend gpu = new SimulatedBackend("gpu", 1, 20, true);
+        SimulatedBackend cpu = new SimulatedBackend("cpu", 1);
+        CoExecutionScheduler<Integer> scheduler = new CoExecutionScheduler<>(
+                Arrays.asList(gpu, cpu), new double[]{10.0, 1.0});
+
+        scheduler.executeAll(items(40));
+        scheduler.close();
+
+        assertEquals(40, cpu.processed.get());
+        assertTrue(scheduler.getStats().get(0).failed);
+    }
+
+    @Test
+    public void itemFailure_isReportedAfterTheRestFinished() throws Exception {
+        SimulatedBackend a = new SimulatedBackend("a", 1);
+        SimulatedBackend b = new SimulatedBackend("b", 1);
+        CoExecutionScheduler<Integer> scheduler = new CoExecutionScheduler<>(Arrays.asList(a, b), null);
+
+        List<Integer> items = items(20);
+        items.set(5, -1);
+        try {
+            scheduler.executeAll(items);
+            fail("Expected the failure of item -1");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        scheduler.close();
+        assertEquals(19, a.processed.get() + b.processed.get());
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.mobedsr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * LRU eviction of both tiers, frame files, persistence of the index and
+ * replay of complete sequences in FrameCache.
+ */
+public class FrameCacheTest {
+    private static final String VIDEO = "1234:5678:/sdcard/DCIM/my video.mp4";
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final long FRAME_BYTES = WIDTH * HEIGHT * 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Frame frame(int index) {
+        return new Frame(index, WIDTH, HEIGHT, TestImages.random(WIDTH, HEIGHT, index));
+    }
+
+    private static FrameCache.Key key(int index) {
+        return new FrameCache.Key(VIDEO, index, "full/model x4.tflite");
+    }
+
+    private static int frameFiles(File dir) {
+        return dir.list((d, name) -> name.endsWith(FrameCache.FRAME_SUFFIX)).length;
+    }
+
+    @Test
+    public void frameFiles_roundTripRawAndDeflated() throws IOException {
+        Frame frame = frame(3);
+        for (boolean compress : new boolean[]{false, true}) {
+            File file = folder.newFile();
+            FrameCache.writeFrame(file, frame, compress);
+            Frame read = FrameCache.readFrame(file, 3);
+            assertEquals(WIDTH, read.width);
+            assertArrayEquals(frame.pixels, read.pixels);
+        }
+    }
+
+    @Test
+    public void memoryTier_evictsLeastRecentlyUsedThenHitsDisk() throws IOException {
+        FrameCache cache = new FrameCache(folder.newFolder(), 2 * FRAME_BYTES, 1 << 20, true);
+        cache.put(key(0), frame(0));
+        cache.put(key(1), frame(1));
+        assertNotNull(cache.get(key(0)));
+        // Frame 1 is now the least recently used
+        cache.put(key(2), frame(2));
+
+        FrameCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.memoryHits);
+        assertEquals(1, stats.memoryEvictions);
+        assertEquals(2 * FRAME_BYTES, stats.memoryBytes);
+
+        assertArrayEquals(frame(1).pixels, cache.get(key(1)).pixels);
+        assertNull(cache.get(key(7)));
+        stats = cache.getStats();
+        assertEquals(1, stats.diskHits);
+        assertEquals(1, stats.misses);
+        assertEquals(2.0 / 3.0, stats.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void diskTier_evictsOverBudgetAndBreaksSequence() throws IOException {
+        File dir = folder.newFolder();
+        // Raw files are FRAME_BYTES * 3/4 plus a header: three fit, four do not
+        FrameCache cache = new FrameCache(dir, 0, 3 * FRAME_BYTES * 3 / 4 + 64, false);
+        for (int i = 0; i < 3; i++)
+            cache.put(key(i), frame(i));
+        cache.markComplete(VIDEO, key(0).config, 3, WIDTH, HEIGHT);
+        assertNotNull(cache.getSequence(VIDEO, key(0).config));
+
+        cache.put(key(3), frame(3));
+        assertEquals(1, cache.getStats().diskEvictions);
+        assertEquals(3, frameFiles(dir));
+        assertNull(cache.get(key(0)));
+        assertNull(cache.getSequence(VIDEO, key(0).config));
+    }
+
+    @Test
+    public void index_survivesReopenAndReplaysSequence() throws IOException {
+        File dir = folder.newFolder();
+        FrameCache cache = new FrameCache(dir, 1 << 20, 1 << 20, true);
+        for (int i = 0; i < 4; i++)
+            cache.put(key(i), frame(i));
+        cache.markComplete(VIDEO, key(0).config, 4, WIDTH, HEIGHT);
+        cache.close();
+        // Left behind by a crashed run
+        assertTrue(new File(dir, "ffffffff" + FrameCache.FRAME_SUFFIX).createNewFile());
+
+        FrameCache reopened = new FrameCache(dir, 1 << 20, 1 << 20, true);
+        assertEquals(4, frameFiles(dir));
+        FrameCache.SequenceSource source = reopened.openSequence(VIDEO, key(0).config);
+        assertNotNull(source);
+        assertEquals(4, source.getFrameCount());
+        assertEquals(WIDTH, source.getWidth());
+        for (int i = 0; i < 4; i++) {
+            Frame frame = source.read();
+            assertEquals(i, frame.index);
+            assertArrayEquals(frame(i).pixels, frame.pixels);
+        }
+        assertNull(source.read());
+        assertEquals(4, reopened.getStats().diskHits);
+        assertNull(reopened.openSequence(VIDEO, FrameCache.LR_CONFIG));
+
+        // New frames are not written over the old files
+        reopened.put(key(9), frame(9));
+        assertEquals(5, frameFiles(dir));
+    }
+
+    @Test
+    public void corruptIndex_emptiesTheDiskTier() throws IOException {
+        File dir = folder.newFolder();
+        FrameCache cache = new FrameCache(dir, 1 << 20, 1 << 20, false);
+        cache.put(key(0), frame(0));
+        cache.close();
+        try (FileWriter writer = new FileWriter(new File(dir, FrameCache.INDEX_FILE), true)) {
+            writer.write("garbage\n");
+        }
+
+        FrameCache reopened = new FrameCache(dir, 1 << 20, 1 << 20, false);
+        assertNull(reopened.get(key(0)));
+        assertEquals(0, frameFiles(dir));
+        assertEquals(0, reopened.getStats().diskBytes);
+    }
+}
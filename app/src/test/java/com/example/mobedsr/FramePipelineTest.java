@@ -0,0 +1,149 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, failure handling and stage metrics of FramePipeline.
+ */
+public class FramePipelineTest {
+
+    private static FrameSource source(final int frameCount) {
+        return new FrameSource() {
+            int next;
+
+            @Override
+            public Frame read() {
+                return next < frameCount ? new Frame(next++, 1, 1, new int[]{next}) : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static class ListSink implements FrameSink {
+        final List<Integer> indices = new ArrayList<>();
+
+        @Override
+        public void write(Frame frame) {
+            indices.add(frame.index);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void sleepRandomly(Random random) {
+        try {
+            Thread.sleep(random.nextInt(3));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void multiThreadedStages_keepSourceOrder() throws Exception {
+        final Random random = new Random(3);
+        ListSink sink = new ListSink();
+        FramePipeline pipeline = new FramePipeline(source(200), sink, 2)
+                .addStage("a", 4, frame -> {
+                    sleepRandomly(random);
+                    return frame;
+                })
+                .addStage("b", 1, frame -> frame)
+                .addStage("c", 3, frame -> {
+                    sleepRandomly(random);
+                    return frame;
+                });
+
+        pipeline.run();
+
+        assertEquals(200, sink.indices.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals(i, (int) sink.indices.get(i));
+        assertEquals(200, pipeline.getProcessedFrames());
+    }
+
+    @Test
+    public void stats_pointAtSlowestStage() throws Exception {
+        FramePipeline pipeline = new FramePipeline(source(30), new ListSink(), 2)
+                .addStage("fast", 1, frame -> frame)
+                .addStage("slow", 1, frame -> {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return frame;
+                });
+
+        pipeline.run();
+
+        List<FramePipeline.StageStats> stats = pipeline.getStats();
+        assertEquals(4, stats.size());
+        assertEquals("decode", stats.get(0).name);
+        assertEquals("encode", stats.get(3).name);
+        assertEquals("slow", pipeline.getBottleneck().name);
+        assertEquals(30, stats.get(2).getFrames());
+    }
+
+    @Test
+    public void stageFailure_stopsPipeline() throws Exception {
+        ListSink sink = new ListSink();
+        FramePipeline pipeline = new FramePipeline(source(1000), sink, 2)
+                .addStage("sr", 2, frame -> {
+                    if (frame.index == 10)
+                        throw new IOException("inference failed");
+                    return frame;
+                });
+
+        try {
+            pipeline.run();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("inference failed", e.getCause().getMessage());
+        }
+        assertTrue(sink.indices.size() < 1000);
+    }
+
+    @Test
+    public void batchStage_cutsLastBatchShortAndKeepsOrder() throws Exception {
+        final Random random = new Random(5);
+        final List<Integer> batchSizes = new ArrayList<>();
+        ListSink sink = new ListSink();
+        FramePipeline pipeline = new FramePipeline(source(10), sink, 2)
+                .addBatchStage("infer", 4, frames -> {
+                    batchSizes.add(frames.size());
+                    return frames;
+                })
+                .addStage("convert", 3, frame -> {
+                    sleepRandomly(random);
+                    return frame;
+                });
+
+        pipeline.run();
+
+        assertEquals(Arrays.asList(4, 4, 2), batchSizes);
+        assertEquals(10, sink.indices.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, (int) sink.indices.get(i));
+        assertEquals(10, pipeline.getStats().get(1).getFrames());
+    }
+
+    @Test(expected = IOException.class)
+    public void batchStage_mustReturnOneFramePerInput() throws Exception {
+        new FramePipeline(source(5), new ListSink(), 2)
+                .addBatchStage("infer", 2, frames -> frames.subList(0, 1))
+                .run();
+    }
+}
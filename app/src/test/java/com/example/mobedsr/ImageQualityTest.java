@@ -0,0 +1,172 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * PSNR / SSIM of ImageQuality against direct per-window implementations,
+ * and agreement between input types and between serial and fork-join runs.
+ */
+public class ImageQualityTest {
+
+    // Smooth gradient plus noise, closer to SR outputs than white noise
+    private static int[] distorted(int[] pixels, Random random, int noise) {
+        int[] out = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int p = pixels[i];
+            int r = clamp(((p >> 16) & 0xFF) + random.nextInt(2 * noise + 1) - noise);
+            int g = clamp(((p >> 8) & 0xFF) + random.nextInt(2 * noise + 1) - noise);
+            int b = clamp((p & 0xFF) + random.nextInt(2 * noise + 1) - noise);
+            out[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        return out;
+    }
+
+    private static int[] gradient(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                pixels[y * width + x] = 0xFF000000 | ((x * 3 & 0xFF) << 16) | ((y * 5 & 0xFF) << 8) | ((x + y) & 0xFF);
+        return pixels;
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static double channel(int pixel, int c) {
+        return (pixel >> (16 - 8 * c)) & 0xFF;
+    }
+
+    // Direct SSIM of channel c: full 2D Gaussian window at every valid position
+    private static double naiveSsim(int[] a, int[] b, int width, int height, int c) {
+        int size = ImageQuality.WINDOW;
+        double[] w = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            double d = i - size / 2;
+            w[i] = Math.exp(-d * d / 4.5);
+            total += w[i];
+        }
+        double c1 = 6.5025, c2 = 58.5225;
+        double sum = 0;
+        int windows = 0;
+        for (int y = 0; y + size <= height; y++) {
+            for (int x = 0; x + size <= width; x++) {
+                double muA = 0, muB = 0, aa = 0, bb = 0, ab = 0;
+                for (int j = 0; j < size; j++) {
+                    for (int i = 0; i < size; i++) {
+                        double weight = w[j] * w[i] / (total * total);
+                        double va = channel(a[(y + j) * width + x + i], c);
+                        double vb = channel(b[(y + j) * width + x + i], c);
+                        muA += weight * va;
+                        muB += weight * vb;
+                        aa += weight * va * va;
+                        bb += weight * vb * vb;
+                        ab += weight * va * vb;
+                    }
+                }
+                double varA = aa - muA * muA, varB = bb - muB * muB, cov = ab - muA * muB;
+                sum += ((2 * muA * muB + c1) * (2 * cov + c2)) / ((muA * muA + muB * muB + c1) * (varA + varB + c2));
+                windows++;
+            }
+        }
+        return sum / windows;
+    }
+
+    @Test
+    public void identicalImages_haveInfinitePsnrAndUnitSsim() {
+        int[] pixels = gradient(40, 30);
+        ImageQuality.Result result = ImageQuality.evaluate(
+                ImageQuality.ofArgb(pixels, 40, 30), ImageQuality.ofArgb(pixels, 40, 30));
+
+        assertEquals(Double.POSITIVE_INFINITY, result.getPsnr(), 0.0);
+        assertEquals(1.0, result.getSsim(), 1e-6);
+        assertEquals(1.0, result.getSsim(ImageQuality.Channel.Y), 1e-6);
+    }
+
+    @Test
+    public void psnr_matchesIntegerImplementation() {
+        Random random = new Random(1);
+        int[] hr = TestImages.random(random, 64 * 48);
+        int[] sr = distorted(hr, random, 9);
+        ImageQuality.Result result = ImageQuality.evaluate(
+                ImageQuality.ofArgb(sr, 64, 48), ImageQuality.ofArgb(hr, 64, 48));
+
+        assertEquals(ImageQuality.psnr(sr, hr), result.getPsnr(), 1e-9);
+    }
+
+    @Test
+    public void ssim_matchesNaiveWindows() {
+        int width = 45;
+        int height = 77;
+        Random random = new Random(2);
+        int[] hr = gradient(width, height);
+        int[] sr = distorted(hr, random, 20);
+
+        // Serial, so that bands of BAND_ROWS and their halos are exercised in order
+        ImageQuality.Result result = ImageQuality.evaluate(
+                ImageQuality.ofArgb(sr, width, height), ImageQuality.ofArgb(hr, width, height), 0, null);
+
+        assertEquals(naiveSsim(sr, hr, width, height, 0), result.getSsim(ImageQuality.Channel.R), 1e-4);
+        assertEquals(naiveSsim(sr, hr, width, height, 1), result.getSsim(ImageQuality.Channel.G), 1e-4);
+        assertEquals(naiveSsim(sr, hr, width, height, 2), result.getSsim(ImageQuality.Channel.B), 1e-4);
+        assertTrue(result.getSsim() < 1.0);
+    }
+
+    @Test
+    public void parallel_matchesSerial() {
+        int width = 131;
+        int height = 203;
+        Random random = new Random(3);
+        int[] hr = gradient(width, height);
+        int[] sr = distorted(hr, random, 6);
+        ImageQuality.Image a = ImageQuality.ofArgb(sr, width, height);
+        ImageQuality.Image b = ImageQuality.ofArgb(hr, width, height);
+
+        ImageQuality.Result serial = ImageQuality.evaluate(a, b, 4, null);
+        ImageQuality.Result parallel = ImageQuality.evaluate(a, b, 4, new ForkJoinPool(4));
+
+        for (ImageQuality.Channel channel : ImageQuality.Channel.values()) {
+            assertEquals(serial.getPsnr(channel), parallel.getPsnr(channel), 1e-9);
+            assertEquals(serial.getSsim(channel), parallel.getSsim(channel), 1e-9);
+        }
+    }
+
+    @Test
+    public void tensor_matchesArgb() {
+        int width = 33;
+        int height = 21;
+        int tensorWidth = 40;
+        Random random = new Random(4);
+        int[] hr = gradient(width, height);
+        int[] sr = distorted(hr, random, 12);
+
+        // SR output in a padded tensor, as produced by SRModel.superResolve()
+        FloatBuffer tensor = FloatBuffer.allocate(tensorWidth * height * 3);
+        TensorConverter.argbToFloat(sr, width, height, tensor, tensorWidth, height);
+
+        ImageQuality.Result fromArgb = ImageQuality.evaluate(
+                ImageQuality.ofArgb(sr, width, height), ImageQuality.ofArgb(hr, width, height));
+        ImageQuality.Result fromTensor = ImageQuality.evaluate(
+                ImageQuality.ofTensor(tensor, tensorWidth, width, height), ImageQuality.ofArgb(hr, width, height));
+
+        assertEquals(fromArgb.getPsnr(), fromTensor.getPsnr(), 1e-3);
+        assertEquals(fromArgb.getSsim(ImageQuality.Channel.Y), fromTensor.getSsim(ImageQuality.Channel.Y), 1e-5);
+    }
+
+    @Test
+    public void smallImage_hasPsnrButNoSsim() {
+        int[] a = gradient(8, 8);
+        ImageQuality.Result result = ImageQuality.evaluate(
+                ImageQuality.ofArgb(a, 8, 8), ImageQuality.ofArgb(distorted(a, new Random(5), 3), 8, 8));
+
+        assertTrue(result.getPsnr() > 30.0);
+        assertTrue(Double.isNaN(result.getSsim()));
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.mobedsr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Append, recovery of partial and corrupt entries, config changes, clean-up
+ * and resuming through the source and sink wrappers of JobCheckpoint.
+ */
+public class JobCheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String CONFIG = "native:video.mp4|full/x4.tflite";
+
+    private static Frame frame(int index) {
+        int[] pixels = new int[8 * 6];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0xff000000 | ((index * 31 + i * 7919) & 0xffffff);
+        return new Frame(index, 8, 6, pixels);
+    }
+
+    private JobCheckpoint appendFrames(File directory, int count) throws IOException {
+        JobCheckpoint checkpoint = JobCheckpoint.open(directory, CONFIG);
+        for (int i = 0; i < count; i++)
+            checkpoint.append(frame(i));
+        return checkpoint;
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    // Source of count frames, counting the reads
+    private static class CountingSource implements FrameSource {
+        final int count;
+        int reads;
+
+        CountingSource(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Frame read() {
+            return (reads < count) ? frame(reads++) : null;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void reopen_resumesAfterTheCompletedFrames() throws IOException {
+        File directory = folder.newFolder("jobs");
+        appendFrames(directory, 20).close();
+
+        try (JobCheckpoint checkpoint = JobCheckpoint.open(directory, CONFIG)) {
+            assertEquals(20, checkpoint.getResumedFrames());
+            assertEquals(0, checkpoint.getDroppedEntries());
+            for (int i = 0; i < 20; i++)
+                assertArrayEquals(frame(i).pixels, checkpoint.read(i).pixels);
+            assertFalse(checkpoint.contains(20));
+        }
+    }
+
+    @Test
+    public void append_syncsInBatches() throws IOException {
+        File directory = folder.newFolder("jobs");
+        JobCheckpoint checkpoint = appendFrames(directory, JobCheckpoint.SYNC_FRAMES + 3);
+
+        // Header, one line per frame, and a single sync line so far
+        List<String> log = lines(checkpoint.getLogFile());
+        assertEquals(1 + JobCheckpoint.SYNC_FRAMES + 3 + 1, log.size());
+        assertTrue(log.get(JobCheckpoint.SYNC_FRAMES + 1).startsWith("sync " + JobCheckpoint.SYNC_FRAMES + " "));
+        checkpoint.close();
+        assertTrue(lines(checkpoint.getLogFile()).get(log.size()).startsWith("sync "));
+    }
+
+    @Test
+    public void reopen_dropsAPartialOrCorruptLastEntry() throws IOException {
+        File directory = folder.newFolder("jobs");
+        JobCheckpoint checkpoint = appendFrames(directory, 5);
+        checkpoint.close();
+        File logFile = checkpoint.getLogFile();
+
+        // A crash in the middle of the last line
+        List<String> log = lines(logFile);
+        String partial = String.join("\n", log.subList(0, 5)) + "\n" + log.get(5).substring(0, 10);
+        Files.write(logFile.toPath(), partial.getBytes(StandardCharsets.UTF_8));
+        try (JobCheckpoint reopened = JobCheckpoint.open(directory, CONFIG)) {
+            assertEquals(4, reopened.getResumedFrames());
+            assertEquals(1, reopened.getDroppedEntries());
+            reopened.append(frame(4));
+        }
+
+        // A flipped digit fails the line CRC
+        log = lines(logFile);
+        log.set(3, log.get(3).replaceFirst("frame 2 ", "frame 7 "));
+        Files.write(logFile.toPath(), (String.join("\n", log) + "\n").getBytes(StandardCharsets.UTF_8));
+        try (JobCheckpoint reopened = JobCheckpoint.open(directory, CONFIG)) {
+            assertEquals(2, reopened.getResumedFrames());
+            assertEquals(log.size() - 3, reopened.getDroppedEntries());
+            assertEquals(3, lines(logFile).size());
+        }
+    }
+
+    @Test
+    public void reopen_recomputesFramesWhoseBytesWereLost() throws IOException {
+        File directory = folder.newFolder("jobs");
+        JobCheckpoint checkpoint = appendFrames(directory, JobCheckpoint.SYNC_FRAMES);
+        File spoolFile = checkpoint.getSpoolFile();
+        long synced = spoolFile.length();
+        for (int i = JobCheckpoint.SYNC_FRAMES; i < JobCheckpoint.SYNC_FRAMES + 4; i++)
+            checkpoint.append(frame(i));
+
+        // Killed before the next sync: the log reached the disk, the bytes of the first unsynced frame did not
+        try (RandomAccessFile spool = new RandomAccessFile(spoolFile, "rw")) {
+            spool.seek(synced + 4);
+            spool.write(new byte[20]);
+        }
+        try (JobCheckpoint reopened = JobCheckpoint.open(directory, CONFIG)) {
+            assertEquals(JobCheckpoint.SYNC_FRAMES, reopened.getResumedFrames());
+            assertEquals(4, reopened.getDroppedEntries());
+            assertEquals(synced, spoolFile.length());
+            reopened.append(frame(JobCheckpoint.SYNC_FRAMES));
+            assertArrayEquals(frame(JobCheckpoint.SYNC_FRAMES).pixels,
+                    reopened.read(JobCheckpoint.SYNC_FRAMES).pixels);
+        }
+    }
+
+    @Test
+    public void reopen_recomputesFromTheFirstCorruptSyncedFrame() throws IOException {
+        File directory = folder.newFolder("jobs");
+        JobCheckpoint checkpoint = appendFrames(directory, 10);
+        checkpoint.close();
+
+        // A bit flip in frame 3, long after it was synced: it and the frames after it are recomputed
+        String[] entry = lines(checkpoint.getLogFile()).get(4).split(" ");
+        assertEquals("3", entry[1]);
+        long offset = Long.parseLong(entry[2]);
+        try (RandomAccessFile spool = new RandomAccessFile(checkpoint.getSpoolFile(), "rw")) {
+            spool.seek(offset + Long.parseLong(entry[3]) - 1);
+            int last = spool.read();
+            spool.seek(offset + Long.parseLong(entry[3]) - 1);
+            spool.write(last ^ 1);
+        }
+        try (JobCheckpoint reopened = JobCheckpoint.open(directory, CONFIG)) {
+            assertEquals(3, reopened.getResumedFrames());
+            assertEquals(7, reopened.getDroppedEntries());
+            assertEquals(offset, checkpoint.getSpoolFile().length());
+            assertFalse(reopened.contains(3));
+            reopened.append(frame(3));
+            assertArrayEquals(frame(3).pixels, reopened.read(3).pixels);
+        }
+    }
+
+    @Test
+    public void cleanUp_deletesOldThenOldestCheckpointsOverTheBudget() throws IOException {
+        File directory = folder.newFolder("jobs");
+        long now = System.currentTimeMillis();
+        long hour = 60 * 60 * 1000L;
+        List<JobCheckpoint> jobs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            JobCheckpoint job = JobCheckpoint.open(directory, CONFIG + i);
+            for (int f = 0; f < 3; f++)
+                job.append(frame(f));
+            job.close();
+            // Job 0 is the oldest, and older than the age limit
+            long modified = now - (4 - i) * hour - ((i == 0) ? 100 * hour : 0);
+            assertTrue(job.getLogFile().setLastModified(modified));
+            assertTrue(job.getSpoolFile().setLastModified(modified));
+            jobs.add(job);
+        }
+        long jobBytes = jobs.get(1).getLogFile().length() + jobs.get(1).getSpoolFile().length();
+
+        // Only the old one goes while the rest fits
+        assertEquals(1, JobCheckpoint.cleanUp(directory, null, 4 * jobBytes, 10 * hour, now));
+        assertFalse(jobs.get(0).getLogFile().exists());
+        assertFalse(jobs.get(0).getSpoolFile().exists());
+
+        // Over the budget the oldest go first, never the kept one
+        assertEquals(2, JobCheckpoint.cleanUp(directory, CONFIG + 1, jobBytes, 10 * hour, now));
+        assertTrue(jobs.get(1).getLogFile().exists());
+        assertFalse(jobs.get(2).getLogFile().exists());
+        assertFalse(jobs.get(3).getLogFile().exists());
+        try (JobCheckpoint kept = JobCheckpoint.open(directory, CONFIG + 1)) {
+            assertEquals(3, kept.getResumedFrames());
+        }
+    }
+
+    @Test
+    public void open_startsOverForAnotherConfig() throws IOException {
+        File directory = folder.newFolder("jobs");
+        appendFrames(directory, 3).close();
+        try (JobCheckpoint other = JobCheckpoint.open(directory, CONFIG + "-int8")) {
+            assertEquals(0, other.getResumedFrames());
+        }
+        JobCheckpoint same = JobCheckpoint.open(directory, CONFIG);
+        assertEquals(3, same.getResumedFrames());
+        same.delete();
+        assertFalse(same.getLogFile().exists());
+        assertFalse(same.getSpoolFile().exists());
+    }
+
+    @Test
+    public void resume_skipsTheSourceAndReplaysTheSink() throws IOException {
+        File directory = folder.newFolder("jobs");
+        appendFrames(directory, 6).close();
+
+        try (JobCheckpoint checkpoint = JobCheckpoint.open(directory, CONFIG)) {
+            FrameSource source = checkpoint.skipCompleted(new CountingSource(10));
+            assertEquals(4, source.getFrameCount());
+            List<Integer> written = new ArrayList<>();
+            FrameSink sink = checkpoint.replayCompleted(new FrameSink() {
+                @Override
+                public void write(Frame frame) {
+                    assertArrayEquals(frame(frame.index).pixels, frame.pixels);
+                    written.add(frame.index);
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+
+            Frame frame;
+            while ((frame = source.read()) != null) {
+                assertTrue(frame.index >= 6);
+                sink.write(frame);
+            }
+            sink.close();
+            assertEquals(10, written.size());
+            for (int i = 0; i < written.size(); i++)
+                assertEquals(i, (int) written.get(i));
+        }
+    }
+}
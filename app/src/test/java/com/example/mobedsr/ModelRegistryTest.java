@@ -0,0 +1,139 @@
+package com.example.mobedsr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Shared mappings, checksums and reference-counted unloading of
+ * ModelRegistry over model files of a directory.
+ */
+public class ModelRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // SHA-256 of "abc"
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    // Counts the mappings made by the file source
+    private static class CountingSource implements ModelRegistry.Source {
+        final ModelRegistry.Source files;
+        int maps;
+
+        CountingSource(File directory) {
+            files = new ModelRegistry.FileSource(directory);
+        }
+
+        @Override
+        public MappedByteBuffer map(String name) throws IOException {
+            maps += 1;
+            return files.map(name);
+        }
+    }
+
+    private CountingSource models() throws IOException {
+        File directory = folder.newFolder("models");
+        Files.write(new File(directory, "x4.tflite").toPath(), "abc".getBytes("UTF-8"));
+        Files.write(new File(directory, "x2.tflite").toPath(), new byte[]{1, 2, 3, 4});
+        return new CountingSource(directory);
+    }
+
+    @Test
+    public void acquire_mapsOnceAndSharesTheBuffer() throws IOException {
+        CountingSource source = models();
+        ModelRegistry registry = new ModelRegistry(source, Collections.singletonMap("x4.tflite", ABC_SHA256));
+
+        ModelRegistry.Model a = registry.acquire("x4.tflite");
+        ModelRegistry.Model b = registry.acquire("x4.tflite");
+        ModelRegistry.Model x2 = registry.acquire("x2.tflite");
+        assertSame(a, b);
+        assertSame(a.buffer, b.buffer);
+        assertEquals(ABC_SHA256, a.sha256);
+        assertEquals(2, source.maps);
+        assertEquals(2, registry.getReferences("x4.tflite"));
+        assertEquals(4, x2.buffer.capacity());
+        assertTrue(a.buffer.isReadOnly());
+        try {
+            a.buffer.put(0, (byte) 0);
+            fail("Models are read-only");
+        } catch (ReadOnlyBufferException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void release_unloadsAfterTheLastReference() throws IOException {
+        CountingSource source = models();
+        ModelRegistry registry = new ModelRegistry(source, Collections.<String, String>emptyMap());
+
+        ModelRegistry.Model a = registry.acquire("x4.tflite");
+        ModelRegistry.Model b = registry.acquire("x4.tflite");
+        registry.release(a);
+        assertTrue(registry.isLoaded("x4.tflite"));
+        registry.release(b);
+        assertFalse(registry.isLoaded("x4.tflite"));
+        try {
+            registry.release(b);
+            fail("Released twice");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("x4.tflite"));
+        }
+
+        // Loaded again on demand, as a new mapping
+        ModelRegistry.Model c = registry.acquire("x4.tflite");
+        assertNotSame(a, c);
+        assertEquals(ABC_SHA256, c.sha256);
+        assertEquals(2, source.maps);
+        assertEquals(2, registry.getLoadCount());
+    }
+
+    @Test
+    public void acquire_refusesAModelWithTheWrongChecksum() throws IOException {
+        Map<String, String> checksums = new HashMap<>();
+        checksums.put("x4.tflite", ABC_SHA256.toUpperCase());
+        checksums.put("x2.tflite", ABC_SHA256);
+        ModelRegistry registry = new ModelRegistry(models(), checksums);
+
+        assertNotNull(registry.acquire("x4.tflite"));
+        try {
+            registry.acquire("x2.tflite");
+            fail("Checksum mismatch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("x2.tflite"));
+        }
+        assertFalse(registry.isLoaded("x2.tflite"));
+        try {
+            registry.acquire("missing.tflite");
+            fail("No such model");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void manifest_readsOptionalChecksums() throws IOException {
+        ModelManifest manifest = ModelManifest.parse(new StringReader(
+                "model fp32 a.tflite FP32 " + ABC_SHA256 + "\nmodel int8 b.tflite INT8\n"));
+        assertEquals(ABC_SHA256, manifest.getVariants().get(0).sha256);
+        assertNull(manifest.getVariants().get(1).sha256);
+
+        try {
+            ModelManifest.parse(new StringReader("model fp32 a.tflite FP32 abc\n"));
+            fail("Malformed checksum");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("SHA-256"));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Manifest parsing, 8-bit (de)quantization and the PSNR guardrail of ModelSelector,
+ * with a fake runner standing in for the interpreters.
+ */
+public class ModelSelectorTest {
+    private static final String MANIFEST =
+            "# variants\n"
+            + "model fp32 evsrnet_x4.tflite FP32\n"
+            + "model fp16 evsrnet_x4_fp16.tflite FP16   # float I/O\n"
+            + "\n"
+            + "model int8 evsrnet_x4_int8.tflite INT8\n"
+            + "calibration a.jpg\n"
+            + "calibration b.jpg\n";
+
+    private static final int PIXELS = 32 * 32;
+
+    private static int[] image(int seed) {
+        int[] pixels = new int[PIXELS];
+        for (int i = 0; i < PIXELS; i++)
+            pixels[i] = 0xFF000000 | (((i + seed) * 40503) & 0xFFFFFF);
+        return pixels;
+    }
+
+    // Adds +-noise to every channel of the reference output
+    private static int[] noisy(int[] pixels, int noise) {
+        int[] out = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int n = (i % 2 == 0) ? noise : -noise;
+            int r = Math.max(0, Math.min(255, ((pixels[i] >> 16) & 0xFF) + n));
+            int g = Math.max(0, Math.min(255, ((pixels[i] >> 8) & 0xFF) + n));
+            int b = Math.max(0, Math.min(255, (pixels[i] & 0xFF) + n));
+            out[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        return out;
+    }
+
+    /** Fake variants: latency and noise per precision, int8 optionally missing */
+    private static ModelSelector.Runner runner(int int8Noise, boolean int8Missing) {
+        return (variant, image) -> {
+            int[] reference = image(image);
+            switch (variant.precision) {
+                case FP16:
+                    return new ModelSelector.Output(noisy(reference, 1), 60_000_000L);
+                case INT8:
+                    if (int8Missing)
+                        throw new IOException(variant.file + " not found");
+                    return new ModelSelector.Output(noisy(reference, int8Noise), 25_000_000L);
+                default:
+                    return new ModelSelector.Output(reference, 100_000_000L);
+            }
+        };
+    }
+
+    @Test
+    public void parse_readsVariantsAndCalibration() throws Exception {
+        ModelManifest manifest = ModelManifest.parse(new StringReader(MANIFEST));
+
+        assertEquals(3, manifest.getVariants().size());
+        assertEquals("evsrnet_x4_fp16.tflite", manifest.getVariants().get(1).file);
+        assertEquals(ModelVariant.Precision.INT8, manifest.getVariants().get(2).precision);
+        assertEquals("fp32", manifest.getReference().name);
+        assertEquals(2, manifest.getCalibrationImages().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_rejectsManifestWithoutReference() throws Exception {
+        ModelManifest.parse(new StringReader("model int8 a.tflite INT8\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_rejectsUnknownPrecision() throws Exception {
+        ModelManifest.parse(new StringReader("model fp32 a.tflite FP32\nmodel x b.tflite INT4\n"));
+    }
+
+    @Test
+    public void psnr_matchesClosedForm() {
+        int[] a = image(0);
+        assertEquals(Double.POSITIVE_INFINITY, ImageQuality.psnr(a, a), 0.0);
+        // Every channel off by 2 (unclamped except at 0/255): close to 20 * log10(255 / 2)
+        assertEquals(42.1, ImageQuality.psnr(a, noisy(a, 2)), 0.3);
+    }
+
+    @Test
+    public void select_picksFastestVariantWithinGuardrail() throws Exception {
+        ModelManifest manifest = ModelManifest.parse(new StringReader(MANIFEST));
+        ModelSelector.Selection selection = new ModelSelector().select(manifest, runner(3, false), 2);
+
+        assertEquals("int8", selection.selected.name);
+        assertEquals(3, selection.reports.size());
+        assertEquals(25.0, selection.reports.get(2).latencyMs, 1e-9);
+    }
+
+    @Test
+    public void select_rejectsVariantBelowThreshold() throws Exception {
+        ModelManifest manifest = ModelManifest.parse(new StringReader(MANIFEST));
+        // +-40 per channel is about 16 dB
+        ModelSelector.Selection selection = new ModelSelector().select(manifest, runner(40, false), 2);
+
+        assertEquals("fp16", selection.selected.name);
+        assertFalse(selection.reports.get(2).passed);
+        assertTrue(selection.reports.get(2).minPsnr < ModelSelector.DEFAULT_MIN_PSNR);
+    }
+
+    @Test
+    public void select_skipsMissingVariant() throws Exception {
+        ModelManifest manifest = ModelManifest.parse(new StringReader(MANIFEST));
+        ModelSelector.Selection selection = new ModelSelector(60.0).select(manifest, runner(3, true), 2);
+
+        // fp16 is below 60 dB, int8 cannot load: the reference remains
+        assertEquals("fp32", selection.selected.name);
+        assertNotNull(selection.reports.get(2).error);
+    }
+
+    @Test
+    public void quantization_roundTripsPixels() {
+        int[] src = image(5);
+        int[] dst = new int[PIXELS];
+        for (Quantization q : new Quantization[]{
+                new Quantization(1.0f / 255.0f, 0, false),
+                new Quantization(1.0f / 255.0f, -128, true)}) {
+            ByteBuffer tensor = ByteBuffer.allocate(PIXELS * 3);
+            q.argbToQuantized(src, 32, 32, tensor, 32, 32);
+            q.quantizedToArgb(tensor, 32, dst, 32, 32);
+            assertArrayEquals(src, dst);
+        }
+    }
+
+    @Test
+    public void quantization_saturates() {
+        Quantization q = new Quantization(0.5f / 255.0f, 10, true);
+        assertEquals(127, q.quantize(1.0f));
+        assertEquals(10, q.quantize(0.0f));
+        assertEquals(-128, q.quantize(-1.0f));
+        assertEquals(0.0f, q.dequantize(10), 0.0f);
+    }
+}
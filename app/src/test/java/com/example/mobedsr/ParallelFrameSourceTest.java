@@ -0,0 +1,168 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packet parsing, keyframe-aligned segmentation and in-order delivery of
+ * ParallelFrameSource against a fake decoder.
+ */
+public class ParallelFrameSourceTest {
+
+    // Frame i of the video has the pixel value i; segments decode slower the earlier they are
+    private static class FakeDecoder implements SegmentDecoder {
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final int failingSegment;
+        final int segmentCount;
+
+        FakeDecoder(int segmentCount, int failingSegment) {
+            this.segmentCount = segmentCount;
+            this.failingSegment = failingSegment;
+        }
+
+        @Override
+        public FrameSource open(VideoSegment segment) throws IOException {
+            if (segment.index == failingSegment)
+                throw new IOException("Corrupt segment");
+            maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            return new FrameSource() {
+                int next;
+
+                @Override
+                public Frame read() {
+                    if (next == segment.frameCount)
+                        return null;
+                    try {
+                        Thread.sleep(segmentCount - segment.index);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new Frame(next, 1, 1, new int[]{segment.firstFrame + next++});
+                }
+
+                @Override
+                public void close() {
+                    open.decrementAndGet();
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    private static String packets(int frameCount, int gop) {
+        StringBuilder packets = new StringBuilder();
+        for (int i = 0; i < frameCount; i++)
+            packets.append(String.format("%.6f,%s\n", 10 + i / 30.0, (i % gop == 0) ? "K_" : "__"));
+        return packets.toString();
+    }
+
+    @Test
+    public void parsePackets_findsKeyframesAndCountsFrames() throws IOException {
+        VideoSegment.Keyframes keyframes = VideoSegment.parsePackets(
+                "0.000000,K_\n0.033333,__\nN/A,K_\n0.100000,__\n\n0.133333,K_D\n");
+        assertEquals(5, keyframes.frameCount);
+        assertArrayEquals(new int[]{0, 4}, keyframes.frames);
+        assertEquals(0.133333, keyframes.times[1], 1e-9);
+
+        try {
+            VideoSegment.parsePackets("0.000000,__\n0.033333,K_\n");
+            fail("A stream must start with a keyframe");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("keyframe"));
+        }
+    }
+
+    @Test
+    public void plan_cutsAtKeyframesAndCoversEveryFrame() throws IOException {
+        VideoSegment.Keyframes keyframes = VideoSegment.parsePackets(packets(100, 12));
+        List<VideoSegment> segments = VideoSegment.plan(keyframes, 4);
+
+        // At least 25 frames per segment, up to the next keyframe (multiples of 12): 36, 36, 28
+        int next = 0;
+        for (VideoSegment segment : segments) {
+            assertEquals(next, segment.firstFrame);
+            assertEquals(0, segment.firstFrame % 12);
+            assertEquals(segment.firstFrame / 30.0, segment.startTime, 1e-6);
+            next += segment.frameCount;
+        }
+        assertEquals(100, next);
+        assertEquals(3, segments.size());
+        assertEquals(36, segments.get(0).frameCount);
+        assertEquals(28, segments.get(2).frameCount);
+
+        // One keyframe only: a single segment
+        assertEquals(1, VideoSegment.plan(VideoSegment.parsePackets(packets(50, 1000)), 4).size());
+        assertTrue(VideoSegment.plan(VideoSegment.parsePackets(""), 4).isEmpty());
+    }
+
+    @Test
+    public void frames_comeInOrderFromConcurrentDecoders() throws IOException {
+        List<VideoSegment> segments = VideoSegment.plan(VideoSegment.parsePackets(packets(240, 10)), 8);
+        FakeDecoder decoder = new FakeDecoder(segments.size(), -1);
+        ParallelFrameSource source = new ParallelFrameSource(segments, decoder, 3, 4);
+        assertEquals(240, source.getFrameCount());
+
+        List<Frame> frames = new ArrayList<>();
+        Frame frame;
+        while ((frame = source.read()) != null)
+            frames.add(frame);
+        source.close();
+
+        assertEquals(240, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i, frames.get(i).index);
+            assertEquals(i, frames.get(i).pixels[0]);
+        }
+        assertTrue("max open " + decoder.maxOpen.get(), decoder.maxOpen.get() > 1 && decoder.maxOpen.get() <= 3);
+        assertEquals(segments.size(), decoder.closed.get());
+    }
+
+    @Test
+    public void failedSegment_failsTheReadAfterTheFramesBeforeIt() throws IOException {
+        List<VideoSegment> segments = VideoSegment.plan(VideoSegment.parsePackets(packets(60, 10)), 6);
+        ParallelFrameSource source = new ParallelFrameSource(segments, new FakeDecoder(segments.size(), 2), 2, 4);
+
+        for (int i = 0; i < segments.get(2).firstFrame; i++)
+            assertEquals(i, source.read().pixels[0]);
+        try {
+            source.read();
+            fail("Segment 2 failed");
+        } catch (IOException e) {
+            assertEquals("Corrupt segment", e.getCause().getMessage());
+        }
+        source.close();
+    }
+
+    @Test
+    public void close_stopsDecodersBlockedOnFullBuffers() throws IOException {
+        List<VideoSegment> segments = VideoSegment.plan(VideoSegment.parsePackets(packets(300, 10)), 10);
+        FakeDecoder decoder = new FakeDecoder(segments.size(), -1);
+        ParallelFrameSource source = new ParallelFrameSource(segments, decoder, 3, 2);
+        assertEquals(0, source.read().index);
+
+        source.close();
+        assertEquals(0, decoder.open.get());
+        try {
+            source.read();
+            fail("Read after close");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+
+    @Test
+    public void parseRate_readsFractions() {
+        assertEquals(29.97, VideoProbe.parseRate("30000/1001"), 1e-3);
+        assertEquals(25.0, VideoProbe.parseRate("25"), 0.0);
+        assertTrue(Double.isNaN(VideoProbe.parseRate("0/0")));
+        assertTrue(Double.isNaN(VideoProbe.parseRate(null)));
+    }
+}
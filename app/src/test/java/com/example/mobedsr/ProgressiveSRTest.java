@@ -0,0 +1,146 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.example.mobedsr.TestImages.image;
+import static com.example.mobedsr.TileRunners.nearest;
+import static org.junit.Assert.*;
+
+/**
+ * Center-out tile order of TileScheduler and the preview and tile by tile
+ * refinement of ProgressiveSR with a fake nearest-neighbour model.
+ */
+public class ProgressiveSRTest {
+    private static final int SCALE = 2;
+
+    @Test
+    public void scheduler_handsOutTilesCenterOut() {
+        TileGrid grid = new TileGrid(100, 100, 32, 8, SCALE);
+        TileScheduler scheduler = new TileScheduler(grid);
+        int total = grid.getTiles().size();
+        assertEquals(16, total);
+
+        double last = -1;
+        Set<Integer> seen = new HashSet<>();
+        TileGrid.Tile tile;
+        while ((tile = scheduler.poll()) != null) {
+            int[] region = grid.getOwnedRegion(tile);
+            double dx = (region[0] + region[2]) / 2.0 - 50, dy = (region[1] + region[3]) / 2.0 - 50;
+            double distance = dx * dx + dy * dy;
+            assertTrue(distance >= last);
+            last = distance;
+            assertTrue(seen.add(tile.index));
+        }
+        assertEquals(total, seen.size());
+        assertEquals(0, scheduler.remaining());
+    }
+
+    @Test
+    public void scheduler_followsTheFocusAndSharesTilesAcrossThreads() throws InterruptedException {
+        TileGrid grid = new TileGrid(200, 200, 32, 8, SCALE);
+        TileScheduler scheduler = new TileScheduler(grid);
+        scheduler.poll();
+        scheduler.setFocus(0, 0);
+        assertEquals(0, scheduler.poll().index);
+
+        Set<Integer> taken = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        int[] duplicates = new int[1];
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                TileGrid.Tile tile;
+                while ((tile = scheduler.poll()) != null)
+                    if (!taken.add(tile.index))
+                        synchronized (duplicates) {
+                            duplicates[0]++;
+                        }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, duplicates[0]);
+        assertEquals(grid.getTiles().size() - 2, taken.size());
+    }
+
+    @Test
+    public void upscaleNearest_repeatsEveryPixel() {
+        int[] src = image(3, 2);
+        int[] dst = new int[6 * 4];
+        ProgressiveSR.upscaleNearest(src, 3, 2, SCALE, dst);
+        for (int y = 0; y < 4; y++)
+            for (int x = 0; x < 6; x++)
+                assertEquals(src[(y / 2) * 3 + x / 2], dst[y * 6 + x]);
+    }
+
+    @Test
+    public void run_previewsThenPublishesEveryRegionOnce() throws Exception {
+        int width = 150, height = 90;
+        int[] pixels = image(width, height);
+        TileGrid grid = new TileGrid(width, height, 32, 2 * ProgressiveSR.HALO, SCALE);
+        ProgressiveSR progressive = new ProgressiveSR(grid, nearest(grid));
+
+        int[] output = new int[grid.getOutputWidth() * grid.getOutputHeight()];
+        int[] covered = new int[output.length];
+        int[] previews = new int[1];
+        List<Integer> order = new ArrayList<>();
+        boolean complete = progressive.run(pixels, output, new TileScheduler(grid), new ProgressiveSR.Listener() {
+            @Override
+            public void onPreview(int[] preview) {
+                previews[0]++;
+                assertSame(output, preview);
+                assertEquals(pixels[0], preview[1]);
+            }
+
+            @Override
+            public void onTile(TileGrid.Tile tile, int[] region, int done, int total) {
+                assertEquals(order.size() + 1, done);
+                order.add(tile.index);
+                for (int y = region[1]; y < region[3]; y++)
+                    for (int x = region[0]; x < region[2]; x++)
+                        covered[y * grid.getOutputWidth() + x]++;
+            }
+        });
+
+        assertTrue(complete);
+        assertEquals(1, previews[0]);
+        assertEquals(grid.getTiles().size(), order.size());
+        for (int count : covered)
+            assertEquals(1, count);
+
+        // The fake model is nearest-neighbour too: the refined output equals the preview
+        int[] expected = new int[output.length];
+        ProgressiveSR.upscaleNearest(pixels, width, height, SCALE, expected);
+        assertArrayEquals(expected, output);
+    }
+
+    @Test
+    public void cancel_stopsAfterTheCurrentTile() throws Exception {
+        TileGrid grid = new TileGrid(200, 200, 32, 2 * ProgressiveSR.HALO, SCALE);
+        ProgressiveSR progressive = new ProgressiveSR(grid, nearest(grid));
+        TileScheduler scheduler = new TileScheduler(grid);
+        int total = grid.getTiles().size();
+
+        boolean complete = progressive.run(image(200, 200), new int[400 * 400], scheduler, new ProgressiveSR.Listener() {
+            @Override
+            public void onPreview(int[] preview) {
+            }
+
+            @Override
+            public void onTile(TileGrid.Tile tile, int[] region, int done, int total) {
+                if (done == 3)
+                    progressive.cancel();
+            }
+        });
+        assertFalse(complete);
+        assertTrue(progressive.isCancelled());
+        assertEquals(total - 3, scheduler.remaining());
+    }
+}
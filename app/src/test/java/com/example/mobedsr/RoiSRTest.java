@@ -0,0 +1,132 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.example.mobedsr.TestImages.image;
+import static com.example.mobedsr.TileRunners.nearest;
+import static org.junit.Assert.*;
+
+/**
+ * Bicubic background, tile selection from regions and edges, and the
+ * blended compositing and report of RoiSR with a fake nearest-neighbour model.
+ */
+public class RoiSRTest {
+    private static final int SCALE = 2;
+
+    @Test
+    public void bicubic_keepsFlatAndLinearImages() {
+        int width = 20, height = 10;
+        int[] flat = new int[width * height];
+        Arrays.fill(flat, 0xff336699);
+        int[] dst = new int[width * SCALE * height * SCALE];
+        new BicubicUpscaler(SCALE).upscale(flat, width, height, dst);
+        for (int pixel : dst)
+            assertEquals(0xff336699, pixel);
+
+        // A horizontal ramp stays a ramp away from the clamped borders
+        int[] ramp = new int[width * height];
+        for (int i = 0; i < ramp.length; i++)
+            ramp[i] = 0xff000000 | ((i % width) * 10);
+        new BicubicUpscaler(SCALE).upscale(ramp, width, height, dst);
+        for (int x = 4; x < width * SCALE - 4; x++) {
+            float expected = ((x + 0.5f) / SCALE - 0.5f) * 10;
+            assertEquals(expected, dst[5 * width * SCALE + x] & 0xff, 0.51f);
+        }
+
+        assertArrayEquals(image(width, height), upscaled(image(width, height), width, height, 1));
+    }
+
+    private static int[] upscaled(int[] src, int width, int height, int scale) {
+        int[] dst = new int[width * scale * height * scale];
+        new BicubicUpscaler(scale).upscale(src, width, height, dst);
+        return dst;
+    }
+
+    @Test
+    public void select_regionsAndEdges() {
+        int width = 300, height = 200;
+        TileGrid grid = ProgressiveSR.grid(width, height, SCALE);
+
+        // A textured patch on a flat image
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xff808080);
+        int[] patch = {20, 30, 60, 70};
+        for (int y = patch[1]; y < patch[3]; y++)
+            for (int x = patch[0]; x < patch[2]; x++)
+                pixels[y * width + x] = ((x + y) % 2 == 0) ? 0xff000000 : 0xffffffff;
+
+        boolean[] byRegion = RoiSR.selectRegions(grid, Collections.singletonList(patch));
+        boolean[] byEdges = RoiSR.selectSalient(grid, pixels, RoiSR.DEFAULT_EDGE_THRESHOLD);
+        int count = 0;
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            int[] owned = grid.getOwnedRegion(tile);
+            boolean meets = patch[0] < owned[2] && owned[0] < patch[2] && patch[1] < owned[3] && owned[1] < patch[3];
+            assertEquals(meets, byRegion[tile.index]);
+            assertEquals(meets, byEdges[tile.index]);
+            if (meets)
+                count++;
+        }
+        assertTrue(count > 0 && count < grid.getTiles().size());
+    }
+
+    @Test
+    public void run_nothingSelectedIsBicubic_everythingSelectedIsSR() throws Exception {
+        int width = 150, height = 90;
+        int[] pixels = image(width, height);
+        TileGrid grid = ProgressiveSR.grid(width, height, SCALE);
+        RoiSR roiSR = new RoiSR(grid, nearest(grid));
+        int[] output = new int[grid.getOutputWidth() * grid.getOutputHeight()];
+
+        RoiSR.Report none = roiSR.run(pixels, new boolean[grid.getTiles().size()], output);
+        assertArrayEquals(upscaled(pixels, width, height, SCALE), output);
+        assertEquals(0, none.srTiles);
+        assertEquals(1.0, none.getSavedFraction(), 1e-9);
+
+        boolean[] all = new boolean[grid.getTiles().size()];
+        Arrays.fill(all, true);
+        RoiSR.Report report = roiSR.run(pixels, all, output);
+        int[] expected = new int[output.length];
+        ProgressiveSR.upscaleNearest(pixels, width, height, SCALE, expected);
+        assertArrayEquals(expected, output);
+        assertEquals(grid.getTiles().size(), report.srTiles);
+        assertEquals(1.0, report.srPixelFraction, 1e-9);
+        assertEquals(0.0, report.getSavedFraction(), 1e-9);
+    }
+
+    @Test
+    public void run_blendsTheBordersTowardsTheBackground() throws Exception {
+        int width = 300, height = 200;
+        int[] pixels = image(width, height);
+        TileGrid grid = ProgressiveSR.grid(width, height, SCALE);
+        boolean[] selected = new boolean[grid.getTiles().size()];
+        TileGrid.Tile tile = grid.getTiles().get(grid.getColumnCount() + 1);
+        selected[tile.index] = true;
+
+        int[] output = new int[grid.getOutputWidth() * grid.getOutputHeight()];
+        RoiSR.Report report = new RoiSR(grid, nearest(grid)).run(pixels, selected, output);
+        assertEquals(1, report.srTiles);
+        assertEquals(grid.getTiles().size(), report.tiles);
+        assertTrue(report.getSavedFraction() > 0.5);
+        assertTrue(report.toString().contains("1/" + grid.getTiles().size() + " tiles"));
+
+        int[] nearest = new int[output.length];
+        ProgressiveSR.upscaleNearest(pixels, width, height, SCALE, nearest);
+        int[] bicubic = upscaled(pixels, width, height, SCALE);
+        int[] region = grid.getOwnedRegion(tile);
+        int outputWidth = grid.getOutputWidth();
+        int feather = ProgressiveSR.HALO * SCALE;
+
+        // SR at the center, faded into bicubic at the border, bicubic outside
+        int cx = (region[0] + region[2]) / 2 * SCALE, cy = (region[1] + region[3]) / 2 * SCALE;
+        assertEquals(nearest[cy * outputWidth + cx], output[cy * outputWidth + cx]);
+        int x0 = region[0] * SCALE;
+        assertEquals(bicubic[cy * outputWidth + x0 - 1], output[cy * outputWidth + x0 - 1]);
+        int border = output[cy * outputWidth + x0] & 0xff;
+        float w = 0.5f / feather;
+        float blended = w * (nearest[cy * outputWidth + x0] & 0xff) + (1 - w) * (bicubic[cy * outputWidth + x0] & 0xff);
+        assertEquals(blended, border, 1.0f);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Percentile accuracy of LatencyHistogram and the warmup split and export of SRMetrics.
+ */
+public class SRMetricsTest {
+
+    @Test
+    public void buckets_roundTripWithinRelativeError() {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 40);
+            long bucketValue = LatencyHistogram.valueOf(LatencyHistogram.bucketOf(value));
+            assertTrue(value + " -> " + bucketValue, Math.abs(bucketValue - value) <= value / 32 + 1);
+        }
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(15, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(15)));
+    }
+
+    @Test
+    public void percentiles_matchUniformSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1..1000 ms
+        for (int ms = 1; ms <= 1000; ms++)
+            histogram.record(ms * 1000000L);
+
+        assertEquals(500e6, histogram.percentile(0.50), 500e6 / 32);
+        assertEquals(950e6, histogram.percentile(0.95), 950e6 / 32);
+        assertEquals(990e6, histogram.percentile(0.99), 990e6 / 32);
+        assertEquals(1000e6, histogram.percentile(1.0), 0.0);
+
+        LatencyHistogram.Summary summary = histogram.summarize();
+        assertEquals(1000, summary.count);
+        assertEquals(500.5, summary.meanMs, 1e-9);
+        assertEquals(1000.0, summary.maxMs, 1e-9);
+    }
+
+    @Test
+    public void warmup_isKeptOutOfSteadyPercentiles() {
+        SRMetrics metrics = new SRMetrics();
+        metrics.recordNanos("inference", 900000000L, true);
+        for (int i = 0; i < 99; i++)
+            metrics.recordNanos("inference", 10000000L, false);
+
+        SRMetrics.StageSummary inference = metrics.snapshot().getStage("inference");
+        assertEquals(99, inference.steady.count);
+        assertEquals(1, inference.warmup.count);
+        assertEquals(10.0, inference.steady.p99Ms, 10.0 / 32);
+        assertEquals(900.0, inference.warmup.maxMs, 1e-9);
+    }
+
+    @Test
+    public void snapshot_exportsJsonAndLogLines() {
+        SRMetrics metrics = new SRMetrics();
+        metrics.setLabel("device", "Pixel \"7\"");
+        metrics.recordNanos("video_decode", 2000000L, false);
+        metrics.recordNanos("inference", 5000000L, false);
+
+        SRMetrics.Snapshot snapshot = metrics.snapshot();
+        String json = snapshot.toJson();
+        assertTrue(json, json.startsWith("{\"labels\":{\"device\":\"Pixel \\\"7\\\"\"},\"stages\":[{\"name\":\"inference\""));
+        assertTrue(json, json.contains("\"p95_ms\":"));
+        assertEquals(3, snapshot.toLogLines().size());
+
+        metrics.reset();
+        assertTrue(metrics.snapshot().stages.isEmpty());
+    }
+}
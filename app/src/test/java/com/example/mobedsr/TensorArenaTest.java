@@ -0,0 +1,150 @@
+package com.example.mobedsr;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot handling of TensorArena, and the allocation-free steady state of the
+ * tensor side of the prepare -> infer -> convert loop that SRFrameStages
+ * runs on top of it, through the TensorIO conversions of SRModel. The SR
+ * frame's ARGB pixels, which convert allocates per frame, are preallocated here.
+ * The conversions run on the test thread, whose allocations are the ones
+ * counted; the row-parallel split only adds its fork/join tasks.
+ */
+public class TensorArenaTest {
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 27;
+    private static final int SCALE = 4;
+    // The row lambdas handed to TensorConverter.forRows(), if the JIT does not scalarize them
+    private static final int MAX_LAMBDA_BYTES_PER_FRAME = 128;
+
+    // Stands in for the interpreter: nearest-neighbour x4 from input to output tensor, float or 8-bit
+    private static void fakeInference(TensorArena.Slot slot, boolean quantized) {
+        int srWidth = WIDTH * SCALE;
+        for (int y = 0; y < HEIGHT * SCALE; y++)
+            for (int x = 0; x < srWidth; x++)
+                for (int c = 0; c < 3; c++) {
+                    int src = ((y / SCALE) * WIDTH + x / SCALE) * 3 + c;
+                    int dst = (y * srWidth + x) * 3 + c;
+                    if (quantized)
+                        slot.output.put(dst, slot.input.get(src));
+                    else
+                        slot.outputFloats.put(dst, slot.inputFloats.get(src));
+                }
+    }
+
+    // SRFrameStages.prepare, infer and convert on one slot, the SR pixels preallocated
+    private static void runFrame(TensorIO io, TensorArena arena, int[] lr, int[] sr) throws InterruptedException {
+        TensorArena.Slot slot = arena.acquire();
+        io.writeInput(lr, WIDTH, HEIGHT, slot, WIDTH, HEIGHT);
+        fakeInference(slot, io.getInputQuantization() != null);
+        io.readOutput(slot, WIDTH * SCALE, sr, WIDTH * SCALE, HEIGHT * SCALE);
+        arena.release(slot);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void slots_areDirectNativeOrderAndSized() throws Exception {
+        TensorArena arena = new TensorArena(WIDTH * HEIGHT * 12, WIDTH * HEIGHT * 12 * SCALE * SCALE, 2);
+        TensorArena.Slot a = arena.acquire();
+        TensorArena.Slot b = arena.acquire();
+
+        assertNotSame(a, b);
+        assertTrue(a.input.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), a.output.order());
+        assertEquals(WIDTH * HEIGHT * 3, a.inputFloats.capacity());
+        assertEquals(WIDTH * HEIGHT * 3 * SCALE * SCALE, b.outputFloats.capacity());
+        assertTrue(arena.fits(WIDTH * HEIGHT * 12, WIDTH * HEIGHT * 12 * SCALE * SCALE));
+
+        arena.release(a);
+        assertSame(a, arena.acquire());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void release_rejectsForeignSlot() throws Exception {
+        TensorArena arena = new TensorArena(12, 12, 1);
+        arena.release(new TensorArena(12, 12, 1).acquire());
+    }
+
+    @Test
+    public void steadyState_allocatesNothingPerFrame() throws Exception {
+        assertSteadyStateAllocatesNothing(new TensorIO(null, null, null), 12);
+    }
+
+    @Test
+    public void steadyState_allocatesNothingPerFrame_uint8() throws Exception {
+        Quantization uint8 = new Quantization(1 / 255.0f, 0, false);
+        assertSteadyStateAllocatesNothing(new TensorIO(uint8, uint8, null), 3);
+    }
+
+    private static void assertSteadyStateAllocatesNothing(TensorIO io, int bytesPerPixel) throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+        TensorArena arena = new TensorArena(WIDTH * HEIGHT * bytesPerPixel,
+                WIDTH * HEIGHT * bytesPerPixel * SCALE * SCALE, TensorArena.DOUBLE_BUFFERED);
+        int[] lr = new int[WIDTH * HEIGHT];
+        int[] sr = new int[WIDTH * HEIGHT * SCALE * SCALE];
+        for (int i = 0; i < lr.length; i++)
+            lr[i] = 0xFF000000 | ((i * 40503) & 0xFFFFFF);
+
+        // Warm up class loading and the JIT before counting
+        for (int i = 0; i < 200; i++)
+            runFrame(io, arena, lr, sr);
+
+        long before = allocatedBytes();
+        for (int i = 0; i < 100; i++)
+            runFrame(io, arena, lr, sr);
+        long allocated = allocatedBytes() - before;
+
+        // A single SR tensor is ~250 KB here, a buffer view per row chunk would also show
+        assertTrue("Allocated " + allocated + " bytes in 100 frames", allocated < 100 * MAX_LAMBDA_BYTES_PER_FRAME);
+        assertEquals(lr[0], sr[0]);
+    }
+
+    @Test
+    public void parts_splitSlotIntoFramesOfBatch() throws Exception {
+        int frameFloats = WIDTH * HEIGHT * 3;
+        TensorArena arena = new TensorArena(3 * frameFloats * 4, 3 * frameFloats * 4 * SCALE * SCALE, 1);
+        TensorArena.Slot slot = arena.acquire();
+
+        int[] lr = new int[WIDTH * HEIGHT];
+        for (int part = 0; part < 3; part++) {
+            java.util.Arrays.fill(lr, 0xFF000000 | (part + 1) * 40);
+            TensorConverter.argbToFloat(lr, WIDTH, HEIGHT, slot.part(part, 3).inputFloats, WIDTH, HEIGHT);
+        }
+
+        assertSame(slot, slot.part(2, 3).whole);
+        assertSame(slot, slot.part(0, 1));
+        assertEquals(ByteOrder.nativeOrder(), slot.part(1, 3).input.order());
+        assertEquals(frameFloats * SCALE * SCALE, slot.part(1, 3).outputFloats.capacity());
+        assertEquals(40 / 255f, slot.inputFloats.get(frameFloats - 1), 1e-6);
+        assertEquals(80 / 255f, slot.inputFloats.get(frameFloats + 2), 1e-6);
+        assertEquals(120 / 255f, slot.inputFloats.get(3 * frameFloats - 1), 1e-6);
+
+        try {
+            arena.release(slot.part(1, 3));
+            fail("A part must not be released on its own");
+        } catch (IllegalArgumentException e) {
+            arena.release(slot);
+        }
+    }
+
+    @Test
+    public void batchSize_followsMemoryBudget() {
+        long frameBytes = 10L << 20;
+        long perFrame = frameBytes * (SRFrameStages.SLOTS + SRFrameStages.ACTIVATION_COPIES);
+        assertEquals(1, SRFrameStages.chooseBatchSize(frameBytes, 0));
+        assertEquals(1, SRFrameStages.chooseBatchSize(frameBytes, perFrame * 2 - 1));
+        assertEquals(3, SRFrameStages.chooseBatchSize(frameBytes, perFrame * 3));
+        assertEquals(SRFrameStages.MAX_BATCH, SRFrameStages.chooseBatchSize(frameBytes, Long.MAX_VALUE));
+    }
+}
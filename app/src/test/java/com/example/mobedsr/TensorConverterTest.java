@@ -0,0 +1,161 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.support.common.ops.NormalizeOp;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Clamping, rounding, row splitting and padding of TensorConverter, and the
+ * fused preprocessing against the support library's ImageProcessor path.
+ */
+public class TensorConverterTest {
+
+    // What TensorImage.fromBitmap() loads: a UINT8 buffer of the RGB channels
+    private static TensorBuffer supportImage(int[] pixels, int width, int height) {
+        int[] rgb = new int[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            rgb[i * 3] = (pixels[i] >> 16) & 0xFF;
+            rgb[i * 3 + 1] = (pixels[i] >> 8) & 0xFF;
+            rgb[i * 3 + 2] = pixels[i] & 0xFF;
+        }
+        TensorBuffer image = TensorBuffer.createFixedSize(new int[]{height, width, 3}, DataType.UINT8);
+        image.loadArray(rgb);
+        return image;
+    }
+
+    @Test
+    public void toChannel_clampsAndRounds() {
+        assertEquals(0, TensorConverter.toChannel(-0.5f));
+        assertEquals(0, TensorConverter.toChannel(Float.NaN));
+        assertEquals(255, TensorConverter.toChannel(1.2f));
+        assertEquals(128, TensorConverter.toChannel(127.6f / 255.0f));
+        assertEquals(127, TensorConverter.toChannel(127.4f / 255.0f));
+        for (int c = 0; c < 256; c++)
+            assertEquals(c, TensorConverter.toChannel(c / 255.0f));
+    }
+
+    @Test
+    public void floatToArgb_parallelMatchesSerial() {
+        int width = 97;
+        int height = 131;
+        Random random = new Random(7);
+        FloatBuffer src = FloatBuffer.allocate(width * height * 3);
+        for (int i = 0; i < src.capacity(); i++)
+            src.put(i, random.nextFloat() * 1.2f - 0.1f);
+
+        int[] serial = new int[width * height];
+        int[] parallel = new int[width * height];
+        TensorConverter.floatToArgb(src, serial, width, height, null);
+        TensorConverter.floatToArgb(src, parallel, width, height, new ForkJoinPool(4));
+
+        assertArrayEquals(serial, parallel);
+        assertEquals(TensorConverter.packPixel(src.get(0), src.get(1), src.get(2)), serial[0]);
+    }
+
+    @Test
+    public void floatToArgb_paddedParallelMatchesSerial() {
+        int width = 97;
+        int height = 131;
+        int srcWidth = 128;
+        Random random = new Random(9);
+        FloatBuffer src = FloatBuffer.allocate(srcWidth * height * 3);
+        for (int i = 0; i < src.capacity(); i++)
+            src.put(i, random.nextFloat());
+
+        int[] serial = new int[width * height];
+        int[] parallel = new int[width * height];
+        TensorConverter.floatToArgb(src, srcWidth, serial, width, height, null);
+        TensorConverter.floatToArgb(src, srcWidth, parallel, width, height, new ForkJoinPool(4));
+
+        assertArrayEquals(serial, parallel);
+        int s = ((height - 1) * srcWidth + width - 1) * 3;
+        assertEquals(TensorConverter.packPixel(src.get(s), src.get(s + 1), src.get(s + 2)), serial[width * height - 1]);
+    }
+
+    @Test
+    public void paddedRoundTrip_keepsImageAndReplicatesEdges() {
+        int width = 5;
+        int height = 3;
+        int padded = 8;
+        int[] src = new int[width * height];
+        for (int i = 0; i < src.length; i++)
+            src[i] = 0xFF000000 | (i * 0x0B0503);
+
+        FloatBuffer tensor = FloatBuffer.allocate(padded * padded * 3);
+        TensorConverter.argbToFloat(src, width, height, tensor, padded, padded);
+
+        // Bottom-right padding repeats the last pixel
+        int last = ((padded * padded) - 1) * 3;
+        assertEquals(((src[src.length - 1] >> 16) & 0xFF) / 255.0f, tensor.get(last), 0.0f);
+
+        int[] dst = new int[width * height];
+        TensorConverter.floatToArgb(tensor, padded, dst, width, height);
+        assertArrayEquals(src, dst);
+    }
+
+    @Test
+    public void argbToFloat_bitIdenticalToNormalizeOp() {
+        int width = 67;
+        int height = 83;
+        int[] src = TestImages.random(width, height, 11);
+        float[] expected = new NormalizeOp(0.0f, 255.0f).apply(supportImage(src, width, height)).getFloatArray();
+
+        FloatBuffer tensor = ByteBuffer.allocateDirect(expected.length * 4).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        TensorConverter.argbToFloat(src, width, height, tensor, width, height, new ForkJoinPool(4));
+
+        assertEquals(0, tensor.position());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals("value " + i, Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(tensor.get(i)));
+    }
+
+    @Test
+    public void argbToFloat_parallelMatchesSerial() {
+        int width = 41;
+        int height = 70;
+        int padded = 48;
+        int[] src = TestImages.random(width, height, 3);
+
+        FloatBuffer serial = FloatBuffer.allocate(padded * padded * 3);
+        FloatBuffer parallel = ByteBuffer.allocateDirect(padded * padded * 12).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        TensorConverter.argbToFloat(src, width, height, serial, padded, padded, null);
+        TensorConverter.argbToFloat(src, width, height, parallel, padded, padded, new ForkJoinPool(4));
+
+        for (int i = 0; i < serial.capacity(); i++)
+            assertEquals(Float.floatToRawIntBits(serial.get(i)), Float.floatToRawIntBits(parallel.get(i)));
+    }
+
+    @Test
+    public void argbToQuantized_uint8FastPathIsTheImageBytes() {
+        int width = 53;
+        int height = 37;
+        int[] src = TestImages.random(width, height, 5);
+        ByteBuffer expected = supportImage(src, width, height).getBuffer();
+
+        Quantization identity = new Quantization(1.0f / 255.0f, 0, false);
+        assertTrue(identity.isIdentity());
+        ByteBuffer tensor = ByteBuffer.allocateDirect(width * height * 3);
+        identity.argbToQuantized(src, width, height, tensor, width, height, new ForkJoinPool(4));
+        for (int i = 0; i < tensor.capacity(); i++)
+            assertEquals("byte " + i, expected.get(i), tensor.get(i));
+
+        // Other parameters go through the table, row splitting does not change them
+        Quantization signed = new Quantization(1.0f / 255.0f, -128, true);
+        assertFalse(signed.isIdentity());
+        ByteBuffer serial = ByteBuffer.allocate(width * height * 3);
+        signed.argbToQuantized(src, width, height, serial, width, height, null);
+        signed.argbToQuantized(src, width, height, tensor, width, height, new ForkJoinPool(4));
+        assertEquals(serial.rewind(), tensor.rewind());
+        assertEquals((byte) signed.quantize(((src[0] >> 16) & 0xFF) / 255.0f), serial.get(0));
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.mobedsr;
+
+import java.util.Random;
+
+/**
+ * Deterministic ARGB test images shared by the tests.
+ */
+final class TestImages {
+    private TestImages() {
+    }
+
+    // Opaque image whose pixels vary in every channel, without randomness
+    static int[] image(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0xff000000 | (i * 7919 & 0xffffff);
+        return pixels;
+    }
+
+    // Opaque random pixels, continuing the sequence of random
+    static int[] random(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++)
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        return pixels;
+    }
+
+    static int[] random(int width, int height, long seed) {
+        return random(new Random(seed), width * height);
+    }
+}
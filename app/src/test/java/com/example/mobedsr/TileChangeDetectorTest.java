@@ -0,0 +1,147 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Change detection of TileChangeDetector and the owned regions of TileGrid that
+ * incremental video SR copies, with a nearest-neighbour upscaler standing in for the model.
+ */
+public class TileChangeDetectorTest {
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE = 32;
+    private static final int OVERLAP = 8;
+    private static final int SCALE = 2;
+
+    private static int countChanged(boolean[] changed) {
+        int count = 0;
+        for (boolean c : changed)
+            if (c)
+                count++;
+        return count;
+    }
+
+    // Runs the changed tiles through a fake x2 model into the kept SR frame, like IncrementalTiledSR
+    private static void superResolve(TileGrid grid, int[] pixels, boolean[] changed, int[] srFrame) {
+        FloatBuffer tile = FloatBuffer.allocate(TILE * TILE * 3);
+        int srSize = TILE * SCALE;
+        FloatBuffer sr = FloatBuffer.allocate(srSize * srSize * 3);
+        for (TileGrid.Tile t : grid.getTiles()) {
+            if (!changed[t.index])
+                continue;
+            grid.extractTile(pixels, t, tile);
+            for (int y = 0; y < srSize; y++)
+                for (int x = 0; x < srSize; x++)
+                    for (int c = 0; c < 3; c++)
+                        sr.put((y * srSize + x) * 3 + c, tile.get(((y / SCALE) * TILE + x / SCALE) * 3 + c));
+            grid.copyOwnedRegion(sr, t, srFrame);
+        }
+    }
+
+    @Test
+    public void ownedRegions_partitionImageWithHalo() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE, OVERLAP, SCALE);
+        int[] owners = new int[WIDTH * HEIGHT];
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            int[] region = grid.getOwnedRegion(tile);
+            for (int y = region[1]; y < region[3]; y++)
+                for (int x = region[0]; x < region[2]; x++)
+                    owners[y * WIDTH + x] += 1;
+
+            // At least half the overlap of context on every inner side
+            if (region[0] > 0)
+                assertTrue(region[0] - tile.x >= OVERLAP / 2);
+            if (region[2] < WIDTH)
+                assertTrue(tile.x + tile.width - region[2] >= OVERLAP / 2);
+            if (region[3] < HEIGHT)
+                assertTrue(tile.y + tile.height - region[3] >= OVERLAP / 2);
+        }
+        for (int owner : owners)
+            assertEquals(1, owner);
+    }
+
+    @Test
+    public void unchangedFrame_reusesEveryTile() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE, OVERLAP, SCALE);
+        TileChangeDetector detector = new TileChangeDetector(grid, 0);
+        int[] frame = TestImages.random(WIDTH, HEIGHT, 1);
+
+        assertEquals(grid.getTiles().size(), countChanged(detector.update(frame)));
+        assertEquals(0, detector.getLastReuseRatio(), 0);
+        assertEquals(0, countChanged(detector.update(frame.clone())));
+        assertEquals(1, detector.getLastReuseRatio(), 0);
+        assertArrayEquals(new float[]{0, 1}, detector.getReuseRatios(), 0);
+        assertEquals(0.5, detector.getReuseRatio(), 1e-9);
+    }
+
+    @Test
+    public void changedPixel_marksOnlyTheTilesCoveringIt() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE, OVERLAP, SCALE);
+        TileChangeDetector detector = new TileChangeDetector(grid, 0);
+        int[] frame = TestImages.random(WIDTH, HEIGHT, 2);
+        detector.update(frame);
+
+        // Inside the first tile only
+        frame[5 * WIDTH + 5] ^= 0x010101;
+        boolean[] changed = detector.update(frame);
+        assertEquals(1, countChanged(changed));
+        assertTrue(changed[0]);
+
+        // In the overlap of the first two tiles of the first row
+        frame[5 * WIDTH + 26] ^= 0x000001;
+        changed = detector.update(frame);
+        assertEquals(2, countChanged(changed));
+        assertTrue(changed[0] && changed[1]);
+    }
+
+    @Test
+    public void threshold_toleratesNoiseButNotDrift() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE, OVERLAP, SCALE);
+        TileChangeDetector detector = new TileChangeDetector(grid, 1.0);
+        int[] frame = new int[WIDTH * HEIGHT];
+        java.util.Arrays.fill(frame, 0xFF404040);
+        detector.update(frame);
+
+        // +1 per frame on one channel, a mean difference of 1/3 to the previous frame
+        int changedFrames = 0;
+        for (int step = 1; step <= 6; step++) {
+            for (int i = 0; i < frame.length; i++)
+                frame[i] = 0xFF404040 + step;
+            if (countChanged(detector.update(frame)) > 0)
+                changedFrames += 1;
+        }
+        // Re-run once the drift from the reference passes 3 levels (step 4), then reused again
+        assertEquals(1, changedFrames);
+    }
+
+    @Test
+    public void incrementalOutput_equalsFullRunAtZeroThreshold() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE, OVERLAP, SCALE);
+        TileChangeDetector detector = new TileChangeDetector(grid, 0);
+        int[] incremental = new int[grid.getOutputWidth() * grid.getOutputHeight()];
+        boolean[] all = new boolean[grid.getTiles().size()];
+        java.util.Arrays.fill(all, true);
+
+        int[] frame = TestImages.random(WIDTH, HEIGHT, 3);
+        Random random = new Random(4);
+        for (int f = 0; f < 5; f++) {
+            // A moving 10x10 block on a static background
+            int bx = random.nextInt(WIDTH - 10);
+            int by = random.nextInt(HEIGHT - 10);
+            for (int y = by; y < by + 10; y++)
+                for (int x = bx; x < bx + 10; x++)
+                    frame[y * WIDTH + x] = 0xFF000000 | random.nextInt(0x1000000);
+
+            superResolve(grid, frame, detector.update(frame), incremental);
+            int[] full = new int[incremental.length];
+            superResolve(grid, frame, all, full);
+            assertArrayEquals("frame " + f, full, incremental);
+        }
+        assertTrue(detector.getReuseRatio() > 0.3);
+    }
+}
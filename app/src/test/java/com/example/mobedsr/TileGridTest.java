@@ -0,0 +1,72 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tiling and stitching of TileGrid, with a nearest-neighbour upscaler standing in for the model.
+ */
+public class TileGridTest {
+
+    private static FloatBuffer nearestUpscale(FloatBuffer tile, int tileSize, int scale) {
+        int srSize = tileSize * scale;
+        FloatBuffer sr = FloatBuffer.allocate(srSize * srSize * 3);
+        for (int y = 0; y < srSize; y++)
+            for (int x = 0; x < srSize; x++)
+                for (int c = 0; c < 3; c++)
+                    sr.put((y * srSize + x) * 3 + c, tile.get(((y / scale) * tileSize + x / scale) * 3 + c));
+        return sr;
+    }
+
+    private static void assertStitchedEqualsNearest(int width, int height, int tileSize, int overlap, int scale) {
+        int[] pixels = TestImages.random(width, height, width * 31L + height);
+        TileGrid grid = new TileGrid(width, height, tileSize, overlap, scale);
+        FloatBuffer tile = FloatBuffer.allocate(tileSize * tileSize * 3);
+        FloatBuffer output = FloatBuffer.allocate(grid.getOutputWidth() * grid.getOutputHeight() * 3);
+
+        for (TileGrid.Tile t : grid.getTiles()) {
+            grid.extractTile(pixels, t, tile);
+            grid.blendTile(nearestUpscale(tile, tileSize, scale), t, output);
+        }
+
+        for (int y = 0; y < grid.getOutputHeight(); y++) {
+            for (int x = 0; x < grid.getOutputWidth(); x++) {
+                int pixel = pixels[(y / scale) * width + x / scale];
+                int i = (y * grid.getOutputWidth() + x) * 3;
+                assertEquals(((pixel >> 16) & 0xFF) / 255.0f, output.get(i), 1e-5f);
+                assertEquals(((pixel >> 8) & 0xFF) / 255.0f, output.get(i + 1), 1e-5f);
+                assertEquals((pixel & 0xFF) / 255.0f, output.get(i + 2), 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void positions_coverAxisWithOverlap() {
+        int[] starts = TileGrid.positions(300, 128, 8);
+        assertArrayEquals(new int[]{0, 120, 172}, starts);
+
+        assertArrayEquals(new int[]{0}, TileGrid.positions(128, 128, 8));
+        assertArrayEquals(new int[]{0}, TileGrid.positions(50, 128, 8));
+        assertArrayEquals(new int[]{0, 120}, TileGrid.positions(248, 128, 8));
+    }
+
+    @Test
+    public void stitch_reconstructsWholeImage() {
+        assertStitchedEqualsNearest(100, 70, 32, 4, 4);
+        assertStitchedEqualsNearest(64, 64, 32, 0, 2);
+        assertStitchedEqualsNearest(33, 97, 16, 8, 3);
+    }
+
+    @Test
+    public void stitch_imageSmallerThanTile() {
+        assertStitchedEqualsNearest(20, 12, 32, 4, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlapLargerThanHalfTile_rejected() {
+        new TileGrid(100, 100, 32, 17, 4);
+    }
+}
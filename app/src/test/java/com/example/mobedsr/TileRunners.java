@@ -0,0 +1,31 @@
+package com.example.mobedsr;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A fake nearest-neighbour tile model shared by the ProgressiveSR and
+ * RoiSR tests.
+ */
+final class TileRunners {
+    private TileRunners() {
+    }
+
+    // Nearest-neighbour "SR" of the tile, as the model would return it
+    static ProgressiveSR.TileRunner nearest(TileGrid grid) {
+        int srTileSize = grid.getTileSize() * grid.getScale();
+        FloatBuffer srTile = FloatBuffer.allocate(srTileSize * srTileSize * 3);
+        return (tile, pixels) -> {
+            int i = 0;
+            for (int y = 0; y < srTileSize; y++)
+                for (int x = 0; x < srTileSize; x++) {
+                    int lrX = tile.x + Math.min(x / grid.getScale(), tile.width - 1);
+                    int lrY = tile.y + Math.min(y / grid.getScale(), tile.height - 1);
+                    int pixel = pixels[lrY * grid.getImageWidth() + lrX];
+                    srTile.put(i++, ((pixel >> 16) & 0xff) / 255.0f);
+                    srTile.put(i++, ((pixel >> 8) & 0xff) / 255.0f);
+                    srTile.put(i++, (pixel & 0xff) / 255.0f);
+                }
+            return srTile;
+        };
+    }
+}
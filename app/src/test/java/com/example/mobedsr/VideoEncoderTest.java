@@ -0,0 +1,117 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * YUV conversion for the hardware encoder and the settings and FFmpeg
+ * arguments of the software encoder.
+ */
+public class VideoEncoderTest {
+
+    private static int unsigned(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xff;
+    }
+
+    @Test
+    public void argbToYuv420_usesLimitedRangeBt601() {
+        assertEquals(16, YuvConverter.luma(0xff000000));
+        assertEquals(235, YuvConverter.luma(0xffffffff));
+        assertEquals(82, YuvConverter.luma(0xffff0000));
+
+        // Uniform red: Y 82, U 90, V 240 everywhere, odd size included
+        int width = 5, height = 3;
+        int[] argb = new int[width * height];
+        Arrays.fill(argb, 0xffff0000);
+        ByteBuffer y = ByteBuffer.allocate(8 * height);
+        ByteBuffer u = ByteBuffer.allocate(4 * 2);
+        ByteBuffer v = ByteBuffer.allocate(4 * 2);
+        YuvConverter.argbToYuv420(argb, width, height, y, 8, u, v, 4, 1);
+        for (int row = 0; row < height; row++)
+            for (int x = 0; x < width; x++)
+                assertEquals(82, unsigned(y, row * 8 + x));
+        for (int row = 0; row < 2; row++)
+            for (int x = 0; x < 3; x++) {
+                assertEquals(90, unsigned(u, row * 4 + x));
+                assertEquals(240, unsigned(v, row * 4 + x));
+            }
+        // Row padding untouched
+        assertEquals(0, y.get(5));
+        assertEquals(0, u.get(3));
+    }
+
+    @Test
+    public void argbToYuv420_averagesChromaIntoInterleavedPlanes() {
+        // Left 2x2 block half black half white, right block blue, tall enough to split the rows
+        int width = 4, height = 256;
+        int[] argb = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            argb[row * width] = argb[row * width + 1] = (row % 2 == 0) ? 0xff000000 : 0xffffffff;
+            argb[row * width + 2] = argb[row * width + 3] = 0xff0000ff;
+        }
+        // NV12: v is u shifted by one byte, pixel stride 2
+        ByteBuffer y = ByteBuffer.allocate(width * height);
+        ByteBuffer uv = ByteBuffer.allocate(width * height / 2);
+        ByteBuffer v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+        YuvConverter.argbToYuv420(argb, width, height, y, width, uv, v, width, 2);
+
+        for (int cy = 0; cy < height / 2; cy++) {
+            int row = cy * width;
+            // Grey 128: neutral chroma
+            assertEquals(128, unsigned(uv, row));
+            assertEquals(128, unsigned(uv, row + 1));
+            // Blue
+            assertEquals(240, unsigned(uv, row + 2));
+            assertEquals(110, unsigned(uv, row + 3));
+        }
+        assertEquals(16, unsigned(y, 0));
+        assertEquals(235, unsigned(y, width));
+    }
+
+    @Test
+    public void config_derivesBitrateAndKeyframeInterval() {
+        VideoEncoderConfig config = new VideoEncoderConfig("30000/1001", VideoEncoderConfig.Preset.BALANCED, 0, null);
+        // 0.1 bit per pixel of 1080p at 29.97 fps
+        assertEquals(6_214_585, config.getBitrate(1920, 1080));
+        assertEquals(60, config.getKeyframeInterval());
+
+        VideoEncoderConfig fixed = new VideoEncoderConfig("25", VideoEncoderConfig.Preset.REALTIME, 4_000_000, null);
+        assertEquals(4_000_000, fixed.getBitrate(3840, 2160));
+        assertEquals(25, fixed.getKeyframeInterval());
+
+        try {
+            new VideoEncoderConfig("0/0", VideoEncoderConfig.Preset.BALANCED, 0, null);
+            fail("Invalid frame rate");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("0/0"));
+        }
+    }
+
+    @Test
+    public void ffmpegArguments_copyAudioAndKeepPathsWhole() {
+        VideoEncoderConfig config = new VideoEncoderConfig("24", VideoEncoderConfig.Preset.QUALITY, 2_000_000,
+                "/sdcard/My Videos/in put.mp4");
+        List<String> arguments = Arrays.asList(config.ffmpegArguments("pipe:3", 640, 360, "/sdcard/out 1.mp4"));
+
+        assertEquals("640x360", arguments.get(arguments.indexOf("-s") + 1));
+        assertEquals("pipe:3", arguments.get(arguments.indexOf("-i") + 1));
+        assertEquals("/sdcard/My Videos/in put.mp4", arguments.get(arguments.lastIndexOf("-i") + 1));
+        assertEquals("copy", arguments.get(arguments.indexOf("-c:a") + 1));
+        assertEquals("1:a:0?", arguments.get(arguments.lastIndexOf("-map") + 1));
+        assertEquals("2000000", arguments.get(arguments.indexOf("-b:v") + 1));
+        assertEquals("96", arguments.get(arguments.indexOf("-g") + 1));
+        assertTrue(arguments.contains("-trellis"));
+        assertEquals("/sdcard/out 1.mp4", arguments.get(arguments.size() - 1));
+
+        List<String> silent = Arrays.asList(new VideoEncoderConfig("24", VideoEncoderConfig.Preset.REALTIME, 0, null)
+                .ffmpegArguments("pipe:3", 640, 360, "out.mp4"));
+        assertFalse(silent.contains("-c:a"));
+        assertFalse(silent.contains("-trellis"));
+        assertEquals(1, silent.stream().filter("-i"::equals).count());
+    }
+}
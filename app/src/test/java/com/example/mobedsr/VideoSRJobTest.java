@@ -0,0 +1,183 @@
+package com.example.mobedsr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Orchestration of VideoSRJob with a fake decoder, SR model and encoder.
+ */
+public class VideoSRJobTest {
+
+    private interface FakeModel {
+        Frame process(Frame frame) throws IOException;
+    }
+
+    private static class FakeStages implements VideoSRJob.Stages {
+        final int frameCount;
+        final FakeModel model;
+        final List<Integer> encoded = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile boolean released;
+        volatile boolean sinkClosed;
+
+        FakeStages(int frameCount, FakeModel model) {
+            this.frameCount = frameCount;
+            this.model = model;
+        }
+
+        @Override
+        public FrameSource createSource() {
+            return new FrameSource() {
+                int next;
+
+                @Override
+                public Frame read() {
+                    return next < frameCount ? new Frame(next++, 2, 2, new int[4]) : null;
+                }
+
+                @Override
+                public int getFrameCount() {
+                    return frameCount;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public void addStages(FramePipeline pipeline) {
+            pipeline.addStage("sr", 1, model::process);
+        }
+
+        @Override
+        public FrameSink createSink() {
+            return new FrameSink() {
+                @Override
+                public void write(Frame frame) {
+                    encoded.add(frame.index);
+                }
+
+                @Override
+                public void close() {
+                    sinkClosed = true;
+                }
+            };
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static class RecordingListener implements VideoSRJob.Listener {
+        final List<VideoSRJob.State> states = Collections.synchronizedList(new ArrayList<VideoSRJob.State>());
+        volatile VideoSRJob.Progress last;
+        volatile Exception error;
+
+        @Override
+        public void onProgress(VideoSRJob.Progress progress) {
+            last = progress;
+        }
+
+        @Override
+        public void onStateChanged(VideoSRJob.State state, Exception error) {
+            states.add(state);
+            if (error != null)
+                this.error = error;
+        }
+    }
+
+    @Test
+    public void run_encodesAllFramesInOrder() {
+        FakeStages stages = new FakeStages(20, frame -> frame);
+        RecordingListener listener = new RecordingListener();
+        VideoSRJob job = new VideoSRJob(stages, listener);
+
+        job.run();
+
+        assertEquals(VideoSRJob.State.FINISHED, job.getState());
+        assertEquals(20, stages.encoded.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, (int) stages.encoded.get(i));
+        assertEquals(20, listener.last.framesDone);
+        assertEquals(20, listener.last.totalFrames);
+        assertEquals(0, listener.last.etaMillis);
+        assertTrue(listener.last.framesPerSecond > 0);
+        assertEquals(VideoSRJob.State.RUNNING, listener.states.get(0));
+        assertTrue(stages.released);
+        assertTrue(stages.sinkClosed);
+    }
+
+    @Test
+    public void cancel_stopsAtFrameBoundary() {
+        final VideoSRJob[] job = new VideoSRJob[1];
+        FakeStages stages = new FakeStages(100, frame -> {
+            if (frame.index == 5)
+                job[0].cancel();
+            return frame;
+        });
+        RecordingListener listener = new RecordingListener();
+        job[0] = new VideoSRJob(stages, listener);
+
+        job[0].run();
+
+        assertEquals(VideoSRJob.State.CANCELLED, job[0].getState());
+        assertNull(listener.error);
+        assertTrue(stages.encoded.size() < 100);
+        assertTrue(stages.released);
+    }
+
+    @Test
+    public void pause_blocksUntilResumed() throws Exception {
+        final VideoSRJob[] job = new VideoSRJob[1];
+        FakeStages stages = new FakeStages(100, frame -> {
+            if (frame.index == 3)
+                job[0].pause();
+            return frame;
+        });
+        job[0] = new VideoSRJob(stages, new RecordingListener());
+
+        Thread thread = new Thread(job[0]);
+        thread.start();
+        while (job[0].getState() != VideoSRJob.State.PAUSED)
+            Thread.sleep(1);
+
+        // Frames already decoded drain, then nothing moves until resume()
+        Thread.sleep(50);
+        int encodedWhilePaused = stages.encoded.size();
+        Thread.sleep(50);
+        assertEquals(encodedWhilePaused, stages.encoded.size());
+        assertTrue(thread.isAlive());
+
+        job[0].resume();
+        thread.join(5000);
+
+        assertEquals(VideoSRJob.State.FINISHED, job[0].getState());
+        assertEquals(100, stages.encoded.size());
+    }
+
+    @Test
+    public void modelFailure_reportsFailed() {
+        FakeStages stages = new FakeStages(10, frame -> {
+            if (frame.index == 2)
+                throw new IOException("delegate lost");
+            return frame;
+        });
+        RecordingListener listener = new RecordingListener();
+        VideoSRJob job = new VideoSRJob(stages, listener);
+
+        job.run();
+
+        assertEquals(VideoSRJob.State.FAILED, job.getState());
+        assertNotNull(listener.error);
+        assertTrue(stages.released);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.mobedsr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  Synthetic inputs shared by the benchmarks
+ *  @date   26/10/17
+ */
+final class BenchmarkImages {
+
+    private BenchmarkImages() {
+    }
+
+    /** @return {width, height} of a "WIDTHxHEIGHT" parameter */
+    static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /** @brief  Gradient with noise, so that no conversion sees constant input */
+    static int[] argb(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                int r = (x + random.nextInt(16)) & 0xFF;
+                int g = (y + random.nextInt(16)) & 0xFF;
+                int b = (x + y + random.nextInt(16)) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        return pixels;
+    }
+
+    /** @brief  Direct, native-ordered RGB float tensor, as handed to the interpreter */
+    static FloatBuffer tensor(int pixels) {
+        return ByteBuffer.allocateDirect(pixels * 3 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /** @return pool of the given parallelism, or null for 1 (calling thread only) */
+    static ForkJoinPool pool(int threads) {
+        return threads <= 1 ? null : new ForkJoinPool(threads);
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.mobedsr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  SR output tensor to ARGB pixels, as in SRModel.tensorToImage()
+ *  @date   26/10/17
+ *  The resolution is the SR (x4) output.
+ */
+@State(Scope.Thread)
+public class ConvertBenchmark {
+    @Param({"1280x720", "2560x1440"})
+    public String resolution;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private int width;
+    private int height;
+    private FloatBuffer tensor;
+    private int[] pixels;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        tensor = BenchmarkImages.tensor(width * height);
+        TensorConverter.argbToFloat(BenchmarkImages.argb(width, height, 2), tensor, width, height);
+        pixels = new int[width * height];
+        pool = BenchmarkImages.pool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] floatToArgb() {
+        TensorConverter.floatToArgb(tensor, pixels, width, height, pool);
+        return pixels;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.mobedsr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+
+/** @brief  ARGB pixels to input tensors, replacing NormalizeOp(0, 255)
+ *  @date   26/10/17
+ *  relativePut is the access pattern of a per-pixel NormalizeOp-style loop
+ *  and serves as the baseline. fusedRows is the row-bulk kernel of
+ *  SRModel.writeInput() on one thread, fusedParallel on the common pool.
+ */
+@State(Scope.Thread)
+public class PreprocessBenchmark {
+    @Param({"320x180", "640x360", "1280x720"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private FloatBuffer floats;
+    private ByteBuffer bytes;
+    private Quantization quantization;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        pixels = BenchmarkImages.argb(width, height, 1);
+        floats = BenchmarkImages.tensor(width * height);
+        bytes = ByteBuffer.allocateDirect(width * height * 3).order(ByteOrder.nativeOrder());
+        quantization = new Quantization(1.0f / 255.0f, 0, false);
+    }
+
+    @Benchmark
+    public FloatBuffer relativePut() {
+        floats.rewind();
+        for (int pixel : pixels) {
+            floats.put(((pixel >> 16) & 0xFF) / 255.0f);
+            floats.put(((pixel >> 8) & 0xFF) / 255.0f);
+            floats.put((pixel & 0xFF) / 255.0f);
+        }
+        return floats;
+    }
+
+    @Benchmark
+    public FloatBuffer argbToFloat() {
+        TensorConverter.argbToFloat(pixels, floats, width, height);
+        return floats;
+    }
+
+    @Benchmark
+    public FloatBuffer fusedRows() {
+        TensorConverter.argbToFloat(pixels, width, height, floats, width, height, null);
+        return floats;
+    }
+
+    @Benchmark
+    public FloatBuffer fusedParallel() {
+        TensorConverter.argbToFloat(pixels, width, height, floats, width, height);
+        return floats;
+    }
+
+    @Benchmark
+    public ByteBuffer argbToQuantized() {
+        quantization.argbToQuantized(pixels, width, height, bytes, width, height, null);
+        return bytes;
+    }
+}
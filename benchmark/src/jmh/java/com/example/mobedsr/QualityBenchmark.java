@@ -0,0 +1,55 @@
+package com.example.mobedsr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ForkJoinPool;
+
+
+/** @brief  PSNR / SSIM of an SR output against its HR reference
+ *  @date   26/10/17
+ */
+@State(Scope.Thread)
+public class QualityBenchmark {
+    @Param({"640x360", "1280x720"})
+    public String resolution;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private ImageQuality.Image sr;
+    private ImageQuality.Image hr;
+    private int[] srPixels;
+    private int[] hrPixels;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseResolution(resolution);
+        srPixels = BenchmarkImages.argb(size[0], size[1], 4);
+        hrPixels = BenchmarkImages.argb(size[0], size[1], 5);
+        sr = ImageQuality.ofArgb(srPixels, size[0], size[1]);
+        hr = ImageQuality.ofArgb(hrPixels, size[0], size[1]);
+        pool = BenchmarkImages.pool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Benchmark
+    public ImageQuality.Result evaluate() {
+        return ImageQuality.evaluate(sr, hr, 4, pool);
+    }
+
+    @Benchmark
+    public double psnrArgb() {
+        return ImageQuality.psnr(srPixels, hrPixels);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.mobedsr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.FloatBuffer;
+
+
+/** @brief  Tile split and overlap blending of TiledSR, without the interpreter
+ *  @date   26/10/17
+ *  The SR tile is a fixed buffer, so only TileGrid's work is measured.
+ */
+@State(Scope.Thread)
+public class TileBenchmark {
+    private static final int SCALE = 4;
+    // TiledSR.OVERLAP; TiledSR itself needs the interpreter
+    private static final int OVERLAP = 8;
+
+    @Param({"320x180", "640x360"})
+    public String resolution;
+
+    @Param({"64", "128"})
+    public int tileSize;
+
+    private int[] pixels;
+    private TileGrid grid;
+    private FloatBuffer tileInput;
+    private FloatBuffer tileOutput;
+    private FloatBuffer output;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseResolution(resolution);
+        pixels = BenchmarkImages.argb(size[0], size[1], 3);
+        grid = new TileGrid(size[0], size[1], tileSize, OVERLAP, SCALE);
+        tileInput = BenchmarkImages.tensor(tileSize * tileSize);
+        tileOutput = BenchmarkImages.tensor(tileSize * tileSize * SCALE * SCALE);
+        for (int i = 0; i < tileOutput.capacity(); i++)
+            tileOutput.put(i, (i % 255) / 255.0f);
+        output = BenchmarkImages.tensor(grid.getOutputWidth() * grid.getOutputHeight());
+    }
+
+    @Benchmark
+    public FloatBuffer splitAndBlend() {
+        for (int i = 0; i < output.capacity(); i++)
+            output.put(i, 0.0f);
+        for (TileGrid.Tile tile : grid.getTiles()) {
+            grid.extractTile(pixels, tile, tileInput);
+            grid.blendTile(tileOutput, tile, output);
+        }
+        return output;
+    }
+}
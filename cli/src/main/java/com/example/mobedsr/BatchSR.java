@@ -0,0 +1,306 @@
+package com.example.mobedsr;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/** @brief  Headless batch super resolution of the images of a directory
+ *  @date   26/10/17
+ *  Each SR worker owns one FrameProcessor, decodes an image, super
+ *  resolves it and hands the result to a pool of PNG writers. At most
+ *  `inFlight` images are decoded and not yet written, which bounds the
+ *  memory whatever the size of the directory. Outputs keep the relative
+ *  path of their input. A failed image is reported and skipped.
+ */
+public class BatchSR {
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp"};
+    private static final String REPORT_NAME = "batch_report.json";
+
+    private final List<FrameProcessor> processors;
+    private final int inFlight;
+    private final int writers;
+
+
+    /** @brief  Counts, throughput and per-stage latencies of a run
+     *  @date   26/10/17
+     */
+    public static final class Report {
+        public final int images;
+        public final int failed;
+        public final long outputPixels;
+        public final long elapsedNanos;
+        // Most images decoded and not yet written at once
+        public final int peakInFlight;
+        public final List<String> failures;
+        public final SRMetrics.Snapshot metrics;
+
+        Report(int images, int failed, long outputPixels, long elapsedNanos, int peakInFlight,
+               List<String> failures, SRMetrics.Snapshot metrics) {
+            this.images = images;
+            this.failed = failed;
+            this.outputPixels = outputPixels;
+            this.elapsedNanos = elapsedNanos;
+            this.peakInFlight = peakInFlight;
+            this.failures = Collections.unmodifiableList(failures);
+            this.metrics = metrics;
+        }
+
+        public double getImagesPerSecond() {
+            return (images - failed) * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public double getOutputMegapixelsPerSecond() {
+            return outputPixels * 1e3 / Math.max(1, elapsedNanos);
+        }
+
+        /** @return summary line, the stage latencies and the failures */
+        public List<String> toLogLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format(Locale.US, "%d images, %d failed in %.1fs: %.2f images/s, %.2f MP/s out",
+                    images, failed, elapsedNanos / 1e9, getImagesPerSecond(), getOutputMegapixelsPerSecond()));
+            lines.addAll(metrics.toLogLines());
+            for (String failure : failures)
+                lines.add("failed: " + failure);
+            return lines;
+        }
+    }
+
+
+    /** @param processors one per SR worker thread
+     *  @param inFlight   images decoded and not yet written at most
+     *  @param writers    threads encoding and writing outputs
+     */
+    public BatchSR(List<FrameProcessor> processors, int inFlight, int writers) {
+        if (processors.isEmpty() || inFlight < 1 || writers < 1)
+            throw new IllegalArgumentException("Need a processor, an image in flight and a writer");
+        this.processors = processors;
+        this.inFlight = inFlight;
+        this.writers = writers;
+    }
+
+
+    /** @return image files under a directory, recursively, in path order */
+    static List<Path> listImages(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).filter(BatchSR::isImage).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.US);
+        for (String extension : EXTENSIONS)
+            if (name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    /** @return output of an input: same relative path, PNG */
+    static Path outputOf(Path inputDir, Path input, Path outputDir) {
+        String relative = inputDir.relativize(input).toString();
+        int dot = relative.lastIndexOf('.');
+        return outputDir.resolve(relative.substring(0, dot) + ".png");
+    }
+
+
+    /** @brief  Super resolve every image under inputDir into outputDir
+     *  @date   26/10/17
+     *  Blocks until the last output is written. The report snapshots
+     *  SRMetrics at the end and is also written as JSON next to the outputs.
+     */
+    public Report run(Path inputDir, Path outputDir) throws IOException, InterruptedException {
+        List<Path> inputs = listImages(inputDir);
+        Files.createDirectories(outputDir);
+        SRMetrics metrics = SRMetrics.getInstance();
+
+        Semaphore permits = new Semaphore(inFlight);
+        AtomicInteger inFlightNow = new AtomicInteger();
+        AtomicInteger peakInFlight = new AtomicInteger();
+        AtomicLong outputPixels = new AtomicLong();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(inputs.size());
+        BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+        Path end = Paths.get("");
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService writerPool = Executors.newFixedThreadPool(writers,
+                runnable -> new Thread(runnable, "Writer-" + threads.getAndIncrement()));
+        List<Thread> workers = new ArrayList<>();
+
+        // Releases the in-flight permit of an image once written or failed
+        class Image {
+            final Path input;
+            final long startTime;
+
+            Image(Path input, long startTime) {
+                this.input = input;
+                this.startTime = startTime;
+            }
+
+            void fail(Exception e) {
+                failures.add(input + ": " + e);
+                System.err.println("Cannot super resolve " + input + ": " + e);
+                finish();
+            }
+
+            void finish() {
+                inFlightNow.decrementAndGet();
+                permits.release();
+                done.countDown();
+            }
+
+            void write(Frame sr) {
+                try {
+                    long writeStart = SRMetrics.now();
+                    BufferedImage image = new BufferedImage(sr.width, sr.height, BufferedImage.TYPE_INT_RGB);
+                    image.setRGB(0, 0, sr.width, sr.height, sr.pixels, 0, sr.width);
+                    Path output = outputOf(inputDir, input, outputDir);
+                    Files.createDirectories(output.getParent());
+                    if (!ImageIO.write(image, "png", output.toFile()))
+                        throw new IOException("No PNG writer");
+                    metrics.record("image_write", writeStart);
+                    metrics.record("image_total", startTime);
+                    outputPixels.addAndGet((long) sr.width * sr.height);
+                    finish();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        for (int i = 0; i < processors.size(); i++) {
+            FrameProcessor processor = processors.get(i);
+            Thread worker = new Thread(() -> {
+                Path input;
+                int index = 0;
+                try {
+                    while ((input = queue.take()) != end) {
+                        Image image = new Image(input, SRMetrics.now());
+                        try {
+                            Frame lr = read(input, index++);
+                            metrics.record("image_decode", image.startTime);
+                            long srStart = SRMetrics.now();
+                            Frame sr = processor.process(lr);
+                            metrics.record("image_sr", srStart);
+                            writerPool.execute(() -> image.write(sr));
+                        } catch (IOException | RuntimeException e) {
+                            image.fail(e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "SR-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long startTime = SRMetrics.now();
+        try {
+            for (Path input : inputs) {
+                permits.acquire();
+                peakInFlight.accumulateAndGet(inFlightNow.incrementAndGet(), Math::max);
+                queue.put(input);
+            }
+            done.await();
+        } finally {
+            for (int i = 0; i < workers.size(); i++)
+                queue.put(end);
+            for (Thread worker : workers)
+                worker.join();
+            writerPool.shutdown();
+            writerPool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsed = SRMetrics.now() - startTime;
+
+        Report report = new Report(inputs.size(), failures.size(), outputPixels.get(), elapsed,
+                peakInFlight.get(), new ArrayList<>(failures), metrics.snapshot());
+        report.metrics.writeJson(outputDir.resolve(REPORT_NAME).toFile());
+        return report;
+    }
+
+    private static Frame read(Path input, int index) throws IOException {
+        BufferedImage image = ImageIO.read(input.toFile());
+        if (image == null)
+            throw new IOException("Unsupported image format");
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return new Frame(index, width, height, image.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+
+    private static void usage() {
+        System.err.println("Usage: BatchSR <model.tflite> <input dir> <output dir>"
+                + " [--workers N] [--threads N] [--in-flight N] [--writers N]");
+        System.exit(2);
+    }
+
+    /** @brief  Command line entry point, see usage()
+     *  @date   26/10/17
+     *  Defaults: 2 interpreter threads per worker, as many workers as fit
+     *  the cores, two images in flight per worker and 2 writers.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3)
+            usage();
+        int threads = 2;
+        int workers = -1;
+        int inFlight = -1;
+        int writers = 2;
+        for (int i = 3; i < args.length; i += 2) {
+            if (i + 1 == args.length)
+                usage();
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--workers": workers = value; break;
+                case "--threads": threads = value; break;
+                case "--in-flight": inFlight = value; break;
+                case "--writers": writers = value; break;
+                default: usage();
+            }
+        }
+        if (workers < 1)
+            workers = Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+        if (inFlight < 1)
+            inFlight = 2 * workers;
+
+        MappedByteBuffer model = TfliteFrameProcessor.map(Paths.get(args[0]));
+        List<FrameProcessor> processors = new ArrayList<>();
+        Report report;
+        try {
+            for (int i = 0; i < workers; i++)
+                processors.add(new TfliteFrameProcessor(model, threads));
+            SRMetrics.getInstance().setLabel("model", Paths.get(args[0]).getFileName().toString());
+            SRMetrics.getInstance().setLabel("workers", String.valueOf(workers));
+            SRMetrics.getInstance().setLabel("threads", String.valueOf(threads));
+
+            report = new BatchSR(processors, inFlight, writers).run(Paths.get(args[1]), Paths.get(args[2]));
+        } finally {
+            for (FrameProcessor processor : processors)
+                ((TfliteFrameProcessor) processor).close();
+        }
+        for (String line : report.toLogLines())
+            System.out.println(line);
+        System.exit(report.failed > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.mobedsr;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/** @brief  Super resolution of whole images with a TF Lite CPU interpreter on the JVM
+ *  @date   26/10/17
+ *  The desktop counterpart of SRModel: same tensor arena and the same
+ *  conversions through TensorIO, XNNPACK instead of the Android delegates.
+ *  The interpreter is resized to each image, so one processor serves
+ *  images of any size. Not thread-safe, use one processor per thread.
+ */
+public class TfliteFrameProcessor implements FrameProcessor, Closeable {
+    private final Interpreter interpreter;
+    private final TensorIO tensorIO;
+    private TensorArena arena;
+    // Whether the interpreter already ran at its current input shape
+    private boolean warm;
+
+
+    /** @param model      model mapped by map(), may be shared by several processors
+     *  @param numThreads threads of the interpreter
+     */
+    public TfliteFrameProcessor(MappedByteBuffer model, int numThreads) throws IOException {
+        long startTime = SRMetrics.now();
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(true);
+        interpreter = new Interpreter(model, options);
+        tensorIO = new TensorIO(interpreter);
+        SRMetrics.getInstance().record("interpreter_init", startTime, true);
+    }
+
+    /** @brief  Map a .tflite file read-only; the mapping outlives the closed channel
+     *  @date   26/10/17
+     */
+    public static MappedByteBuffer map(Path model) throws IOException {
+        try (FileChannel channel = FileChannel.open(model, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+
+    @Override
+    public Frame process(Frame frame) throws IOException {
+        int[] shape = new int[]{1, frame.height, frame.width, 3};
+        if (!Arrays.equals(interpreter.getInputTensor(0).shape(), shape)) {
+            interpreter.resizeInput(0, shape);
+            interpreter.allocateTensors();
+            // The first run after reallocating the tensors is a cold one again
+            warm = false;
+        }
+        int inputBytes = interpreter.getInputTensor(0).numBytes();
+        int outputBytes = interpreter.getOutputTensor(0).numBytes();
+        if (arena == null || !arena.fits(inputBytes, outputBytes))
+            arena = new TensorArena(inputBytes, outputBytes, 1);
+
+        TensorArena.Slot slot;
+        try {
+            slot = arena.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the tensor arena");
+        }
+        try {
+            SRMetrics metrics = SRMetrics.getInstance();
+            long startTime = SRMetrics.now();
+            tensorIO.writeInput(frame.pixels, frame.width, frame.height, slot, frame.width, frame.height);
+            metrics.record("tensor_prep", startTime);
+
+            startTime = SRMetrics.now();
+            interpreter.run(slot.input, slot.output);
+            metrics.record("inference", startTime, !warm);
+            warm = true;
+
+            startTime = SRMetrics.now();
+            int scale = interpreter.getOutputTensor(0).shape()[1] / frame.height;
+            int srWidth = frame.width * scale;
+            int srHeight = frame.height * scale;
+            int[] srPixels = new int[srWidth * srHeight];
+            tensorIO.readOutput(slot, srWidth, srPixels, srWidth, srHeight);
+            metrics.record("output_convert", startTime);
+            return new Frame(frame.index, srWidth, srHeight, srPixels);
+        } finally {
+            arena.release(slot);
+        }
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+        arena = null;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.mobedsr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Directory walk, bounded images in flight, parallel outputs and the
+ * report of BatchSR with a fake 2x nearest-neighbour model.
+ */
+public class BatchSRTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Nearest-neighbour 2x upscale, slow enough for the workers to overlap
+    private static class FakeProcessor implements FrameProcessor {
+        final AtomicInteger processed = new AtomicInteger();
+
+        @Override
+        public Frame process(Frame frame) throws IOException {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            int width = frame.width * 2;
+            int[] pixels = new int[width * frame.height * 2];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = frame.pixels[(i / width / 2) * frame.width + (i % width) / 2];
+            processed.incrementAndGet();
+            return new Frame(frame.index, width, frame.height * 2, pixels);
+        }
+    }
+
+    private static void writeImage(Path path, int value) throws IOException {
+        BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 2; y++)
+            for (int x = 0; x < 3; x++)
+                image.setRGB(x, y, value + y * 3 + x);
+        Files.createDirectories(path.getParent());
+        assertTrue(ImageIO.write(image, "png", path.toFile()));
+    }
+
+    @Test
+    public void run_superResolvesEveryImageOnce() throws Exception {
+        Path input = folder.newFolder("in").toPath();
+        Path output = folder.getRoot().toPath().resolve("out");
+        for (int i = 0; i < 20; i++)
+            writeImage(input.resolve((i % 2 == 0) ? "a" : "b/c").resolve("img" + i + ".png"), i << 8);
+        Files.write(input.resolve("notes.txt"), "not an image".getBytes("UTF-8"));
+
+        List<FakeProcessor> processors = Arrays.asList(new FakeProcessor(), new FakeProcessor());
+        BatchSR.Report report = new BatchSR(new ArrayList<>(processors), 3, 2).run(input, output);
+
+        assertEquals(20, report.images);
+        assertEquals(0, report.failed);
+        assertEquals(20 * 6 * 4, report.outputPixels);
+        assertTrue("peak " + report.peakInFlight, report.peakInFlight >= 1 && report.peakInFlight <= 3);
+        assertEquals(20, processors.get(0).processed.get() + processors.get(1).processed.get());
+        assertTrue(processors.get(0).processed.get() > 0 && processors.get(1).processed.get() > 0);
+        assertEquals(20, report.metrics.getStage("image_total").steady.count);
+
+        BufferedImage sr = ImageIO.read(output.resolve("b/c/img7.png").toFile());
+        assertEquals(6, sr.getWidth());
+        assertEquals(4, sr.getHeight());
+        // Pixel (1, 1) of the input at (2..3, 2..3) of the output
+        assertEquals((7 << 8) + 4, sr.getRGB(3, 2) & 0xffffff);
+        assertTrue(Files.exists(output.resolve("batch_report.json")));
+        assertFalse(Files.exists(output.resolve("notes.png")));
+    }
+
+    @Test
+    public void run_reportsUnreadableImagesAndContinues() throws Exception {
+        Path input = folder.newFolder("in").toPath();
+        writeImage(input.resolve("good.png"), 0x102030);
+        Files.write(input.resolve("broken.jpg"), new byte[]{1, 2, 3});
+
+        BatchSR.Report report = new BatchSR(new ArrayList<>(Arrays.asList(new FakeProcessor())), 1, 1)
+                .run(input, folder.getRoot().toPath().resolve("out"));
+
+        assertEquals(2, report.images);
+        assertEquals(1, report.failed);
+        assertTrue(report.failures.get(0).contains("broken.jpg"));
+        assertEquals(1, report.peakInFlight);
+        assertTrue(report.toLogLines().get(0).startsWith("2 images, 1 failed"));
+    }
+
+    @Test
+    public void outputOf_keepsTheRelativePathAsPng() {
+        Path input = folder.getRoot().toPath().resolve("in");
+        Path output = folder.getRoot().toPath().resolve("out");
+        assertEquals(output.resolve("x/y.v1.png"), BatchSR.outputOf(input, input.resolve("x/y.v1.JPG"), output));
+    }
+}